@@ -1,11 +1,19 @@
 package micronaut.examples.basic
 
+import ai.stainless.micronaut.jupyter.KernelWarmup
+import io.micronaut.context.ApplicationContext
 import io.micronaut.runtime.Micronaut
 import groovy.transform.CompileStatic
 
 @CompileStatic
 class Application {
     static void main(String[] args) {
-        Micronaut.run(Application, args)
+        ApplicationContext context = Micronaut.run(Application, args)
+        // set when the application only runs to warm a kernel up, e.g. to dump a CDS archive
+        Integer exitCode = KernelWarmup.awaitExitCode(context)
+        if (exitCode != null) {
+            context.close()
+            System.exit(exitCode)
+        }
     }
 }
@@ -112,23 +112,54 @@ public class InstallKernel {
 
     private createKernelSh () {
         // create endpoint url to call
-        def endpointUrl = "${getServerUrl()}/${getEndpointPath()}"
+        def serverUrl = getServerUrl()
+        def endpointUrl = "${serverUrl}/${getEndpointPath()}"
         return """#!/bin/bash
 # Listen on all addresses, instead of just localhost
 # (opens up kernel coms publically)
 # jq '.ip = "0.0.0.0"' \$1 > tmp.\$\$.json && mv tmp.\$\$.json \$1
 
-# Send request to endpoint to start kernel
-curl -X POST $endpointUrl -H 'Content-Type: application/json' -d "{\\"file\\":\\"\$1\\"}" --trace -
+# Send request to endpoint to start kernel, and wait until it is ready
+RESPONSE=\$(curl -sS -f -X POST $endpointUrl -H 'Content-Type: application/json' -d "{\\"file\\":\\"\$1\\",\\"wait\\":true}")
 RET=\$?
 if [ \$RET -ne 0 ]; then
   exit \$RET
 fi
+KERNEL_ID=\$(echo "\$RESPONSE" | sed -n 's/.*"kernelId":"\\([^"]*\\)".*/\\1/p')
+if [ -z "\$KERNEL_ID" ]; then
+  echo "No kernel ID in start response: \$RESPONSE" >&2
+  exit 1
+fi
 
-# The kernel has been started, so things are out of control now
-# Make Jupyter think that we ("the kernel") are still doing something
+# Stay alive for as long as the kernel is: block on a long poll that returns
+# when the kernel terminates or is restarted, so Jupyter notices right away
 while true; do
-  sleep 5
+  STATE=\$(curl -sS --max-time 90 -w '\\n%{http_code}' "${serverUrl}/jupyterkernel/\$KERNEL_ID/await?timeoutSeconds=60")
+  RET=\$?
+  if [ \$RET -eq 28 ]; then
+    # the request itself timed out, poll again
+    continue
+  fi
+  if [ \$RET -ne 0 ]; then
+    # the server is gone
+    exit 0
+  fi
+  case "\$(echo "\$STATE" | tail -n 1)" in
+    200)
+      case "\$STATE" in
+        *'"state":"running"'*) ;;
+        *) exit 0 ;;
+      esac
+      ;;
+    404)
+      # the kernel is not known to the server, nor to any instance it was placed on
+      exit 0
+      ;;
+    *)
+      # e.g. the instance running the kernel can't be reached for now
+      sleep 1
+      ;;
+  esac
 done
 
 """
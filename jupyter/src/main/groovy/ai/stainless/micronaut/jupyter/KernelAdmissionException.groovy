@@ -0,0 +1,12 @@
+package ai.stainless.micronaut.jupyter
+
+/**
+ * Thrown when a kernel is not started because the server can't take on
+ * another one right now.
+ */
+class KernelAdmissionException extends RuntimeException {
+
+    KernelAdmissionException(String message) {
+        super(message)
+    }
+}
@@ -1,35 +1,319 @@
 package ai.stainless.micronaut.jupyter
 
+import ai.stainless.micronaut.jupyter.kernel.CellCache
+import ai.stainless.micronaut.jupyter.kernel.CellScheduler
+import ai.stainless.micronaut.jupyter.kernel.Micronaut
+import ai.stainless.micronaut.jupyter.kernel.OutputLimiter
+import ai.stainless.micronaut.jupyter.kernel.ThreadLeakTracker
 import groovy.util.logging.Slf4j
+import io.micronaut.context.annotation.Value
+import io.micronaut.core.annotation.Nullable
+import io.micronaut.http.HttpHeaders
+import io.micronaut.http.HttpResponse
+import io.micronaut.http.HttpStatus
 import io.micronaut.http.annotation.Body
 import io.micronaut.http.annotation.Controller
+import io.micronaut.http.annotation.Get
+import io.micronaut.http.annotation.Header
 import io.micronaut.http.annotation.PathVariable
 import io.micronaut.http.annotation.Post
+import io.micronaut.http.annotation.QueryValue
+import io.micronaut.scheduling.TaskExecutors
+import io.micronaut.scheduling.annotation.ExecuteOn
+import io.micronaut.security.authentication.Authentication
 import io.micronaut.security.rules.SecurityRule
 import io.micronaut.security.annotation.Secured
 import jakarta.inject.Inject
 
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+
+/**
+ * Starts kernels for the kernel launcher and reports on them.
+ * <p>
+ * Kernels run Groovy with full access to the application, so only a kernel
+ * whose connection file Jupyter wrote on the server's disk can be started
+ * anonymously. Starting one from inline connection info or on allocated
+ * ports, whose address and key the caller chooses, must be enabled with
+ * {@code jupyter.kernel.remoteStart.enabled} and needs an authenticated
+ * request. Endpoints that change a running kernel need one too.
+ */
 @Slf4j
 @Secured(SecurityRule.IS_ANONYMOUS)
 @Controller("/jupyterkernel")
 public class KernelEndpoint {
 
+    static final long DEFAULT_START_TIMEOUT_MS = 30000
+    static final long MAX_AWAIT_SECONDS = 240
+
     @Inject
     KernelManager kernelManager
 
+    @Inject
+    @Nullable
+    KernelPlacementRouter placementRouter
+
+    @Value('${jupyter.kernel.remoteStart.enabled:false}')
+    Boolean remoteStartEnabled = false
+
     @Post("/start")
-    public Map start(@Body StartRequest request) {
-        log.info("Received connection file: ${request.file}")
+    @ExecuteOn(TaskExecutors.BLOCKING)
+    public HttpResponse<Map> start(@Body StartRequest request,
+                                   @Nullable @Header(KernelPlacementRouter.FORWARDED_HEADER) String forwardedFrom,
+                                   @Nullable @Header(HttpHeaders.AUTHORIZATION) String authorization,
+                                   @Nullable Authentication authentication) {
+        log.info("Received kernel start request: ${request.file ?: (request.allocatePorts ? 'allocated ports' : 'inline connection')}")
 
         if (this.kernelManager == null) {
             throw new IllegalStateException("KernelManager was not injected")
         }
 
-        kernelManager.startNewKernel(request.file)
+        int modes = [request.file != null, request.connection != null, request.allocatePorts].count { it }
+        if (modes != 1) {
+            return HttpResponse.badRequest([
+                    "message": "Exactly one of 'file', 'connection' or 'allocatePorts' must be given"
+            ] as Map)
+        }
 
-        return [
-                "message": "Kernel start request received!"
-        ]
+        // the caller chooses the address and key of these, so it could reach the kernel from anywhere
+        boolean remote = request.connection != null || request.allocatePorts
+        if (remote && !remoteStartEnabled) {
+            return HttpResponse.status(HttpStatus.FORBIDDEN).body([
+                    "message": "Starting kernels from inline connection info or on allocated ports is disabled, " +
+                            "set jupyter.kernel.remoteStart.enabled to allow it"
+            ] as Map)
+        }
+        if (remote && authentication == null) {
+            return HttpResponse.status(HttpStatus.UNAUTHORIZED).body([
+                    "message": "Starting kernels from inline connection info or on allocated ports needs an authenticated request"
+            ] as Map)
+        }
+
+        // the key is the client's own, the server never hands one out
+        if (request.allocatePorts && !request.key?.trim()) {
+            return HttpResponse.badRequest([
+                    "message": "A 'key' to sign messages with is required to allocate ports"
+            ] as Map)
+        }
+
+        if (request.priority != null) {
+            try {
+                CellScheduler.Priority.parse(request.priority)
+            } catch (IllegalArgumentException e) {
+                return HttpResponse.badRequest(["message": e.message] as Map)
+            }
+        }
+
+        // a request that was already forwarded is always placed here, so requests never bounce between peers
+        Map forwardable = placementRouter != null && forwardedFrom == null ? placementRouter.forwardableStart(request) : null
+        if (forwardable != null) {
+            String peer = placementRouter.choosePeer()
+            if (peer != null) {
+                try {
+                    HttpResponse<Map> response = placementRouter.forwardStart(peer, forwardable, authorization)
+                    // a peer that doesn't accept remote starts, or these credentials, started nothing
+                    if (response.status != HttpStatus.UNAUTHORIZED && response.status != HttpStatus.FORBIDDEN) {
+                        return HttpResponse.status(response.status).body((response.body() ?: [:]) + ["instance": peer])
+                    }
+                    log.warn("Peer {} refused the kernel start request ({}), starting it locally", peer, response.status)
+                } catch (Exception e) {
+                    log.warn("Unable to forward kernel start request to {}, starting it locally", peer, e)
+                }
+            }
+        }
+
+        String kernelId
+        try {
+            if (request.file != null) {
+                kernelId = kernelManager.startNewKernel(request.file)
+            } else if (request.connection != null) {
+                kernelId = kernelManager.startNewKernel(request.connection)
+            } else {
+                kernelId = kernelManager.startNewKernelOnAllocatedPorts(request.ip, request.key)
+            }
+        } catch (IllegalArgumentException e) {
+            return HttpResponse.badRequest(["message": e.message] as Map)
+        } catch (KernelAdmissionException e) {
+            return HttpResponse.status(HttpStatus.SERVICE_UNAVAILABLE).body(["message": e.message] as Map)
+        }
+
+        if (request.priority != null) {
+            kernelManager.setKernelPriority(kernelId, request.priority)
+        }
+
+        // the ports of an allocated kernel are only known once it is ready
+        if (!request.wait && !request.allocatePorts) {
+            return HttpResponse.ok([
+                    "message" : "Kernel start request received!",
+                    "kernelId": kernelId
+            ] as Map)
+        }
+
+        // wait until the kernel's sockets are bound and it answers requests
+        long timeoutMs = request.timeoutMs ?: DEFAULT_START_TIMEOUT_MS
+        try {
+            kernelManager.getReadiness(kernelId)?.get(timeoutMs, TimeUnit.MILLISECONDS)
+            return HttpResponse.ok([
+                    "message"   : "Kernel started",
+                    "kernelId"  : kernelId,
+                    "ready"     : true,
+                    "connection": withoutKey(kernelManager.getConnectionInfo(kernelId))
+            ] as Map)
+        } catch (TimeoutException e) {
+            log.warn("Kernel '{}' was not ready within {}ms", kernelId, timeoutMs)
+            return HttpResponse.status(HttpStatus.GATEWAY_TIMEOUT).body([
+                    "message" : "Kernel '${kernelId}' was not ready within ${timeoutMs}ms".toString(),
+                    "kernelId": kernelId,
+                    "ready"   : false
+            ] as Map)
+        } catch (ExecutionException e) {
+            log.warn("Kernel '{}' failed to start", kernelId, e.cause)
+            return HttpResponse.serverError([
+                    "message" : "Kernel '${kernelId}' failed to start: ${e.cause?.message}".toString(),
+                    "kernelId": kernelId,
+                    "ready"   : false
+            ] as Map)
+        }
+    }
+
+    /**
+     * Long poll used by the kernel launcher: completes when the kernel
+     * terminates or is restarted in place, or with state "running" once the
+     * timeout passes. Responds 404 if the kernel is not (or no longer) known.
+     * The poll for a kernel this instance placed on a peer is relayed to the
+     * peer, and answered 503 with state "unknown" while the peer can't be
+     * reached, so that the launcher doesn't mistake it for terminated.
+     */
+    @Get("/{kernelId}/await")
+    public CompletableFuture<HttpResponse<Map>> await(@PathVariable String kernelId,
+                                                      @QueryValue(defaultValue = "60") Integer timeoutSeconds) {
+        long timeout = Math.max(1, Math.min(timeoutSeconds, MAX_AWAIT_SECONDS))
+        CompletableFuture<String> stateChange = kernelManager.awaitStateChange(kernelId)
+        if (stateChange == null) {
+            String peer = placementRouter?.peerOf(kernelId)
+            if (peer != null) {
+                return placementRouter.forwardAwait(peer, kernelId, timeout)
+            }
+            return CompletableFuture.completedFuture(
+                    HttpResponse.<Map>notFound(["kernelId": kernelId, "state": "terminated"] as Map)
+            )
+        }
+        return stateChange
+                .completeOnTimeout("running", timeout, TimeUnit.SECONDS)
+                .thenApply { String state -> HttpResponse.<Map>ok(["kernelId": kernelId, "state": state] as Map) }
+    }
+
+    /**
+     * The load signal used to place kernels across instances, for
+     * authenticated requests and peers presenting the routing token.
+     */
+    @Get("/load")
+    public HttpResponse<Map> load(@Nullable @Header(KernelPlacementRouter.TOKEN_HEADER) String token,
+                                  @Nullable Authentication authentication) {
+        if (authentication == null && !placementRouter?.acceptsToken(token)) {
+            return HttpResponse.status(HttpStatus.UNAUTHORIZED).body([
+                    "message": "The load is only published to authenticated requests and peers presenting jupyter.routing.token"
+            ] as Map)
+        }
+        if (placementRouter != null) {
+            return HttpResponse.ok(placementRouter.localLoad())
+        }
+        return HttpResponse.ok([
+                "activeKernels": kernelManager.activeKernelCount
+        ] as Map)
+    }
+
+    /**
+     * Set the priority class of a kernel's cells: interactive or batch.
+     * Conflicts while the cell scheduler is disabled, as the priority would have no effect.
+     */
+    @Post("/{kernelId}/priority")
+    @Secured(SecurityRule.IS_AUTHENTICATED)
+    public HttpResponse<Map> priority(@PathVariable String kernelId, @Body Map<String, String> body) {
+        if (kernelManager.getKernelById(kernelId) == null) {
+            return HttpResponse.<Map>notFound(["message": "Kernel '${kernelId}' is not running".toString()] as Map)
+        }
+        try {
+            if (!kernelManager.setKernelPriority(kernelId, body?.priority ?: "")) {
+                return HttpResponse.status(HttpStatus.CONFLICT).body([
+                        "message": "The cell scheduler is disabled, set jupyter.kernel.scheduler.enabled to use priorities",
+                        "enabled": false
+                ] as Map)
+            }
+        } catch (IllegalArgumentException e) {
+            return HttpResponse.badRequest(["message": e.message] as Map)
+        }
+        return HttpResponse.ok(["kernelId": kernelId, "priority": body.priority.trim().toLowerCase()] as Map)
+    }
+
+    /**
+     * Threads the kernel's cells left running, and how many were left and stopped since it started.
+     */
+    @Get("/{kernelId}/threads")
+    public HttpResponse<Map> threads(@PathVariable String kernelId) {
+        Micronaut kernel = kernelManager.getKernelById(kernelId) as Micronaut
+        if (kernel == null) {
+            return HttpResponse.<Map>notFound(["message": "Kernel '${kernelId}' is not running".toString()] as Map)
+        }
+        ThreadLeakTracker tracker = kernel.threadLeakTracker
+        return HttpResponse.ok(tracker != null ? tracker.stats() : ["enabled": false] as Map)
+    }
+
+    /**
+     * The kernel's output limits, and how much output was displayed and dropped since it started.
+     */
+    @Get("/{kernelId}/output")
+    public HttpResponse<Map> output(@PathVariable String kernelId) {
+        Micronaut kernel = kernelManager.getKernelById(kernelId) as Micronaut
+        if (kernel == null) {
+            return HttpResponse.<Map>notFound(["message": "Kernel '${kernelId}' is not running".toString()] as Map)
+        }
+        OutputLimiter limiter = kernel.outputLimiter
+        return HttpResponse.ok(limiter != null ? limiter.stats() : ["enabled": false] as Map)
+    }
+
+    /**
+     * Stop the threads the kernel's cells left running.
+     */
+    @Post("/{kernelId}/threads/stop")
+    @Secured(SecurityRule.IS_AUTHENTICATED)
+    @ExecuteOn(TaskExecutors.BLOCKING)
+    public HttpResponse<Map> stopThreads(@PathVariable String kernelId) {
+        Micronaut kernel = kernelManager.getKernelById(kernelId) as Micronaut
+        if (kernel == null) {
+            return HttpResponse.<Map>notFound(["message": "Kernel '${kernelId}' is not running".toString()] as Map)
+        }
+        ThreadLeakTracker tracker = kernel.threadLeakTracker
+        if (tracker == null) {
+            return HttpResponse.ok(["enabled": false] as Map)
+        }
+        List<Thread> threads = tracker.alive()
+        List<Thread> survivors = tracker.stop(threads, kernel.leakedThreadGraceMs)
+        return HttpResponse.ok([
+                "kernelId"  : kernelId,
+                "stopped"   : threads.size() - survivors.size(),
+                "notStopped": survivors*.name
+        ] as Map)
+    }
+
+    /**
+     * Slots in use, waiting cells and the time cells waited for a slot.
+     */
+    @Get("/scheduler")
+    public Map scheduler() {
+        CellScheduler scheduler = kernelManager.getScheduler()
+        return scheduler != null ? scheduler.stats() : ["enabled": false]
+    }
+
+    /**
+     * Entries, hits and misses of the {@code %%cache} cell store.
+     */
+    @Get("/cache")
+    public Map cache() {
+        CellCache cache = kernelManager.getCellCache()
+        return cache != null ? cache.stats() : ["enabled": false]
     }
 
     /**
@@ -103,8 +387,48 @@ public class KernelEndpoint {
         }
     }
 
+    /**
+     * @return The connection info as returned to clients, without the key
+     */
+    private static Map<String, Object> withoutKey(Map<String, Object> connection) {
+        return connection?.findAll { String name, Object value -> name != "key" }
+    }
 
     static class StartRequest {
+        /** Path of the connection file */
         String file
+        /** Connection file contents, passed inline instead of a file */
+        Map<String, Object> connection
+        /** Bind the kernel to free ports and return the connection info */
+        boolean allocatePorts
+        /** The address to bind to when allocating ports */
+        String ip
+        /** The key to sign messages with when allocating ports, never returned */
+        String key
+        /** Block until the kernel is ready */
+        boolean wait
+        /** How long to wait for the kernel to be ready */
+        Long timeoutMs
+        /** The priority class of the kernel's cells: interactive or batch */
+        String priority
+
+        Map toMap() {
+            Map map = [file: file, wait: wait]
+            if (connection != null) {
+                map.connection = connection
+            }
+            if (allocatePorts) {
+                map.allocatePorts = true
+                map.ip = ip
+                map.key = key
+            }
+            if (timeoutMs != null) {
+                map.timeoutMs = timeoutMs
+            }
+            if (priority != null) {
+                map.priority = priority
+            }
+            return map
+        }
     }
 }
\ No newline at end of file
@@ -1,12 +1,32 @@
 package ai.stainless.micronaut.jupyter
 
+import ai.stainless.micronaut.jupyter.event.KernelEventPublisher
+import ai.stainless.micronaut.jupyter.event.KernelKilledEvent
+import ai.stainless.micronaut.jupyter.event.KernelStartedEvent
+import ai.stainless.micronaut.jupyter.event.KernelStartingEvent
+import ai.stainless.micronaut.jupyter.kernel.BindingCheckpoint
+import ai.stainless.micronaut.jupyter.kernel.CellCache
+import ai.stainless.micronaut.jupyter.kernel.CellScheduler
+import ai.stainless.micronaut.jupyter.kernel.InlineConfigurationFile
 import ai.stainless.micronaut.jupyter.kernel.KernelExitException
+import ai.stainless.micronaut.jupyter.kernel.KernelParallelism
+import ai.stainless.micronaut.jupyter.kernel.MavenResolutionCache
+import ai.stainless.micronaut.jupyter.kernel.MemoryBudget
 import ai.stainless.micronaut.jupyter.kernel.Micronaut
+import ai.stainless.micronaut.jupyter.kernel.OutputLimiter
+import ai.stainless.micronaut.jupyter.kernel.PrivateDirectory
+import ai.stainless.micronaut.jupyter.kernel.ResultHistory
+import ai.stainless.micronaut.jupyter.kernel.SharedJarLayers
 import ai.stainless.micronaut.jupyter.kernel.StandardStreamHandler
+import ai.stainless.micronaut.jupyter.kernel.ThreadLeakTracker
 import ai.stainless.micronaut.jupyter.kernel.UnexpectedExitException
+import ai.stainless.micronaut.jupyter.kernel.ZmqEndpoint
 import com.twosigma.beakerx.kernel.Kernel
+import groovy.json.JsonException
+import groovy.json.JsonSlurper
 import io.micronaut.context.ApplicationContext
 import io.micronaut.context.annotation.Value
+import io.micronaut.core.annotation.Nullable
 import io.micronaut.runtime.context.scope.refresh.RefreshEvent
 import io.micronaut.runtime.event.annotation.EventListener
 import org.slf4j.Logger
@@ -17,18 +37,23 @@ import jakarta.annotation.PreDestroy
 import jakarta.inject.Inject
 import jakarta.inject.Singleton
 import java.lang.reflect.UndeclaredThrowableException
+import java.util.concurrent.CompletableFuture
 import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.CopyOnWriteArrayList
 import java.util.concurrent.ExecutorService
 import java.util.concurrent.Executors
 import java.util.concurrent.ThreadFactory
 import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
 import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicReference
 import java.util.function.Consumer
+import java.nio.file.Path
 import java.nio.file.Paths
 import java.util.UUID
 import java.util.ArrayList
 import java.util.Set
+import java.util.regex.Pattern
 
 /**
  * Manages the Jupyter kernel instances that are created.
@@ -45,6 +70,136 @@ public class KernelManager {
     @Value('${jupyter.kernel.shutdownTimeoutMs:5000}')
     Long shutdownTimeoutMs = DEFAULT_SHUTDOWN_TIMEOUT_MS
 
+    @Value('${jupyter.kernel.subscribeReactiveResults:false}')
+    Boolean subscribeReactiveResults = false
+
+    @Value('${jupyter.kernel.advertisedAddress:127.0.0.1}')
+    String advertisedAddress = "127.0.0.1"
+
+    @Value('${jupyter.kernel.reactiveResultTimeoutMs:600000}')
+    Long reactiveResultTimeoutMs = 600000
+
+    @Value('${jupyter.kernel.output.bytesPerSecond:0}')
+    Long outputBytesPerSecond = 0
+
+    @Value('${jupyter.kernel.output.maxBytesPerCell:0}')
+    Long outputMaxBytesPerCell = 0
+
+    @Value('${jupyter.kernel.output.spillMaxBytes:52428800}')
+    Long outputSpillMaxBytes = 52428800
+
+    @Value('${jupyter.kernel.output.spillMaxFiles:3}')
+    Integer outputSpillMaxFiles = 3
+
+    @Value('${jupyter.kernel.restartInPlace:true}')
+    Boolean restartInPlace = true
+
+    @Value('${jupyter.kernel.checkpoint.directory:}')
+    String checkpointDirectory
+
+    @Value('${jupyter.kernel.checkpoint.maxVariableBytes:67108864}')
+    Long checkpointMaxVariableBytes = 67108864
+
+    @Value('${jupyter.kernel.checkpoint.maxTotalBytes:268435456}')
+    Long checkpointMaxTotalBytes = 268435456
+
+    @Value('${jupyter.kernel.checkpoint.onIdle:false}')
+    Boolean checkpointOnIdle = false
+
+    @Value('${jupyter.kernel.checkpoint.minIntervalMs:60000}')
+    Long checkpointMinIntervalMs = 60000
+
+    @Value('${jupyter.kernel.checkpoint.onShutdown:false}')
+    Boolean checkpointOnShutdown = false
+
+    @Value('${jupyter.kernel.checkpoint.restoreOnStart:false}')
+    Boolean checkpointRestoreOnStart = false
+
+    @Value('${jupyter.kernel.checkpoint.allowedClasses:}')
+    String checkpointAllowedClasses
+
+    @Value('${jupyter.kernel.memory.budgetBytes:536870912}')
+    Long memoryBudgetBytes = 536870912
+
+    @Value('${jupyter.kernel.memory.maxResults:20}')
+    Integer memoryMaxResults = 20
+
+    @Value('${jupyter.kernel.memory.maxEstimateObjects:200000}')
+    Integer memoryMaxEstimateObjects = 200000
+
+    @Value('${jupyter.kernel.memory.maxTotalEstimateObjects:1000000}')
+    Long memoryMaxTotalEstimateObjects = 1000000
+
+    @Value('${jupyter.kernel.memory.maxEstimateMs:100}')
+    Long memoryMaxEstimateMs = 100
+
+    @Value('${jupyter.kernel.parallelism:0}')
+    Integer parallelism = 0
+
+    @Value('${jupyter.kernel.virtualThreads:false}')
+    Boolean virtualThreads = false
+
+    @Value('${jupyter.kernel.scheduler.enabled:false}')
+    Boolean schedulerEnabled = false
+
+    @Value('${jupyter.kernel.scheduler.cpuShare:0.75}')
+    Double schedulerCpuShare = 0.75
+
+    @Value('${jupyter.kernel.scheduler.slots:0}')
+    Integer schedulerSlots = 0
+
+    @Value('${jupyter.kernel.scheduler.batchShare:0.5}')
+    Double schedulerBatchShare = 0.5
+
+    @Value('${jupyter.kernel.scheduler.agingMs:30000}')
+    Long schedulerAgingMs = 30000
+
+    @Value('${jupyter.kernel.scheduler.defaultPriority:interactive}')
+    String schedulerDefaultPriority = "interactive"
+
+    @Value('${jupyter.kernel.classpath.cache:true}')
+    Boolean classpathCache = true
+
+    @Value('${jupyter.kernel.classpath.cacheFile:}')
+    String classpathCacheFile
+
+    @Value('${jupyter.kernel.classpath.offline:false}')
+    Boolean classpathOffline = false
+
+    @Value('${jupyter.kernel.classpath.localRepository:}')
+    String classpathLocalRepository
+
+    @Value('${jupyter.kernel.classpath.shareClassLoaders:true}')
+    Boolean classpathShareClassLoaders = true
+
+    @Value('${jupyter.kernel.cache.enabled:false}')
+    Boolean cacheEnabled = false
+
+    @Value('${jupyter.kernel.cache.directory:}')
+    String cacheDirectory
+
+    @Value('${jupyter.kernel.cache.maxBytes:268435456}')
+    Long cacheMaxBytes = 268435456
+
+    @Value('${jupyter.kernel.cache.maxEntryBytes:16777216}')
+    Long cacheMaxEntryBytes = 16777216
+
+    @Value('${jupyter.kernel.threads.track:true}')
+    Boolean threadsTrack = true
+
+    @Value('${jupyter.kernel.threads.stopLeaked:false}')
+    Boolean threadsStopLeaked = false
+
+    @Value('${jupyter.kernel.threads.stopUnattributed:false}')
+    Boolean threadsStopUnattributed = false
+
+    @Value('${jupyter.kernel.threads.graceMs:1000}')
+    Long threadsGraceMs = 1000
+
+    // Threads of the application's shared pools, which may be started lazily by a cell
+    @Value('${jupyter.kernel.threads.ignore:(default-nioEventLoopGroup|io-executor-thread|scheduled-executor-thread|blocking-executor-thread)-.*}')
+    String threadsIgnore
+
     private Class<? extends Kernel> kernelClass = Micronaut
     private final List<Kernel> kernelInstances = new CopyOnWriteArrayList<>()
     
@@ -52,16 +207,34 @@ public class KernelManager {
     private final Map<String, Kernel> kernelById = new ConcurrentHashMap<>()
     private final Map<String, String> connectionFileToKernelId = new ConcurrentHashMap<>()
     private final Set<String> reservedKernelIds = ConcurrentHashMap.newKeySet()
+    // Completed by cleanupKernel once a kernel's thread has finished
+    private final Map<String, CompletableFuture<Void>> terminations = new ConcurrentHashMap<>()
+    // Completed once a kernel's sockets are bound and serving requests
+    private final Map<String, CompletableFuture<Void>> readiness = new ConcurrentHashMap<>()
     
     // Dependency injection for StandardStreamHandler
     @Inject
     private StandardStreamHandler streamHandler
     private ExecutorService kernelExecutor
-    private final List<Thread> exitPreventionHooks = new CopyOnWriteArrayList<>()
+    private final AtomicReference<Thread> exitPreventionHook = new AtomicReference<>()
+    // Shared by all kernels, created with the first one
+    private MavenResolutionCache resolutionCache
+    private SharedJarLayers sharedJarLayers
+    private CellScheduler cellScheduler
+    private CellCache cellCache
+
+    // kernels run without lifecycle events if the publisher is not available
+    @Inject
+    @Nullable
+    private KernelEventPublisher eventPublisher
 
     @Inject
     private ApplicationContext applicationContext
 
+    @Inject
+    @Nullable
+    private MemoryGovernor memoryGovernor
+
     /**
      * Creates a new KernelManager
      */
@@ -106,6 +279,12 @@ public class KernelManager {
     public void onRefresh(RefreshEvent event) {
         log.debug("Processing RefreshEvent")
         updateRedirectLogOutput()
+        // refreshed beans must be looked up again by the scripts
+        forEachKernel { Kernel kernel ->
+            if (kernel instanceof Micronaut) {
+                ((Micronaut) kernel).beanCache?.invalidate()
+            }
+        }
     }
 
     @PreDestroy
@@ -113,14 +292,17 @@ public class KernelManager {
         log.info("Destroying KernelManager")
         logStackTraceIfDebugEnabled()
 
+        // Kernels and the executor share one deadline
+        long deadline = System.currentTimeMillis() + shutdownTimeoutMs
+
         // Clean up resources
-        killAllKernels()
+        killAllKernels(deadline)
 
         // Shutdown executor service
-        shutdownExecutor()
+        shutdownExecutor(deadline)
 
-        // Remove exit prevention hooks
-        removeAllExitPreventionHooks()
+        // Remove exit prevention hook
+        removeExitPreventionHook()
 
         // Restore streams
         streamHandler.restore()
@@ -128,12 +310,12 @@ public class KernelManager {
         log.info("KernelManager destroyed successfully")
     }
 
-    private void shutdownExecutor() {
+    private void shutdownExecutor(long deadline) {
         if (kernelExecutor != null && !kernelExecutor.isShutdown()) {
             log.debug("Shutting down kernel executor service")
             kernelExecutor.shutdown()
             try {
-                if (!kernelExecutor.awaitTermination(shutdownTimeoutMs, TimeUnit.MILLISECONDS)) {
+                if (!kernelExecutor.awaitTermination(Math.max(deadline - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS)) {
                     log.warn("Kernel executor did not terminate in {}ms, forcing shutdown", shutdownTimeoutMs)
                     List<Runnable> tasksNotExecuted = kernelExecutor.shutdownNow()
                     log.debug("{} kernel tasks were never executed", tasksNotExecuted.size())
@@ -163,37 +345,154 @@ public class KernelManager {
     }
 
     /**
-     * Starts a new kernel instance with the specified connection file
+     * Starts a new kernel instance with the specified connection file. If a
+     * kernel is already running for that connection file (for example one
+     * that was restarted in place, whose launcher Jupyter runs again), no new
+     * kernel is started.
      *
      * @param connectionFile Path to the connection file for the kernel
-     * @throws IllegalArgumentException if connectionFile is null or empty
+     * @return The ID of the kernel serving the connection file
+     * @throws IllegalArgumentException if connectionFile is null or empty, or
+     * names a transport that is not supported
      */
-    public void startNewKernel(String connectionFile) {
+    public String startNewKernel(String connectionFile) {
         if (connectionFile == null || connectionFile.trim().isEmpty()) {
             throw new IllegalArgumentException("Connection file path cannot be null or empty")
         }
+        File file = new File(connectionFile)
+        if (file.isFile()) {
+            try {
+                ZmqEndpoint.checkTransport((new JsonSlurper().parse(file) as Map)?.transport as String)
+            } catch (JsonException ignored) {
+                // reported by the kernel when it reads the file
+            }
+        }
+        return startKernel(connectionFile, connectionFile)
+    }
+
+    /**
+     * Starts a new kernel with connection info passed in memory instead of a
+     * connection file. Ports given as 0 are bound to free ports, in which case
+     * the final connection info is available from
+     * {@link #getConnectionInfo(String)} once the kernel is ready.
+     *
+     * @param connectionInfo The connection file contents (transport, ip, ports, key, ...)
+     * @return The ID of the kernel serving the connection info
+     * @throws IllegalArgumentException if a required key is missing, the
+     * transport is not supported, or the address is neither loopback nor the
+     * advertised address
+     */
+    public String startNewKernel(Map<String, Object> connectionInfo) {
+        for (String required : ["ip", "key", "shell_port", "iopub_port", "stdin_port", "control_port", "hb_port"]) {
+            if (connectionInfo?.get(required) == null) {
+                throw new IllegalArgumentException("Connection info is missing '${required}'")
+            }
+        }
+        Map<String, Object> info = new LinkedHashMap<>(connectionInfo)
+        info.putIfAbsent("transport", "tcp")
+        ZmqEndpoint.checkTransport(info.transport as String)
+        checkBindAddress(info.ip as String)
+        info.putIfAbsent("signature_scheme", "hmac-sha256")
+        // a kernel on fixed ports is identified by its shell address, so a
+        // relaunch finds it; kernels on allocated ports are always new
+        String connectionKey = (info.shell_port as int) != 0
+                ? "inline:${info.transport}://${info.ip}:${info.shell_port}".toString()
+                : "inline:${UUID.randomUUID()}".toString()
+        return startKernel(connectionKey, info)
+    }
 
+    /**
+     * Starts a new kernel on free ports chosen when its sockets are bound, so
+     * no two kernels can race for the same port. Nothing is written to disk.
+     *
+     * @param ip The address to bind to and advertise, loopback or {@code jupyter.kernel.advertisedAddress}, which is the default
+     * @param key The key the client signs its messages with, which is never handed out by the server
+     * @return The ID of the new kernel
+     * @throws IllegalArgumentException if no key is given, or the address is not allowed
+     */
+    public String startNewKernelOnAllocatedPorts(String ip, String key) {
+        return startNewKernel(allocatedConnectionInfo(ip, key))
+    }
+
+    /**
+     * @return The connection info of a kernel bound to free ports
+     * @throws IllegalArgumentException if no key is given, or the address is not allowed
+     */
+    Map<String, Object> allocatedConnectionInfo(String ip, String key) {
+        if (key == null || key.trim().isEmpty()) {
+            throw new IllegalArgumentException("A 'key' to sign messages with is required to allocate ports")
+        }
+        checkBindAddress(ip)
+        return [
+                "transport"       : "tcp",
+                "ip"              : ip ?: advertisedAddress,
+                "shell_port"      : 0,
+                "iopub_port"      : 0,
+                "stdin_port"      : 0,
+                "control_port"    : 0,
+                "hb_port"         : 0,
+                "key"             : key,
+                "signature_scheme": "hmac-sha256"
+        ] as Map<String, Object>
+    }
+
+    /**
+     * Kernels started on request are bound to loopback, or to the address
+     * the application advertises, never to an address the caller picks such
+     * as {@code 0.0.0.0}.
+     *
+     * @param ip The address to bind to, null for the advertised address
+     * @throws IllegalArgumentException If the address is not allowed
+     */
+    void checkBindAddress(String ip) {
+        if (ip == null || ip in ["127.0.0.1", "::1", "localhost"] || ip == advertisedAddress) {
+            return
+        }
+        throw new IllegalArgumentException("Kernels can only be bound to loopback or to ${advertisedAddress}, " +
+                "set jupyter.kernel.advertisedAddress to bind them to '${ip}'")
+    }
+
+    /**
+     * @param connectionKey Identifies the connection, to dedupe start requests
+     * @param connection The connection file path, or the inline connection info
+     */
+    private String startKernel(String connectionKey, Object connection) {
         if (kernelExecutor == null || kernelExecutor.isShutdown()) {
             log.warn("Kernel executor was shut down. Re-initializing for new kernel request.")
             initializeExecutor()
         }
 
+        String existingKernelId = findRunningKernel(connectionKey)
+        if (existingKernelId != null) {
+            log.info("Kernel '{}' is already running for {}, ignoring duplicate start request", existingKernelId, connectionKey)
+            return existingKernelId
+        }
+
+        // Refuse new kernels while the heap is under pressure
+        if (memoryGovernor != null && !memoryGovernor.isAdmitting()) {
+            throw new KernelAdmissionException("Not starting a kernel for ${connectionKey}: ${memoryGovernor.pressureDescription}")
+        }
+
         // Generate unique kernel ID for tracking (restart isolation)
         String kernelId = generateKernelId()
-        
-        // Thread-safe check for duplicate kernel ID and prevent starting if already exists
+
+        // Thread-safe check for a concurrent start request for the same connection
         synchronized (reservedKernelIds) {
-            if (reservedKernelIds.contains(kernelId) || kernelById.containsKey(kernelId)) {
-                log.warn("Kernel with ID '{}' already exists, ignoring duplicate start request", kernelId)
-                return
+            String racingKernelId = connectionFileToKernelId.get(connectionKey)
+            if (racingKernelId != null && (reservedKernelIds.contains(racingKernelId) || kernelById.containsKey(racingKernelId))) {
+                log.warn("Kernel '{}' is already starting for {}, ignoring duplicate start request", racingKernelId, connectionKey)
+                return racingKernelId
             }
             // Reserve the kernel ID immediately to prevent race conditions
             reservedKernelIds.add(kernelId)
+            connectionFileToKernelId.put(connectionKey, kernelId)
+            terminations.put(kernelId, new CompletableFuture<Void>())
+            readiness.put(kernelId, new CompletableFuture<Void>())
         }
-        
-        connectionFileToKernelId.put(connectionFile, kernelId)
 
-        log.info("Starting new Micronaut kernel with ID '{}' and connection file: {}", kernelId, connectionFile)
+        log.info("Starting new Micronaut kernel with ID '{}' and connection {}", kernelId, connectionKey)
+        eventPublisher?.publish(new KernelStartingEvent(this, kernelId, connectionKey))
+        long requestedAt = System.currentTimeMillis()
 
         kernelExecutor.submit(() -> {
             String threadName = Thread.currentThread().getName()
@@ -206,7 +505,7 @@ public class KernelManager {
 
             Micronaut kernel = null
             try {
-                kernel = createAndInitializeKernel(connectionFile)
+                kernel = createAndInitializeKernel(connection, connectionKey, kernelId)
                 // Update kernel tracking with actual kernel instance
                 synchronized (reservedKernelIds) {
                     reservedKernelIds.remove(kernelId)
@@ -214,6 +513,7 @@ public class KernelManager {
                 }
                 // Use add method directly on the original list, not on any unmodifiable wrapper
                 kernelInstances.add(kernel)
+                eventPublisher?.publish(new KernelStartedEvent(this, kernelId, System.currentTimeMillis() - requestedAt))
                 kernel.run()
             } catch (KernelExitException e) {
                 log.debug("Kernel '{}' exited normally, ending thread.", kernelId)
@@ -227,20 +527,96 @@ public class KernelManager {
                 log.debug("Kernel thread finished: {}", threadName)
             }
         })
+        return kernelId
+    }
+
+    /**
+     * Find the kernel serving a connection file. A kernel that is shutting
+     * down is waited for, so its replacement can bind the same ports.
+     *
+     * @return The ID of the running (or starting) kernel, or null if there is none
+     */
+    private String findRunningKernel(String connectionFile) {
+        long deadline = System.currentTimeMillis() + shutdownTimeoutMs
+        while (true) {
+            String kernelId = connectionFileToKernelId.get(connectionFile)
+            if (kernelId == null) {
+                return null
+            }
+            Kernel kernel = kernelById.get(kernelId)
+            if (kernel == null) {
+                return reservedKernelIds.contains(kernelId) ? kernelId : null
+            }
+            if (!(kernel instanceof Micronaut) || !((Micronaut) kernel).isShuttingDown()) {
+                return kernelId
+            }
+            CompletableFuture<Void> termination = terminations.get(kernelId)
+            if (termination == null) {
+                return null
+            }
+            try {
+                termination.get(Math.max(deadline - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS)
+            } catch (TimeoutException e) {
+                log.warn("Kernel '{}' did not shut down within {}ms, starting a new kernel for {}", kernelId, shutdownTimeoutMs, connectionFile)
+                return null
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt()
+                return null
+            }
+        }
     }
 
     /**
      * Create and initialize a new kernel instance
      */
-    private Micronaut createAndInitializeKernel(String connectionFile) throws Exception {
+    private Micronaut createAndInitializeKernel(Object connection, String connectionKey, String kernelId) throws Exception {
         try {
-            // Register exit prevention for this kernel
-            Thread exitPreventionHook = addExitPreventionHook();
+            // Make sure System.exit calls are detected
+            ensureExitPreventionHook()
 
             // Create and initialize the kernel
-            Micronaut kernel = kernelClass.createKernel([connectionFile] as String[])
+            Micronaut kernel = connection instanceof Map
+                    ? kernelClass.createKernel(new InlineConfigurationFile(connection as Map<String, Object>))
+                    : kernelClass.createKernel([connection as String] as String[])
+            kernel.kernelId = kernelId
+            kernel.termination = terminations.get(kernelId)
+            kernel.ready = readiness.get(kernelId)
+            kernel.eventPublisher = eventPublisher
             kernel.applicationContext = getOrCreateApplicationContext()
             kernel.streamHandler = streamHandler
+            kernel.subscribeReactiveResults = subscribeReactiveResults
+            kernel.reactiveResultTimeoutMs = reactiveResultTimeoutMs
+            kernel.outputLimiter = new OutputLimiter(
+                    outputBytesPerSecond, outputMaxBytesPerCell, outputSpillMaxBytes, outputSpillMaxFiles
+            )
+            kernel.checkpoint = createCheckpoint(connectionKey)
+            kernel.hibernation = new BindingCheckpoint(
+                    PrivateDirectory.defaultDirectory("hibernation").resolve(kernelId + ".snapshot"),
+                    checkpointMaxVariableBytes, checkpointMaxTotalBytes, checkpointAllowedClasses
+            )
+            kernel.setCheckpointOnIdle(checkpointOnIdle, checkpointMinIntervalMs)
+            kernel.checkpointOnShutdown = checkpointOnShutdown
+            kernel.restoreCheckpointOnStart = checkpointRestoreOnStart
+            kernel.restartInPlace = restartInPlace
+            kernel.resultHistory = new ResultHistory(memoryMaxResults)
+            kernel.virtualThreads = virtualThreads
+            kernel.parallelism = new KernelParallelism(kernelId, parallelism, virtualThreads)
+            kernel.scheduler = getScheduler()
+            initializeClasspathSharing()
+            kernel.resolutionCache = resolutionCache
+            kernel.sharedJarLayers = sharedJarLayers
+            kernel.cellCache = getCellCache()
+            if (threadsTrack) {
+                ThreadLeakTracker tracker = new ThreadLeakTracker(kernelId, threadsIgnore ? Pattern.compile(threadsIgnore) : null)
+                tracker.stopUnattributed = threadsStopUnattributed
+                kernel.threadLeakTracker = tracker
+                kernel.stopLeakedThreads = threadsStopLeaked
+                kernel.leakedThreadGraceMs = threadsGraceMs
+            }
+            if (memoryBudgetBytes > 0) {
+                kernel.memoryBudget = new MemoryBudget(memoryBudgetBytes, memoryMaxEstimateObjects,
+                        memoryMaxTotalEstimateObjects, memoryMaxEstimateMs)
+            }
             kernel.init()
 
             return kernel
@@ -257,6 +633,94 @@ public class KernelManager {
         }
     }
 
+    /**
+     * Create the checkpoint of a kernel. It is named after the connection
+     * file, which Jupyter names after its own kernel ID, so a restarted kernel
+     * finds the checkpoint of the kernel it replaces. Inline connections are
+     * named after their shell address.
+     */
+    private BindingCheckpoint createCheckpoint(String connectionKey) {
+        String directory = checkpointDirectory ?: PrivateDirectory.defaultDirectory("checkpoints").toString()
+        String name = connectionKey.startsWith("inline:")
+                ? connectionKey.replaceAll(/[^A-Za-z0-9._-]+/, "_")
+                : Paths.get(connectionKey).fileName.toString().replaceFirst(/\.json$/, "")
+        return new BindingCheckpoint(
+                Paths.get(directory, name + ".checkpoint"), checkpointMaxVariableBytes, checkpointMaxTotalBytes,
+                checkpointAllowedClasses
+        )
+    }
+
+    /**
+     * @return The scheduler sharing cell slots between all kernels, or null if it is disabled
+     */
+    public synchronized CellScheduler getScheduler() {
+        if (schedulerEnabled && cellScheduler == null) {
+            int slots = schedulerSlots > 0 ? schedulerSlots : CellScheduler.slotsFor(schedulerCpuShare)
+            cellScheduler = new CellScheduler(
+                    slots, (int) Math.ceil(slots * schedulerBatchShare), schedulerAgingMs,
+                    CellScheduler.Priority.parse(schedulerDefaultPriority)
+            )
+            log.info("Cells of all kernels share {} slots", slots)
+        }
+        return cellScheduler
+    }
+
+    /**
+     * Set the priority class of a kernel's cells, e.g. "interactive" or "batch".
+     *
+     * @return false if the scheduler is disabled, and the priority was not set
+     * @throws IllegalArgumentException If the priority is not a priority class
+     */
+    public boolean setKernelPriority(String kernelId, String priority) {
+        CellScheduler.Priority parsed = CellScheduler.Priority.parse(priority)
+        CellScheduler scheduler = getScheduler()
+        if (scheduler == null) {
+            log.debug("Ignoring priority of kernel '{}', the scheduler is disabled", kernelId)
+            return false
+        }
+        scheduler.setPriority(kernelId, parsed)
+        return true
+    }
+
+    /**
+     * Create the resolution cache and shared class loader layers of
+     * {@code %classpath add mvn}, if enabled and not created yet.
+     */
+    private synchronized void initializeClasspathSharing() {
+        if (classpathCache && resolutionCache == null) {
+            Path file = classpathCacheFile ? Paths.get(classpathCacheFile) : defaultResolutionCacheFile()
+            String localRepository = classpathLocalRepository ?: Paths.get(System.getProperty("user.home"), ".m2", "repository").toString()
+            resolutionCache = new MavenResolutionCache(file, Paths.get(localRepository), classpathOffline)
+        }
+        if (classpathShareClassLoaders && sharedJarLayers == null) {
+            sharedJarLayers = new SharedJarLayers(Micronaut.classLoader)
+        }
+    }
+
+    /**
+     * @return The resolution cache file in a folder only the server's user can
+     * write to, as its jars are added to kernels, or null to keep it in memory
+     */
+    private static Path defaultResolutionCacheFile() {
+        try {
+            return PrivateDirectory.create(PrivateDirectory.defaultDirectory("classpath")).resolve("mvn-resolutions.properties")
+        } catch (IOException e) {
+            log.warn("Keeping %classpath add mvn resolutions in memory only: {}", e.message)
+            return null
+        }
+    }
+
+    /**
+     * @return The store of {@code %%cache} cells shared by all kernels, or null if disabled
+     */
+    public synchronized CellCache getCellCache() {
+        if (cacheEnabled && cellCache == null) {
+            String directory = cacheDirectory ?: PrivateDirectory.defaultDirectory("cell-cache").toString()
+            cellCache = new CellCache(Paths.get(directory), cacheMaxBytes, cacheMaxEntryBytes)
+        }
+        return cellCache
+    }
+
     /**
      * Get the application context or create a new one if not available
      */
@@ -270,18 +734,21 @@ public class KernelManager {
     }
 
     /**
-     * Add a shutdown hook to detect and handle System.exit calls
+     * Install the shutdown hook that detects System.exit calls and kills the
+     * registered kernels, if it isn't installed yet. A single hook serves
+     * every kernel.
      * This is a modern alternative to using the deprecated SecurityManager
-     *
-     * @return The Thread of the exit prevention hook
      */
-    private Thread addExitPreventionHook() {
-        Thread exitPreventionHook = new Thread(() -> {
+    private void ensureExitPreventionHook() {
+        if (exitPreventionHook.get() != null) {
+            return
+        }
+        Thread hook = new Thread(() -> {
             String threadName = Thread.currentThread().getName()
             log.warn("Exit prevention hook triggered: {}", threadName)
 
             // Force interruption of kernel threads to prevent clean exit
-            for (Kernel kernel : new ArrayList<>(kernelInstances)) {
+            for (Kernel kernel : new ArrayList<>(kernelById.values())) {
                 try {
                     log.debug("Attempting to kill kernel from exit prevention hook")
                     kernel.kill()
@@ -291,39 +758,35 @@ public class KernelManager {
             }
 
             log.info("Exit prevention hook completed: {}", threadName)
-        }, "ExitPreventionHook-" + UUID.randomUUID().toString());
+        }, "ExitPreventionHook-" + UUID.randomUUID().toString())
 
         // Set as daemon to ensure JVM can exit
-        exitPreventionHook.setDaemon(true);
-        exitPreventionHook.setPriority(Thread.MAX_PRIORITY);
-
-        Runtime.getRuntime().addShutdownHook(exitPreventionHook);
-        exitPreventionHooks.add(exitPreventionHook);
+        hook.setDaemon(true)
+        hook.setPriority(Thread.MAX_PRIORITY)
 
-        log.debug("Added exit prevention hook: {}", exitPreventionHook.getName())
-        return exitPreventionHook;
+        if (exitPreventionHook.compareAndSet(null, hook)) {
+            Runtime.getRuntime().addShutdownHook(hook)
+            log.debug("Added exit prevention hook: {}", hook.getName())
+        }
     }
 
     /**
-     * Remove all registered exit prevention hooks
+     * Remove the exit prevention hook
      */
-    private void removeAllExitPreventionHooks() {
-        Runtime runtime = Runtime.getRuntime();
-
-        log.debug("Removing {} exit prevention hooks", exitPreventionHooks.size())
-        for (Thread hook : exitPreventionHooks) {
-            try {
-                runtime.removeShutdownHook(hook);
-                log.debug("Removed exit prevention hook: {}", hook.getName())
-            } catch (IllegalStateException e) {
-                // JVM is already shutting down, hooks can't be removed
-                log.debug("Could not remove hook (JVM shutting down): {}", hook.getName())
-            } catch (Exception e) {
-                log.warn("Error removing exit prevention hook: {}", hook.getName(), e)
-            }
+    private void removeExitPreventionHook() {
+        Thread hook = exitPreventionHook.getAndSet(null)
+        if (hook == null) {
+            return
+        }
+        try {
+            Runtime.getRuntime().removeShutdownHook(hook)
+            log.debug("Removed exit prevention hook: {}", hook.getName())
+        } catch (IllegalStateException e) {
+            // JVM is already shutting down, hooks can't be removed
+            log.debug("Could not remove hook (JVM shutting down): {}", hook.getName())
+        } catch (Exception e) {
+            log.warn("Error removing exit prevention hook: {}", hook.getName(), e)
         }
-
-        exitPreventionHooks.clear();
     }
 
     /**
@@ -347,6 +810,12 @@ public class KernelManager {
                 kernelById.remove(kernelId)
             }
             connectionFileToKernelId.entrySet().removeIf(entry -> kernelId.equals(entry.getValue()))
+            readiness.remove(kernelId)?.completeExceptionally(
+                    new IllegalStateException("Kernel '" + kernelId + "' terminated before it was ready")
+            )
+            terminations.remove(kernelId)?.complete(null)
+            cellScheduler?.forget(kernelId)
+            eventPublisher?.publish(new KernelKilledEvent(this, kernelId))
         }
     }
 
@@ -378,43 +847,102 @@ public class KernelManager {
         return kernelInstances.size()
     }
 
+    /**
+     * @return The IDs of the kernels running or being started
+     */
+    public Set<String> getKernelIds() {
+        Set<String> ids = new HashSet<>(kernelById.keySet())
+        synchronized (reservedKernelIds) {
+            ids.addAll(reservedKernelIds)
+        }
+        return ids
+    }
+
+    /**
+     * @return A future completed once the kernel has terminated, or null if no such kernel is known
+     */
+    public CompletableFuture<Void> getTermination(String kernelId) {
+        CompletableFuture<Void> termination = terminations.get(kernelId)
+        return termination != null ? termination.copy() : null
+    }
+
+    /**
+     * @return A future completed once the kernel serves requests, completed
+     * exceptionally if it terminates first, or null if no such kernel is known
+     */
+    public CompletableFuture<Void> getReadiness(String kernelId) {
+        CompletableFuture<Void> ready = readiness.get(kernelId)
+        return ready != null ? ready.copy() : null
+    }
+
+    /**
+     * @return The connection info of the kernel, with the ports it is actually
+     * bound to, or null if no such kernel is running
+     */
+    public Map<String, Object> getConnectionInfo(String kernelId) {
+        Kernel kernel = kernelById.get(kernelId)
+        return kernel instanceof Micronaut ? ((Micronaut) kernel).connectionInfo : null
+    }
+
+    /**
+     * Wait for the kernel to terminate or to be restarted in place, whichever
+     * comes first.
+     *
+     * @return A future of "terminated" or "restarted", or null if no such kernel is known
+     */
+    public CompletableFuture<String> awaitStateChange(String kernelId) {
+        CompletableFuture<Void> termination = terminations.get(kernelId)
+        if (termination == null) {
+            return null
+        }
+        CompletableFuture<String> terminated = termination.thenApply { "terminated" }
+        Kernel kernel = kernelById.get(kernelId)
+        if (!(kernel instanceof Micronaut)) {
+            return terminated
+        }
+        CompletableFuture<String> restarted = ((Micronaut) kernel).restarted.thenApply { "restarted" }
+        return CompletableFuture.anyOf(terminated, restarted).thenApply { it as String }
+    }
+
     /**
      * Kills all active kernel instances
      */
     public void killAllKernels() {
+        killAllKernels(System.currentTimeMillis() + shutdownTimeoutMs)
+    }
+
+    /**
+     * Kill all active kernels in parallel and wait until they have all
+     * terminated, or the deadline has passed. Kernels without a termination
+     * future, e.g. ones not tracked by ID, are killed but not waited for.
+     */
+    private void killAllKernels(long deadline) {
         int count = kernelInstances.size()
         int trackingCount = kernelById.size()
         
         log.info("Killing all kernels (active: {}, tracked: {})", count, trackingCount)
 
-        if (count > 0) {
-            List<Kernel> instancesToKill = new ArrayList<>(kernelInstances)
-
-            for (Kernel kernel : instancesToKill) {
-                try {
-                    kernel.kill()
-                    log.debug("Kernel killed successfully")
-                } catch (Exception e) {
-                    log.error("Error killing kernel", e)
-                }
+        Map<String, Runnable> kills = [:]
+        Map<String, CompletableFuture<?>> pending = [:]
+        Set<Kernel> killed = Collections.newSetFromMap(new IdentityHashMap<Kernel, Boolean>())
+        kernelById.each { String kernelId, Kernel kernel ->
+            killed.add(kernel)
+            kills.put(kernelId, { kernel.kill() } as Runnable)
+            CompletableFuture<Void> termination = terminations.get(kernelId)
+            if (termination != null) {
+                pending.put(kernelId, termination)
             }
-
-            // Wait for cleanup to complete
-            long startTime = System.currentTimeMillis()
-            while (!kernelInstances.isEmpty() &&
-                    System.currentTimeMillis() - startTime < shutdownTimeoutMs) {
-                try {
-                    Thread.sleep(100)
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt()
-                    log.warn("Interrupted while waiting for kernels to terminate")
-                    break
-                }
+        }
+        for (Kernel kernel : kernelInstances) {
+            if (killed.add(kernel)) {
+                kills.put("untracked-" + System.identityHashCode(kernel), { kernel.kill() } as Runnable)
             }
+        }
 
-            if (!kernelInstances.isEmpty()) {
-                log.warn("{} kernels did not terminate within timeout", kernelInstances.size())
-            }
+        if (!kills.isEmpty()) {
+            long start = System.currentTimeMillis()
+            ParallelKernelShutdown.killAndAwait(kills, pending, deadline)
+            log.info("Killed {} kernels in {}ms", kills.size(), System.currentTimeMillis() - start)
         } else {
             log.debug("No active kernels to kill")
         }
@@ -428,6 +956,34 @@ public class KernelManager {
         log.debug("Cleared all kernel tracking maps")
     }
 
+    /**
+     * @return The running kernels by ID
+     */
+    public Map<String, Micronaut> getRunningKernels() {
+        Map<String, Micronaut> running = [:]
+        kernelById.each { String kernelId, Kernel kernel ->
+            if (kernel instanceof Micronaut) {
+                running.put(kernelId, (Micronaut) kernel)
+            }
+        }
+        return running
+    }
+
+    /**
+     * Kill a specific kernel by ID, without waiting for it to terminate.
+     *
+     * @return false if no such kernel is running
+     */
+    public boolean killKernel(String kernelId) {
+        Kernel kernel = kernelById.get(kernelId)
+        if (kernel == null) {
+            return false
+        }
+        log.info("Killing kernel '{}'", kernelId)
+        kernel.kill()
+        return true
+    }
+
     /**
      * Restart a specific kernel by ID (isolation-aware)
      */
@@ -446,11 +1002,17 @@ public class KernelManager {
         }
 
         try {
-            // Kill only the specific kernel
-            kernel.kill()
-            log.info("Kernel '{}' killed for restart", kernelId)
+            if (restartInPlace && kernel instanceof Micronaut) {
+                // Keep the sockets bound, only rebuild the evaluator
+                ((Micronaut) kernel).restart()
+                log.info("Kernel '{}' restarted in place", kernelId)
+            } else {
+                // Kill only the specific kernel
+                kernel.kill()
+                log.info("Kernel '{}' killed for restart", kernelId)
+            }
         } catch (Exception e) {
-            log.error("Error killing kernel '{}'", kernelId, e)
+            log.error("Error restarting kernel '{}'", kernelId, e)
         }
     }
 
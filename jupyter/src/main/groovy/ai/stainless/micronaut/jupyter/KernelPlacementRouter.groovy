@@ -0,0 +1,357 @@
+package ai.stainless.micronaut.jupyter
+
+import com.sun.management.OperatingSystemMXBean
+import groovy.json.JsonSlurper
+import groovy.util.logging.Slf4j
+import io.micronaut.context.ApplicationContext
+import io.micronaut.context.annotation.Requires
+import io.micronaut.context.annotation.Value
+import io.micronaut.discovery.DiscoveryClient
+import io.micronaut.discovery.ServiceInstance
+import io.micronaut.http.HttpHeaders
+import io.micronaut.http.HttpRequest
+import io.micronaut.http.HttpResponse
+import io.micronaut.http.HttpStatus
+import io.micronaut.http.MutableHttpRequest
+import io.micronaut.http.client.DefaultHttpClientConfiguration
+import io.micronaut.http.client.HttpClient
+import io.micronaut.http.client.exceptions.HttpClientResponseException
+import io.micronaut.scheduling.annotation.Scheduled
+import io.reactivex.Flowable
+import jakarta.annotation.PostConstruct
+import jakarta.annotation.PreDestroy
+import jakarta.inject.Inject
+import jakarta.inject.Singleton
+
+import java.lang.management.ManagementFactory
+import java.lang.management.MemoryUsage
+import java.nio.charset.StandardCharsets
+import java.security.MessageDigest
+import java.time.Duration
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Places new kernels on the least loaded of several instances of the
+ * application.
+ * <p>
+ * Every instance publishes a lightweight load signal (active kernels, heap
+ * and CPU usage) at {@code /jupyterkernel/load}. The router polls its peers,
+ * which come from {@code jupyter.routing.peers} and/or the instances of
+ * {@code jupyter.routing.service-id} known to Micronaut discovery, and
+ * {@link KernelEndpoint} forwards start requests to the peer with the lowest
+ * load score.
+ * <p>
+ * Jupyter connects to the address and ports it put in the connection info,
+ * so a kernel started from a connection file or inline connection info, or
+ * on allocated ports of a given address, can only run on a peer that shares
+ * this host. Such requests are forwarded only with
+ * {@code jupyter.routing.shared-host}, and a connection file is read here and
+ * forwarded inline, so peers need not share the runtime directory. Kernels
+ * on allocated ports of no given address are bound to the advertised
+ * address of the peer, and can be placed on any peer.
+ * <p>
+ * The kernel launcher keeps polling the instance it sent the start request
+ * to, so that instance remembers where it placed each kernel and relays the
+ * launcher's {@code /await} long polls to the peer running it. It forgets a
+ * kernel once the peer reports it gone, in an await or in its load.
+ * <p>
+ * The load reveals the kernels and resource usage of an instance, so it is
+ * only published to authenticated requests, or to peers presenting
+ * {@code jupyter.routing.token} in the {@code X-Jupyter-Routing-Token} header.
+ */
+@Slf4j
+@Singleton
+@Requires(property = "jupyter.routing.enabled", value = "true")
+class KernelPlacementRouter {
+
+    static final String FORWARDED_HEADER = "X-Jupyter-Kernel-Forwarded"
+
+    static final String TOKEN_HEADER = "X-Jupyter-Routing-Token"
+
+    @Inject
+    KernelManager kernelManager
+
+    @Inject
+    ApplicationContext applicationContext
+
+    @Value('${jupyter.routing.peers:}')
+    List<String> staticPeers = []
+
+    @Value('${jupyter.routing.service-id:}')
+    String serviceId
+
+    @Value('${jupyter.routing.max-load-age-ms:15000}')
+    Long maxLoadAgeMs = 15000
+
+    @Value('${jupyter.routing.heap-weight:4}')
+    Double heapWeight = 4
+
+    @Value('${jupyter.routing.cpu-weight:2}')
+    Double cpuWeight = 2
+
+    @Value('${jupyter.routing.shared-host:false}')
+    Boolean sharedHost = false
+
+    @Value('${jupyter.routing.token:}')
+    String token
+
+    /**
+     * Identifies this instance, so it can recognize itself in the peer list.
+     */
+    final String instanceId = UUID.randomUUID().toString()
+
+    private final Map<String, Map> peerLoads = new ConcurrentHashMap<>()
+    /** The peer running each kernel this instance forwarded, by kernel ID */
+    private final Map<String, String> forwardedKernels = new ConcurrentHashMap<>()
+    /** When each kernel was forwarded, by kernel ID */
+    private final Map<String, Long> forwardedAt = new ConcurrentHashMap<>()
+    private final Map<String, HttpClient> clients = new ConcurrentHashMap<>()
+
+    @PostConstruct
+    void checkToken() {
+        if (!token) {
+            log.warn("jupyter.routing.token is not set, so instances can't read each other's load and no kernels are forwarded")
+        }
+    }
+
+    /**
+     * @return The load signal of this instance
+     */
+    Map localLoad() {
+        MemoryUsage heap = ManagementFactory.memoryMXBean.heapMemoryUsage
+        long heapMax = heap.max > 0 ? heap.max : heap.committed
+        double heapFraction = heapMax > 0 ? heap.used / (double) heapMax : 0
+        double cpu = processCpuLoad()
+        int activeKernels = kernelManager.activeKernelCount
+        return [
+                instanceId   : instanceId,
+                activeKernels: activeKernels,
+                heapUsed     : heap.used,
+                heapMax      : heapMax,
+                cpuLoad      : cpu,
+                score        : score(activeKernels, heapFraction, cpu),
+                kernelIds    : kernelManager.kernelIds,
+                timestamp    : System.currentTimeMillis()
+        ]
+    }
+
+    /**
+     * @return Whether the token a peer presented is this instance's routing token
+     */
+    boolean acceptsToken(String presented) {
+        if (!token || presented == null) {
+            return false
+        }
+        return MessageDigest.isEqual(token.getBytes(StandardCharsets.UTF_8), presented.getBytes(StandardCharsets.UTF_8))
+    }
+
+    /**
+     * Poll every peer for its current load.
+     */
+    @Scheduled(fixedDelay = '${jupyter.routing.refresh-interval:5s}')
+    void refreshPeerLoads() {
+        long started = System.currentTimeMillis()
+        for (String peer : peerUrls()) {
+            try {
+                MutableHttpRequest<?> request = HttpRequest.GET("/jupyterkernel/load")
+                if (token) {
+                    request.header(TOKEN_HEADER, token)
+                }
+                Map load = client(peer).toBlocking().retrieve(request, Map)
+                if (load.instanceId == instanceId) {
+                    // that's us, behind a peer URL
+                    peerLoads.remove(peer)
+                    continue
+                }
+                load.timestamp = System.currentTimeMillis()
+                peerLoads.put(peer, load)
+                if (load.kernelIds instanceof Collection) {
+                    forgetTerminated(peer, load.kernelIds as Collection, started)
+                }
+            } catch (Exception e) {
+                log.debug("Unable to get load from peer {}: {}", peer, e.message)
+                peerLoads.remove(peer)
+            }
+        }
+    }
+
+    /**
+     * @return The URL of the peer a new kernel should be started on, or null to start it locally
+     */
+    String choosePeer() {
+        Map local = localLoad()
+        long now = System.currentTimeMillis()
+        Map.Entry<String, Map> best = peerLoads.entrySet()
+                .findAll { now - (it.value.timestamp as long) <= maxLoadAgeMs }
+                .min { it.value.score as double }
+        if (best != null && (best.value.score as double) < (local.score as double)) {
+            return best.key
+        }
+        return null
+    }
+
+    /**
+     * @return The body of the start request as forwarded to a peer, or null if the kernel must start here
+     */
+    Map forwardableStart(KernelEndpoint.StartRequest request) {
+        if (!sharedHost && !(request.allocatePorts && request.ip == null)) {
+            return null
+        }
+        Map body = request.toMap()
+        body.remove("file")
+        if (request.file != null) {
+            try {
+                body.connection = new JsonSlurper().parse(new File(request.file)) as Map
+            } catch (Exception e) {
+                log.warn("Unable to read connection file {} to forward it, starting the kernel locally", request.file, e)
+                return null
+            }
+        }
+        return body
+    }
+
+    /**
+     * Forward a start request to a peer.
+     *
+     * @param body The request, see {@link #forwardableStart}
+     * @param authorization The credentials the request was made with, or null
+     * @return The peer's response, including error responses
+     */
+    HttpResponse<Map> forwardStart(String peer, Map body, String authorization) {
+        log.info("Forwarding kernel start request to peer {}", peer)
+        HttpResponse<Map> response
+        try {
+            MutableHttpRequest<Map> forwarded = HttpRequest.POST("/jupyterkernel/start", body).header(FORWARDED_HEADER, instanceId)
+            if (authorization != null) {
+                forwarded.header(HttpHeaders.AUTHORIZATION, authorization)
+            }
+            response = client(peer).toBlocking().exchange(forwarded, Map)
+        } catch (HttpClientResponseException e) {
+            // the peer received the request, don't start the kernel a second time
+            response = HttpResponse.<Map>status(e.status).body(e.response.getBody(Map).orElse([:]))
+        }
+        Object kernelId = response.body()?.kernelId
+        if (kernelId == null) {
+            // nothing was started there
+            return response
+        }
+        forwardedAt.put(kernelId as String, System.currentTimeMillis())
+        forwardedKernels.put(kernelId as String, peer)
+        // count the kernel against the peer until its next refresh
+        Map load = peerLoads.get(peer)
+        if (load != null) {
+            load.activeKernels = (load.activeKernels as int) + 1
+            load.score = (load.score as double) + 1
+        }
+        return response
+    }
+
+    /**
+     * Forget the kernels forwarded to a peer that its load no longer lists.
+     * Kernels forwarded after the load was requested may not be listed yet,
+     * and are kept.
+     *
+     * @param running The IDs of the kernels the peer runs
+     * @param requestedAt When the load was requested
+     */
+    private void forgetTerminated(String peer, Collection running, long requestedAt) {
+        forwardedKernels.each { String kernelId, String kernelPeer ->
+            if (kernelPeer == peer && !running.contains(kernelId) && (forwardedAt.get(kernelId) ?: 0L) < requestedAt) {
+                log.debug("Peer {} no longer runs kernel '{}'", peer, kernelId)
+                forget(kernelId)
+            }
+        }
+    }
+
+    private void forget(String kernelId) {
+        forwardedKernels.remove(kernelId)
+        forwardedAt.remove(kernelId)
+    }
+
+    /**
+     * @return The peer this instance placed the kernel on, or null if it didn't forward it
+     */
+    String peerOf(String kernelId) {
+        return forwardedKernels.get(kernelId)
+    }
+
+    /**
+     * Relay the launcher's long poll for a kernel to the peer running it.
+     *
+     * @return The peer's response; 503 with state "unknown" if the peer can't be reached
+     */
+    CompletableFuture<HttpResponse<Map>> forwardAwait(String peer, String kernelId, long timeoutSeconds) {
+        CompletableFuture<HttpResponse<Map>> result = new CompletableFuture<>()
+        HttpRequest<?> request = HttpRequest.GET("/jupyterkernel/${kernelId}/await?timeoutSeconds=${timeoutSeconds}".toString())
+        Flowable.fromPublisher(client(peer).exchange(request, Map)).firstOrError().subscribe(
+                { HttpResponse<Map> response -> result.complete(response) },
+                { Throwable e ->
+                    if (e instanceof HttpClientResponseException) {
+                        result.complete(HttpResponse.<Map>status(e.status).body(e.response.getBody(Map).orElse([:])))
+                    } else {
+                        log.debug("Unable to reach peer {} running kernel '{}': {}", peer, kernelId, e.message)
+                        result.complete(HttpResponse.<Map>status(HttpStatus.SERVICE_UNAVAILABLE).body([
+                                "kernelId": kernelId,
+                                "state"   : "unknown",
+                                "message" : "Peer ${peer} running the kernel can't be reached".toString()
+                        ] as Map))
+                    }
+                }
+        )
+        return result.thenApply { HttpResponse<Map> response ->
+            if (response.status == HttpStatus.NOT_FOUND || response.body()?.state == "terminated") {
+                forget(kernelId)
+            }
+            return response
+        }
+    }
+
+    Map<String, Map> getPeerLoads() {
+        return Collections.unmodifiableMap(peerLoads)
+    }
+
+    private double score(int activeKernels, double heapFraction, double cpu) {
+        return activeKernels + heapWeight * heapFraction + cpuWeight * Math.max(cpu, 0)
+    }
+
+    private static double processCpuLoad() {
+        def os = ManagementFactory.operatingSystemMXBean
+        if (os instanceof OperatingSystemMXBean) {
+            return ((OperatingSystemMXBean) os).processCpuLoad
+        }
+        double load = os.systemLoadAverage
+        return load >= 0 ? load / os.availableProcessors : 0
+    }
+
+    private List<String> peerUrls() {
+        Set<String> urls = new LinkedHashSet<>(staticPeers.findAll { it?.trim() }.collect { it.trim() })
+        if (serviceId) {
+            applicationContext.findBean(DiscoveryClient).ifPresent { DiscoveryClient discoveryClient ->
+                try {
+                    List<ServiceInstance> instances = Flowable.fromPublisher(discoveryClient.getInstances(serviceId))
+                            .blockingFirst(Collections.emptyList())
+                    instances.each { urls.add(it.URI.toString()) }
+                } catch (Exception e) {
+                    log.debug("Unable to discover instances of {}: {}", serviceId, e.message)
+                }
+            }
+        }
+        return new ArrayList<>(urls)
+    }
+
+    private HttpClient client(String peer) {
+        return clients.computeIfAbsent(peer) {
+            // long enough for a start that waits for the kernel, and for the longest await
+            DefaultHttpClientConfiguration configuration = new DefaultHttpClientConfiguration()
+            configuration.readTimeout = Duration.ofSeconds(KernelEndpoint.MAX_AWAIT_SECONDS + 30)
+            HttpClient.create(new URL(it), configuration)
+        }
+    }
+
+    @PreDestroy
+    void close() {
+        clients.values().each { it.close() }
+        clients.clear()
+    }
+}
@@ -0,0 +1,124 @@
+package ai.stainless.micronaut.jupyter
+
+import ai.stainless.micronaut.jupyter.kernel.Micronaut
+import io.micronaut.context.ApplicationContext
+import io.micronaut.context.annotation.Requires
+import io.micronaut.context.annotation.Value
+import io.micronaut.context.event.StartupEvent
+import io.micronaut.runtime.event.annotation.EventListener
+import jakarta.inject.Inject
+import jakarta.inject.Singleton
+import org.slf4j.Logger
+import org.slf4j.LoggerFactory
+
+import java.lang.management.ManagementFactory
+import java.lang.management.MemoryPoolMXBean
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.TimeUnit
+
+/**
+ * Starts a kernel when the application starts, runs a script in it and kills
+ * it, so that the Groovy compiler, BeakerX and the kernel classes are loaded
+ * before the first notebook connects.
+ * <p>
+ * The time to the kernel being ready and the metaspace it took are logged,
+ * which gives comparable numbers with and without a class data sharing
+ * archive. With {@code exitWhenDone}, the application's main exits
+ * afterwards, with the code {@link #awaitExitCode} returns: run that way with
+ * {@code -XX:ArchiveClassesAtExit}, it dumps an AppCDS archive of every class
+ * a kernel needs.
+ */
+@Singleton
+@Requires(property = "jupyter.kernel.warmup.enabled", value = "true")
+class KernelWarmup {
+    private static final Logger log = LoggerFactory.getLogger(KernelWarmup.class)
+
+    private static final String SCRIPT = '''
+        def squares = (1..100).collect { it * it }
+        def byParity = squares.groupBy { it % 2 == 0 ? "even" : "odd" }
+        "${byParity.even.sum()} ${new StringBuilder("warm").append("up")}"
+    '''
+
+    @Value('${jupyter.kernel.warmup.exitWhenDone:false}')
+    Boolean exitWhenDone = false
+
+    @Value('${jupyter.kernel.warmup.timeoutMs:60000}')
+    Long timeoutMs = 60000
+
+    @Inject
+    KernelManager kernelManager
+
+    private final CompletableFuture<Integer> exitCode = new CompletableFuture<>()
+
+    /**
+     * For the application's main, which owns the process: waits for the
+     * warmup when it runs with {@code exitWhenDone}, for example
+     * <pre>
+     * ApplicationContext context = Micronaut.run(Application, args)
+     * Integer exitCode = KernelWarmup.awaitExitCode(context)
+     * if (exitCode != null) {
+     *     context.close()
+     *     System.exit(exitCode)
+     * }
+     * </pre>
+     *
+     * @return 0 if the warmup succeeded, 1 if it failed, or null if the
+     * application is to keep running
+     */
+    static Integer awaitExitCode(ApplicationContext context) {
+        KernelWarmup warmup = context.findBean(KernelWarmup).orElse(null)
+        if (warmup == null || !warmup.exitWhenDone) {
+            return null
+        }
+        return warmup.exitCode.get()
+    }
+
+    @EventListener
+    void onStartup(StartupEvent event) {
+        Thread thread = new Thread({ warmUp() }, "Jupyter-Kernel-Warmup")
+        thread.setDaemon(true)
+        thread.start()
+    }
+
+    void warmUp() {
+        long metaspaceBefore = metaspaceUsed()
+        long start = System.nanoTime()
+        String kernelId = null
+        boolean succeeded = false
+        try {
+            kernelId = kernelManager.startNewKernelOnAllocatedPorts(null, UUID.randomUUID().toString())
+            kernelManager.getReadiness(kernelId).get(timeoutMs, TimeUnit.MILLISECONDS)
+            long readyMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+            ((Micronaut) kernelManager.getKernelById(kernelId)).warmUp(SCRIPT)
+            long totalMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+            log.info("Kernel warmup: kernel ready in {}ms and first script run in {}ms, {}ms after JVM start; metaspace grew by {}KB",
+                    readyMillis, totalMillis, ManagementFactory.runtimeMXBean.uptime,
+                    metaspaceBefore < 0 ? "?" : (metaspaceUsed() - metaspaceBefore).intdiv(1024))
+            succeeded = true
+        } catch (Exception e) {
+            log.warn("Kernel warmup failed", e)
+        } finally {
+            if (kernelId != null) {
+                try {
+                    def termination = kernelManager.getTermination(kernelId)
+                    kernelManager.killKernel(kernelId)
+                    termination?.get(timeoutMs, TimeUnit.MILLISECONDS)
+                } catch (Exception e) {
+                    log.warn("Unable to stop the warmup kernel '{}'", kernelId, e)
+                }
+            }
+        }
+        if (exitWhenDone) {
+            log.info("Kernel warmup done, exiting")
+            exitCode.complete(succeeded ? 0 : 1)
+        }
+    }
+
+    /**
+     * @return Bytes of metaspace in use, or -1 if the JVM has no metaspace pool
+     */
+    static long metaspaceUsed() {
+        MemoryPoolMXBean pool = ManagementFactory.memoryPoolMXBeans.find { it.name == "Metaspace" }
+        return pool != null ? pool.usage.used : -1
+    }
+}
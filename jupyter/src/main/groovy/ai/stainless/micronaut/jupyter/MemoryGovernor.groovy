@@ -0,0 +1,286 @@
+package ai.stainless.micronaut.jupyter
+
+import ai.stainless.micronaut.jupyter.kernel.Micronaut
+import com.sun.management.GarbageCollectionNotificationInfo
+import io.micronaut.context.annotation.Requires
+import io.micronaut.context.annotation.Value
+import jakarta.annotation.PostConstruct
+import jakarta.annotation.PreDestroy
+import jakarta.inject.Inject
+import jakarta.inject.Provider
+import jakarta.inject.Singleton
+import org.slf4j.Logger
+import org.slf4j.LoggerFactory
+
+import javax.management.Notification
+import javax.management.NotificationEmitter
+import javax.management.NotificationListener
+import javax.management.openmbean.CompositeData
+import java.lang.management.GarbageCollectorMXBean
+import java.lang.management.ManagementFactory
+import java.lang.management.MemoryPoolMXBean
+import java.lang.management.MemoryType
+import java.lang.management.MemoryUsage
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * Watches heap and GC pressure, and keeps the kernels from running the
+ * server out of memory. Enabled with {@code jupyter.kernel.governor.enabled}.
+ * <p>
+ * What the kernels retain ends up in the old generation, so the governor
+ * looks at the old generation in use after its last collection, and at the
+ * share of recent time spent in collections other than young ones. Young
+ * collections run constantly while cells allocate and say nothing about
+ * what is retained. Both are sampled after every collection and again when
+ * a kernel asks to start:
+ * <ul>
+ *     <li>over the admission threshold, new kernels are refused,</li>
+ *     <li>over the eviction threshold, the least recently used idle kernel is
+ *     hibernated (its variables saved to a snapshot of its own) or killed,
+ *     according to the policy, one kernel per cooldown period until pressure
+ *     drops.</li>
+ * </ul>
+ * A kernel whose variables can't all be saved is never hibernated, the next
+ * idle kernel is tried instead.
+ * The notebook of an affected kernel is warned in its last cell's output.
+ */
+@Singleton
+@Requires(property = "jupyter.kernel.governor.enabled", value = "true")
+class MemoryGovernor implements NotificationListener {
+    private static final Logger log = LoggerFactory.getLogger(MemoryGovernor.class)
+
+    enum Pressure {
+        NORMAL, HIGH, CRITICAL
+    }
+
+    enum Policy {
+        HIBERNATE, KILL, NONE
+    }
+
+    /** Old generation in use after GC, as a fraction of its maximum, above which new kernels are refused */
+    @Value('${jupyter.kernel.governor.admissionThreshold:0.85}')
+    Double admissionThreshold = 0.85
+
+    /** Old generation in use after GC above which idle kernels are evicted */
+    @Value('${jupyter.kernel.governor.evictionThreshold:0.92}')
+    Double evictionThreshold = 0.92
+
+    /** Share of the GC window spent in old and full collections above which the heap counts as under pressure */
+    @Value('${jupyter.kernel.governor.gcTimeThreshold:0.25}')
+    Double gcTimeThreshold = 0.25
+
+    @Value('${jupyter.kernel.governor.gcWindowMs:60000}')
+    Long gcWindowMs = 60000
+
+    /** hibernate, kill or none */
+    @Value('${jupyter.kernel.governor.policy:hibernate}')
+    String policy = "hibernate"
+
+    /** Kernels that ran a cell more recently than this are never evicted */
+    @Value('${jupyter.kernel.governor.minIdleMs:60000}')
+    Long minIdleMs = 60000
+
+    /** Time given to an eviction to free memory before the next one */
+    @Value('${jupyter.kernel.governor.cooldownMs:10000}')
+    Long cooldownMs = 10000
+
+    @Inject
+    Provider<KernelManager> kernelManager
+
+    private final List<NotificationEmitter> emitters = []
+    private final Deque<long[]> collections = new ArrayDeque<>()
+    private final AtomicBoolean evicting = new AtomicBoolean()
+    private ExecutorService evictionExecutor
+    private volatile double heapFraction
+    private volatile double gcTimeRatio
+    private volatile long lastEvictionMillis
+
+    @PostConstruct
+    void install() {
+        evictionExecutor = Executors.newSingleThreadExecutor({ Runnable r ->
+            Thread thread = new Thread(r, "Jupyter-Memory-Governor")
+            thread.setDaemon(true)
+            return thread
+        })
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (gc instanceof NotificationEmitter) {
+                ((NotificationEmitter) gc).addNotificationListener(this, null, null)
+                emitters.add((NotificationEmitter) gc)
+            }
+        }
+        log.info("Memory governor watching {} garbage collectors (admission {}, eviction {}, policy {})",
+                emitters.size(), admissionThreshold, evictionThreshold, policy)
+    }
+
+    @PreDestroy
+    void uninstall() {
+        emitters.each { NotificationEmitter emitter ->
+            try {
+                emitter.removeNotificationListener(this)
+            } catch (Exception e) {
+                log.debug("Unable to remove GC listener", e)
+            }
+        }
+        emitters.clear()
+        evictionExecutor?.shutdownNow()
+    }
+
+    @Override
+    void handleNotification(Notification notification, Object handback) {
+        if (notification.type != GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION) {
+            return
+        }
+        GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from((CompositeData) notification.userData)
+        // young (and G1 mixed) collections report "end of minor GC"
+        onCollection(info.gcInfo.duration, !info.gcAction?.contains("minor"))
+    }
+
+    /**
+     * Update the pressure after a collection, and evict a kernel if needed.
+     *
+     * @param old Whether the collection was not a young one, only those count towards the GC time
+     */
+    void onCollection(long durationMillis, boolean old) {
+        long now = System.currentTimeMillis()
+        if (old) {
+            synchronized (collections) {
+                collections.addLast([now, durationMillis] as long[])
+            }
+        }
+        sample(now)
+
+        Pressure current = getPressure()
+        if (current != Pressure.NORMAL) {
+            log.warn("Heap pressure {}: {}", current, pressureDescription)
+        }
+        if (current == Pressure.CRITICAL && now - lastEvictionMillis >= cooldownMs && evicting.compareAndSet(false, true)) {
+            lastEvictionMillis = now
+            evictionExecutor.execute {
+                try {
+                    evictOne()
+                } finally {
+                    evicting.set(false)
+                }
+            }
+        }
+    }
+
+    /**
+     * Read the old generation in use after GC, and the GC time within the
+     * window, which decays even when no collection happens.
+     */
+    void sample(long now) {
+        synchronized (collections) {
+            while (!collections.isEmpty() && collections.peekFirst()[0] < now - gcWindowMs) {
+                collections.removeFirst()
+            }
+            gcTimeRatio = (collections.sum(0L) { it[1] } as long) / (double) gcWindowMs
+        }
+        heapFraction = oldGenerationAfterGc()
+    }
+
+    /**
+     * @return The pressure for the given heap and GC figures
+     */
+    Pressure pressureFor(double heapFraction, double gcTimeRatio) {
+        if (heapFraction >= evictionThreshold) {
+            return Pressure.CRITICAL
+        }
+        if (heapFraction >= admissionThreshold || gcTimeRatio >= gcTimeThreshold) {
+            return Pressure.HIGH
+        }
+        return Pressure.NORMAL
+    }
+
+    Pressure getPressure() {
+        return pressureFor(heapFraction, gcTimeRatio)
+    }
+
+    /**
+     * @return true if new kernels may be started, as of now
+     */
+    boolean isAdmitting() {
+        sample(System.currentTimeMillis())
+        return getPressure() == Pressure.NORMAL
+    }
+
+    String getPressureDescription() {
+        return String.format("old generation %.0f%% in use after GC, %.0f%% of the last %ds spent in old and full GC",
+                heapFraction * 100, gcTimeRatio * 100, (gcWindowMs / 1000) as long)
+    }
+
+    /**
+     * Evict the least recently used idle kernel, according to the policy.
+     *
+     * @return The ID of the evicted kernel, or null if none could be evicted
+     */
+    String evictOne() {
+        Policy evictionPolicy = Policy.valueOf(policy.trim().toUpperCase())
+        if (evictionPolicy == Policy.NONE) {
+            return null
+        }
+        Map<String, Micronaut> kernels = kernelManager.get().runningKernels
+        Map<String, Long> idleSince = [:]
+        kernels.each { String kernelId, Micronaut kernel ->
+            if (!kernel.busy && !kernel.hibernated) {
+                idleSince.put(kernelId, kernel.lastActivityMillis)
+            }
+        }
+        String kernelId = leastRecentlyUsed(idleSince, System.currentTimeMillis(), minIdleMs)
+        if (kernelId == null) {
+            log.warn("Heap under pressure but no kernel has been idle for {}ms, nothing to evict", minIdleMs)
+            return null
+        }
+
+        if (evictionPolicy == Policy.HIBERNATE) {
+            while (kernelId != null) {
+                if (kernels.get(kernelId).hibernate()) {
+                    log.warn("Hibernated kernel '{}' to relieve heap pressure ({})", kernelId, pressureDescription)
+                    return kernelId
+                }
+                // it would lose variables, or became busy
+                idleSince.remove(kernelId)
+                kernelId = leastRecentlyUsed(idleSince, System.currentTimeMillis(), minIdleMs)
+            }
+            log.warn("Heap under pressure but no idle kernel can be hibernated without losing variables, nothing to evict")
+            return null
+        }
+
+        Micronaut kernel = kernels.get(kernelId)
+        kernel.warn("The server is low on memory, so this idle kernel was shut down. Restart it to continue.")
+        kernelManager.get().killKernel(kernelId)
+        log.warn("Killed kernel '{}' to relieve heap pressure ({})", kernelId, pressureDescription)
+        return kernelId
+    }
+
+    /**
+     * @param idleSince When each idle kernel last ran a cell, by kernel ID
+     * @return The kernel idle for the longest time, at least minIdleMs, or null
+     */
+    static String leastRecentlyUsed(Map<String, Long> idleSince, long now, long minIdleMs) {
+        return idleSince.findAll { now - it.value >= minIdleMs }
+                .min { it.value }?.key
+    }
+
+    /**
+     * @return The share of the old generation in use after its last
+     * collection. The old generation is made of the heap pools that support
+     * usage thresholds, which eden and survivor spaces don't; with a single
+     * generation collector it is the whole heap.
+     */
+    static double oldGenerationAfterGc() {
+        long used = 0
+        long max = 0
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.type != MemoryType.HEAP || !pool.valid || !pool.usageThresholdSupported) {
+                continue
+            }
+            MemoryUsage usage = pool.collectionUsage ?: pool.usage
+            used += usage.used
+            max += usage.max > 0 ? usage.max : usage.committed
+        }
+        return max > 0 ? used / (double) max : 0
+    }
+}
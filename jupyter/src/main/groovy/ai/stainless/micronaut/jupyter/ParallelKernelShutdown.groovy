@@ -0,0 +1,87 @@
+package ai.stainless.micronaut.jupyter
+
+import org.slf4j.Logger
+import org.slf4j.LoggerFactory
+
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Kills a set of kernels in parallel and waits for all of them to terminate,
+ * up to a single deadline.
+ */
+class ParallelKernelShutdown {
+    private static final Logger log = LoggerFactory.getLogger(ParallelKernelShutdown.class)
+    private static final long PROGRESS_INTERVAL_MS = 1000
+
+    /**
+     * @param kills The action killing each kernel, by kernel ID
+     * @param terminations The future completed once each kernel has terminated, by kernel ID
+     * @param deadlineMillis When to stop waiting, in {@link System#currentTimeMillis()} time
+     * @return The IDs of the kernels that did not terminate before the deadline
+     */
+    static Set<String> killAndAwait(Map<String, Runnable> kills,
+                                    Map<String, CompletableFuture<?>> terminations,
+                                    long deadlineMillis) {
+        if (kills.isEmpty()) {
+            return Collections.emptySet()
+        }
+        int total = terminations.size()
+        ExecutorService killExecutor = Executors.newFixedThreadPool(Math.min(kills.size(), 64), daemonThreads())
+        try {
+            kills.each { String kernelId, Runnable kill ->
+                killExecutor.execute {
+                    try {
+                        kill.run()
+                    } catch (Exception e) {
+                        log.error("Error killing kernel '{}'", kernelId, e)
+                    }
+                }
+            }
+
+            CompletableFuture<Void> all = CompletableFuture.allOf(terminations.values() as CompletableFuture[])
+            while (true) {
+                long remaining = deadlineMillis - System.currentTimeMillis()
+                if (remaining <= 0) {
+                    break
+                }
+                try {
+                    all.get(Math.min(remaining, PROGRESS_INTERVAL_MS), TimeUnit.MILLISECONDS)
+                    log.info("All {} kernels terminated", total)
+                    return Collections.emptySet()
+                } catch (TimeoutException e) {
+                    log.info("{} of {} kernels terminated", terminations.values().count { it.isDone() }, total)
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt()
+                    log.warn("Interrupted while waiting for kernels to terminate")
+                    break
+                } catch (Exception e) {
+                    // a termination completed exceptionally, the others are still waited for
+                    if (terminations.values().every { it.isDone() }) {
+                        return Collections.emptySet()
+                    }
+                    all = CompletableFuture.allOf(terminations.values().findAll { !it.isDone() } as CompletableFuture[])
+                }
+            }
+            Set<String> pending = terminations.findAll { !it.value.isDone() }.keySet()
+            log.warn("{} of {} kernels did not terminate in time: {}", pending.size(), total, pending)
+            return pending
+        } finally {
+            killExecutor.shutdown()
+        }
+    }
+
+    private static ThreadFactory daemonThreads() {
+        AtomicInteger threadNumber = new AtomicInteger(1)
+        return { Runnable r ->
+            Thread thread = new Thread(r, "Jupyter-Kernel-Kill-" + threadNumber.getAndIncrement())
+            thread.setDaemon(true)
+            return thread
+        } as ThreadFactory
+    }
+}
@@ -0,0 +1,54 @@
+package ai.stainless.micronaut.jupyter
+
+import ai.stainless.micronaut.jupyter.kernel.CellScheduler
+import io.micrometer.core.instrument.MeterRegistry
+import io.micrometer.core.instrument.Timer
+import io.micronaut.context.annotation.Context
+import io.micronaut.context.annotation.Requires
+import jakarta.annotation.PostConstruct
+import jakarta.inject.Inject
+
+import java.util.concurrent.TimeUnit
+
+/**
+ * Publishes the time cells wait for a slot of the {@link CellScheduler} as
+ * the {@code jupyter.kernel.scheduler.queue.wait} timer, tagged with the
+ * priority class. Active when the scheduler is enabled and the application
+ * has a Micrometer registry, such as with micronaut-micrometer.
+ */
+@Context
+@Requires(property = "jupyter.kernel.scheduler.enabled", value = "true")
+@Requires(classes = MeterRegistry)
+@Requires(beans = MeterRegistry)
+class SchedulerMetrics {
+
+    static final String QUEUE_WAIT = "jupyter.kernel.scheduler.queue.wait"
+
+    @Inject
+    MeterRegistry meterRegistry
+
+    @Inject
+    KernelManager kernelManager
+
+    @PostConstruct
+    void bind() {
+        CellScheduler scheduler = kernelManager.scheduler
+        if (scheduler != null) {
+            bind(scheduler, meterRegistry)
+        }
+    }
+
+    static void bind(CellScheduler scheduler, MeterRegistry registry) {
+        Map<CellScheduler.Priority, Timer> timers = new EnumMap<>(CellScheduler.Priority)
+        for (CellScheduler.Priority priority : CellScheduler.Priority.values()) {
+            timers.put(priority, Timer.builder(QUEUE_WAIT)
+                    .description("Time cells waited for a scheduler slot")
+                    .tag("priority", priority.name().toLowerCase(Locale.ROOT))
+                    .publishPercentiles(0.5, 0.95, 0.99)
+                    .register(registry))
+        }
+        scheduler.waitListener = { CellScheduler.Priority priority, Long nanos ->
+            timers.get(priority).record(nanos, TimeUnit.NANOSECONDS)
+        }
+    }
+}
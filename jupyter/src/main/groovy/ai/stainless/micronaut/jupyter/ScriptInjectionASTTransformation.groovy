@@ -0,0 +1,96 @@
+package ai.stainless.micronaut.jupyter
+
+import org.codehaus.groovy.ast.ASTNode
+import org.codehaus.groovy.ast.AnnotationNode
+import org.codehaus.groovy.ast.ModuleNode
+import org.codehaus.groovy.ast.expr.DeclarationExpression
+import org.codehaus.groovy.ast.expr.EmptyExpression
+import org.codehaus.groovy.ast.expr.Expression
+import org.codehaus.groovy.ast.expr.VariableExpression
+import org.codehaus.groovy.ast.stmt.ExpressionStatement
+import org.codehaus.groovy.ast.stmt.Statement
+import org.codehaus.groovy.control.CompilePhase
+import org.codehaus.groovy.control.SourceUnit
+import org.codehaus.groovy.syntax.SyntaxException
+import org.codehaus.groovy.transform.ASTTransformation
+import org.codehaus.groovy.transform.GroovyASTTransformation
+
+import static org.codehaus.groovy.ast.tools.GeneralUtils.assignS
+import static org.codehaus.groovy.ast.tools.GeneralUtils.callThisX
+import static org.codehaus.groovy.ast.tools.GeneralUtils.classX
+import static org.codehaus.groovy.ast.tools.GeneralUtils.varX
+
+/**
+ * An AST Transformation that resolves the {@code @Inject} declarations of a
+ * notebook script through {@code MicronautJupyterScript.service}, which
+ * caches beans per kernel:
+ * <pre>
+ * &#64;Inject CalculatorService calculator          // a local variable
+ * &#64;Field &#64;Inject CalculatorService calculator   // a script field
+ * </pre>
+ * The declaration is assigned where it appears in the script, once the
+ * binding is set, and the annotation is removed so the script doesn't need
+ * to import it. Runs before class resolution for that reason.
+ */
+@GroovyASTTransformation(phase = CompilePhase.CONVERSION)
+class ScriptInjectionASTTransformation implements ASTTransformation {
+
+    private static final Set<String> INJECT_ANNOTATIONS = ["Inject", "jakarta.inject.Inject", "javax.inject.Inject"] as Set
+    private static final Set<String> FIELD_ANNOTATIONS = ["Field", "groovy.transform.Field"] as Set
+
+    @Override
+    void visit(ASTNode[] nodes, SourceUnit sourceUnit) {
+        ModuleNode moduleNode = sourceUnit?.getAST()
+        if (moduleNode == null || moduleNode.getStatementBlock() == null) {
+            return
+        }
+
+        List<Statement> statements = moduleNode.getStatementBlock().getStatements()
+        for (int i = 0; i < statements.size(); i++) {
+            Statement statement = statements.get(i)
+            if (!(statement instanceof ExpressionStatement)) {
+                continue
+            }
+            Expression expression = ((ExpressionStatement) statement).getExpression()
+            if (!(expression instanceof DeclarationExpression)) {
+                continue
+            }
+            DeclarationExpression declaration = (DeclarationExpression) expression
+            AnnotationNode inject = declaration.getAnnotations().find { INJECT_ANNOTATIONS.contains(it.classNode.name) }
+            if (inject == null) {
+                continue
+            }
+            declaration.getAnnotations().remove(inject)
+
+            if (declaration.isMultipleAssignmentDeclaration()) {
+                addError(sourceUnit, declaration, "@Inject can't be used on a multiple assignment")
+                continue
+            }
+            VariableExpression variable = declaration.getVariableExpression()
+            if (variable.isDynamicTyped()) {
+                addError(sourceUnit, declaration, "@Inject ${variable.name} needs a type to look the bean up by")
+                continue
+            }
+            if (!(declaration.getRightExpression() instanceof EmptyExpression)) {
+                addError(sourceUnit, declaration, "@Inject ${variable.name} can't have an initial value")
+                continue
+            }
+
+            Expression lookup = callThisX("service", classX(variable.getOriginType()))
+            boolean isField = declaration.getAnnotations().any { FIELD_ANNOTATIONS.contains(it.classNode.name) }
+            if (isField) {
+                // a field initializer would run before the binding is set, so assign it in the script body
+                Statement assignment = assignS(varX(variable.name), lookup)
+                assignment.setSourcePosition(declaration)
+                statements.add(i + 1, assignment)
+                i++
+            } else {
+                declaration.setRightExpression(lookup)
+            }
+        }
+    }
+
+    private static void addError(SourceUnit sourceUnit, ASTNode node, String message) {
+        sourceUnit.addError(new SyntaxException(message, node.lineNumber, node.columnNumber))
+    }
+}
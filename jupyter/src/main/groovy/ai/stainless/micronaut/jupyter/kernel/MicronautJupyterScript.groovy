@@ -3,10 +3,14 @@ package ai.stainless.micronaut.jupyter.kernel
 import groovy.util.logging.Slf4j
 import io.micronaut.context.ApplicationContext
 
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+
 //@Slf4j
 public abstract class MicronautJupyterScript extends Script {
 
     ApplicationContext applicationContext
+    ScriptBeanCache beanCache
 
     public MicronautJupyterScript () {
         //log.debug "Creating new jupyter script instance with binding: $binding"
@@ -23,6 +27,9 @@ public abstract class MicronautJupyterScript extends Script {
         else {
             //log.warn "No applicationContext found in binding: $scriptBinding"
         }
+        if (binding.hasVariable("_boundBeanCache")) {
+            beanCache = binding.getVariable("_boundBeanCache") as ScriptBeanCache
+        }
     }
 
     @Override
@@ -34,8 +41,139 @@ public abstract class MicronautJupyterScript extends Script {
         setBindingInstanceVariables(binding)
     }
 
+    /**
+     * Look a bean up by type. Singletons are resolved once per kernel, so
+     * this is cheap to call in a loop.
+     */
     public <T> T service (Class<T> beanType) {
+        if (beanCache != null) {
+            return beanCache.get(beanType)
+        }
         return applicationContext.getBean(beanType)
     }
 
+    /**
+     * @return The result of the cell with the given number, counted from 1
+     * since the kernel started. Old results may have been dropped or evicted.
+     */
+    public Object result (int number) {
+        return (binding.getVariable("_results") as ResultHistory).get(number)
+    }
+
+    /**
+     * @return The result of the most recent cell that returned one
+     */
+    public Object lastResult () {
+        return (binding.getVariable("_results") as ResultHistory).last
+    }
+
+    /**
+     * Wrap a primitive array to be sent as a binary buffer. Returned from a
+     * cell, it is displayed without encoding the values as text.
+     */
+    public BinaryData binary (Object array) {
+        return BinaryData.of(array)
+    }
+
+    /**
+     * Wrap columns of primitive arrays, by name, to be sent as binary buffers.
+     */
+    public BinaryData binaryTable (Map<String, ?> columns) {
+        return BinaryData.table(columns)
+    }
+
+    /**
+     * Display a primitive array or a map of columns as binary buffers now,
+     * e.g. from a loop or a background thread of the cell.
+     */
+    public void displayBinary (Object data) {
+        BinaryData binaryData = data instanceof BinaryData ? data as BinaryData
+                : data instanceof Map ? BinaryData.table(data as Map<String, ?>)
+                : BinaryData.of(data)
+        IOPubPublisher publisher = CellContext.current()?.publisher
+        if (publisher == null) {
+            throw new IllegalStateException("displayBinary can only be called while a cell runs")
+        }
+        binaryData.publish(publisher)
+    }
+
+    /**
+     * Run closures in parallel on the kernel's pool, and wait for all of them.
+     * Their output goes to this cell. If one fails, or the cell is
+     * interrupted, the others are cancelled.
+     *
+     * @return The results of the closures, in order
+     */
+    public List parallel (Closure... tasks) {
+        return parallelTasks(tasks.collect { Closure task -> { -> task.call() } as Callable })
+    }
+
+    /**
+     * Apply a closure to each item in parallel on the kernel's pool.
+     *
+     * @return The results, in the order of the items
+     */
+    public List parallelMap (Iterable items, Closure transform) {
+        return parallelTasks(items.collect { item -> { -> transform.call(item) } as Callable })
+    }
+
+    /**
+     * Call a closure with each item in parallel on the kernel's pool.
+     */
+    public void parallelEach (Iterable items, Closure action) {
+        parallelMap(items, action)
+    }
+
+    /**
+     * Run closures that mostly block, such as HTTP calls or queries, each on
+     * its own thread (a virtual thread if enabled), and wait for all of them.
+     * Their output goes to this cell. If one fails, or the cell is
+     * interrupted, the others are cancelled.
+     *
+     * @return The results of the closures, in order
+     */
+    public List fanOut (Closure... calls) {
+        return fanOutTasks(calls.collect { Closure call -> { -> call.call() } as Callable })
+    }
+
+    /**
+     * Apply a closure that mostly blocks to each item, each on its own thread.
+     *
+     * @return The results, in the order of the items
+     */
+    public List fanOutMap (Iterable items, Closure call) {
+        return fanOutTasks(items.collect { item -> { -> call.call(item) } as Callable })
+    }
+
+    /**
+     * Measure an operation: warmup iterations, then timed iterations, with
+     * the results passed to a blackhole. A closure taking a parameter gets
+     * the {@link Microbenchmark.Blackhole} to consume intermediate values.
+     * Returned from a cell, the result is displayed as a table.
+     *
+     * @param options name, warmup, iterations, iterationMs and batch
+     */
+    public Microbenchmark.Result bench (Map<String, ?> options = [:], Closure operation) {
+        return new Microbenchmark(options).run(operation)
+    }
+
+    private List parallelTasks (List<Callable> tasks) {
+        KernelParallelism parallelism = binding.getVariable("_parallel") as KernelParallelism
+        try {
+            return parallelism.invokeAll(tasks)
+        } catch (ExecutionException e) {
+            // rethrow what the closure threw, as a sequential loop would
+            throw e.cause
+        }
+    }
+
+    private List fanOutTasks (List<Callable> tasks) {
+        KernelParallelism parallelism = binding.getVariable("_parallel") as KernelParallelism
+        try {
+            return parallelism.fanOut(tasks)
+        } catch (ExecutionException e) {
+            throw e.cause
+        }
+    }
+
 }
@@ -58,7 +58,7 @@ class MicronautWorkerThread implements Callable<TryResult> {
             j.outputObject.started()
 
             // execute
-            r = evaluator.executeTask({
+            r = evaluator.executeTask({ evaluator.runScheduled({
                 //get HibernateDatastore class
                 Class HibernateDatastore
                 try {
@@ -89,7 +89,7 @@ class MicronautWorkerThread implements Callable<TryResult> {
 
                     return result
                 }
-            } as Callable, j.getExecutionOptions())
+            } as Callable) } as Callable, j.getExecutionOptions())
         } catch (Throwable e) {
             if (e.class.name.endsWith('GroovyNotFoundException')) {
                 logger.warn(e.getLocalizedMessage())
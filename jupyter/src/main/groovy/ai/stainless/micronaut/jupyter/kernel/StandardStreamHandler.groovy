@@ -6,7 +6,7 @@ import com.twosigma.beakerx.widget.OutputManager;
 import groovy.util.logging.Slf4j;
 
 import java.nio.charset.StandardCharsets;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -28,9 +28,6 @@ public class StandardStreamHandler {
                     .collect(Collectors.joining("|"))
     );
 
-    // Thread-safe map for handlers
-    private final Map<ThreadGroup, BeakerOutputHandlers> handlers = new ConcurrentHashMap<>();
-
     // Original stream references
     private PrintStream orig_out;
     private PrintStream orig_err;
@@ -100,33 +97,47 @@ public class StandardStreamHandler {
     }
 
     /**
-     * Set output handlers for the current thread group
+     * Set output handlers for the cell running on the current thread. The
+     * handlers follow the cell's work onto other threads, see {@link CellContext}.
      *
      * @param out Output handler for stdout
      * @param err Output handler for stderr
      * @param stdin Input handler for stdin
+     * @return The context bound to the current thread
      */
-    public void setOutputHandlers(BeakerOutputHandler out, BeakerOutputHandler err, BeakerInputHandler stdin) {
-        log.debug("Setting output handlers for thread group: {}", Thread.currentThread().getThreadGroup().getName());
-
-        // Remove handlers for thread groups with no active threads
-        removeHandlersWithAllNoAliveThreads();
+    public CellContext setOutputHandlers(BeakerOutputHandler out, BeakerOutputHandler err, BeakerInputHandler stdin) {
+        return setOutputHandlers(null, new AtomicBoolean(true), out, err, stdin);
+    }
 
-        // Store handlers for current thread group
-        ThreadGroup threadGroup = Thread.currentThread().getThreadGroup();
-        handlers.put(threadGroup, new BeakerOutputHandlers(
+    /**
+     * Set output handlers for the cell running on the current thread.
+     *
+     * @param kernelId The ID of the kernel running the cell
+     * @param kernelOpen Set to false by the kernel when it closes, which stops all of its output routing
+     * @param out Output handler for stdout
+     * @param err Output handler for stderr
+     * @param stdin Input handler for stdin
+     * @return The context bound to the current thread
+     */
+    public CellContext setOutputHandlers(String kernelId, AtomicBoolean kernelOpen,
+                                         BeakerOutputHandler out, BeakerOutputHandler err, BeakerInputHandler stdin) {
+        CellContext context = new CellContext(kernelId, new BeakerOutputHandlers(
                 out_handler: out,
                 err_handler: err,
                 in_handler: stdin
-        ));
+        ), kernelOpen);
+        log.debug("Setting output handlers for kernel {} on thread {}", kernelId, Thread.currentThread().getName());
+        CellContext.bind(context);
+        return context;
     }
 
     /**
-     * Clear all output handlers
+     * Unbind the output handlers from the current thread. Threads the cell
+     * started keep writing to the cell until they finish or the kernel closes.
      */
     public void clearOutputHandlers() {
         log.debug("Clearing output handlers");
-        removeHandlersWithAllNoAliveThreads();
+        CellContext.restore(null);
     }
 
     /**
@@ -150,21 +161,6 @@ public class StandardStreamHandler {
         return (classNames.toString() =~ LOGGING_SEARCH_PATTERN).size() > 0;
     }
 
-    /**
-     * Remove handlers for thread groups that have no active threads
-     */
-    private void removeHandlersWithAllNoAliveThreads() {
-        handlers.entrySet().removeIf(entry -> {
-            ThreadGroup group = entry.getKey();
-            if (group.activeCount() == 0) {
-                entry.getValue().destroy();
-                log.trace("Removed handler for inactive thread group: {}", group.getName());
-                return true;
-            }
-            return false;
-        });
-    }
-
     /**
      * Write text to the appropriate stream
      *
@@ -198,14 +194,24 @@ public class StandardStreamHandler {
             return;
         }
 
-        // Get handlers for current thread group
-        ThreadGroup currentThreadGroup = Thread.currentThread().getThreadGroup();
-        BeakerOutputHandlers hrs = handlers.get(currentThreadGroup);
+        // Get handlers for the cell the current thread is working for
+        CellContext context = CellContext.current();
+        BeakerOutputHandlers hrs = context?.getHandlers();
 
         // Determine if this is a logging call that should be redirected
         boolean isLoggingCallToRedirect = redirectLogOutput && isLoggingCall();
 
         if (hrs != null && hrs."$handlerName" != null && !isLoggingCallToRedirect) {
+            // Apply the kernel's output limits to the cell's budget, over the limit text is not sent
+            OutputLimiter limiter = context.getOutputLimiter();
+            if (limiter != null) {
+                text = limiter.filter(context.getOutputBudget(), text);
+                if (text == null) {
+                    return;
+                }
+            }
+            // Keep the output of a %%cache cell to replay it on a hit
+            context.getRecording()?.write(text, isOut);
             // Write to custom handler
             try {
                 hrs."$handlerName".write(text);
@@ -225,8 +231,7 @@ public class StandardStreamHandler {
      * @return The character read, or -1 if the end of the stream has been reached
      */
     public int readStdin() {
-        ThreadGroup currentThreadGroup = Thread.currentThread().getThreadGroup();
-        BeakerOutputHandlers hrs = handlers.get(currentThreadGroup);
+        BeakerOutputHandlers hrs = currentHandlers();
 
         if (hrs != null && hrs.in_handler != null) {
             try {
@@ -240,6 +245,11 @@ public class StandardStreamHandler {
         }
     }
 
+    private static BeakerOutputHandlers currentHandlers() {
+        CellContext context = CellContext.current();
+        return context != null ? context.getHandlers() : null;
+    }
+
     /**
      * InputStream implementation that delegates to StandardStreamHandler
      */
@@ -0,0 +1,27 @@
+package ai.stainless.micronaut.jupyter.event;
+
+/**
+ * A cell finished running, published just before the {@link KernelIdleEvent}.
+ */
+public class CellFinishedEvent extends KernelEvent {
+
+    private final long durationNanos;
+    private final boolean error;
+
+    public CellFinishedEvent(Object source, String kernelId, long durationNanos, boolean error) {
+        super(source, kernelId);
+        this.durationNanos = durationNanos;
+        this.error = error;
+    }
+
+    public long getDurationNanos() {
+        return durationNanos;
+    }
+
+    /**
+     * @return true if the cell failed or was interrupted
+     */
+    public boolean isError() {
+        return error;
+    }
+}
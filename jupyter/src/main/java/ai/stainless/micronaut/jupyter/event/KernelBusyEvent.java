@@ -0,0 +1,11 @@
+package ai.stainless.micronaut.jupyter.event;
+
+/**
+ * A kernel started running a cell.
+ */
+public class KernelBusyEvent extends KernelEvent {
+
+    public KernelBusyEvent(Object source, String kernelId) {
+        super(source, kernelId);
+    }
+}
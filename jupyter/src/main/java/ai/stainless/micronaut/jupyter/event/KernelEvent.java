@@ -0,0 +1,39 @@
+package ai.stainless.micronaut.jupyter.event;
+
+import io.micronaut.context.event.ApplicationEvent;
+
+/**
+ * Base class of the kernel lifecycle events. Listen for this type to receive
+ * every lifecycle event, or for a subclass to receive one kind.
+ * <p>
+ * Events are published asynchronously, in order, on a dedicated thread, so
+ * listeners never add latency to cell execution. Use
+ * {@link #getTimestampMillis()} for when the event actually happened.
+ */
+public abstract class KernelEvent extends ApplicationEvent {
+
+    private final String kernelId;
+    private final long timestampMillis = System.currentTimeMillis();
+
+    /**
+     * @param source The object the event originates from
+     * @param kernelId The ID the kernel is tracked under
+     */
+    protected KernelEvent(Object source, String kernelId) {
+        super(source);
+        this.kernelId = kernelId;
+    }
+
+    public String getKernelId() {
+        return kernelId;
+    }
+
+    public long getTimestampMillis() {
+        return timestampMillis;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{kernelId=" + kernelId + ", timestampMillis=" + timestampMillis + "}";
+    }
+}
@@ -0,0 +1,86 @@
+package ai.stainless.micronaut.jupyter.event;
+
+import io.micronaut.context.annotation.Requires;
+import io.micronaut.context.event.ApplicationEventPublisher;
+import jakarta.annotation.PreDestroy;
+import jakarta.inject.Singleton;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes kernel lifecycle events as Micronaut application events, off the
+ * thread that reports them.
+ * <p>
+ * Events are handed to a single daemon thread, so listeners see them in the
+ * order they happened. The queue is bounded: if listeners fall too far
+ * behind, further events are dropped rather than slowing the kernels down.
+ */
+@Singleton
+@Requires(property = "jupyter.enabled", notEquals = "false")
+public class KernelEventPublisher {
+
+    private static final Logger logger = LoggerFactory.getLogger(KernelEventPublisher.class);
+    private static final int QUEUE_CAPACITY = 10000;
+
+    private final ApplicationEventPublisher<KernelEvent> eventPublisher;
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong droppedEvents = new AtomicLong();
+
+    public KernelEventPublisher(ApplicationEventPublisher<KernelEvent> eventPublisher) {
+        this.eventPublisher = eventPublisher;
+        this.executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(QUEUE_CAPACITY),
+                r -> {
+                    Thread thread = new Thread(r, "Jupyter-Kernel-Events");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    /**
+     * Queue an event for publication. Never blocks.
+     */
+    public void publish(KernelEvent event) {
+        try {
+            executor.execute(() -> {
+                try {
+                    eventPublisher.publishEvent(event);
+                } catch (Exception e) {
+                    logger.warn("Kernel event listener failed for {}", event, e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            long dropped = droppedEvents.incrementAndGet();
+            if (dropped == 1 || dropped % 1000 == 0) {
+                logger.warn("Kernel event listeners are falling behind, {} events dropped", dropped);
+            }
+        }
+    }
+
+    /**
+     * @return The number of events dropped because the queue was full
+     */
+    public long getDroppedEvents() {
+        return droppedEvents.get();
+    }
+
+    @PreDestroy
+    public void close() {
+        executor.shutdown();
+        try {
+            // let listeners see the final events, e.g. kernels being killed
+            if (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package ai.stainless.micronaut.jupyter.event;
+
+/**
+ * A kernel finished running a cell and is waiting for the next one.
+ */
+public class KernelIdleEvent extends KernelEvent {
+
+    public KernelIdleEvent(Object source, String kernelId) {
+        super(source, kernelId);
+    }
+}
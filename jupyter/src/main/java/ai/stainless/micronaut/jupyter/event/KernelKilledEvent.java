@@ -0,0 +1,11 @@
+package ai.stainless.micronaut.jupyter.event;
+
+/**
+ * A kernel terminated and its resources were cleaned up.
+ */
+public class KernelKilledEvent extends KernelEvent {
+
+    public KernelKilledEvent(Object source, String kernelId) {
+        super(source, kernelId);
+    }
+}
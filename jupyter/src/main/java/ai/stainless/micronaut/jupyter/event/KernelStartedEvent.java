@@ -0,0 +1,21 @@
+package ai.stainless.micronaut.jupyter.event;
+
+/**
+ * A kernel was initialized and is about to serve its sockets.
+ */
+public class KernelStartedEvent extends KernelEvent {
+
+    private final long startupMillis;
+
+    public KernelStartedEvent(Object source, String kernelId, long startupMillis) {
+        super(source, kernelId);
+        this.startupMillis = startupMillis;
+    }
+
+    /**
+     * @return The time from the start request to the kernel being ready
+     */
+    public long getStartupMillis() {
+        return startupMillis;
+    }
+}
@@ -0,0 +1,18 @@
+package ai.stainless.micronaut.jupyter.event;
+
+/**
+ * A kernel start was requested.
+ */
+public class KernelStartingEvent extends KernelEvent {
+
+    private final String connectionFile;
+
+    public KernelStartingEvent(Object source, String kernelId, String connectionFile) {
+        super(source, kernelId);
+        this.connectionFile = connectionFile;
+    }
+
+    public String getConnectionFile() {
+        return connectionFile;
+    }
+}
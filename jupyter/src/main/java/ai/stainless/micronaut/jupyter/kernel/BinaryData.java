@@ -0,0 +1,187 @@
+package ai.stainless.micronaut.jupyter.kernel;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Primitive arrays or columns of a table, published as raw binary buffers of
+ * a display_data message instead of JSON text.
+ * <p>
+ * The message carries a small JSON descriptor under {@link #MIME_TYPE}:
+ * <pre>
+ * {"version": 1, "byteOrder": "little", "rows": 3,
+ *  "columns": [{"name": "x", "dtype": "float64", "length": 3, "buffer": 0}, ...]}
+ * </pre>
+ * where {@code buffer} is the index of the column's frame in the message
+ * buffers, so a frontend can wrap each frame in a typed array as is
+ * ({@code new Float64Array(buffers[0].buffer)}). Values are written in a
+ * single bulk copy per column, with no per-value encoding.
+ */
+public class BinaryData {
+
+    public static final String MIME_TYPE = "application/vnd.micronaut.binary+json";
+    public static final int VERSION = 1;
+
+    private final List<String> names = new ArrayList<>();
+    private final List<String> dtypes = new ArrayList<>();
+    private final List<Integer> lengths = new ArrayList<>();
+    private final List<byte[]> buffers = new ArrayList<>();
+
+    private BinaryData() {
+    }
+
+    /**
+     * @param array A primitive array (double[], float[], long[], int[], short[], byte[] or boolean[])
+     */
+    public static BinaryData of(Object array) {
+        BinaryData data = new BinaryData();
+        data.add("value", array);
+        return data;
+    }
+
+    /**
+     * @param columns Primitive arrays by column name, all of the same length
+     */
+    public static BinaryData table(Map<String, ?> columns) {
+        if (columns.isEmpty()) {
+            throw new IllegalArgumentException("A table needs at least one column");
+        }
+        BinaryData data = new BinaryData();
+        for (Map.Entry<String, ?> column : columns.entrySet()) {
+            data.add(column.getKey(), column.getValue());
+        }
+        int rows = data.lengths.get(0);
+        for (int i = 1; i < data.lengths.size(); i++) {
+            if (data.lengths.get(i) != rows) {
+                throw new IllegalArgumentException("Column '" + data.names.get(i) + "' has " + data.lengths.get(i)
+                        + " values, expected " + rows);
+            }
+        }
+        return data;
+    }
+
+    private void add(String name, Object array) {
+        if (array == null) {
+            throw new IllegalArgumentException("Column '" + name + "' is null");
+        }
+        ByteBuffer buffer;
+        String dtype;
+        int length;
+        if (array instanceof double[]) {
+            double[] values = (double[]) array;
+            buffer = allocate(values.length, Double.BYTES);
+            buffer.asDoubleBuffer().put(values);
+            dtype = "float64";
+            length = values.length;
+        } else if (array instanceof float[]) {
+            float[] values = (float[]) array;
+            buffer = allocate(values.length, Float.BYTES);
+            buffer.asFloatBuffer().put(values);
+            dtype = "float32";
+            length = values.length;
+        } else if (array instanceof long[]) {
+            long[] values = (long[]) array;
+            buffer = allocate(values.length, Long.BYTES);
+            buffer.asLongBuffer().put(values);
+            dtype = "int64";
+            length = values.length;
+        } else if (array instanceof int[]) {
+            int[] values = (int[]) array;
+            buffer = allocate(values.length, Integer.BYTES);
+            buffer.asIntBuffer().put(values);
+            dtype = "int32";
+            length = values.length;
+        } else if (array instanceof short[]) {
+            short[] values = (short[]) array;
+            buffer = allocate(values.length, Short.BYTES);
+            buffer.asShortBuffer().put(values);
+            dtype = "int16";
+            length = values.length;
+        } else if (array instanceof byte[]) {
+            // already bytes, sent as is
+            buffer = ByteBuffer.wrap((byte[]) array);
+            dtype = "int8";
+            length = ((byte[]) array).length;
+        } else if (array instanceof boolean[]) {
+            boolean[] values = (boolean[]) array;
+            buffer = allocate(values.length, 1);
+            for (boolean value : values) {
+                buffer.put((byte) (value ? 1 : 0));
+            }
+            dtype = "bool";
+            length = values.length;
+        } else {
+            throw new IllegalArgumentException("Column '" + name + "' is a " + array.getClass().getName()
+                    + ", only primitive arrays can be sent as binary buffers");
+        }
+        names.add(name);
+        dtypes.add(dtype);
+        lengths.add(length);
+        buffers.add(buffer.array());
+    }
+
+    private static ByteBuffer allocate(int length, int bytesPerValue) {
+        return ByteBuffer.allocate(Math.multiplyExact(length, bytesPerValue)).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * @return The JSON descriptor of the buffers
+     */
+    public Map<String, Serializable> getDescriptor() {
+        ArrayList<LinkedHashMap<String, Serializable>> columns = new ArrayList<>();
+        for (int i = 0; i < names.size(); i++) {
+            LinkedHashMap<String, Serializable> column = new LinkedHashMap<>();
+            column.put("name", names.get(i));
+            column.put("dtype", dtypes.get(i));
+            column.put("length", lengths.get(i));
+            column.put("buffer", i);
+            columns.add(column);
+        }
+        Map<String, Serializable> descriptor = new LinkedHashMap<>();
+        descriptor.put("version", VERSION);
+        descriptor.put("byteOrder", "little");
+        descriptor.put("rows", lengths.get(0));
+        descriptor.put("columns", columns);
+        return descriptor;
+    }
+
+    public List<byte[]> getBuffers() {
+        return buffers;
+    }
+
+    /**
+     * @return The total size of the buffers
+     */
+    public long getByteCount() {
+        long total = 0;
+        for (byte[] buffer : buffers) {
+            total += buffer.length;
+        }
+        return total;
+    }
+
+    /**
+     * Publish as display_data, with a text/plain summary for frontends that
+     * don't read the buffers.
+     */
+    public void publish(IOPubPublisher publisher) {
+        Map<String, Serializable> data = new LinkedHashMap<>();
+        data.put(MIME_TYPE, (Serializable) getDescriptor());
+        data.put("text/plain", toString());
+        publisher.displayData(data, new LinkedHashMap<>(), buffers);
+    }
+
+    @Override
+    public String toString() {
+        List<String> columns = new ArrayList<>();
+        for (int i = 0; i < names.size(); i++) {
+            columns.add(names.get(i) + ": " + dtypes.get(i));
+        }
+        return "BinaryData[" + lengths.get(0) + " rows, " + getByteCount() + " bytes; " + String.join(", ", columns) + "]";
+    }
+}
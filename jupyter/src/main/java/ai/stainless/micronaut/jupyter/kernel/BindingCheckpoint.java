@@ -0,0 +1,620 @@
+package ai.stainless.micronaut.jupyter.kernel;
+
+import groovy.lang.Binding;
+import groovy.lang.Closure;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Saves the serializable variables of a kernel's script binding to disk and
+ * restores them into a fresh binding.
+ * <p>
+ * Every variable is serialized on its own, so a variable that can't be
+ * captured (not serializable, over the size limit, ...) is skipped and
+ * reported without affecting the others. Internal variables (names starting
+ * with an underscore) and closures are never captured.
+ * <p>
+ * Snapshots are kept in a {@link PrivateDirectory}, and only classes of an
+ * allow-list are deserialized: the value classes of {@code java.lang},
+ * {@code java.util}, {@code java.time} and {@code java.math}, Groovy's strings
+ * and ranges, classes the notebook itself defined, and the configured
+ * patterns. Variables of other classes are skipped when restoring.
+ */
+public class BindingCheckpoint {
+
+    private static final Logger logger = LoggerFactory.getLogger(BindingCheckpoint.class);
+
+    private static final int FORMAT_MAGIC = 0x4d4a434b;
+    private static final int FORMAT_VERSION = 1;
+    /** Variables written in chunks as they are serialized, see {@link #saveStreaming} */
+    private static final int STREAMED_FORMAT_VERSION = 2;
+    private static final int CHUNK_BYTES = 64 * 1024;
+
+    /**
+     * The classes deserialized besides those the notebook defined, in the
+     * syntax of {@link ObjectInputFilter.Config#createFilter(String)}
+     */
+    public static final String DEFAULT_ALLOWED_CLASSES = "java.lang.*;java.util.*;java.util.concurrent.*;java.time.*;"
+            + "java.math.*;java.net.URI;groovy.lang.GString;groovy.lang.IntRange;groovy.lang.ObjectRange;groovy.lang.EmptyRange;"
+            + "org.codehaus.groovy.runtime.GStringImpl";
+
+    private final Path file;
+    private final long maxVariableBytes;
+    private final long maxTotalBytes;
+    private final String allowedClasses;
+
+    /**
+     * @param file The snapshot file
+     * @param maxVariableBytes The largest serialized size of a single variable
+     * @param maxTotalBytes The largest serialized size of the whole snapshot
+     */
+    public BindingCheckpoint(Path file, long maxVariableBytes, long maxTotalBytes) {
+        this(file, maxVariableBytes, maxTotalBytes, null);
+    }
+
+    /**
+     * @param file The snapshot file
+     * @param maxVariableBytes The largest serialized size of a single variable
+     * @param maxTotalBytes The largest serialized size of the whole snapshot
+     * @param allowedClasses Patterns of further classes to deserialize, separated by semicolons, or null
+     */
+    public BindingCheckpoint(Path file, long maxVariableBytes, long maxTotalBytes, String allowedClasses) {
+        this.file = file;
+        this.maxVariableBytes = maxVariableBytes;
+        this.maxTotalBytes = maxTotalBytes;
+        this.allowedClasses = allowedClasses;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * @return true if a snapshot has been saved
+     */
+    public boolean exists() {
+        return Files.isRegularFile(file);
+    }
+
+    /**
+     * Save the variables of the given binding, replacing any previous snapshot.
+     */
+    public Report save(Binding binding) throws IOException {
+        return save(new LinkedHashMap<>((Map<?, ?>) binding.getVariables()));
+    }
+
+    /**
+     * Save the given variables, replacing any previous snapshot. Saves are
+     * serialized.
+     */
+    public synchronized Report save(Map<?, ?> variables) throws IOException {
+        return write(capture(variables));
+    }
+
+    /**
+     * Serialize the given variables without writing them yet. The variables
+     * must not change meanwhile, so this runs on the thread that owns them.
+     */
+    public Snapshot capture(Map<?, ?> variables) {
+        Report report = new Report(file);
+        Map<String, byte[]> captured = new LinkedHashMap<>();
+        long total = 0;
+        for (Map.Entry<?, ?> entry : new ArrayList<>(variables.entrySet())) {
+            String name = String.valueOf(entry.getKey());
+            Object value = entry.getValue();
+            if (name.startsWith("_")) {
+                continue;
+            }
+            String reason = checkCapturable(value);
+            if (reason != null) {
+                report.skipped.put(name, reason);
+                continue;
+            }
+            byte[] bytes;
+            try {
+                bytes = serialize(value, Math.min(maxVariableBytes, maxTotalBytes - total));
+            } catch (LimitExceededException e) {
+                report.skipped.put(name, total + maxVariableBytes > maxTotalBytes
+                        ? "checkpoint size limit of " + maxTotalBytes + " bytes reached"
+                        : "larger than " + maxVariableBytes + " bytes");
+                continue;
+            } catch (NotSerializableException e) {
+                report.skipped.put(name, "references a non-serializable " + e.getMessage());
+                continue;
+            } catch (Exception e) {
+                report.skipped.put(name, "serialization failed: " + e);
+                continue;
+            }
+            captured.put(name, bytes);
+            report.variables.put(name, (long) bytes.length);
+            total += bytes.length;
+        }
+        return new Snapshot(captured, report);
+    }
+
+    /**
+     * Write a captured snapshot, replacing any previous one.
+     */
+    public synchronized Report write(Snapshot snapshot) throws IOException {
+        Map<String, byte[]> captured = snapshot.captured;
+        Report report = snapshot.report;
+        PrivateDirectory.create(file.toAbsolutePath().getParent());
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(FORMAT_MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(captured.size());
+            for (Map.Entry<String, byte[]> entry : captured.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue().length);
+                out.write(entry.getValue());
+            }
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        report.fileBytes = Files.size(file);
+        logger.info("Saved checkpoint {}: {} variables captured, {} skipped", file, report.variables.size(), report.skipped.size());
+        return report;
+    }
+
+    /**
+     * Save the given variables, replacing any previous snapshot, writing each
+     * one to the file in chunks while it is serialized rather than holding
+     * the serialized variables in memory. Used when the heap is short.
+     */
+    public synchronized Report saveStreaming(Map<?, ?> variables) throws IOException {
+        Report report = new Report(file);
+        PrivateDirectory.create(file.toAbsolutePath().getParent());
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        long total = 0;
+        try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(FORMAT_MAGIC);
+            out.writeInt(STREAMED_FORMAT_VERSION);
+            for (Map.Entry<?, ?> entry : new ArrayList<>(variables.entrySet())) {
+                String name = String.valueOf(entry.getKey());
+                Object value = entry.getValue();
+                if (name.startsWith("_")) {
+                    continue;
+                }
+                String reason = checkCapturable(value);
+                if (reason != null) {
+                    report.skipped.put(name, reason);
+                    continue;
+                }
+                out.writeBoolean(true);
+                out.writeUTF(name);
+                ChunkedOutputStream chunks = new ChunkedOutputStream(out, Math.min(maxVariableBytes, maxTotalBytes - total));
+                try {
+                    // not closed, that would close the file
+                    ObjectOutputStream objects = new ObjectOutputStream(chunks);
+                    objects.writeObject(value);
+                    objects.flush();
+                    chunks.finish();
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                } catch (LimitExceededRuntimeException e) {
+                    chunks.abandon();
+                    report.skipped.put(name, total + maxVariableBytes > maxTotalBytes
+                            ? "checkpoint size limit of " + maxTotalBytes + " bytes reached"
+                            : "larger than " + maxVariableBytes + " bytes");
+                    continue;
+                } catch (NotSerializableException e) {
+                    chunks.abandon();
+                    report.skipped.put(name, "references a non-serializable " + e.getMessage());
+                    continue;
+                } catch (Exception e) {
+                    chunks.abandon();
+                    report.skipped.put(name, "serialization failed: " + e);
+                    continue;
+                }
+                report.variables.put(name, chunks.written);
+                total += chunks.written;
+            }
+            out.writeBoolean(false);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        report.fileBytes = Files.size(file);
+        logger.info("Saved checkpoint {}: {} variables captured, {} skipped", file, report.variables.size(), report.skipped.size());
+        return report;
+    }
+
+    /**
+     * Restore the saved variables into the given binding.
+     *
+     * @param classLoader Used to resolve the classes of the saved values
+     */
+    public synchronized Report restore(Binding binding, ClassLoader classLoader) throws IOException {
+        Report report = new Report(file);
+        if (!exists()) {
+            return report;
+        }
+        // refuse snapshots another user could have written
+        PrivateDirectory.create(file.toAbsolutePath().getParent());
+        ObjectInputFilter filter = allowList(classLoader, allowedClasses);
+        report.fileBytes = Files.size(file);
+        try (DataInputStream in = new DataInputStream(new GZIPInputStream(Files.newInputStream(file)))) {
+            int version = in.readInt() == FORMAT_MAGIC ? in.readInt() : -1;
+            if (version == FORMAT_VERSION) {
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    String name = in.readUTF();
+                    byte[] bytes = new byte[in.readInt()];
+                    in.readFully(bytes);
+                    restoreVariable(binding, report, name, bytes, classLoader, filter);
+                }
+            } else if (version == STREAMED_FORMAT_VERSION) {
+                while (in.readBoolean()) {
+                    String name = in.readUTF();
+                    byte[] bytes = readChunks(in);
+                    // null if it couldn't be serialized, and was reported then
+                    if (bytes != null) {
+                        restoreVariable(binding, report, name, bytes, classLoader, filter);
+                    }
+                }
+            } else {
+                throw new IOException("Not a kernel checkpoint: " + file);
+            }
+        }
+        logger.info("Restored checkpoint {}: {} variables restored, {} skipped", file, report.variables.size(), report.skipped.size());
+        return report;
+    }
+
+    private static void restoreVariable(Binding binding, Report report, String name, byte[] bytes,
+                                        ClassLoader classLoader, ObjectInputFilter filter) {
+        try {
+            binding.setVariable(name, deserialize(bytes, classLoader, filter));
+            report.variables.put(name, (long) bytes.length);
+        } catch (InvalidClassException e) {
+            report.skipped.put(name, "a class it references is not allowed, see jupyter.kernel.checkpoint.allowedClasses: " + e.getMessage());
+        } catch (ClassNotFoundException e) {
+            report.skipped.put(name, "class " + e.getMessage() + " is not available in this kernel");
+        } catch (Exception e) {
+            report.skipped.put(name, "deserialization failed: " + e);
+        }
+    }
+
+    /**
+     * @return The bytes of a variable written by {@link ChunkedOutputStream}, or null if it was abandoned
+     */
+    private static byte[] readChunks(DataInputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] chunk = new byte[CHUNK_BYTES];
+        for (int length = in.readInt(); length != 0; length = in.readInt()) {
+            if (length < 0) {
+                return null;
+            }
+            if (length > CHUNK_BYTES) {
+                throw new IOException("Corrupt kernel checkpoint, chunk of " + length + " bytes");
+            }
+            in.readFully(chunk, 0, length);
+            bytes.write(chunk, 0, length);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Replace the snapshot of another checkpoint with this one's.
+     */
+    public synchronized void copyTo(BindingCheckpoint target) throws IOException {
+        PrivateDirectory.create(target.file.toAbsolutePath().getParent());
+        Path temp = target.file.resolveSibling(target.file.getFileName() + ".tmp");
+        Files.copy(file, temp, StandardCopyOption.REPLACE_EXISTING);
+        Files.move(temp, target.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Delete the snapshot.
+     */
+    public void delete() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    private static String checkCapturable(Object value) {
+        if (value == null) {
+            return null;
+        }
+        if (value instanceof Closure) {
+            return "closures are not captured";
+        }
+        if (!(value instanceof Serializable)) {
+            return value.getClass().getName() + " is not serializable";
+        }
+        return null;
+    }
+
+    static byte[] serialize(Object value, long limit) throws IOException {
+        LimitedByteArrayOutputStream bytes = new LimitedByteArrayOutputStream(limit);
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(value);
+        } catch (LimitExceededRuntimeException e) {
+            throw new LimitExceededException();
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Deserialize a value, allowing the default classes only.
+     */
+    static Object deserialize(byte[] bytes, ClassLoader classLoader) throws IOException, ClassNotFoundException {
+        return deserialize(bytes, classLoader, allowList(classLoader, null));
+    }
+
+    static Object deserialize(byte[] bytes, ClassLoader classLoader, ObjectInputFilter filter) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ClassLoaderObjectInputStream(new ByteArrayInputStream(bytes), classLoader)) {
+            in.setObjectInputFilter(filter);
+            return in.readObject();
+        }
+    }
+
+    /**
+     * @param scriptClassLoader The kernel's script class loader, whose classes are the notebook's own, or null
+     * @param allowedClasses Patterns of further classes to allow, separated by semicolons, or null
+     * @return A filter rejecting every class that is not allowed
+     */
+    static ObjectInputFilter allowList(ClassLoader scriptClassLoader, String allowedClasses) {
+        ObjectInputFilter patterns = ObjectInputFilter.Config.createFilter(
+                allowedClasses == null || allowedClasses.trim().isEmpty()
+                        ? DEFAULT_ALLOWED_CLASSES
+                        : DEFAULT_ALLOWED_CLASSES + ";" + allowedClasses.trim());
+        return info -> {
+            Class<?> type = info.serialClass();
+            if (type == null) {
+                // a check of the stream's depth or size only
+                return ObjectInputFilter.Status.ALLOWED;
+            }
+            while (type.isArray()) {
+                type = type.getComponentType();
+            }
+            if (type.isPrimitive() || definedBy(type, scriptClassLoader)) {
+                return ObjectInputFilter.Status.ALLOWED;
+            }
+            ObjectInputFilter.Status status = patterns.checkInput(info);
+            return status == ObjectInputFilter.Status.ALLOWED ? status : ObjectInputFilter.Status.REJECTED;
+        };
+    }
+
+    /**
+     * @return true if the class was loaded by the script class loader or one of its children, as cell classes are
+     */
+    private static boolean definedBy(Class<?> type, ClassLoader scriptClassLoader) {
+        if (scriptClassLoader == null) {
+            return false;
+        }
+        for (ClassLoader loader = type.getClassLoader(); loader != null; loader = loader.getParent()) {
+            if (loader == scriptClassLoader) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Serialized variables waiting to be written.
+     */
+    public static class Snapshot {
+
+        private final Map<String, byte[]> captured;
+        private final Report report;
+
+        Snapshot(Map<String, byte[]> captured, Report report) {
+            this.captured = captured;
+            this.report = report;
+        }
+
+        public Report getReport() {
+            return report;
+        }
+    }
+
+    /**
+     * What a save or restore captured, and what it couldn't.
+     */
+    public static class Report {
+
+        private final Path file;
+        private final Map<String, Long> variables = new LinkedHashMap<>();
+        private final Map<String, String> skipped = new LinkedHashMap<>();
+        private long fileBytes;
+
+        Report(Path file) {
+            this.file = file;
+        }
+
+        /**
+         * @return The variables that were saved or restored, with their serialized size
+         */
+        public Map<String, Long> getVariables() {
+            return variables;
+        }
+
+        /**
+         * @return The variables that were left out, with the reason
+         */
+        public Map<String, String> getSkipped() {
+            return skipped;
+        }
+
+        public long getFileBytes() {
+            return fileBytes;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder();
+            text.append("Checkpoint ").append(file).append(" (").append(fileBytes).append(" bytes)\n");
+            if (variables.isEmpty()) {
+                text.append("No variables captured\n");
+            } else {
+                List<String> names = new ArrayList<>();
+                variables.forEach((name, size) -> names.add(name + " (" + size + " bytes)"));
+                text.append("Variables: ").append(String.join(", ", names)).append("\n");
+            }
+            if (!skipped.isEmpty()) {
+                text.append("Not captured:\n");
+                skipped.forEach((name, reason) -> text.append("  ").append(name).append(": ").append(reason).append("\n"));
+            }
+            return text.toString();
+        }
+    }
+
+    private static class LimitExceededException extends IOException {
+        LimitExceededException() {
+            super("Size limit exceeded");
+        }
+    }
+
+    private static class LimitedByteArrayOutputStream extends ByteArrayOutputStream {
+
+        private final long limit;
+
+        LimitedByteArrayOutputStream(long limit) {
+            this.limit = limit;
+        }
+
+        @Override
+        public synchronized void write(int b) {
+            checkLimit(1);
+            super.write(b);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            checkLimit(len);
+            super.write(b, off, len);
+        }
+
+        private void checkLimit(int len) {
+            if (count + len > limit) {
+                throw new LimitExceededRuntimeException();
+            }
+        }
+    }
+
+    /**
+     * ByteArrayOutputStream doesn't declare IOException, so the limit is
+     * signalled unchecked and translated in {@link #serialize(Object, long)}.
+     */
+    private static class LimitExceededRuntimeException extends RuntimeException {
+    }
+
+    /**
+     * Writes a variable as it is serialized, in chunks each preceded by its
+     * length. A length of 0 ends the variable, -1 abandons it.
+     * Failures of the file are signalled as {@link UncheckedIOException},
+     * to tell them apart from serialization failures.
+     */
+    private static class ChunkedOutputStream extends OutputStream {
+
+        private final DataOutputStream out;
+        private final long limit;
+        private final byte[] chunk = new byte[CHUNK_BYTES];
+        private int count;
+        private long written;
+
+        ChunkedOutputStream(DataOutputStream out, long limit) {
+            this.out = out;
+            this.limit = limit;
+        }
+
+        @Override
+        public void write(int b) {
+            checkLimit(1);
+            if (count == chunk.length) {
+                writeChunk();
+            }
+            chunk[count++] = (byte) b;
+            written++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            checkLimit(len);
+            while (len > 0) {
+                if (count == chunk.length) {
+                    writeChunk();
+                }
+                int n = Math.min(len, chunk.length - count);
+                System.arraycopy(b, off, chunk, count, n);
+                count += n;
+                written += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        void finish() {
+            writeChunk();
+            try {
+                out.writeInt(0);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        void abandon() throws IOException {
+            out.writeInt(-1);
+        }
+
+        private void checkLimit(int len) {
+            if (written + len > limit) {
+                throw new LimitExceededRuntimeException();
+            }
+        }
+
+        private void writeChunk() {
+            if (count == 0) {
+                return;
+            }
+            try {
+                out.writeInt(count);
+                out.write(chunk, 0, count);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            count = 0;
+        }
+    }
+
+    private static class ClassLoaderObjectInputStream extends ObjectInputStream {
+
+        private final ClassLoader classLoader;
+
+        ClassLoaderObjectInputStream(InputStream in, ClassLoader classLoader) throws IOException {
+            super(in);
+            this.classLoader = classLoader;
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+            try {
+                return Class.forName(desc.getName(), false, classLoader);
+            } catch (ClassNotFoundException e) {
+                return super.resolveClass(desc);
+            }
+        }
+    }
+}
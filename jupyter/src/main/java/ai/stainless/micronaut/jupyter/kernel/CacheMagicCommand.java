@@ -0,0 +1,250 @@
+package ai.stainless.micronaut.jupyter.kernel;
+
+import com.twosigma.beakerx.kernel.magic.command.MagicCommandExecutionParam;
+import com.twosigma.beakerx.kernel.magic.command.MagicCommandFunctionality;
+import com.twosigma.beakerx.kernel.magic.command.MagicCommandType;
+import com.twosigma.beakerx.kernel.magic.command.outcome.MagicCommandOutcomeItem;
+import com.twosigma.beakerx.kernel.magic.command.outcome.MagicCommandOutput;
+import com.twosigma.beakerx.mimetype.MIMEContainer;
+import groovy.lang.Binding;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The {@code %%cache} cell magic: runs the cell once and keeps what it
+ * printed and returned in the server's {@link CellCache}. Running the same
+ * cell again replays the output and returns the result without running it.
+ * <ul>
+ *     <li>{@code %%cache region year} also keys the entry on the values of
+ *     the variables {@code region} and {@code year}, which must be serializable,</li>
+ *     <li>{@code %%cache --ttl 2h} uses the entry for two hours at most
+ *     ({@code ms}, {@code s}, {@code m}, {@code h} and {@code d} are understood),</li>
+ *     <li>{@code %%cache --refresh} runs the cell and replaces the entry.</li>
+ * </ul>
+ * Variables the cell defines are not cached, only its result is. Cells that
+ * fail, return a reactive result or print more than an entry may hold are
+ * not cached. The cell is run by the {@code %%time} cell magic.
+ */
+public class CacheMagicCommand implements MagicCommandFunctionality {
+
+    private static final Logger logger = LoggerFactory.getLogger(CacheMagicCommand.class);
+
+    public static final String CACHE = "%%cache";
+    public static final String USAGE = "[--ttl <duration>] [--refresh] [variable ...]";
+
+    private static final String TIME_CELL = "%%time";
+    private static final Pattern DURATION = Pattern.compile("(\\d+)(ms|s|m|h|d)?");
+    private static final Pattern VARIABLE = Pattern.compile("[A-Za-z_$][A-Za-z0-9_$]*");
+
+    private final Micronaut kernel;
+
+    public CacheMagicCommand(Micronaut kernel) {
+        this.kernel = kernel;
+    }
+
+    @Override
+    public String getMagicCommandName() {
+        return CACHE;
+    }
+
+    public boolean matchCommand(String command) {
+        String[] parts = command.trim().split("\\s+");
+        return parts.length > 0 && CACHE.equals(parts[0]);
+    }
+
+    @Override
+    public MagicCommandOutcomeItem execute(MagicCommandExecutionParam param) {
+        String[] parts = param.getCommand().trim().split("\\s+");
+        long ttlMillis = 0;
+        boolean refresh = false;
+        List<String> variables = new ArrayList<>();
+        for (int i = 1; i < parts.length; i++) {
+            if ("--ttl".equals(parts[i]) && i + 1 < parts.length) {
+                ttlMillis = parseDuration(parts[++i]);
+                if (ttlMillis <= 0) {
+                    return error("Invalid duration '" + parts[i] + "', expected e.g. 30s, 10m, 2h or 1d");
+                }
+            } else if ("--refresh".equals(parts[i])) {
+                refresh = true;
+            } else if (VARIABLE.matcher(parts[i]).matches()) {
+                variables.add(parts[i]);
+            } else {
+                return error("Usage: " + CACHE + " " + USAGE);
+            }
+        }
+        MagicCommandFunctionality timeCell = findTimeCellMagic();
+        if (timeCell == null) {
+            return error(CACHE + " needs the " + TIME_CELL + " cell magic, which this kernel doesn't have");
+        }
+
+        CellCache cache = kernel.getCellCache();
+        Binding binding = kernel.getScriptBinding();
+        Map<String, byte[]> inputs = new LinkedHashMap<>();
+        for (String name : variables) {
+            if (!binding.hasVariable(name)) {
+                return error("No variable '" + name + "' to key the cache on");
+            }
+            try {
+                inputs.put(name, cache.serializeInput(binding.getVariable(name)));
+            } catch (IOException e) {
+                return error("Variable '" + name + "' can't key the cache, it must be serializable and at most "
+                        + cache.getMaxEntryBytes() + " bytes: " + e.getMessage());
+            }
+        }
+        String key = CellCache.key(param.getCommandCodeBlock(), inputs);
+        IOPubPublisher publisher = new IOPubPublisher(kernel, param.getCode().getMessage());
+
+        if (!refresh) {
+            CellCache.Entry entry = cache.get(key);
+            if (entry != null) {
+                return replay(entry, publisher, cache);
+            }
+        }
+
+        CellCache.Recording recording = new CellCache.Recording(cache.getMaxEntryBytes());
+        kernel.setCacheRecording(recording);
+        MagicCommandOutcomeItem outcome;
+        try {
+            outcome = timeCell.execute(param);
+        } finally {
+            kernel.setCacheRecording(null);
+        }
+        if (outcome.getStatus() == MagicCommandOutcomeItem.Status.OK) {
+            store(cache, key, ttlMillis, recording, publisher);
+        }
+        return outcome;
+    }
+
+    private MagicCommandOutcomeItem replay(CellCache.Entry entry, IOPubPublisher publisher, CellCache cache) {
+        if (!entry.getStdout().isEmpty()) {
+            publisher.stream("stdout", entry.getStdout());
+        }
+        if (!entry.getStderr().isEmpty()) {
+            publisher.stream("stderr", entry.getStderr());
+        }
+        if (entry.getDisplay() != null) {
+            publisher.displayData(new LinkedHashMap<>(entry.getDisplay()), new LinkedHashMap<>(), Collections.emptyList());
+        }
+        String note = "";
+        if (entry.hasResult()) {
+            try {
+                kernel.recordResult(entry.getResult(kernel.getScriptClassLoader()));
+            } catch (IOException | ClassNotFoundException e) {
+                logger.debug("Unable to restore the cached result in kernel '{}'", kernel.getKernelId(), e);
+                note = ", its value can't be restored in this kernel";
+            }
+        }
+        return ok("Cache hit: result of " + Instant.ofEpochMilli(entry.getCreatedMillis()) + note + " " + stats(cache));
+    }
+
+    private void store(CellCache cache, String key, long ttlMillis, CellCache.Recording recording, IOPubPublisher publisher) {
+        String report;
+        if (recording.isFailed() || !recording.isCompleted()) {
+            report = "Cache miss: the cell failed or returned a reactive result, not cached";
+        } else if (recording.isOverflowed()) {
+            report = "Cache miss: the output is over " + cache.getMaxEntryBytes() + " bytes, not cached";
+        } else {
+            Object result = recording.getResult();
+            byte[] value = null;
+            if (result != null) {
+                try {
+                    value = BindingCheckpoint.serialize(result, cache.getMaxEntryBytes());
+                } catch (IOException e) {
+                    logger.debug("Result of kernel '{}' is not cached, only its display", kernel.getKernelId(), e);
+                }
+            }
+            try {
+                CellCache.Entry entry = new CellCache.Entry(ttlMillis, recording.getStdout(), recording.getStderr(), display(result), value);
+                report = cache.put(key, entry)
+                        ? "Cache miss: stored" + (result != null && value == null ? " the output, the result is not serializable" : "")
+                        : "Cache miss: the entry is over " + cache.getMaxEntryBytes() + " bytes, not cached";
+            } catch (IOException e) {
+                logger.warn("Unable to store a cached cell of kernel '{}'", kernel.getKernelId(), e);
+                report = "Cache miss: unable to store the entry: " + e.getMessage();
+            }
+        }
+        publisher.stream("stdout", report + " " + stats(cache) + "\n");
+    }
+
+    /**
+     * @return The result as displayed, by MIME type, or null if there is none
+     */
+    private static Map<String, String> display(Object result) {
+        if (result == null) {
+            return null;
+        }
+        Map<String, String> data = new LinkedHashMap<>();
+        if (result instanceof MIMEContainer) {
+            MIMEContainer mime = (MIMEContainer) result;
+            data.put(mime.getMimeType().asString(), String.valueOf(mime.getData()));
+        } else {
+            data.put("text/plain", String.valueOf(result));
+        }
+        return data;
+    }
+
+    private static String stats(CellCache cache) {
+        Map<String, Object> stats = cache.stats();
+        return "(" + stats.get("hits") + " hits, " + stats.get("misses") + " misses, "
+                + stats.get("entries") + " entries, " + stats.get("bytes") + " bytes)";
+    }
+
+    /**
+     * @param text A duration such as {@code 500ms}, {@code 30s}, {@code 10m},
+     * {@code 2h} or {@code 1d}; a bare number is in seconds
+     * @return The duration in milliseconds, or -1 if it's not one
+     */
+    static long parseDuration(String text) {
+        Matcher matcher = DURATION.matcher(text.trim());
+        if (!matcher.matches()) {
+            return -1;
+        }
+        long amount;
+        try {
+            amount = Long.parseLong(matcher.group(1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+        String unit = matcher.group(2) != null ? matcher.group(2) : "s";
+        switch (unit) {
+            case "ms":
+                return amount;
+            case "m":
+                return TimeUnit.MINUTES.toMillis(amount);
+            case "h":
+                return TimeUnit.HOURS.toMillis(amount);
+            case "d":
+                return TimeUnit.DAYS.toMillis(amount);
+            default:
+                return TimeUnit.SECONDS.toMillis(amount);
+        }
+    }
+
+    private MagicCommandFunctionality findTimeCellMagic() {
+        for (MagicCommandType type : kernel.getMagicCommandTypes()) {
+            if (TIME_CELL.equals(type.getCommand())) {
+                return type.getMagicCommandFunctionality();
+            }
+        }
+        return null;
+    }
+
+    private static MagicCommandOutcomeItem ok(String text) {
+        return new MagicCommandOutput(MagicCommandOutcomeItem.Status.OK, text);
+    }
+
+    private static MagicCommandOutcomeItem error(String text) {
+        return new MagicCommandOutput(MagicCommandOutcomeItem.Status.ERROR, text);
+    }
+}
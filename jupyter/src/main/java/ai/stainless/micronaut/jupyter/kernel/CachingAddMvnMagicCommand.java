@@ -0,0 +1,99 @@
+package ai.stainless.micronaut.jupyter.kernel;
+
+import com.twosigma.beakerx.kernel.magic.command.MagicCommandExecutionParam;
+import com.twosigma.beakerx.kernel.magic.command.MagicCommandFunctionality;
+import com.twosigma.beakerx.kernel.magic.command.outcome.MagicCommandOutcomeItem;
+import com.twosigma.beakerx.kernel.magic.command.outcome.MagicCommandOutput;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Replaces BeakerX's {@code %classpath add mvn} line magic, looking the
+ * coordinates up in the server's {@link MavenResolutionCache} before
+ * resolving them with the original magic, and caching what it resolved.
+ * <p>
+ * Commands the cache doesn't handle (several artifacts, snapshots, cell
+ * mode) are passed to the original magic unchanged.
+ */
+public class CachingAddMvnMagicCommand implements MagicCommandFunctionality {
+
+    private static final Logger logger = LoggerFactory.getLogger(CachingAddMvnMagicCommand.class);
+
+    public static final String ADD_MVN = "%classpath add mvn";
+
+    private final MicronautEvaluator evaluator;
+    private final MavenResolutionCache cache;
+    private final MagicCommandFunctionality delegate;
+
+    public CachingAddMvnMagicCommand(MicronautEvaluator evaluator, MavenResolutionCache cache, MagicCommandFunctionality delegate) {
+        this.evaluator = evaluator;
+        this.cache = cache;
+        this.delegate = delegate;
+    }
+
+    @Override
+    public String getMagicCommandName() {
+        return delegate.getMagicCommandName();
+    }
+
+    public boolean matchCommand(String command) {
+        return command.trim().startsWith(ADD_MVN);
+    }
+
+    @Override
+    public MagicCommandOutcomeItem execute(MagicCommandExecutionParam param) {
+        String command = param.getCommand().trim();
+        String key = command.startsWith(ADD_MVN) && isBlank(param.getCommandCodeBlock())
+                ? MavenResolutionCache.key(command.substring(ADD_MVN.length()))
+                : null;
+        if (key == null) {
+            return delegate.execute(param);
+        }
+
+        synchronized (cache.resolutionLock(key)) {
+            List<Path> cached = cache.get(key);
+            if (cached != null) {
+                List<Path> added = evaluator.addResolvedJars(cached);
+                logger.debug("Kernel '{}' added {} from the resolution cache", evaluator.getKernel().getKernelId(), key);
+                return new MagicCommandOutput(MagicCommandOutcomeItem.Status.OK,
+                        "Added " + added.size() + " jar(s) of " + key + " from the resolution cache");
+            }
+
+            if (cache.isOffline()) {
+                Path jar = cache.findInLocalRepository(key);
+                if (jar == null) {
+                    return new MagicCommandOutput(MagicCommandOutcomeItem.Status.ERROR,
+                            key + " was never resolved and is not in the local Maven repository, and the kernel is offline");
+                }
+                evaluator.addResolvedJars(Collections.singletonList(jar));
+                return new MagicCommandOutput(MagicCommandOutcomeItem.Status.OK,
+                        "Added " + jar.getFileName() + " from the local Maven repository; its dependencies were not resolved, as the kernel is offline");
+            }
+
+            // every jar resolved for the coordinates, including those already
+            // on the classpath, which are not added again
+            List<Path> resolved = Collections.synchronizedList(new ArrayList<>());
+            MagicCommandOutcomeItem[] outcome = new MagicCommandOutcomeItem[1];
+            evaluator.captureJars(() -> outcome[0] = delegate.execute(param), resolved);
+            if (outcome[0] != null && outcome[0].getStatus() == MagicCommandOutcomeItem.Status.OK && !resolved.isEmpty()) {
+                Set<Path> jars;
+                synchronized (resolved) {
+                    jars = new LinkedHashSet<>(resolved);
+                }
+                cache.put(key, new ArrayList<>(jars));
+            }
+            return outcome[0];
+        }
+    }
+
+    private static boolean isBlank(String text) {
+        return text == null || text.trim().isEmpty();
+    }
+}
@@ -0,0 +1,419 @@
+package ai.stainless.micronaut.jupyter.kernel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * The results and output of {@code %%cache} cells, shared by every kernel of
+ * the server and kept on disk, so that they survive restarts.
+ * <p>
+ * An entry is found by a hash of the cell's source and the values of the
+ * variables named as its inputs. Entries are kept in a file each, and the
+ * least recently used are deleted once the files exceed the size limit.
+ * Expired entries are deleted when looked up.
+ * <p>
+ * The directory is kept private to the server's user, see
+ * {@link PrivateDirectory}, and entries are read allowing only the classes an
+ * entry is made of. The cell's result is deserialized separately, with the
+ * default classes of {@link BindingCheckpoint} and the kernel's own.
+ */
+public class CellCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(CellCache.class);
+
+    private static final String SUFFIX = ".cell";
+
+    /** The classes of an entry, its result is kept as bytes */
+    private static final ObjectInputFilter ENTRY_CLASSES = ObjectInputFilter.Config.createFilter(
+            Entry.class.getName() + ";java.lang.String;java.util.HashMap;java.util.LinkedHashMap;maxdepth=8;!*");
+
+    private final Path directory;
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    /** Entry sizes by key, in access order */
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param directory Where the entries are kept
+     * @param maxBytes The largest total size of the entries
+     * @param maxEntryBytes The largest size of a single entry, larger cells aren't cached
+     */
+    public CellCache(Path directory, long maxBytes, long maxEntryBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = Math.min(maxEntryBytes, maxBytes);
+        load();
+    }
+
+    /**
+     * @param code The source of the cell
+     * @param inputs The serialized values of the cell's input variables, by name
+     * @return The key of the cell's entry
+     */
+    public static String key(String code, Map<String, byte[]> inputs) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(code.trim().getBytes(StandardCharsets.UTF_8));
+            inputs.forEach((name, value) -> {
+                digest.update((byte) 0);
+                digest.update(name.getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+                digest.update(value);
+            });
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param value The value of an input variable
+     * @return The value serialized, as hashed into the key
+     * @throws IOException If the value is not serializable, or larger than an entry may be
+     */
+    public byte[] serializeInput(Object value) throws IOException {
+        return BindingCheckpoint.serialize(value, maxEntryBytes);
+    }
+
+    /**
+     * Look up an entry, counting a hit or a miss.
+     *
+     * @return The entry, or null if there is none or it expired
+     */
+    public Entry get(String key) {
+        synchronized (this) {
+            // get rather than containsKey, to move the entry to the most recently used end
+            if (entries.get(key) == null) {
+                misses++;
+                return null;
+            }
+        }
+        Path file = fileOf(key);
+        Entry entry;
+        try (ObjectInputStream in = new ObjectInputStream(Files.newInputStream(file))) {
+            in.setObjectInputFilter(CellCache::checkEntryClass);
+            entry = (Entry) in.readObject();
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            logger.warn("Unable to read cached cell {}, dropping it", file, e);
+            remove(key);
+            return miss();
+        }
+        if (entry.isExpired()) {
+            remove(key);
+            return miss();
+        }
+        try {
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            logger.debug("Unable to touch cached cell {}", file, e);
+        }
+        synchronized (this) {
+            hits++;
+        }
+        return entry;
+    }
+
+    /**
+     * Store an entry, evicting the least recently used ones if the cache
+     * grows over its size limit.
+     *
+     * @return false if the entry is larger than an entry may be, and was not stored
+     */
+    public boolean put(String key, Entry entry) throws IOException {
+        PrivateDirectory.create(directory);
+        Path file = fileOf(key);
+        Path temp = Files.createTempFile(directory, key, ".tmp");
+        try {
+            try (ObjectOutputStream out = new ObjectOutputStream(Files.newOutputStream(temp))) {
+                out.writeObject(entry);
+            }
+            long size = Files.size(temp);
+            if (size > maxEntryBytes) {
+                return false;
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            List<String> evicted = new ArrayList<>();
+            synchronized (this) {
+                Long previous = entries.put(key, size);
+                totalBytes += size - (previous != null ? previous : 0);
+                Iterator<Map.Entry<String, Long>> eldest = entries.entrySet().iterator();
+                while (totalBytes > maxBytes && eldest.hasNext()) {
+                    Map.Entry<String, Long> next = eldest.next();
+                    if (next.getKey().equals(key)) {
+                        continue;
+                    }
+                    totalBytes -= next.getValue();
+                    evicted.add(next.getKey());
+                    eldest.remove();
+                    evictions++;
+                }
+            }
+            for (String evictedKey : evicted) {
+                Files.deleteIfExists(fileOf(evictedKey));
+            }
+            return true;
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Delete every entry.
+     */
+    public void clear() {
+        List<String> keys;
+        synchronized (this) {
+            keys = new ArrayList<>(entries.keySet());
+        }
+        keys.forEach(this::remove);
+    }
+
+    /**
+     * @return Entries, their size, and the hits, misses and evictions since the server started
+     */
+    public synchronized Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("entries", entries.size());
+        stats.put("bytes", totalBytes);
+        stats.put("maxBytes", maxBytes);
+        stats.put("hits", hits);
+        stats.put("misses", misses);
+        stats.put("evictions", evictions);
+        return stats;
+    }
+
+    public long getMaxEntryBytes() {
+        return maxEntryBytes;
+    }
+
+    private synchronized Entry miss() {
+        misses++;
+        return null;
+    }
+
+    private void remove(String key) {
+        synchronized (this) {
+            Long size = entries.remove(key);
+            if (size != null) {
+                totalBytes -= size;
+            }
+        }
+        try {
+            Files.deleteIfExists(fileOf(key));
+        } catch (IOException e) {
+            logger.warn("Unable to delete cached cell {}", fileOf(key), e);
+        }
+    }
+
+    private static ObjectInputFilter.Status checkEntryClass(ObjectInputFilter.FilterInfo info) {
+        Class<?> type = info.serialClass();
+        if (type != null && type.isArray() && type.getComponentType().isPrimitive()) {
+            // the result and nothing else
+            return type == byte[].class ? ObjectInputFilter.Status.ALLOWED : ObjectInputFilter.Status.REJECTED;
+        }
+        ObjectInputFilter.Status status = ENTRY_CLASSES.checkInput(info);
+        return status == ObjectInputFilter.Status.REJECTED ? status : ObjectInputFilter.Status.ALLOWED;
+    }
+
+    private Path fileOf(String key) {
+        return directory.resolve(key + SUFFIX);
+    }
+
+    /**
+     * Index the entries kept by a previous run, least recently used first.
+     */
+    private void load() {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        try {
+            PrivateDirectory.create(directory);
+        } catch (IOException e) {
+            logger.warn("Not using the entries of the cell cache {}: {}", directory, e.getMessage());
+            return;
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            files.filter(file -> file.getFileName().toString().endsWith(SUFFIX))
+                    .sorted(Comparator.comparing(CellCache::lastModified))
+                    .forEach(file -> {
+                        String name = file.getFileName().toString();
+                        try {
+                            long size = Files.size(file);
+                            entries.put(name.substring(0, name.length() - SUFFIX.length()), size);
+                            totalBytes += size;
+                        } catch (IOException e) {
+                            logger.debug("Unable to index cached cell {}", file, e);
+                        }
+                    });
+        } catch (IOException e) {
+            logger.warn("Unable to read the cell cache {}", directory, e);
+        }
+    }
+
+    private static FileTime lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    /**
+     * What a cell printed and returned.
+     */
+    public static class Entry implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final long createdMillis;
+        private final long expiresMillis;
+        private final String stdout;
+        private final String stderr;
+        private final LinkedHashMap<String, String> display;
+        private final byte[] result;
+
+        /**
+         * @param ttlMillis How long the entry is used, or 0 to keep it until evicted
+         * @param stdout What the cell printed to standard out
+         * @param stderr What the cell printed to standard error
+         * @param display The result as displayed, by MIME type, or null if the cell returned nothing
+         * @param result The result serialized, or null if it returned nothing or it is not serializable
+         */
+        public Entry(long ttlMillis, String stdout, String stderr, Map<String, String> display, byte[] result) {
+            this.createdMillis = System.currentTimeMillis();
+            this.expiresMillis = ttlMillis > 0 ? createdMillis + ttlMillis : 0;
+            this.stdout = stdout;
+            this.stderr = stderr;
+            this.display = display != null ? new LinkedHashMap<>(display) : null;
+            this.result = result;
+        }
+
+        public long getCreatedMillis() {
+            return createdMillis;
+        }
+
+        public boolean isExpired() {
+            return expiresMillis > 0 && System.currentTimeMillis() >= expiresMillis;
+        }
+
+        public String getStdout() {
+            return stdout;
+        }
+
+        public String getStderr() {
+            return stderr;
+        }
+
+        public Map<String, String> getDisplay() {
+            return display;
+        }
+
+        public boolean hasResult() {
+            return result != null;
+        }
+
+        /**
+         * @param classLoader The loader of the result's classes, e.g. the kernel's
+         */
+        public Object getResult(ClassLoader classLoader) throws IOException, ClassNotFoundException {
+            return result != null ? BindingCheckpoint.deserialize(result, classLoader) : null;
+        }
+    }
+
+    /**
+     * Collects what a cell prints and returns while it runs, to store it as
+     * an entry. Output over the entry size limit makes the cell not cacheable.
+     */
+    public static class Recording {
+
+        private final long maxBytes;
+        private final StringBuilder stdout = new StringBuilder();
+        private final StringBuilder stderr = new StringBuilder();
+        private volatile Object result;
+        private volatile boolean completed;
+        private volatile boolean failed;
+        private volatile boolean overflowed;
+
+        public Recording(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        public synchronized void write(String text, boolean isOut) {
+            if (overflowed) {
+                return;
+            }
+            if (stdout.length() + stderr.length() + text.length() > maxBytes) {
+                overflowed = true;
+                return;
+            }
+            (isOut ? stdout : stderr).append(text);
+        }
+
+        public synchronized String getStdout() {
+            return stdout.toString();
+        }
+
+        public synchronized String getStderr() {
+            return stderr.toString();
+        }
+
+        public Object getResult() {
+            return result;
+        }
+
+        public void setResult(Object result) {
+            this.result = result;
+            this.completed = true;
+        }
+
+        /**
+         * @return true once the cell returned, with or without a result
+         */
+        public boolean isCompleted() {
+            return completed;
+        }
+
+        /**
+         * Mark the cell as failed, failed cells are not cached.
+         */
+        public void fail() {
+            failed = true;
+        }
+
+        public boolean isFailed() {
+            return failed;
+        }
+
+        public boolean isOverflowed() {
+            return overflowed;
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package ai.stainless.micronaut.jupyter.kernel;
+
+import io.micronaut.core.propagation.PropagatedContext;
+import io.micronaut.core.propagation.ThreadPropagatedContextElement;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The execution context of a single cell: which kernel it belongs to and
+ * where its standard streams go.
+ * <p>
+ * The context is bound to the cell thread and found with an O(1) thread local
+ * lookup. It follows the work of the cell to other threads in three ways:
+ * <ul>
+ *     <li>threads started directly by cell code inherit it,</li>
+ *     <li>Micronaut propagates it through {@link PropagatedContext}, e.g. onto
+ *     event loop threads serving an HTTP client call made by the cell,</li>
+ *     <li>{@link #wrap(Runnable)}, {@link #wrap(Callable)} and
+ *     {@link #propagating(Executor)} carry it onto any other executor.</li>
+ * </ul>
+ * Threads created by thread factories (JDK pools, the common fork-join pool,
+ * Netty, ...) never inherit a context, since they outlive the cell and do
+ * work for every kernel and for the application. Their tasks can't be told
+ * apart, so output of tasks that weren't wrapped goes to the server's own
+ * streams; the kernel's parallel helpers wrap their tasks. Once the owning
+ * kernel is closed, its contexts stop routing output.
+ */
+public class CellContext implements ThreadPropagatedContextElement<CellContext> {
+
+    private static final int MAX_CREATION_FRAMES = 16;
+
+    private static final InheritableThreadLocal<CellContext> CURRENT = new InheritableThreadLocal<CellContext>() {
+        @Override
+        protected CellContext childValue(CellContext parentValue) {
+            return parentValue != null && !isCreatedByThreadFactory() ? parentValue : null;
+        }
+    };
+
+    private final String kernelId;
+    private final StandardStreamHandler.BeakerOutputHandlers handlers;
+    private final AtomicBoolean kernelOpen;
+    private volatile OutputLimiter outputLimiter;
+    private volatile OutputLimiter.Cell outputBudget;
+    private volatile IOPubPublisher publisher;
+    private volatile CellCache.Recording recording;
+
+    /**
+     * @param kernelId The ID of the kernel running the cell, used for logging
+     * @param handlers The cell's output and input handlers
+     * @param kernelOpen Shared by all contexts of a kernel, set to false when the kernel is closed
+     */
+    public CellContext(String kernelId, StandardStreamHandler.BeakerOutputHandlers handlers, AtomicBoolean kernelOpen) {
+        this.kernelId = kernelId;
+        this.handlers = handlers;
+        this.kernelOpen = kernelOpen;
+    }
+
+    /**
+     * @return The open context the current thread is working on behalf of, or null
+     */
+    public static CellContext current() {
+        CellContext context = CURRENT.get();
+        return context != null && context.isOpen() ? context : null;
+    }
+
+    /**
+     * Bind the given context to the current thread.
+     *
+     * @return The previously bound context, to be passed to {@link #restore(CellContext)}
+     */
+    public static CellContext bind(CellContext context) {
+        CellContext previous = CURRENT.get();
+        CURRENT.set(context);
+        return previous;
+    }
+
+    /**
+     * Restore the context that was bound before {@link #bind(CellContext)}.
+     */
+    public static void restore(CellContext previous) {
+        if (previous == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(previous);
+        }
+    }
+
+    /**
+     * Bind this context to the current thread and to Micronaut's propagated
+     * context, so that it is restored on whichever thread continues the work.
+     *
+     * @return The scope to close once the cell is done
+     */
+    public PropagatedContext.Scope propagate() {
+        return PropagatedContext.getOrEmpty().plus(this).propagate();
+    }
+
+    /**
+     * @return A runnable that runs with the current thread's context
+     */
+    public static Runnable wrap(Runnable runnable) {
+        CellContext context = current();
+        if (context == null) {
+            return runnable;
+        }
+        return () -> {
+            CellContext previous = bind(context);
+            try {
+                runnable.run();
+            } finally {
+                restore(previous);
+            }
+        };
+    }
+
+    /**
+     * @return A callable that runs with the current thread's context
+     */
+    public static <T> Callable<T> wrap(Callable<T> callable) {
+        CellContext context = current();
+        if (context == null) {
+            return callable;
+        }
+        return () -> {
+            CellContext previous = bind(context);
+            try {
+                return callable.call();
+            } finally {
+                restore(previous);
+            }
+        };
+    }
+
+    /**
+     * @return An executor that runs every task with the context of the thread that submitted it
+     */
+    public static Executor propagating(Executor executor) {
+        return command -> executor.execute(wrap(command));
+    }
+
+    @Override
+    public CellContext updateThreadContext() {
+        return bind(this);
+    }
+
+    @Override
+    public void restoreThreadContext(CellContext oldState) {
+        restore(oldState);
+    }
+
+    public String getKernelId() {
+        return kernelId;
+    }
+
+    public StandardStreamHandler.BeakerOutputHandlers getHandlers() {
+        return handlers;
+    }
+
+    /**
+     * @return The limiter output of this cell goes through, or null for no limits
+     */
+    public OutputLimiter getOutputLimiter() {
+        return outputLimiter;
+    }
+
+    /**
+     * @return The cell's own output budget, spent by every thread writing to the cell
+     */
+    public OutputLimiter.Cell getOutputBudget() {
+        return outputBudget;
+    }
+
+    /**
+     * @param outputLimiter The kernel's limiter
+     * @param outputBudget The budget of this cell, from {@link OutputLimiter#startCell()}
+     */
+    public void setOutputLimiter(OutputLimiter outputLimiter, OutputLimiter.Cell outputBudget) {
+        this.outputLimiter = outputLimiter;
+        this.outputBudget = outputBudget;
+    }
+
+    /**
+     * @return The publisher of display messages parented to this cell, or null
+     */
+    public IOPubPublisher getPublisher() {
+        return publisher;
+    }
+
+    public void setPublisher(IOPubPublisher publisher) {
+        this.publisher = publisher;
+    }
+
+    /**
+     * @return The recording of a {@code %%cache} cell the output is also written to, or null
+     */
+    public CellCache.Recording getRecording() {
+        return recording;
+    }
+
+    public void setRecording(CellCache.Recording recording) {
+        this.recording = recording;
+    }
+
+    public boolean isOpen() {
+        return kernelOpen.get();
+    }
+
+    /**
+     * Walk the frames that are creating a new thread, looking for a
+     * {@link ThreadFactory}. Only called when a thread is created while a
+     * context is bound.
+     */
+    private static boolean isCreatedByThreadFactory() {
+        return StackWalker.getInstance(StackWalker.Option.RETAIN_CLASS_REFERENCE).walk(frames -> frames
+                .dropWhile(frame -> frame.getDeclaringClass() != Thread.class)
+                .dropWhile(frame -> frame.getDeclaringClass() == Thread.class)
+                .limit(MAX_CREATION_FRAMES)
+                .anyMatch(frame -> ThreadFactory.class.isAssignableFrom(frame.getDeclaringClass()) ||
+                        frame.getClassName().startsWith("java.util.concurrent.")));
+    }
+
+    @Override
+    public String toString() {
+        return "CellContext{kernelId=" + kernelId + ", open=" + isOpen() + "}";
+    }
+}
@@ -0,0 +1,279 @@
+package ai.stainless.micronaut.jupyter.kernel;
+
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedClass;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedMethod;
+import jdk.jfr.consumer.RecordedStackTrace;
+import jdk.jfr.consumer.RecordedThread;
+import jdk.jfr.consumer.RecordedThreadGroup;
+import jdk.jfr.consumer.RecordingFile;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongFunction;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * A JDK Flight Recorder recording of a cell, and the summary of it shown in
+ * the notebook: the hottest methods, the allocation sites, contended locks and
+ * GC pauses.
+ * <p>
+ * Flight Recorder samples the whole JVM. Only the events of the cell's
+ * threads are summarized, as told by a filter on the recorded threads, and
+ * the samples of other threads are counted apart. GC pauses affect the whole
+ * JVM and are always summarized.
+ */
+public class CellProfile {
+
+    private static final String EXECUTION_SAMPLE = "jdk.ExecutionSample";
+    private static final String ALLOCATION_SAMPLE = "jdk.ObjectAllocationSample";
+    private static final String MONITOR_ENTER = "jdk.JavaMonitorEnter";
+    private static final String GARBAGE_COLLECTION = "jdk.GarbageCollection";
+
+    private final Recording recording;
+    private final int top;
+    private final Predicate<RecordedThread> cellThreads;
+
+    private long samples;
+    private long otherSamples;
+    private final Map<String, Long> hotMethods = new HashMap<>();
+    private final Map<String, Long> threads = new HashMap<>();
+    private final Map<String, Long> allocations = new HashMap<>();
+    private final Map<String, Long> contentionNanos = new HashMap<>();
+    private long collections;
+    private long pauseNanos;
+    private long longestPauseNanos;
+    private Path file;
+
+    /**
+     * @param samplingPeriod How often running threads are sampled
+     * @param top The number of entries listed per table
+     */
+    public CellProfile(Duration samplingPeriod, int top) throws IOException, ParseException {
+        this(samplingPeriod, top, thread -> true);
+    }
+
+    /**
+     * @param samplingPeriod How often running threads are sampled
+     * @param top The number of entries listed per table
+     * @param cellThreads Whether a recorded thread worked for the cell, applied once the cell is done
+     */
+    public CellProfile(Duration samplingPeriod, int top, Predicate<RecordedThread> cellThreads) throws IOException, ParseException {
+        this.recording = new Recording(Configuration.getConfiguration("profile"));
+        this.recording.enable(EXECUTION_SAMPLE).withPeriod(samplingPeriod);
+        this.recording.enable(MONITOR_ENTER).withThreshold(Duration.ofMillis(1));
+        this.top = top;
+        this.cellThreads = cellThreads;
+    }
+
+    /**
+     * The threads of a kernel's cell: those of the cell thread's group, which
+     * the threads a cell starts join, and those of the kernel's parallel pools.
+     *
+     * @param cellThreadGroup The thread group of the kernel's cell thread
+     */
+    public static Predicate<RecordedThread> threadsOf(String kernelId, ThreadGroup cellThreadGroup) {
+        String group = cellThreadGroup != null ? cellThreadGroup.getName() : null;
+        return thread -> {
+            if (thread == null) {
+                return false;
+            }
+            String name = thread.getJavaName();
+            if (name != null && (name.startsWith(KernelParallelism.POOL_THREAD_PREFIX + kernelId + "-")
+                    || name.startsWith(KernelParallelism.FAN_OUT_THREAD_PREFIX + kernelId + "-"))) {
+                return true;
+            }
+            RecordedThreadGroup threadGroup = thread.getThreadGroup();
+            return group != null && threadGroup != null && group.equals(threadGroup.getName());
+        };
+    }
+
+    public void start() {
+        recording.start();
+    }
+
+    /**
+     * Stop recording, write the recording to a file in the given folder and
+     * summarize it.
+     *
+     * @return The recording file
+     */
+    public Path stop(Path directory, String name) throws IOException {
+        recording.stop();
+        try {
+            Files.createDirectories(directory);
+            file = directory.resolve(name + ".jfr");
+            recording.dump(file);
+        } finally {
+            recording.close();
+        }
+        for (RecordedEvent event : RecordingFile.readAllEvents(file)) {
+            add(event);
+        }
+        return file;
+    }
+
+    void add(RecordedEvent event) {
+        switch (event.getEventType().getName()) {
+            case EXECUTION_SAMPLE:
+                RecordedThread thread = event.getThread("sampledThread");
+                if (!cellThreads.test(thread)) {
+                    otherSamples++;
+                    break;
+                }
+                samples++;
+                hotMethods.merge(topFrame(event.getStackTrace()), 1L, Long::sum);
+                threads.merge(thread != null && thread.getJavaName() != null ? thread.getJavaName() : "(unknown)", 1L, Long::sum);
+                break;
+            case ALLOCATION_SAMPLE:
+                if (!cellThreads.test(event.getThread())) {
+                    break;
+                }
+                RecordedClass type = event.getClass("objectClass");
+                String site = (type != null ? type.getName() : "?") + " at " + topFrame(event.getStackTrace());
+                allocations.merge(site, event.getLong("weight"), Long::sum);
+                break;
+            case MONITOR_ENTER:
+                if (!cellThreads.test(event.getThread())) {
+                    break;
+                }
+                RecordedClass monitor = event.getClass("monitorClass");
+                String lock = (monitor != null ? monitor.getName() : "?") + " at " + topFrame(event.getStackTrace());
+                contentionNanos.merge(lock, event.getDuration().toNanos(), Long::sum);
+                break;
+            case GARBAGE_COLLECTION:
+                collections++;
+                pauseNanos += event.getDuration("sumOfPauses").toNanos();
+                longestPauseNanos = Math.max(longestPauseNanos, event.getDuration("longestPause").toNanos());
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static String topFrame(RecordedStackTrace stackTrace) {
+        if (stackTrace == null || stackTrace.getFrames().isEmpty()) {
+            return "(no stack)";
+        }
+        RecordedFrame frame = stackTrace.getFrames().get(0);
+        RecordedMethod method = frame.getMethod();
+        String name = method.getType().getName() + "." + method.getName();
+        return frame.getLineNumber() > 0 ? name + ":" + frame.getLineNumber() : name;
+    }
+
+    public long getSamples() {
+        return samples;
+    }
+
+    /**
+     * @return The samples of threads that didn't work for the cell, left out of the summary
+     */
+    public long getOtherSamples() {
+        return otherSamples;
+    }
+
+    public long getCollections() {
+        return collections;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * @return The summary as an HTML fragment
+     */
+    public String toHtml() {
+        StringBuilder html = new StringBuilder("<div class=\"micronaut-profile\">");
+        html.append("<p><b>Hot methods</b> (").append(samples).append(" samples of the cell's threads, ")
+                .append(otherSamples).append(" of other threads left out)</p>");
+        table(html, "Method", "Samples", hotMethods, value -> value + " (" + percent(value, samples) + ")");
+        html.append("<p><b>Threads</b></p>");
+        table(html, "Thread", "Samples", threads, value -> value + " (" + percent(value, samples) + ")");
+        html.append("<p><b>Allocation sites</b> (sampled)</p>");
+        table(html, "Class and site", "Bytes", allocations, CellProfile::bytes);
+        html.append("<p><b>Lock contention</b></p>");
+        table(html, "Monitor and site", "Blocked", contentionNanos, CellProfile::millis);
+        html.append("<p><b>GC</b> (whole JVM): ").append(collections).append(" collections, ")
+                .append(millis(pauseNanos)).append(" paused, longest pause ")
+                .append(millis(longestPauseNanos)).append("</p>");
+        if (file != null) {
+            html.append("<p>Recording: <code>").append(escape(file.toString())).append("</code></p>");
+        }
+        return html.append("</div>").toString();
+    }
+
+    /**
+     * @return The summary as text, for frontends that don't render HTML
+     */
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        text.append("Hot methods (").append(samples).append(" samples of the cell's threads, ")
+                .append(otherSamples).append(" of other threads left out):\n");
+        sorted(hotMethods).forEach(entry -> text.append("  ").append(entry.getValue()).append("  ").append(entry.getKey()).append('\n'));
+        text.append("Allocation sites:\n");
+        sorted(allocations).forEach(entry -> text.append("  ").append(bytes(entry.getValue())).append("  ").append(entry.getKey()).append('\n'));
+        text.append("Lock contention:\n");
+        sorted(contentionNanos).forEach(entry -> text.append("  ").append(millis(entry.getValue())).append("  ").append(entry.getKey()).append('\n'));
+        text.append("GC (whole JVM): ").append(collections).append(" collections, ").append(millis(pauseNanos)).append(" paused\n");
+        if (file != null) {
+            text.append("Recording: ").append(file).append('\n');
+        }
+        return text.toString();
+    }
+
+    private void table(StringBuilder html, String keyHeader, String valueHeader, Map<String, Long> values,
+                       LongFunction<String> format) {
+        if (values.isEmpty()) {
+            html.append("<p><i>None recorded</i></p>");
+            return;
+        }
+        html.append("<table><tr><th style=\"text-align:left\">").append(keyHeader)
+                .append("</th><th>").append(valueHeader).append("</th></tr>");
+        for (Map.Entry<String, Long> entry : sorted(values)) {
+            html.append("<tr><td style=\"text-align:left\"><code>").append(escape(entry.getKey()))
+                    .append("</code></td><td>").append(format.apply(entry.getValue())).append("</td></tr>");
+        }
+        html.append("</table>");
+    }
+
+    private List<Map.Entry<String, Long>> sorted(Map<String, Long> values) {
+        return values.entrySet().stream()
+                .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+                .limit(top)
+                .collect(Collectors.toList());
+    }
+
+    private static String percent(long value, long total) {
+        return total > 0 ? String.format("%.1f%%", 100.0 * value / total) : "-";
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.1f ms", nanos / 1e6);
+    }
+
+    private static String bytes(long bytes) {
+        if (bytes >= 1 << 20) {
+            return String.format("%.1f MB", bytes / (double) (1 << 20));
+        }
+        if (bytes >= 1 << 10) {
+            return String.format("%.1f KB", bytes / (double) (1 << 10));
+        }
+        return bytes + " B";
+    }
+
+    static String escape(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+}
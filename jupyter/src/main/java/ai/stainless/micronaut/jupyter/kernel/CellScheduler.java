@@ -0,0 +1,403 @@
+package ai.stainless.micronaut.jupyter.kernel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Limits how many cells of all kernels run at once, and decides which
+ * waiting cell runs next when a slot frees up.
+ * <p>
+ * Interactive cells go before batch cells, and batch cells only ever take
+ * part of the slots, so that a notebook left running a long job doesn't
+ * hold up those being worked in. A batch cell waiting longer than the aging
+ * period is ordered as an interactive one. Within a class, the cell of the
+ * kernel that used the least slot time recently goes first, so that a
+ * kernel running heavy cells one after the other queues behind the others.
+ * <p>
+ * The number of slots is derived from the share of the processors
+ * notebooks may use, so that the application's own threads keep the rest.
+ * A slot is held while the cell runs, but given back while it waits for
+ * the user's input. Work a kernel runs on its parallel pool counts towards
+ * its slot time, so that it isn't a way around its share.
+ */
+public class CellScheduler {
+
+    public enum Priority {
+        INTERACTIVE, BATCH;
+
+        /**
+         * @throws IllegalArgumentException If the name is not a priority class
+         */
+        public static Priority parse(String name) {
+            try {
+                return valueOf(name.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown priority '" + name + "', expected interactive or batch");
+            }
+        }
+    }
+
+    /** Slot time used by a kernel counts half after this long */
+    private static final long USAGE_HALF_LIFE_NANOS = TimeUnit.SECONDS.toNanos(60);
+    private static final int WAIT_SAMPLES = 1024;
+
+    private final int slots;
+    private final int batchSlots;
+    private final long agingNanos;
+    private final Priority defaultPriority;
+    private final Map<String, Priority> priorities = new ConcurrentHashMap<>();
+    private final Map<String, Usage> usage = new ConcurrentHashMap<>();
+    private final List<Waiter> waiting = new ArrayList<>();
+    private final Map<Priority, WaitStats> waitStats = new EnumMap<>(Priority.class);
+    private volatile BiConsumer<Priority, Long> waitListener;
+    private int running;
+    private int runningBatch;
+    private long sequence;
+
+    /**
+     * @param slots Cells run at once
+     * @param batchSlots Batch cells run at once, at most {@code slots}
+     * @param agingMillis How long a batch cell waits before being ordered as an interactive one
+     * @param defaultPriority The class of kernels that weren't given one
+     */
+    public CellScheduler(int slots, int batchSlots, long agingMillis, Priority defaultPriority) {
+        if (slots < 1) {
+            throw new IllegalArgumentException("At least one slot is needed");
+        }
+        this.slots = slots;
+        this.batchSlots = Math.max(1, Math.min(batchSlots, slots));
+        this.agingNanos = TimeUnit.MILLISECONDS.toNanos(agingMillis);
+        this.defaultPriority = defaultPriority;
+        for (Priority priority : Priority.values()) {
+            waitStats.put(priority, new WaitStats());
+        }
+    }
+
+    /**
+     * @param cpuShare The share of the processors notebooks may use, between 0 and 1
+     * @return The number of slots using at most that share, and at least one
+     */
+    public static int slotsFor(double cpuShare) {
+        return Math.max(1, (int) Math.floor(cpuShare * Runtime.getRuntime().availableProcessors()));
+    }
+
+    public int getSlots() {
+        return slots;
+    }
+
+    public Priority getPriority(String kernelId) {
+        return priorities.getOrDefault(kernelId, defaultPriority);
+    }
+
+    public void setPriority(String kernelId, Priority priority) {
+        priorities.put(kernelId, priority);
+    }
+
+    /**
+     * @param waitListener Told how long, in nanoseconds, each cell of a class waited for a slot,
+     *        such as to publish it as a metric
+     */
+    public void setWaitListener(BiConsumer<Priority, Long> waitListener) {
+        this.waitListener = waitListener;
+    }
+
+    /**
+     * Count time a kernel used outside of its cells' slots, such as on its
+     * parallel pool, as slot time.
+     */
+    public void charge(String kernelId, long nanos) {
+        if (nanos <= 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        Usage kernelUsage = usage.computeIfAbsent(kernelId, id -> new Usage());
+        synchronized (kernelUsage) {
+            kernelUsage.add(nanos, now);
+        }
+    }
+
+    /**
+     * Forget a kernel that was shut down.
+     */
+    public void forget(String kernelId) {
+        priorities.remove(kernelId);
+        usage.remove(kernelId);
+    }
+
+    /**
+     * @return true if a cell of the kernel would have to wait for a slot
+     */
+    public synchronized boolean isSaturated(String kernelId) {
+        return !waiting.isEmpty() || running >= slots
+                || getPriority(kernelId) == Priority.BATCH && runningBatch >= batchSlots;
+    }
+
+    /**
+     * Wait for a slot to run a cell of the kernel.
+     *
+     * @throws InterruptedException If the cell was interrupted while waiting, in which case it holds no slot;
+     *         a cell stopped while waiting doesn't hold one either
+     */
+    public Slot acquire(String kernelId) throws InterruptedException {
+        return new Slot(await(kernelId));
+    }
+
+    private Waiter await(String kernelId) throws InterruptedException {
+        Waiter waiter;
+        synchronized (this) {
+            waiter = new Waiter(kernelId, getPriority(kernelId), System.nanoTime(), sequence++);
+            waiting.add(waiter);
+            dispatch();
+            boolean acquired = false;
+            try {
+                while (!waiter.granted) {
+                    wait();
+                }
+                acquired = true;
+            } finally {
+                // interrupted, or stopped while waiting: give back the slot or the place in the queue
+                if (!acquired) {
+                    if (waiter.granted) {
+                        free(waiter, System.nanoTime());
+                    } else {
+                        waiting.remove(waiter);
+                    }
+                }
+            }
+            waitStats.get(waiter.priority).add(waiter.grantedAt - waiter.queuedAt);
+        }
+        BiConsumer<Priority, Long> listener = waitListener;
+        if (listener != null) {
+            listener.accept(waiter.priority, waiter.grantedAt - waiter.queuedAt);
+        }
+        return waiter;
+    }
+
+    /**
+     * Grant free slots to the best waiting cells. Called with the lock held.
+     */
+    private void dispatch() {
+        long now = System.nanoTime();
+        boolean granted = false;
+        while (running < slots) {
+            Waiter next = waiting.stream()
+                    .filter(waiter -> waiter.priority != Priority.BATCH || runningBatch < batchSlots)
+                    .min(Comparator.<Waiter>comparingInt(waiter -> waiter.priority == Priority.BATCH && now - waiter.queuedAt < agingNanos ? 1 : 0)
+                            .thenComparingDouble(waiter -> usageOf(waiter.kernelId, now))
+                            .thenComparingLong(waiter -> waiter.sequence))
+                    .orElse(null);
+            if (next == null) {
+                break;
+            }
+            waiting.remove(next);
+            next.granted = true;
+            next.grantedAt = now;
+            running++;
+            if (next.priority == Priority.BATCH) {
+                runningBatch++;
+            }
+            granted = true;
+        }
+        if (granted) {
+            notifyAll();
+        }
+    }
+
+    private synchronized void release(Waiter waiter) {
+        free(waiter, System.nanoTime());
+    }
+
+    private void free(Waiter waiter, long now) {
+        running--;
+        if (waiter.priority == Priority.BATCH) {
+            runningBatch--;
+        }
+        Usage kernelUsage = usage.computeIfAbsent(waiter.kernelId, id -> new Usage());
+        synchronized (kernelUsage) {
+            kernelUsage.add(now - waiter.grantedAt, now);
+        }
+        dispatch();
+    }
+
+    private double usageOf(String kernelId, long now) {
+        Usage kernelUsage = usage.get(kernelId);
+        if (kernelUsage == null) {
+            return 0;
+        }
+        synchronized (kernelUsage) {
+            return kernelUsage.at(now);
+        }
+    }
+
+    /**
+     * @return Slots in use, cells waiting, and the time cells waited for a slot, by priority class
+     */
+    public synchronized Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("slots", slots);
+        stats.put("batchSlots", batchSlots);
+        stats.put("running", running);
+        stats.put("runningBatch", runningBatch);
+        stats.put("waiting", waiting.size());
+        Map<String, Object> queueWait = new LinkedHashMap<>();
+        waitStats.forEach((priority, wait) -> queueWait.put(priority.name().toLowerCase(Locale.ROOT), wait.toMap()));
+        stats.put("queueWaitMs", queueWait);
+        return stats;
+    }
+
+    /**
+     * A slot held by a running cell.
+     */
+    public class Slot implements AutoCloseable {
+
+        private Waiter waiter;
+        private final long waitNanos;
+        private boolean suspended;
+        private boolean released;
+
+        Slot(Waiter waiter) {
+            this.waiter = waiter;
+            this.waitNanos = waiter.grantedAt - waiter.queuedAt;
+        }
+
+        /**
+         * @return How long the cell waited for the slot when it started
+         */
+        public long getWaitMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(waitNanos);
+        }
+
+        /**
+         * Give the slot back while the cell waits for something other than
+         * the processor, such as the user's input.
+         */
+        public void suspend() {
+            synchronized (CellScheduler.this) {
+                if (released || suspended) {
+                    return;
+                }
+                suspended = true;
+                free(waiter, System.nanoTime());
+            }
+        }
+
+        /**
+         * Wait for a slot again after {@link #suspend()}.
+         *
+         * @throws InterruptedException If the cell was interrupted while waiting, in which case it holds no slot
+         */
+        public void resume() throws InterruptedException {
+            synchronized (CellScheduler.this) {
+                if (released || !suspended) {
+                    return;
+                }
+            }
+            Waiter resumed = await(waiter.kernelId);
+            synchronized (CellScheduler.this) {
+                waiter = resumed;
+                suspended = false;
+            }
+        }
+
+        @Override
+        public void close() {
+            synchronized (CellScheduler.this) {
+                if (released) {
+                    return;
+                }
+                released = true;
+                if (suspended) {
+                    return;
+                }
+            }
+            release(waiter);
+        }
+    }
+
+    private static class Waiter {
+
+        final String kernelId;
+        final Priority priority;
+        final long queuedAt;
+        final long sequence;
+        boolean granted;
+        long grantedAt;
+
+        Waiter(String kernelId, Priority priority, long queuedAt, long sequence) {
+            this.kernelId = kernelId;
+            this.priority = priority;
+            this.queuedAt = queuedAt;
+            this.sequence = sequence;
+        }
+    }
+
+    /**
+     * Slot time used by a kernel, decaying exponentially.
+     */
+    private static class Usage {
+
+        private double nanos;
+        private long updatedAt;
+
+        void add(long used, long now) {
+            nanos = at(now) + used;
+            updatedAt = now;
+        }
+
+        double at(long now) {
+            return nanos * Math.pow(0.5, (now - updatedAt) / (double) USAGE_HALF_LIFE_NANOS);
+        }
+    }
+
+    /**
+     * Counts and recent percentiles of the time cells waited for a slot.
+     */
+    private static class WaitStats {
+
+        private final long[] recent = new long[WAIT_SAMPLES];
+        private long count;
+        private long totalNanos;
+        private long maxNanos;
+
+        void add(long nanos) {
+            recent[(int) (count % WAIT_SAMPLES)] = nanos;
+            count++;
+            totalNanos += nanos;
+            maxNanos = Math.max(maxNanos, nanos);
+        }
+
+        Map<String, Object> toMap() {
+            long[] sorted = Arrays.copyOf(recent, (int) Math.min(count, WAIT_SAMPLES));
+            Arrays.sort(sorted);
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("count", count);
+            map.put("mean", count > 0 ? millis(totalNanos / count) : 0.0);
+            map.put("p50", millis(percentile(sorted, 50)));
+            map.put("p95", millis(percentile(sorted, 95)));
+            map.put("p99", millis(percentile(sorted, 99)));
+            map.put("max", millis(maxNanos));
+            return map;
+        }
+
+        private static long percentile(long[] sorted, double percentile) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+        }
+
+        private static double millis(long nanos) {
+            return Math.round(nanos / 1e4) / 100.0;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package ai.stainless.micronaut.jupyter.kernel;
+
+import com.twosigma.beakerx.kernel.magic.command.MagicCommandExecutionParam;
+import com.twosigma.beakerx.kernel.magic.command.MagicCommandFunctionality;
+import com.twosigma.beakerx.kernel.magic.command.outcome.MagicCommandOutcomeItem;
+import com.twosigma.beakerx.kernel.magic.command.outcome.MagicCommandOutput;
+
+/**
+ * The {@code %checkpoint} line magic:
+ * <ul>
+ *     <li>{@code %checkpoint} or {@code %checkpoint save} saves the binding variables,</li>
+ *     <li>{@code %checkpoint restore} restores them into this kernel,</li>
+ *     <li>{@code %checkpoint delete} deletes the snapshot.</li>
+ * </ul>
+ */
+public class CheckpointMagicCommand implements MagicCommandFunctionality {
+
+    public static final String CHECKPOINT = "%checkpoint";
+    public static final String USAGE = "[save|restore|delete]";
+
+    private final Micronaut kernel;
+
+    public CheckpointMagicCommand(Micronaut kernel) {
+        this.kernel = kernel;
+    }
+
+    @Override
+    public String getMagicCommandName() {
+        return CHECKPOINT;
+    }
+
+    public boolean matchCommand(String command) {
+        String[] parts = command.trim().split("\\s+");
+        return parts.length > 0 && CHECKPOINT.equals(parts[0]);
+    }
+
+    @Override
+    public MagicCommandOutcomeItem execute(MagicCommandExecutionParam param) {
+        String[] parts = param.getCommand().trim().split("\\s+");
+        String action = parts.length > 1 ? parts[1] : "save";
+        if (parts.length > 2) {
+            return error("Usage: " + CHECKPOINT + " " + USAGE);
+        }
+        try {
+            switch (action) {
+                case "save":
+                    return ok(kernel.saveCheckpoint().toString());
+                case "restore":
+                    if (!kernel.getCheckpoint().exists()) {
+                        return error("No checkpoint saved at " + kernel.getCheckpoint().getFile());
+                    }
+                    return ok(kernel.restoreCheckpoint().toString());
+                case "delete":
+                    kernel.getCheckpoint().delete();
+                    return ok("Deleted " + kernel.getCheckpoint().getFile());
+                default:
+                    return error("Usage: " + CHECKPOINT + " " + USAGE);
+            }
+        } catch (Exception e) {
+            return error("Checkpoint " + action + " failed: " + e.getMessage());
+        }
+    }
+
+    private static MagicCommandOutcomeItem ok(String text) {
+        return new MagicCommandOutput(MagicCommandOutcomeItem.Status.OK, text);
+    }
+
+    private static MagicCommandOutcomeItem error(String text) {
+        return new MagicCommandOutput(MagicCommandOutcomeItem.Status.ERROR, text);
+    }
+}
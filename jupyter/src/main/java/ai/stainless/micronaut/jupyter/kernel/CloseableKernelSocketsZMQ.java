@@ -30,7 +30,6 @@ import com.twosigma.beakerx.kernel.SocketCloseAction;
 import com.twosigma.beakerx.kernel.msg.JupyterMessages;
 import com.twosigma.beakerx.message.Header;
 import com.twosigma.beakerx.message.Message;
-import com.twosigma.beakerx.message.MessageSerializer;
 import com.twosigma.beakerx.security.HashedMessageAuthenticationCode;
 import com.twosigma.beakerx.socket.MessageParts;
 import org.slf4j.Logger;
@@ -41,7 +40,6 @@ import org.zeromq.ZMsg;
 
 import java.io.Serializable;
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
@@ -53,7 +51,6 @@ import java.util.concurrent.locks.ReentrantLock;
 import static com.twosigma.beakerx.kernel.msg.JupyterMessages.SHUTDOWN_REPLY;
 import static com.twosigma.beakerx.kernel.msg.JupyterMessages.SHUTDOWN_REQUEST;
 import static com.twosigma.beakerx.message.MessageSerializer.toJson;
-import static java.util.Arrays.asList;
 import static java.util.Collections.singletonList;
 
 public class CloseableKernelSocketsZMQ extends KernelSockets {
@@ -65,16 +62,21 @@ public class CloseableKernelSocketsZMQ extends KernelSockets {
     private KernelFunctionality kernel;
     private SocketCloseAction closeAction;
     private HashedMessageAuthenticationCode hmac;
+    private FrameSignatureVerifier signatureVerifier;
     private ZMQ.Socket hearbeatSocket;
     private ZMQ.Socket controlSocket;
     private ZMQ.Socket shellSocket;
     private ZMQ.Socket iopubSocket;
     private ZMQ.Socket stdinSocket;
+    private ZMQ.Socket wakeupReceiver;
+    private ZMQ.Socket wakeupSender;
+    private int wakeupIndex;
     private ZMQ.Poller sockets;
     private ZMQ.Context context;
     private ReentrantLock sendLock;
 
-    private boolean shutdownSystem = false;
+    private volatile boolean shutdownSystem = false;
+    private final Map<String, Integer> boundPorts = new LinkedHashMap<>();
 
     public CloseableKernelSocketsZMQ(KernelFunctionality kernel, Config configuration, SocketCloseAction closeAction) {
         logger.debug("Initializing CloseableKernelSocketsZMQ with config: transport={}, host={}", 
@@ -82,6 +84,7 @@ public class CloseableKernelSocketsZMQ extends KernelSockets {
         this.closeAction = closeAction;
         this.kernel = kernel;
         this.hmac = new HashedMessageAuthenticationCode(configuration.getKey());
+        this.signatureVerifier = new FrameSignatureVerifier(configuration.getKey());
         this.context = ZMQ.context(1);
         this.sendLock = new ReentrantLock();
         logger.debug("Created ZMQ context and locks, configuring sockets...");
@@ -90,39 +93,48 @@ public class CloseableKernelSocketsZMQ extends KernelSockets {
     }
 
     private void configureSockets(Config configuration) {
+        final String transport = configuration.getTransport();
+        ZmqEndpoint.checkTransport(transport);
         // Check for environment variable override for bind host
         String bindHost = System.getenv("JUPYTER_KERNEL_BIND_HOST");
         if (bindHost == null || bindHost.trim().isEmpty()) {
             bindHost = configuration.getHost();
         }
-        
-        final String connection = configuration.getTransport() + "://" + bindHost;
-        logger.debug("Configuring sockets with connection string: {} (bind host: {}, config host: {})", 
-                    connection, bindHost, configuration.getHost());
+        final String connection = bindHost;
+        logger.debug("Configuring {} sockets (bind host: {}, config host: {})",
+                    transport, bindHost, configuration.getHost());
         logger.debug("Socket ports - iopub: {}, heartbeat: {}, control: {}, stdin: {}, shell: {}",
                     configuration.getIopub(), configuration.getHeartbeat(), configuration.getControl(),
                     configuration.getStdin(), configuration.getShell());
 
-        iopubSocket = getNewSocket(ZMQ.PUB, configuration.getIopub(), connection, context);
-        logger.trace("Created iopub socket on port {}", configuration.getIopub());
+        iopubSocket = getNewSocket(ZMQ.PUB, "iopub_port", configuration.getIopub(), transport, connection, context);
+        logger.trace("Created iopub socket on port {}", boundPorts.get("iopub_port"));
         
-        hearbeatSocket = getNewSocket(ZMQ.ROUTER, configuration.getHeartbeat(), connection, context);
-        logger.trace("Created heartbeat socket on port {}", configuration.getHeartbeat());
+        hearbeatSocket = getNewSocket(ZMQ.ROUTER, "hb_port", configuration.getHeartbeat(), transport, connection, context);
+        logger.trace("Created heartbeat socket on port {}", boundPorts.get("hb_port"));
         
-        controlSocket = getNewSocket(ZMQ.ROUTER, configuration.getControl(), connection, context);
-        logger.trace("Created control socket on port {}", configuration.getControl());
+        controlSocket = getNewSocket(ZMQ.ROUTER, "control_port", configuration.getControl(), transport, connection, context);
+        logger.trace("Created control socket on port {}", boundPorts.get("control_port"));
         
-        stdinSocket = getNewSocket(ZMQ.ROUTER, configuration.getStdin(), connection, context);
-        logger.trace("Created stdin socket on port {}", configuration.getStdin());
+        stdinSocket = getNewSocket(ZMQ.ROUTER, "stdin_port", configuration.getStdin(), transport, connection, context);
+        logger.trace("Created stdin socket on port {}", boundPorts.get("stdin_port"));
         
-        shellSocket = getNewSocket(ZMQ.ROUTER, configuration.getShell(), connection, context);
-        logger.trace("Created shell socket on port {}", configuration.getShell());
+        shellSocket = getNewSocket(ZMQ.ROUTER, "shell_port", configuration.getShell(), transport, connection, context);
+        logger.trace("Created shell socket on port {}", boundPorts.get("shell_port"));
+
+        // lets shutdown() wake the message loop up instead of waiting for the next message
+        String wakeupAddress = "inproc://wakeup-" + System.identityHashCode(this);
+        wakeupReceiver = context.socket(ZMQ.PAIR);
+        wakeupReceiver.bind(wakeupAddress);
+        wakeupSender = context.socket(ZMQ.PAIR);
+        wakeupSender.connect(wakeupAddress);
 
-        sockets = new ZMQ.Poller(3);
+        sockets = new ZMQ.Poller(4);
         sockets.register(hearbeatSocket, ZMQ.Poller.POLLIN);
         sockets.register(shellSocket, ZMQ.Poller.POLLIN);
         sockets.register(controlSocket, ZMQ.Poller.POLLIN);
-        logger.debug("Registered {} sockets with poller", 3);
+        wakeupIndex = sockets.register(wakeupReceiver, ZMQ.Poller.POLLIN);
+        logger.debug("Registered {} sockets with poller", 4);
     }
 
     public void publish(List<Message> message) {
@@ -133,13 +145,32 @@ public class CloseableKernelSocketsZMQ extends KernelSockets {
     public void send(Message message) {
         logger.trace("Sending message to shell socket: type={}, session={}", 
                     message.getHeader().getType(), message.getHeader().getSession());
+        if (kernel instanceof Micronaut && message.getHeader().getTypeEnum() == JupyterMessages.EXECUTE_REPLY) {
+            ((Micronaut) kernel).addMemoryReport(message);
+        }
         sendMsg(this.shellSocket, singletonList(message));
     }
 
     public String sendStdIn(Message message) {
         logger.trace("Sending stdin message and waiting for response: type={}", message.getHeader().getType());
-        sendMsg(this.stdinSocket, singletonList(message));
-        String response = handleStdIn();
+        // the cell waits for the user, so it lets other cells have its slot meanwhile
+        CellScheduler.Slot slot = kernel instanceof Micronaut ? ((Micronaut) kernel).getCellSlot() : null;
+        if (slot != null) {
+            slot.suspend();
+        }
+        String response;
+        try {
+            sendMsg(this.stdinSocket, singletonList(message));
+            response = handleStdIn();
+        } finally {
+            if (slot != null) {
+                try {
+                    slot.resume();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
         logger.trace("Received stdin response: {}", response);
         return response;
     }
@@ -210,17 +241,17 @@ public class CloseableKernelSocketsZMQ extends KernelSockets {
             verifySignatures(expectedSig, header, parent, metadata, content);
             logger.trace("Message signatures verified successfully");
 
-            message = new Message(parse(header, Header.class));
+            // only the headers are needed to route the message, metadata and
+            // content are parsed when a handler first reads them
+            message = new LazyContentMessage(LazyContentMessage.parseHeader(header), metadata, content);
             if (uuid != null) {
                 message.getIdentities().add(uuid);
                 logger.trace("Added UUID to message identities");
             }
-            message.setParentHeader(parse(parent, Header.class));
-            message.setMetadata(parse(metadata, LinkedHashMap.class));
-            message.setContent(parse(content, LinkedHashMap.class));
+            message.setParentHeader(LazyContentMessage.parseHeader(parent));
             
-            logger.debug("Successfully parsed message: type={}, session={}", 
-                        message.getHeader().getType(), message.getHeader().getSession());
+            logger.debug("Successfully read message: type={}, session={}, content length={}",
+                        message.getHeader().getType(), message.getHeader().getSession(), content.length);
 
         } catch (Exception e) {
             logger.error("Error reading message from socket", e);
@@ -231,18 +262,26 @@ public class CloseableKernelSocketsZMQ extends KernelSockets {
             }
         }
 
-        logger.debug("readMessage content: {}", message.getContent());
         return message;
     }
 
     @Override
     public void run() {
         logger.debug("Starting CloseableKernelSocketsZMQ message loop");
+        // the sockets are bound and the kernel is initialized, requests are served from here on
+        if (kernel instanceof Micronaut) {
+            ((Micronaut) kernel).getReady().complete(null);
+        }
         try {
             while (!this.isShutdown()) {
                 logger.trace("Polling sockets for messages...");
                 sockets.poll();
-                
+
+                if (sockets.pollin(wakeupIndex)) {
+                    logger.trace("Woken up");
+                    wakeupReceiver.recv(ZMQ.DONTWAIT);
+                    continue;
+                }
                 if (isControlMsg()) {
                     logger.trace("Received control message");
                     handleControlMsg();
@@ -319,24 +358,24 @@ public class CloseableKernelSocketsZMQ extends KernelSockets {
             
             logger.info("Received shutdown_request with restart={}", restart);
             
+            // Rebuild the kernel in place before replying, so the client
+            // only reconnects once the new evaluator is ready
+            boolean restarted = restart && restartKernelExecutor();
+
             // Create reply with same restart flag per Jupyter specification
             Message reply = new Message(new Header(SHUTDOWN_REPLY, message.getHeader().getSession()));
             reply.setParentHeader(message.getHeader());
-            
+            reply.getIdentities().addAll(message.getIdentities());
+
             // Mirror the restart flag in reply content
             Map<String, Serializable> replyContent = new HashMap<>();
             replyContent.put("status", "ok");
             replyContent.put("restart", restart);
             reply.setContent(replyContent);
-            
+
             sendMsg(controlSocket, Collections.singletonList(reply));
-            
-            if (restart) {
-                // Handle restart case - restart only this kernel's executor
-                logger.info("Handling restart request for specific kernel");
-                restartKernelExecutor();
-            } else {
-                // Handle final shutdown case
+
+            if (!restarted) {
                 logger.info("Handling final shutdown request");
                 shutdown();
             }
@@ -349,65 +388,66 @@ public class CloseableKernelSocketsZMQ extends KernelSockets {
   }
 
     /**
-     * Restart only this kernel's executor, not all kernels
-     * This coordinates with KernelManager to restart the specific kernel
+     * Restart only this kernel, keeping the sockets and session bound: the
+     * evaluator, classloader and binding are rebuilt.
+     *
+     * @return true if the kernel was restarted, false if it should be shut down instead
      */
-    private void restartKernelExecutor() {
+    private boolean restartKernelExecutor() {
+        if (!(kernel instanceof Micronaut) || !((Micronaut) kernel).isRestartInPlace()) {
+            logger.info("In-place restart not enabled, shutting down kernel for the client to relaunch it");
+            return false;
+        }
+        String kernelId = getKernelIdFromConnection();
         try {
-            // Get kernel ID from connection file or kernel instance
-            String kernelId = getKernelIdFromConnection();
-            if (kernelId != null) {
-                // TODO: Need to coordinate with KernelManager to restart specific kernel
-                // For now, log the intent - full implementation requires KernelManager integration
-                logger.info("Should restart kernel '{}' executor only, not affecting other users", kernelId);
-                
-                // This will need to call something like:
-                // kernelManager.restartKernel(kernelId);
-                
-                // For now, just shutdown this specific socket connection
-                // The kernel will need to be restarted by the client
-                shutdown();
-            } else {
-                logger.warn("Could not determine kernel ID for restart, falling back to shutdown");
-                shutdown();
-            }
+            ((Micronaut) kernel).restart();
+            return true;
         } catch (Exception e) {
-            logger.error("Error during kernel restart, falling back to shutdown", e);
-            shutdown();
+            logger.error("Error restarting kernel '{}' in place, falling back to shutdown", kernelId, e);
+            return false;
         }
     }
 
     /**
-     * Extract kernel ID from connection information
-     * This needs to be implemented based on how kernel ID is passed to this socket handler
+     * @return The ID KernelManager tracks the kernel served by these sockets under
      */
     private String getKernelIdFromConnection() {
-        // TODO: Implementation depends on how kernel ID is made available to socket handler
-        // Options:
-        // 1. Pass kernel ID during socket creation
-        // 2. Extract from connection config
-        // 3. Use session ID as kernel identifier
-        
-        // For now, return null to indicate inability to determine kernel ID
-        logger.debug("Kernel ID extraction not yet implemented - needs integration with KernelManager");
-        return null;
+        return kernel instanceof Micronaut ? ((Micronaut) kernel).getKernelId() : null;
     }
 
-    private ZMQ.Socket getNewSocket(int type, int port, String connection, ZMQ.Context context) {
+    /**
+     * Create a socket and bind it. Port 0 binds to a free port, which is
+     * recorded in {@link #getBoundPorts()}.
+     */
+    private ZMQ.Socket getNewSocket(int type, String portName, int port, String transport, String host, ZMQ.Context context) {
         String socketTypeStr = getSocketTypeString(type);
-        String bindAddress = connection + ":" + String.valueOf(port);
+        String connection = transport + "://" + host;
+        String bindAddress = port == 0 ? connection : ZmqEndpoint.address(transport, host, port);
         logger.debug("Creating {} socket and binding to {}", socketTypeStr, bindAddress);
         
         ZMQ.Socket socket = context.socket(type);
         try {
-            socket.bind(bindAddress);
-            logger.trace("Successfully bound {} socket to {}", socketTypeStr, bindAddress);
+            if (port == 0) {
+                port = socket.bindToRandomPort(bindAddress);
+            } else {
+                socket.bind(bindAddress);
+            }
+            boundPorts.put(portName, port);
+            logger.trace("Successfully bound {} socket to {}:{}", socketTypeStr, connection, port);
         } catch (Exception e) {
             logger.error("Failed to bind {} socket to {}", socketTypeStr, bindAddress, e);
+            socket.close();
             throw e;
         }
         return socket;
     }
+
+    /**
+     * @return The port each socket is bound to, by connection file key (shell_port, iopub_port, ...)
+     */
+    public Map<String, Integer> getBoundPorts() {
+        return Collections.unmodifiableMap(boundPorts);
+    }
     
     private String getSocketTypeString(int type) {
         switch (type) {
@@ -456,6 +496,15 @@ public class CloseableKernelSocketsZMQ extends KernelSockets {
                 hearbeatSocket.close();
                 logger.trace("Closed heartbeat socket");
             }
+            if (wakeupReceiver != null) {
+                wakeupReceiver.close();
+            }
+            synchronized (this) {
+                if (wakeupSender != null) {
+                    wakeupSender.close();
+                    wakeupSender = null;
+                }
+            }
             context.close();
             logger.debug("Closed ZMQ context");
         } catch (Exception e) {
@@ -464,9 +513,7 @@ public class CloseableKernelSocketsZMQ extends KernelSockets {
     }
 
     private void verifySignatures(byte[] expectedSig, byte[] header, byte[] parent, byte[] metadata, byte[] content) {
-        String actualSig = hmac.signBytes(new ArrayList<>(asList(header, parent, metadata, content)));
-        String expectedSigAsString = new String(expectedSig, StandardCharsets.UTF_8);
-        if (!expectedSigAsString.equals(actualSig)) {
+        if (!signatureVerifier.verify(expectedSig, header, parent, metadata, content)) {
             throw new RuntimeException("Signatures do not match.");
         }
     }
@@ -499,14 +546,22 @@ public class CloseableKernelSocketsZMQ extends KernelSockets {
         logger.debug("Initiating kernel shutdown");
         this.shutdownSystem = true;
         logger.trace("Shutdown flag set to true");
+        wakeup();
     }
 
-    private boolean isShutdown() {
-        return this.shutdownSystem;
+    private synchronized void wakeup() {
+        if (wakeupSender == null) {
+            return;
+        }
+        try {
+            wakeupSender.send(new byte[]{0}, ZMQ.DONTWAIT);
+        } catch (Exception e) {
+            logger.debug("Unable to wake up message loop", e);
+        }
     }
 
-    private <T> T parse(byte[] bytes, Class<T> theClass) {
-        return bytes != null ? MessageSerializer.parse(new String(bytes, StandardCharsets.UTF_8), theClass) : null;
+    public boolean isShutdown() {
+        return this.shutdownSystem;
     }
 }
 
@@ -0,0 +1,74 @@
+package ai.stainless.micronaut.jupyter.kernel;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+
+/**
+ * Verifies the HMAC-SHA256 signature of incoming Jupyter messages directly
+ * over the raw header, parent, metadata and content frames. Unlike
+ * {@code HashedMessageAuthenticationCode.signBytes}, no intermediate lists
+ * or strings are built, and the comparison is done in constant time.
+ */
+public class FrameSignatureVerifier {
+
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    private final SecretKeySpec key;
+    private final ThreadLocal<Mac> mac;
+
+    /**
+     * @param key The key from the connection file, an empty or null key disables signing
+     */
+    public FrameSignatureVerifier(String key) {
+        if (key == null || key.isEmpty()) {
+            this.key = null;
+            this.mac = null;
+        } else {
+            this.key = new SecretKeySpec(key.getBytes(StandardCharsets.UTF_8), ALGORITHM);
+            // stdin replies are read from the cell thread, so each thread gets its own Mac
+            this.mac = ThreadLocal.withInitial(this::newMac);
+        }
+    }
+
+    /**
+     * @param expectedSig The hex encoded signature frame
+     * @param frames The header, parent, metadata and content frames, in order
+     * @return true if the signature matches, or signing is disabled
+     */
+    public boolean verify(byte[] expectedSig, byte[]... frames) {
+        if (key == null) {
+            return true;
+        }
+        Mac m = mac.get();
+        for (byte[] frame : frames) {
+            if (frame != null) {
+                m.update(frame);
+            }
+        }
+        byte[] digest = m.doFinal();
+        return MessageDigest.isEqual(toHex(digest), expectedSig);
+    }
+
+    private Mac newMac() {
+        try {
+            Mac m = Mac.getInstance(ALGORITHM);
+            m.init(key);
+            return m;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Unable to initialize " + ALGORITHM, e);
+        }
+    }
+
+    private static byte[] toHex(byte[] bytes) {
+        byte[] hex = new byte[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = HEX[(bytes[i] >> 4) & 0xF];
+            hex[i * 2 + 1] = HEX[bytes[i] & 0xF];
+        }
+        return hex;
+    }
+}
@@ -0,0 +1,103 @@
+package ai.stainless.micronaut.jupyter.kernel;
+
+import com.twosigma.beakerx.kernel.KernelFunctionality;
+import com.twosigma.beakerx.kernel.msg.JupyterMessages;
+import com.twosigma.beakerx.message.Header;
+import com.twosigma.beakerx.message.Message;
+import com.twosigma.beakerx.mimetype.MIMEContainer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Publishes messages to a kernel's IOPub channel on behalf of a single cell.
+ * The messages are parented to the cell's execute_request so that Jupyter
+ * renders them in that cell's output area, no matter which thread sends them.
+ */
+public class IOPubPublisher {
+
+    private static final Logger logger = LoggerFactory.getLogger(IOPubPublisher.class);
+
+    private final KernelFunctionality kernel;
+    private final Message parent;
+
+    /**
+     * Creates a new publisher.
+     *
+     * @param kernel The kernel whose IOPub socket messages are sent on
+     * @param parent The execute_request message the output belongs to
+     */
+    public IOPubPublisher(KernelFunctionality kernel, Message parent) {
+        this.kernel = kernel;
+        this.parent = parent;
+    }
+
+    /**
+     * Publish a value as display_data. {@link MIMEContainer} values keep their
+     * MIME type, everything else is rendered as text/plain.
+     */
+    public void display(Object value) {
+        Map<String, Serializable> data = new LinkedHashMap<>();
+        if (value instanceof MIMEContainer) {
+            MIMEContainer mime = (MIMEContainer) value;
+            data.put(mime.getMimeType().asString(), String.valueOf(mime.getData()));
+        } else {
+            data.put("text/plain", String.valueOf(value));
+        }
+        displayData(data, new LinkedHashMap<>(), Collections.emptyList());
+    }
+
+    /**
+     * Publish a display_data message with the given MIME bundle, metadata and
+     * raw binary buffers.
+     */
+    public void displayData(Map<String, Serializable> data, Map<String, Serializable> metadata, List<byte[]> buffers) {
+        Map<String, Serializable> content = new LinkedHashMap<>();
+        content.put("data", (Serializable) data);
+        content.put("metadata", (Serializable) metadata);
+        content.put("transient", new LinkedHashMap<String, Serializable>());
+        Message message = createMessage(JupyterMessages.DISPLAY_DATA, content);
+        message.getBuffers().addAll(buffers);
+        publish(message);
+    }
+
+    /**
+     * Publish text on the stdout ("stdout") or stderr ("stderr") stream.
+     */
+    public void stream(String name, String text) {
+        Map<String, Serializable> content = new LinkedHashMap<>();
+        content.put("name", name);
+        content.put("text", text);
+        publish(createMessage(JupyterMessages.STREAM, content));
+    }
+
+    public KernelFunctionality getKernel() {
+        return kernel;
+    }
+
+    public Message getParent() {
+        return parent;
+    }
+
+    private Message createMessage(JupyterMessages type, Map<String, Serializable> content) {
+        Message message = new Message(new Header(type, parent.getHeader().getSession()));
+        message.setParentHeader(parent.getHeader());
+        message.getIdentities().addAll(parent.getIdentities());
+        message.setMetadata(new LinkedHashMap<>());
+        message.setContent(content);
+        return message;
+    }
+
+    private void publish(Message message) {
+        if (kernel == null) {
+            logger.warn("No kernel available, dropping {} message", message.getHeader().getType());
+            return;
+        }
+        kernel.publish(Collections.singletonList(message));
+    }
+}
@@ -0,0 +1,39 @@
+package ai.stainless.micronaut.jupyter.kernel;
+
+import com.twosigma.beakerx.kernel.Config;
+import com.twosigma.beakerx.kernel.ConfigurationFile;
+import com.twosigma.beakerx.message.MessageSerializer;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static com.twosigma.beakerx.util.Preconditions.checkNotNull;
+
+/**
+ * Connection info passed in memory rather than through a connection file.
+ * <p>
+ * Takes the same keys as a Jupyter connection file ({@code transport},
+ * {@code ip}, {@code shell_port}, ..., {@code key}). A port of 0 binds the
+ * socket to a free port, see {@link Micronaut#getConnectionInfo()}.
+ */
+public class InlineConfigurationFile implements ConfigurationFile {
+
+    private final Map<String, Object> connectionInfo;
+    private Config config;
+
+    public InlineConfigurationFile(Map<String, Object> connectionInfo) {
+        this.connectionInfo = new LinkedHashMap<>(checkNotNull(connectionInfo));
+    }
+
+    @Override
+    public synchronized Config getConfig() {
+        if (config == null) {
+            config = MessageSerializer.parse(MessageSerializer.toJson(connectionInfo), Config.class);
+        }
+        return config;
+    }
+
+    public Map<String, Object> getConnectionInfo() {
+        return connectionInfo;
+    }
+}
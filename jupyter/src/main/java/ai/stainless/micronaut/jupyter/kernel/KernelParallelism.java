@@ -0,0 +1,299 @@
+package ai.stainless.micronaut.jupyter.kernel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * The work-stealing pool behind the parallel helpers of notebook scripts.
+ * <p>
+ * Each kernel has its own pool, created on first use, so one notebook's
+ * parallel work doesn't compete with another's for the common pool. Tasks
+ * run with the cell context of the caller, so their output goes to the
+ * calling cell. When the calling cell is interrupted, or a task fails, the
+ * other tasks of the call are cancelled and their threads interrupted.
+ * Their context class loader is the kernel's script class loader, so that
+ * classes defined by the notebook and its {@code %classpath} can be loaded
+ * by name, as on the cell thread.
+ * Parallel calls made from inside a task run sequentially on that task's
+ * thread, as blocking a worker on its own pool could starve it.
+ * <p>
+ * Blocking calls, such as HTTP requests or queries, are fanned out on a
+ * thread per task instead, virtual threads if enabled, so that waiting
+ * doesn't hold the pool's workers. The same cancellation applies.
+ * <p>
+ * The time tasks run on the pool counts towards the kernel's slot time in
+ * the {@link CellScheduler}, as the calling cell holds a single slot.
+ * Fanned out tasks mostly wait, and don't count.
+ */
+public class KernelParallelism {
+
+    private static final Logger logger = LoggerFactory.getLogger(KernelParallelism.class);
+
+    /** Names of the pool's threads, followed by the kernel ID */
+    static final String POOL_THREAD_PREFIX = "Jupyter-Parallel-";
+    static final String FAN_OUT_THREAD_PREFIX = "Jupyter-FanOut-";
+
+    private final String kernelId;
+    private final int parallelism;
+    private final boolean virtualThreads;
+    private final Set<Batch> batches = ConcurrentHashMap.newKeySet();
+    private volatile Supplier<ClassLoader> scriptClassLoader;
+    private volatile CellScheduler scheduler;
+    private ForkJoinPool pool;
+    private ExecutorService fanOutExecutor;
+    private volatile boolean shutdown;
+
+    /**
+     * @param parallelism The largest number of tasks run at once, or 0 for the number of processors
+     */
+    public KernelParallelism(String kernelId, int parallelism) {
+        this(kernelId, parallelism, false);
+    }
+
+    /**
+     * @param parallelism The largest number of tasks run at once, or 0 for the number of processors
+     * @param virtualThreads true to fan blocking calls out on virtual threads
+     */
+    public KernelParallelism(String kernelId, int parallelism, boolean virtualThreads) {
+        this.kernelId = kernelId;
+        this.parallelism = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+        this.virtualThreads = virtualThreads;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * @param scriptClassLoader The kernel's current script class loader, set
+     * as the context class loader of the tasks; it changes when the kernel is reset
+     */
+    public void setScriptClassLoader(Supplier<ClassLoader> scriptClassLoader) {
+        this.scriptClassLoader = scriptClassLoader;
+    }
+
+    /**
+     * @param scheduler The scheduler charged with the time tasks run on the pool, or null
+     */
+    public void setScheduler(CellScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Run the tasks in parallel and wait for all of them.
+     *
+     * @return The results of the tasks, in order
+     * @throws ExecutionException If a task failed, after the other tasks were cancelled
+     * @throws InterruptedException If the caller was interrupted, after the tasks were cancelled
+     */
+    public <T> List<T> invokeAll(List<? extends Callable<T>> tasks) throws InterruptedException, ExecutionException {
+        ForkJoinPool current = pool();
+        if (Thread.currentThread() instanceof ForkJoinWorkerThread
+                && ((ForkJoinWorkerThread) Thread.currentThread()).getPool() == current) {
+            return invokeSequentially(tasks);
+        }
+        return invoke(current, tasks, scheduler);
+    }
+
+    /**
+     * Run each task on its own thread and wait for all of them, for tasks
+     * that mostly block. There is no limit to the number of tasks run at
+     * once, and fan-outs may be nested.
+     *
+     * @return The results of the tasks, in order
+     * @throws ExecutionException If a task failed, after the other tasks were cancelled
+     * @throws InterruptedException If the caller was interrupted, after the tasks were cancelled
+     */
+    public <T> List<T> fanOut(List<? extends Callable<T>> tasks) throws InterruptedException, ExecutionException {
+        return invoke(fanOutExecutor(), tasks, null);
+    }
+
+    /**
+     * @param charged The scheduler charged with the time the tasks run, or null
+     */
+    private <T> List<T> invoke(ExecutorService executor, List<? extends Callable<T>> tasks, CellScheduler charged)
+            throws InterruptedException, ExecutionException {
+        Supplier<ClassLoader> loader = scriptClassLoader;
+        Batch batch = new Batch(kernelId, loader != null ? loader.get() : null, charged);
+        batches.add(batch);
+        boolean completed = false;
+        try {
+            ExecutorCompletionService<T> completion = new ExecutorCompletionService<>(executor);
+            List<Future<T>> futures = new ArrayList<>(tasks.size());
+            for (Callable<T> task : tasks) {
+                futures.add(completion.submit(batch.track(CellContext.wrap(task))));
+            }
+            synchronized (batch.futures) {
+                batch.futures.addAll(futures);
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                // fails on the first task to fail, rather than the first in order
+                completion.take().get();
+            }
+            List<T> results = new ArrayList<>(futures.size());
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+            completed = true;
+            return results;
+        } finally {
+            batches.remove(batch);
+            if (!completed) {
+                // interrupted, failed, or the cell thread was stopped
+                batch.cancel();
+            }
+        }
+    }
+
+    private static <T> List<T> invokeSequentially(List<? extends Callable<T>> tasks) throws ExecutionException {
+        List<T> results = new ArrayList<>(tasks.size());
+        for (Callable<T> task : tasks) {
+            try {
+                results.add(task.call());
+            } catch (Exception e) {
+                throw new ExecutionException(e);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Cancel every running parallel call, e.g. when the kernel is interrupted or restarted.
+     */
+    public void cancelAll() {
+        for (Batch batch : batches) {
+            batch.cancel();
+        }
+    }
+
+    /**
+     * Cancel running calls and stop the pool's threads. Called when the kernel shuts down.
+     */
+    public void shutdown() {
+        ForkJoinPool current;
+        ExecutorService fanOut;
+        synchronized (this) {
+            shutdown = true;
+            current = pool;
+            fanOut = fanOutExecutor;
+        }
+        cancelAll();
+        if (fanOut != null) {
+            fanOut.shutdownNow();
+        }
+        if (current != null) {
+            current.shutdownNow();
+            try {
+                if (!current.awaitTermination(1, TimeUnit.SECONDS)) {
+                    logger.warn("Parallel tasks of kernel '{}' did not stop after being interrupted", kernelId);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private synchronized ForkJoinPool pool() {
+        if (shutdown) {
+            throw new IllegalStateException("Kernel '" + kernelId + "' is shut down");
+        }
+        if (pool == null) {
+            AtomicInteger count = new AtomicInteger();
+            pool = new ForkJoinPool(parallelism, forkJoinPool -> {
+                ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(forkJoinPool);
+                thread.setName(POOL_THREAD_PREFIX + kernelId + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }, null, false);
+            logger.debug("Created parallel pool of kernel '{}' with parallelism {}", kernelId, parallelism);
+        }
+        return pool;
+    }
+
+    private synchronized ExecutorService fanOutExecutor() {
+        if (shutdown) {
+            throw new IllegalStateException("Kernel '" + kernelId + "' is shut down");
+        }
+        if (fanOutExecutor == null) {
+            fanOutExecutor = VirtualThreads.newThreadPerTaskExecutor(virtualThreads, FAN_OUT_THREAD_PREFIX + kernelId + "-");
+        }
+        return fanOutExecutor;
+    }
+
+    /**
+     * The tasks of one parallel call, and the threads running them.
+     */
+    private static class Batch {
+
+        private final String kernelId;
+        private final List<Future<?>> futures = new ArrayList<>();
+        private final Set<Thread> running = ConcurrentHashMap.newKeySet();
+        /** The context class loader of the tasks, or null to leave the thread's */
+        private final ClassLoader classLoader;
+        /** Charged with the time the tasks run, or null */
+        private final CellScheduler scheduler;
+        private volatile boolean cancelled;
+
+        Batch(String kernelId, ClassLoader classLoader, CellScheduler scheduler) {
+            this.kernelId = kernelId;
+            this.classLoader = classLoader;
+            this.scheduler = scheduler;
+        }
+
+        <T> Callable<T> track(Callable<T> task) {
+            return () -> {
+                if (cancelled) {
+                    throw new CancellationException();
+                }
+                Thread thread = Thread.currentThread();
+                ClassLoader previous = thread.getContextClassLoader();
+                if (classLoader != null) {
+                    thread.setContextClassLoader(classLoader);
+                }
+                running.add(thread);
+                long startedAt = System.nanoTime();
+                try {
+                    return task.call();
+                } finally {
+                    running.remove(thread);
+                    if (scheduler != null) {
+                        scheduler.charge(kernelId, System.nanoTime() - startedAt);
+                    }
+                    thread.setContextClassLoader(previous);
+                    // don't leave the interrupt of a cancelled task to the next task on this thread
+                    if (cancelled) {
+                        Thread.interrupted();
+                    }
+                }
+            };
+        }
+
+        void cancel() {
+            cancelled = true;
+            synchronized (futures) {
+                for (Future<?> future : futures) {
+                    future.cancel(false);
+                }
+            }
+            for (Thread thread : running) {
+                thread.interrupt();
+            }
+        }
+    }
+}
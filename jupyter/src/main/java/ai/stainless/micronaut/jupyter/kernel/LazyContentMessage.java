@@ -0,0 +1,120 @@
+package ai.stainless.micronaut.jupyter.kernel;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.twosigma.beakerx.message.Header;
+import com.twosigma.beakerx.message.Message;
+import com.twosigma.beakerx.message.MessageSerializer;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A {@link Message} read from a socket whose metadata and content frames are
+ * kept as raw bytes until a handler first asks for them. Routing only needs
+ * the header, so large execute_request and comm messages are not parsed
+ * unless they are actually handled.
+ * <p>
+ * Frames are read as JSON straight from their bytes, without decoding them
+ * to a string first.
+ */
+public class LazyContentMessage extends Message {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    // newer Jupyter clients add header fields BeakerX doesn't know, e.g. subshell_id
+    private static final ObjectReader HEADER_READER = MAPPER.readerFor(Header.class)
+            .without(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+    private static final ObjectReader MAP_READER = MAPPER.readerFor(LinkedHashMap.class);
+
+    private byte[] rawMetadata;
+    private byte[] rawContent;
+    private final int metadataLength;
+    private final int contentLength;
+
+    public LazyContentMessage(Header header, byte[] rawMetadata, byte[] rawContent) {
+        super(header);
+        this.rawMetadata = rawMetadata;
+        this.rawContent = rawContent;
+        this.metadataLength = rawMetadata != null ? rawMetadata.length : 0;
+        this.contentLength = rawContent != null ? rawContent.length : 0;
+    }
+
+    @Override
+    public synchronized Map<String, Serializable> getMetadata() {
+        if (rawMetadata != null) {
+            super.setMetadata(parseMap(rawMetadata));
+            rawMetadata = null;
+        }
+        return super.getMetadata();
+    }
+
+    @Override
+    public synchronized void setMetadata(Map<String, Serializable> metadata) {
+        rawMetadata = null;
+        super.setMetadata(metadata);
+    }
+
+    @Override
+    public synchronized Map<String, Serializable> getContent() {
+        if (rawContent != null) {
+            super.setContent(parseMap(rawContent));
+            rawContent = null;
+        }
+        return super.getContent();
+    }
+
+    @Override
+    public synchronized void setContent(Map<String, Serializable> content) {
+        rawContent = null;
+        super.setContent(content);
+    }
+
+    /**
+     * @return true if the content frame has been parsed (or replaced)
+     */
+    public synchronized boolean isContentParsed() {
+        return rawContent == null;
+    }
+
+    /**
+     * @return The size in bytes of the content frame as received
+     */
+    public int getContentLength() {
+        return contentLength;
+    }
+
+    /**
+     * @return The size in bytes of the metadata frame as received
+     */
+    public int getMetadataLength() {
+        return metadataLength;
+    }
+
+    /**
+     * @param frame A header or parent header frame
+     * @return The header, or null if there is no frame; an empty parent header has no fields set
+     */
+    public static Header parseHeader(byte[] frame) {
+        if (frame == null) {
+            return null;
+        }
+        try {
+            return HEADER_READER.readValue(frame);
+        } catch (IOException e) {
+            // left to BeakerX, which reports the frame as it always has
+            return MessageSerializer.parse(new String(frame, StandardCharsets.UTF_8), Header.class);
+        }
+    }
+
+    private static Map<String, Serializable> parseMap(byte[] bytes) {
+        try {
+            return MAP_READER.readValue(bytes);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Malformed message frame: " + e.getMessage(), e);
+        }
+    }
+}
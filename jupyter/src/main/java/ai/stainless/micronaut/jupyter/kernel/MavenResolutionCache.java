@@ -0,0 +1,186 @@
+package ai.stainless.micronaut.jupyter.kernel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The jars that {@code %classpath add mvn} resolved for each set of
+ * coordinates, shared by every kernel of the server and kept on disk.
+ * <p>
+ * Once an artifact was resolved by one kernel, other kernels (and the same
+ * kernel after a restart) add the same jars without resolving it again, which
+ * also works without network access. An entry is only used while all its
+ * jars still exist. Snapshots, version ranges and LATEST/RELEASE are never
+ * cached, as what they resolve to changes.
+ * <p>
+ * When offline, artifacts that were never resolved are looked up in the local
+ * Maven repository instead; only their own jar is added.
+ */
+public class MavenResolutionCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(MavenResolutionCache.class);
+
+    private final Path file;
+    private final Path localRepository;
+    private final boolean offline;
+    private final Map<String, List<Path>> entries = new ConcurrentHashMap<>();
+    private final Map<String, Object> resolutionLocks = new ConcurrentHashMap<>();
+
+    /**
+     * @param file Where the cache is kept, or null to keep it in memory only
+     * @param localRepository The local Maven repository, searched when offline
+     * @param offline true to never resolve artifacts missing from the cache
+     */
+    public MavenResolutionCache(Path file, Path localRepository, boolean offline) {
+        this.file = file;
+        this.localRepository = localRepository;
+        this.offline = offline;
+        load();
+    }
+
+    /**
+     * @param arguments The arguments of {@code %classpath add mvn}: either
+     * {@code group artifact version} or {@code group:artifact:version[:classifier]}
+     * @return The normalized coordinates, or null if they can't be cached
+     */
+    public static String key(String arguments) {
+        String[] parts = arguments.trim().split("\\s+");
+        String[] coordinates;
+        if (parts.length == 1) {
+            coordinates = parts[0].split(":");
+        } else if (parts.length == 3 || parts.length == 4) {
+            coordinates = parts;
+        } else {
+            return null;
+        }
+        if (coordinates.length < 3 || coordinates.length > 4) {
+            return null;
+        }
+        for (String coordinate : coordinates) {
+            if (coordinate.isEmpty()) {
+                return null;
+            }
+        }
+        String version = coordinates[2];
+        if (version.endsWith("-SNAPSHOT") || version.startsWith("[") || version.startsWith("(")
+                || version.equals("LATEST") || version.equals("RELEASE")) {
+            return null;
+        }
+        return String.join(":", coordinates);
+    }
+
+    /**
+     * @return The jars resolved for the coordinates, or null if they were not
+     * resolved yet or a jar was deleted since
+     */
+    public List<Path> get(String key) {
+        List<Path> jars = entries.get(key);
+        if (jars == null) {
+            return null;
+        }
+        for (Path jar : jars) {
+            if (!Files.isRegularFile(jar)) {
+                logger.debug("Dropping resolution of {}, {} no longer exists", key, jar);
+                entries.remove(key);
+                save();
+                return null;
+            }
+        }
+        return jars;
+    }
+
+    public void put(String key, List<Path> jars) {
+        entries.put(key, Collections.unmodifiableList(new ArrayList<>(jars)));
+        save();
+    }
+
+    /**
+     * @return The artifact's own jar in the local repository, or null
+     */
+    public Path findInLocalRepository(String key) {
+        if (localRepository == null) {
+            return null;
+        }
+        String[] coordinates = key.split(":");
+        String fileName = coordinates[1] + "-" + coordinates[2] + (coordinates.length > 3 ? "-" + coordinates[3] : "") + ".jar";
+        Path jar = localRepository.resolve(coordinates[0].replace('.', '/'))
+                .resolve(coordinates[1]).resolve(coordinates[2]).resolve(fileName);
+        return Files.isRegularFile(jar) ? jar : null;
+    }
+
+    /**
+     * @return A lock held while the coordinates are resolved, so that kernels
+     * adding the same artifact at the same time resolve it once
+     */
+    public Object resolutionLock(String key) {
+        return resolutionLocks.computeIfAbsent(key, k -> new Object());
+    }
+
+    public boolean isOffline() {
+        return offline;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    private void load() {
+        if (file == null || !Files.isRegularFile(file)) {
+            return;
+        }
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(file)) {
+            properties.load(reader);
+        } catch (IOException e) {
+            logger.warn("Unable to read the resolution cache {}, starting empty", file, e);
+            return;
+        }
+        for (String key : properties.stringPropertyNames()) {
+            List<Path> jars = new ArrayList<>();
+            for (String jar : properties.getProperty(key).split(java.io.File.pathSeparator)) {
+                if (!jar.isEmpty()) {
+                    jars.add(Paths.get(jar));
+                }
+            }
+            entries.put(key, Collections.unmodifiableList(jars));
+        }
+        logger.debug("Loaded {} resolutions from {}", entries.size(), file);
+    }
+
+    private synchronized void save() {
+        if (file == null) {
+            return;
+        }
+        Properties properties = new Properties();
+        for (Map.Entry<String, List<Path>> entry : new TreeMap<>(entries).entrySet()) {
+            List<String> jars = new ArrayList<>();
+            entry.getValue().forEach(jar -> jars.add(jar.toString()));
+            properties.setProperty(entry.getKey(), String.join(java.io.File.pathSeparator, jars));
+        }
+        try {
+            Files.createDirectories(file.toAbsolutePath().getParent());
+            Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+            try (Writer writer = Files.newBufferedWriter(temporary)) {
+                properties.store(writer, "Jars resolved by %classpath add mvn");
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.warn("Unable to write the resolution cache {}", file, e);
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package ai.stainless.micronaut.jupyter.kernel;
+
+import groovy.lang.Binding;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the estimated memory retained by a kernel's binding variables and
+ * result history within a budget.
+ * <p>
+ * Variables are never evicted, as they belong to the user. When over budget,
+ * the oldest results are evicted first: they remain available through soft
+ * references until the garbage collector reclaims them.
+ * <p>
+ * The estimate runs after every cell, before its reply is sent, so it walks
+ * a bounded number of objects in total and stops at a time limit. Variables
+ * and results left unwalked then count as nothing, and the report is marked
+ * as a lower bound.
+ */
+public class MemoryBudget {
+
+    private static final Logger logger = LoggerFactory.getLogger(MemoryBudget.class);
+
+    private static final int TOP_VARIABLES = 10;
+
+    private final long budgetBytes;
+    private final RetainedSizeEstimator estimator;
+    private final long maxTotalObjects;
+    private final long maxMillis;
+
+    /**
+     * @param budgetBytes The memory the variables and results of a kernel may retain
+     * @param maxObjects The largest number of objects walked per variable or result
+     */
+    public MemoryBudget(long budgetBytes, int maxObjects) {
+        this(budgetBytes, maxObjects, Long.MAX_VALUE, 0);
+    }
+
+    /**
+     * @param budgetBytes The memory the variables and results of a kernel may retain
+     * @param maxObjects The largest number of objects walked per variable or result
+     * @param maxTotalObjects The largest number of objects walked per estimate
+     * @param maxMillis How long an estimate may take, or 0 for no limit
+     */
+    public MemoryBudget(long budgetBytes, int maxObjects, long maxTotalObjects, long maxMillis) {
+        this.budgetBytes = budgetBytes;
+        this.estimator = new RetainedSizeEstimator(maxObjects);
+        this.maxTotalObjects = maxTotalObjects;
+        this.maxMillis = maxMillis;
+    }
+
+    /**
+     * Estimate the memory in use, and evict results until it fits the budget.
+     */
+    public Report enforce(Binding binding, ResultHistory history) {
+        long start = System.nanoTime();
+        long deadline = maxMillis > 0 ? start + TimeUnit.MILLISECONDS.toNanos(maxMillis) : 0;
+        long remaining = maxTotalObjects;
+        Report report = new Report(budgetBytes);
+        Set<Object> seen = RetainedSizeEstimator.newSeenSet();
+
+        Map<String, Long> variables = new LinkedHashMap<>();
+        for (Map.Entry<?, ?> entry : new ArrayList<>(((Map<?, ?>) binding.getVariables()).entrySet())) {
+            String name = String.valueOf(entry.getKey());
+            if (name.startsWith("_")) {
+                continue;
+            }
+            RetainedSizeEstimator.Estimate estimate = estimator.estimate(entry.getValue(), seen, remaining, deadline);
+            remaining -= estimate.getObjects();
+            variables.put(name, estimate.getBytes());
+            report.variablesBytes += estimate.getBytes();
+            report.truncated |= estimate.isTruncated();
+        }
+
+        // newest first, so objects shared between results count towards the one evicted last
+        List<ResultHistory.Entry> entries = history.entries();
+        Map<ResultHistory.Entry, Long> resultSizes = new LinkedHashMap<>();
+        for (int i = entries.size() - 1; i >= 0; i--) {
+            ResultHistory.Entry entry = entries.get(i);
+            if (!entry.isHeld()) {
+                continue;
+            }
+            RetainedSizeEstimator.Estimate estimate = estimator.estimate(entry.getValue(), seen, remaining, deadline);
+            remaining -= estimate.getObjects();
+            resultSizes.put(entry, estimate.getBytes());
+            report.resultsBytes += estimate.getBytes();
+            report.truncated |= estimate.isTruncated();
+        }
+
+        for (ResultHistory.Entry entry : entries) {
+            if (report.getUsedBytes() <= budgetBytes) {
+                break;
+            }
+            Long size = resultSizes.get(entry);
+            if (size == null) {
+                continue;
+            }
+            entry.evict();
+            report.resultsBytes -= size;
+            report.evicted.add(entry.getNumber());
+        }
+        report.resultsHeld = (int) entries.stream().filter(ResultHistory.Entry::isHeld).count();
+
+        variables.entrySet().stream()
+                .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+                .limit(TOP_VARIABLES)
+                .forEach(entry -> report.topVariables.put(entry.getKey(), entry.getValue()));
+        report.estimateMillis = (System.nanoTime() - start) / 1000000;
+        logger.debug("Memory in use: {} of {} bytes, evicted results {}, estimated in {} ms",
+                report.getUsedBytes(), budgetBytes, report.evicted, report.estimateMillis);
+        return report;
+    }
+
+    public long getBudgetBytes() {
+        return budgetBytes;
+    }
+
+    /**
+     * The memory in use after a cell, as reported in execute_reply metadata.
+     */
+    public static class Report {
+
+        private final long budgetBytes;
+        private long variablesBytes;
+        private long resultsBytes;
+        private int resultsHeld;
+        private boolean truncated;
+        private long estimateMillis;
+        private final Map<String, Long> topVariables = new LinkedHashMap<>();
+        private final List<Integer> evicted = new ArrayList<>();
+
+        Report(long budgetBytes) {
+            this.budgetBytes = budgetBytes;
+        }
+
+        public long getUsedBytes() {
+            return variablesBytes + resultsBytes;
+        }
+
+        public long getVariablesBytes() {
+            return variablesBytes;
+        }
+
+        public long getResultsBytes() {
+            return resultsBytes;
+        }
+
+        /**
+         * @return The numbers of the results evicted to fit the budget
+         */
+        public List<Integer> getEvicted() {
+            return evicted;
+        }
+
+        /**
+         * @return The largest variables, with their estimated size
+         */
+        public Map<String, Long> getTopVariables() {
+            return topVariables;
+        }
+
+        public boolean isOverBudget() {
+            return getUsedBytes() > budgetBytes;
+        }
+
+        /**
+         * @return The report as execute_reply metadata
+         */
+        public LinkedHashMap<String, Serializable> toMetadata() {
+            LinkedHashMap<String, Serializable> metadata = new LinkedHashMap<>();
+            metadata.put("budget_bytes", budgetBytes);
+            metadata.put("used_bytes", getUsedBytes());
+            metadata.put("variables_bytes", variablesBytes);
+            metadata.put("results_bytes", resultsBytes);
+            metadata.put("results_held", resultsHeld);
+            metadata.put("top_variables", new LinkedHashMap<>(topVariables));
+            metadata.put("evicted_results", new ArrayList<>(evicted));
+            metadata.put("lower_bound", truncated);
+            metadata.put("estimate_ms", estimateMillis);
+            return metadata;
+        }
+
+        /**
+         * @return A notice for the notebook if results were evicted or the
+         * budget is exceeded, null otherwise
+         */
+        public String toNotice() {
+            StringBuilder notice = new StringBuilder();
+            if (!evicted.isEmpty()) {
+                notice.append("Evicted results ").append(evicted).append(" to stay within the kernel memory budget of ")
+                        .append(budgetBytes).append(" bytes; they remain readable until garbage collected\n");
+            }
+            if (isOverBudget()) {
+                notice.append("Kernel variables use about ").append(variablesBytes).append(" bytes, over the memory budget of ")
+                        .append(budgetBytes).append(" bytes. Largest: ").append(topVariables).append("\n");
+            }
+            return notice.length() > 0 ? notice.toString() : null;
+        }
+    }
+}
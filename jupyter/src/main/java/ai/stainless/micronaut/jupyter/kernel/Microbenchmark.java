@@ -0,0 +1,317 @@
+package ai.stainless.micronaut.jupyter.kernel;
+
+import groovy.lang.Closure;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Measures the time and allocation of an operation run in the kernel's JVM,
+ * for the {@code bench} helper of notebook scripts.
+ * <p>
+ * The operation is run for a number of warmup iterations, so that it is
+ * compiled, then for a number of measured iterations of a fixed duration.
+ * Each call, or batch of calls for very short operations, is timed; results
+ * are consumed by a {@link Blackhole} so that the JIT can't remove the work.
+ * Allocation is read from the thread's allocation counter. No JVM is forked,
+ * so the numbers reflect the state (heap, JIT profile) of the running server.
+ */
+public class Microbenchmark {
+
+    private static final int MAX_SAMPLES = 1 << 20;
+
+    private String name = "bench";
+    private int warmupIterations = 3;
+    private int iterations = 5;
+    private long iterationMillis = 500;
+    private int batchSize = 1;
+
+    /**
+     * @param options {@code name}, {@code warmup} and {@code iterations}
+     * (counts), {@code iterationMs} (duration of each iteration) and
+     * {@code batch} (calls timed together)
+     */
+    public Microbenchmark(Map<String, ?> options) {
+        for (Map.Entry<String, ?> option : options.entrySet()) {
+            Object value = option.getValue();
+            switch (option.getKey()) {
+                case "name":
+                    name = String.valueOf(value);
+                    break;
+                case "warmup":
+                    warmupIterations = positive(option.getKey(), value, true);
+                    break;
+                case "iterations":
+                    iterations = positive(option.getKey(), value, false);
+                    break;
+                case "iterationMs":
+                    iterationMillis = positive(option.getKey(), value, false);
+                    break;
+                case "batch":
+                    batchSize = positive(option.getKey(), value, false);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown bench option '" + option.getKey()
+                            + "', expected name, warmup, iterations, iterationMs or batch");
+            }
+        }
+    }
+
+    private static int positive(String name, Object value, boolean zeroAllowed) {
+        if (!(value instanceof Number) || ((Number) value).intValue() < (zeroAllowed ? 0 : 1)) {
+            throw new IllegalArgumentException("Bench option '" + name + "' must be a " + (zeroAllowed ? "non-negative" : "positive") + " number");
+        }
+        return ((Number) value).intValue();
+    }
+
+    /**
+     * Run the benchmark. A closure taking a parameter is passed the {@link Blackhole}.
+     *
+     * @throws InterruptedException If the cell is interrupted
+     */
+    public Result run(Closure<?> operation) throws InterruptedException {
+        Blackhole blackhole = new Blackhole();
+        for (int i = 0; i < warmupIterations; i++) {
+            runIteration(operation, blackhole, null);
+        }
+
+        Samples samples = new Samples();
+        long allocatedBefore = allocatedBytes();
+        long ops = 0;
+        long nanos = 0;
+        for (int i = 0; i < iterations; i++) {
+            long[] iteration = runIteration(operation, blackhole, samples);
+            ops += iteration[0];
+            nanos += iteration[1];
+        }
+        long allocatedAfter = allocatedBytes();
+        long bytesPerOp = allocatedBefore < 0 || allocatedAfter < 0 ? -1
+                : Math.max(0, allocatedAfter - allocatedBefore - samples.allocatedBytes) / Math.max(1, ops);
+
+        return new Result(name, ops, nanos, samples.perOp(batchSize), bytesPerOp, warmupIterations, iterations);
+    }
+
+    /**
+     * @return The number of calls and the nanoseconds they took
+     */
+    private long[] runIteration(Closure<?> operation, Blackhole blackhole, Samples samples) throws InterruptedException {
+        boolean passBlackhole = operation.getMaximumNumberOfParameters() > 0;
+        long deadline = System.nanoTime() + iterationMillis * 1_000_000;
+        long ops = 0;
+        long nanos = 0;
+        long now;
+        do {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            long start = System.nanoTime();
+            for (int i = 0; i < batchSize; i++) {
+                blackhole.consume(passBlackhole ? operation.call(blackhole) : operation.call());
+            }
+            now = System.nanoTime();
+            if (samples != null) {
+                samples.add(now - start);
+            }
+            ops += batchSize;
+            nanos += now - start;
+        } while (now < deadline);
+        return new long[]{ops, nanos};
+    }
+
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean sunThreads = (com.sun.management.ThreadMXBean) threads;
+            if (sunThreads.isThreadAllocatedMemorySupported() && sunThreads.isThreadAllocatedMemoryEnabled()) {
+                return sunThreads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Consumes values so that the JIT can't prove they are unused and remove
+     * the code computing them. The checks compare against volatile fields that
+     * never match, which costs a couple of loads.
+     */
+    public static final class Blackhole {
+
+        private volatile Object object1 = new Object();
+        private volatile Object object2 = new Object();
+        private volatile long long1 = 1;
+        private volatile long long2 = 2;
+        private volatile double double1 = 1;
+        private volatile double double2 = 2;
+
+        public void consume(Object value) {
+            if (value == object1 & value == object2) {
+                throw new IllegalStateException("Unreachable");
+            }
+        }
+
+        public void consume(long value) {
+            if (value == long1 & value == long2) {
+                throw new IllegalStateException("Unreachable");
+            }
+        }
+
+        public void consume(double value) {
+            if (value == double1 & value == double2) {
+                throw new IllegalStateException("Unreachable");
+            }
+        }
+    }
+
+    /**
+     * Timings of calls or batches, kept up to a limit so that long benchmarks
+     * of fast operations don't grow without bound.
+     */
+    private static class Samples {
+
+        private long[] values = new long[1024];
+        private int size;
+        private long allocatedBytes;
+
+        void add(long nanos) {
+            if (size == values.length) {
+                if (size >= MAX_SAMPLES) {
+                    return;
+                }
+                values = Arrays.copyOf(values, size * 2);
+                // not the benchmark's allocation
+                allocatedBytes += 16 + 8L * values.length;
+            }
+            values[size++] = nanos;
+        }
+
+        double[] perOp(int batchSize) {
+            double[] perOp = new double[size];
+            for (int i = 0; i < size; i++) {
+                perOp[i] = values[i] / (double) batchSize;
+            }
+            Arrays.sort(perOp);
+            return perOp;
+        }
+    }
+
+    /**
+     * The measurements of a benchmark, in nanoseconds per operation. Returned
+     * from a cell, it is displayed as a table.
+     */
+    public static class Result {
+
+        private final String name;
+        private final long ops;
+        private final long nanos;
+        private final double[] sortedNanosPerOp;
+        private final long bytesPerOp;
+        private final int warmupIterations;
+        private final int iterations;
+
+        Result(String name, long ops, long nanos, double[] sortedNanosPerOp, long bytesPerOp, int warmupIterations, int iterations) {
+            this.name = name;
+            this.ops = ops;
+            this.nanos = nanos;
+            this.sortedNanosPerOp = sortedNanosPerOp;
+            this.bytesPerOp = bytesPerOp;
+            this.warmupIterations = warmupIterations;
+            this.iterations = iterations;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getOps() {
+            return ops;
+        }
+
+        public double getMean() {
+            return ops > 0 ? nanos / (double) ops : 0;
+        }
+
+        public double getOpsPerSecond() {
+            return nanos > 0 ? ops * 1e9 / nanos : 0;
+        }
+
+        /**
+         * @param percentile Between 0 and 100
+         */
+        public double percentile(double percentile) {
+            if (sortedNanosPerOp.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(percentile / 100 * sortedNanosPerOp.length) - 1;
+            return sortedNanosPerOp[Math.max(0, Math.min(sortedNanosPerOp.length - 1, index))];
+        }
+
+        public double getMin() {
+            return percentile(0);
+        }
+
+        public double getMax() {
+            return percentile(100);
+        }
+
+        /**
+         * @return Bytes allocated per operation on the benchmark thread, or -1 if the JVM doesn't count them
+         */
+        public long getBytesPerOp() {
+            return bytesPerOp;
+        }
+
+        private String[][] rows() {
+            return new String[][]{
+                    {"ops/s", String.format(Locale.ROOT, "%,.1f", getOpsPerSecond())},
+                    {"mean", duration(getMean())},
+                    {"min", duration(getMin())},
+                    {"p50", duration(percentile(50))},
+                    {"p90", duration(percentile(90))},
+                    {"p99", duration(percentile(99))},
+                    {"p99.9", duration(percentile(99.9))},
+                    {"max", duration(getMax())},
+                    {"alloc/op", bytesPerOp < 0 ? "n/a" : String.format(Locale.ROOT, "%,d B", bytesPerOp)},
+                    {"ops", String.format(Locale.ROOT, "%,d", ops)}
+            };
+        }
+
+        private static String duration(double nanos) {
+            if (nanos >= 1e9) {
+                return String.format(Locale.ROOT, "%.3f s", nanos / 1e9);
+            }
+            if (nanos >= 1e6) {
+                return String.format(Locale.ROOT, "%.3f ms", nanos / 1e6);
+            }
+            if (nanos >= 1e3) {
+                return String.format(Locale.ROOT, "%.3f µs", nanos / 1e3);
+            }
+            return String.format(Locale.ROOT, "%.1f ns", nanos);
+        }
+
+        /**
+         * @return The measurements as an HTML table
+         */
+        public String toHtml() {
+            StringBuilder html = new StringBuilder("<table><tr><th colspan=\"2\" style=\"text-align:left\">")
+                    .append(CellProfile.escape(name)).append(" (").append(warmupIterations).append(" warmup, ")
+                    .append(iterations).append(" measured iterations)</th></tr>");
+            for (String[] row : rows()) {
+                html.append("<tr><td style=\"text-align:left\">").append(row[0]).append("</td><td>").append(row[1]).append("</td></tr>");
+            }
+            return html.append("</table>").toString();
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder(name).append(" (").append(warmupIterations).append(" warmup, ")
+                    .append(iterations).append(" measured iterations)\n");
+            for (String[] row : rows()) {
+                text.append(String.format(Locale.ROOT, "  %-9s %s%n", row[0], row[1]));
+            }
+            return text.toString();
+        }
+    }
+}
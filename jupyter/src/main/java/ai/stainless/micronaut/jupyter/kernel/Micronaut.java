@@ -12,14 +12,30 @@ import com.twosigma.beakerx.kernel.magic.autocomplete.MagicCommandAutocompletePa
 import com.twosigma.beakerx.kernel.magic.command.FileServiceImpl;
 import com.twosigma.beakerx.kernel.magic.command.MagicCommandConfiguration;
 import com.twosigma.beakerx.kernel.magic.command.MagicCommandConfigurationImpl;
+import com.twosigma.beakerx.kernel.magic.command.MagicCommandType;
 import com.twosigma.beakerx.kernel.magic.command.MavenJarResolverServiceImpl;
 import com.twosigma.beakerx.kernel.restserver.BeakerXServer;
 import com.twosigma.beakerx.kernel.restserver.impl.GetUrlArgHandler;
+import ai.stainless.micronaut.jupyter.event.KernelEvent;
+import ai.stainless.micronaut.jupyter.event.KernelEventPublisher;
+import groovy.lang.Binding;
 import groovy.util.logging.Slf4j;
 import io.micronaut.context.ApplicationContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.twosigma.beakerx.message.Message;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import static com.twosigma.beakerx.kernel.Utils.uuid;
 import sun.misc.Signal;
 import sun.misc.SignalHandler;
@@ -31,7 +47,46 @@ public class Micronaut extends Groovy {
     private TrackableKernelSocketsFactory kernelSocketsFactory;
     private MicronautEvaluator evaluator;
     private ApplicationContext applicationContext;
+    private ScriptBeanCache beanCache;
     private StandardStreamHandler streamHandler;
+    private boolean subscribeReactiveResults = false;
+    private long reactiveResultTimeoutMs = 600000;
+    private String kernelId;
+    private volatile AtomicBoolean outputOpen = new AtomicBoolean(true);
+    private OutputLimiter outputLimiter;
+    private BindingCheckpoint checkpoint;
+    private BindingCheckpoint hibernation;
+    private boolean checkpointOnIdle = false;
+    private long checkpointMinIntervalMs = 60000;
+    private boolean checkpointOnShutdown = false;
+    private boolean restoreCheckpointOnStart = false;
+    private volatile long lastCheckpointMillis;
+    private final AtomicBoolean idleCheckpointRunning = new AtomicBoolean();
+    private ExecutorService checkpointExecutor;
+    private boolean restartInPlace = true;
+    private CompletableFuture<Void> termination = new CompletableFuture<>();
+    private CompletableFuture<Void> ready = new CompletableFuture<>();
+    private volatile CompletableFuture<Void> restarted = new CompletableFuture<>();
+    private KernelEventPublisher eventPublisher;
+    private ResultHistory resultHistory = new ResultHistory(20);
+    private MemoryBudget memoryBudget;
+    private volatile MemoryBudget.Report memoryReport;
+    private volatile boolean busy;
+    private volatile long lastActivityMillis = System.currentTimeMillis();
+    private volatile boolean hibernated;
+    private volatile Message lastExecuteRequest;
+    private KernelParallelism parallelism;
+    private MavenResolutionCache resolutionCache;
+    private boolean virtualThreads = false;
+    private volatile CellScheduler scheduler;
+    private volatile CellScheduler.Slot cellSlot;
+    private SharedJarLayers sharedJarLayers;
+    private CellCache cellCache;
+    private volatile CellCache.Recording cacheRecording;
+    private ThreadLeakTracker threadLeakTracker;
+    private volatile ThreadGroup cellThreadGroup;
+    private boolean stopLeakedThreads = false;
+    private long leakedThreadGraceMs = 1000;
 
     public Micronaut(
             final String id,
@@ -60,6 +115,67 @@ public class Micronaut extends Groovy {
         //store properties
         this.kernelSocketsFactory = kernelSocketsFactory;
         this.evaluator = evaluator;
+        this.kernelId = id;
+    }
+
+    /**
+     * @return The ID this kernel is tracked under
+     */
+    public String getKernelId() {
+        return kernelId;
+    }
+
+    public void setKernelId(String kernelId) {
+        this.kernelId = kernelId;
+    }
+
+    public void setEventPublisher(KernelEventPublisher eventPublisher) {
+        this.eventPublisher = eventPublisher;
+    }
+
+    /**
+     * Publish a lifecycle event of this kernel, if anyone publishes them.
+     */
+    public void publishEvent(KernelEvent event) {
+        if (eventPublisher != null) {
+            eventPublisher.publish(event);
+        }
+    }
+
+    /**
+     * @return A future completed once this kernel has terminated and its resources have been cleaned up
+     */
+    public CompletableFuture<Void> getTermination() {
+        return termination;
+    }
+
+    public void setTermination(CompletableFuture<Void> termination) {
+        this.termination = termination;
+    }
+
+    /**
+     * @return A future completed once the sockets are bound and requests such as kernel_info are served
+     */
+    public CompletableFuture<Void> getReady() {
+        return ready;
+    }
+
+    public void setReady(CompletableFuture<Void> ready) {
+        this.ready = ready;
+    }
+
+    /**
+     * @return A future completed the next time this kernel is restarted in place
+     */
+    public CompletableFuture<Void> getRestarted() {
+        return restarted;
+    }
+
+    /**
+     * @return Shared by the contexts of every cell this kernel runs, false once the kernel is killed or restarted
+     */
+    public AtomicBoolean getOutputOpen() {
+        return outputOpen;
     }
 
     public ApplicationContext getApplicationContext() {
@@ -68,6 +184,639 @@ public class Micronaut extends Groovy {
 
     public void setApplicationContext(ApplicationContext ctx) {
         this.applicationContext = ctx;
+        this.beanCache = ctx != null ? new ScriptBeanCache(ctx) : null;
+    }
+
+    /**
+     * @return The beans this kernel's scripts have looked up, or null without an application context
+     */
+    public ScriptBeanCache getBeanCache() {
+        return beanCache;
+    }
+
+    /**
+     * @return true if reactive cell results should be subscribed to and streamed to the notebook
+     */
+    public boolean isSubscribeReactiveResults() {
+        return subscribeReactiveResults;
+    }
+
+    public void setSubscribeReactiveResults(boolean subscribeReactiveResults) {
+        this.subscribeReactiveResults = subscribeReactiveResults;
+    }
+
+    public long getReactiveResultTimeoutMs() {
+        return reactiveResultTimeoutMs;
+    }
+
+    /**
+     * @param reactiveResultTimeoutMs How long a cell waits for its reactive result to complete
+     * before the subscription is cancelled, or 0 to wait for as long as it takes
+     */
+    public void setReactiveResultTimeoutMs(long reactiveResultTimeoutMs) {
+        this.reactiveResultTimeoutMs = reactiveResultTimeoutMs;
+    }
+
+    /**
+     * @return The limiter applied to this kernel's cell output, or null for no limits
+     */
+    public OutputLimiter getOutputLimiter() {
+        return outputLimiter;
+    }
+
+    public void setOutputLimiter(OutputLimiter outputLimiter) {
+        this.outputLimiter = outputLimiter;
+    }
+
+    /**
+     * @return The snapshot the script binding is checkpointed to, or null if checkpoints are not configured
+     */
+    public BindingCheckpoint getCheckpoint() {
+        return checkpoint;
+    }
+
+    public void setCheckpoint(BindingCheckpoint checkpoint) {
+        this.checkpoint = checkpoint;
+    }
+
+    /**
+     * @return The snapshot the script binding is saved to while the kernel is hibernated
+     */
+    public BindingCheckpoint getHibernation() {
+        return hibernation;
+    }
+
+    public void setHibernation(BindingCheckpoint hibernation) {
+        this.hibernation = hibernation;
+    }
+
+    /**
+     * @param checkpointOnIdle Save a checkpoint when a cell finishes
+     * @param minIntervalMs The minimum time between two idle checkpoints
+     */
+    public void setCheckpointOnIdle(boolean checkpointOnIdle, long minIntervalMs) {
+        this.checkpointOnIdle = checkpointOnIdle;
+        this.checkpointMinIntervalMs = minIntervalMs;
+    }
+
+    /**
+     * @param checkpointOnShutdown Save a checkpoint when the kernel is killed
+     */
+    public void setCheckpointOnShutdown(boolean checkpointOnShutdown) {
+        this.checkpointOnShutdown = checkpointOnShutdown;
+    }
+
+    /**
+     * @param restoreCheckpointOnStart Restore the saved checkpoint, if any, when the kernel starts
+     */
+    public void setRestoreCheckpointOnStart(boolean restoreCheckpointOnStart) {
+        this.restoreCheckpointOnStart = restoreCheckpointOnStart;
+    }
+
+    /**
+     * Save the script binding to the checkpoint.
+     */
+    public BindingCheckpoint.Report saveCheckpoint() throws IOException {
+        if (checkpoint == null) {
+            throw new IllegalStateException("Checkpoints are not configured for this kernel");
+        }
+        lastCheckpointMillis = System.currentTimeMillis();
+        return checkpoint.save(evaluator.getScriptBinding());
+    }
+
+    /**
+     * Restore the checkpoint into the script binding.
+     */
+    public BindingCheckpoint.Report restoreCheckpoint() throws IOException {
+        if (checkpoint == null) {
+            throw new IllegalStateException("Checkpoints are not configured for this kernel");
+        }
+        return checkpoint.restore(evaluator.getScriptBinding(), evaluator.getGroovyClassLoader());
+    }
+
+    /**
+     * Called when a cell has finished, saves a checkpoint if one is due.
+     * <p>
+     * The variables are serialized on the cell thread, before the next cell
+     * can change them, within the checkpoint's size limits. Only writing the
+     * file happens in the background. No idle checkpoint is started while
+     * the previous one is still being written.
+     */
+    public void onCellFinished() {
+        if (checkpoint == null || !checkpointOnIdle ||
+                System.currentTimeMillis() - lastCheckpointMillis < checkpointMinIntervalMs) {
+            return;
+        }
+        if (!idleCheckpointRunning.compareAndSet(false, true)) {
+            return;
+        }
+        lastCheckpointMillis = System.currentTimeMillis();
+        BindingCheckpoint target = checkpoint;
+        try {
+            BindingCheckpoint.Snapshot snapshot = target.capture(evaluator.getScriptBinding().getVariables());
+            checkpointExecutor().execute(() -> {
+                try {
+                    BindingCheckpoint.Report report = target.write(snapshot);
+                    if (!report.getSkipped().isEmpty()) {
+                        log.debug("Variables not captured by idle checkpoint: {}", report.getSkipped());
+                    }
+                } catch (Exception e) {
+                    log.warn("Unable to save idle checkpoint to {}", target.getFile(), e);
+                } finally {
+                    idleCheckpointRunning.set(false);
+                }
+            });
+        } catch (RuntimeException e) {
+            idleCheckpointRunning.set(false);
+            log.warn("Unable to start idle checkpoint of kernel '{}'", kernelId, e);
+        }
+    }
+
+    private synchronized ExecutorService checkpointExecutor() {
+        if (checkpointExecutor == null) {
+            checkpointExecutor = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "Jupyter-Checkpoint-" + kernelId);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return checkpointExecutor;
+    }
+
+    /**
+     * @return The most recent cell results, available to scripts as {@code _results}
+     */
+    public ResultHistory getResultHistory() {
+        return resultHistory;
+    }
+
+    public void setResultHistory(ResultHistory resultHistory) {
+        this.resultHistory = resultHistory;
+    }
+
+    public void setMemoryBudget(MemoryBudget memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * @return The pool running the parallel helpers of scripts, available to them as {@code _parallel}
+     */
+    public synchronized KernelParallelism getParallelism() {
+        if (parallelism == null) {
+            setParallelism(new KernelParallelism(kernelId, 0, virtualThreads));
+        }
+        return parallelism;
+    }
+
+    public synchronized void setParallelism(KernelParallelism parallelism) {
+        this.parallelism = parallelism;
+        if (parallelism != null) {
+            parallelism.setScriptClassLoader(this::getScriptClassLoader);
+            parallelism.setScheduler(scheduler);
+        }
+    }
+
+    /**
+     * @return The scheduler sharing cell slots between kernels, or null if cells run right away
+     */
+    public CellScheduler getScheduler() {
+        return scheduler;
+    }
+
+    public synchronized void setScheduler(CellScheduler scheduler) {
+        this.scheduler = scheduler;
+        if (parallelism != null) {
+            parallelism.setScheduler(scheduler);
+        }
+    }
+
+    /**
+     * @return The slot held by the running cell, or null if no cell is running or cells aren't scheduled
+     */
+    public CellScheduler.Slot getCellSlot() {
+        return cellSlot;
+    }
+
+    void setCellSlot(CellScheduler.Slot cellSlot) {
+        this.cellSlot = cellSlot;
+    }
+
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * @param virtualThreads true to run fanned-out calls, and the evaluator's wait for each cell, on virtual
+     *                       threads when the JVM has them; the cell itself always runs on a platform thread
+     */
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    /**
+     * Compile and run a script outside of any cell, to load the classes
+     * cells need before the first one runs. Variables it defines are discarded.
+     */
+    public Object warmUp(String code) throws Exception {
+        return evaluator.warmUp(code);
+    }
+
+    /**
+     * @param resolutionCache The server's resolution cache for {@code %classpath add mvn}, or null to always resolve
+     */
+    public void setResolutionCache(MavenResolutionCache resolutionCache) {
+        this.resolutionCache = resolutionCache;
+    }
+
+    /**
+     * @return The class loader layers Maven jars are shared in, or null if each kernel loads its own
+     */
+    public SharedJarLayers getSharedJarLayers() {
+        return sharedJarLayers;
+    }
+
+    public void setSharedJarLayers(SharedJarLayers sharedJarLayers) {
+        this.sharedJarLayers = sharedJarLayers;
+    }
+
+    /**
+     * @return The store of {@code %%cache} cells, or null if the magic is disabled
+     */
+    public CellCache getCellCache() {
+        return cellCache;
+    }
+
+    public void setCellCache(CellCache cellCache) {
+        this.cellCache = cellCache;
+    }
+
+    /**
+     * @return The binding holding the variables cells define
+     */
+    public Binding getScriptBinding() {
+        return evaluator.getScriptBinding();
+    }
+
+    /**
+     * @return The class loader of the classes cells use
+     */
+    public ClassLoader getScriptClassLoader() {
+        return evaluator.getGroovyClassLoader();
+    }
+
+    /**
+     * @return The recording of the {@code %%cache} cell running, or null
+     */
+    public CellCache.Recording getCacheRecording() {
+        return cacheRecording;
+    }
+
+    public void setCacheRecording(CellCache.Recording cacheRecording) {
+        this.cacheRecording = cacheRecording;
+    }
+
+    /**
+     * @return The thread group of the thread the last cell ran on, which the threads it started joined
+     */
+    public ThreadGroup getCellThreadGroup() {
+        return cellThreadGroup;
+    }
+
+    public void setCellThreadGroup(ThreadGroup cellThreadGroup) {
+        this.cellThreadGroup = cellThreadGroup;
+    }
+
+    /**
+     * @return The tracker of threads cells left running, or null if they aren't tracked
+     */
+    public ThreadLeakTracker getThreadLeakTracker() {
+        return threadLeakTracker;
+    }
+
+    public void setThreadLeakTracker(ThreadLeakTracker threadLeakTracker) {
+        this.threadLeakTracker = threadLeakTracker;
+        if (threadLeakTracker != null) {
+            threadLeakTracker.setScriptClassLoader(this::getScriptClassLoader);
+        }
+    }
+
+    public boolean isStopLeakedThreads() {
+        return stopLeakedThreads;
+    }
+
+    /**
+     * @param stopLeakedThreads true to stop the threads a cell left running as soon as it completes,
+     * rather than when the kernel restarts or hibernates
+     */
+    public void setStopLeakedThreads(boolean stopLeakedThreads) {
+        this.stopLeakedThreads = stopLeakedThreads;
+    }
+
+    public long getLeakedThreadGraceMs() {
+        return leakedThreadGraceMs;
+    }
+
+    /**
+     * @param leakedThreadGraceMs How long interrupted threads get to end before they are stopped forcibly
+     */
+    public void setLeakedThreadGraceMs(long leakedThreadGraceMs) {
+        this.leakedThreadGraceMs = leakedThreadGraceMs;
+    }
+
+    /**
+     * Stop the threads cells left running, before the evaluator is rebuilt.
+     */
+    private void stopThreadsLeftRunning() {
+        if (threadLeakTracker == null) {
+            return;
+        }
+        List<Thread> survivors = threadLeakTracker.stopAll(leakedThreadGraceMs);
+        if (!survivors.isEmpty()) {
+            log.warn("Kernel '{}' is left with threads still running: {}", kernelId, ThreadLeakTracker.names(survivors));
+        }
+    }
+
+    /**
+     * Keep the result of a cell in the result history.
+     */
+    public void recordResult(Object result) {
+        if (result != null && resultHistory != null) {
+            resultHistory.add(result);
+        }
+    }
+
+    /**
+     * Estimate the memory held by the binding and the result history, evicting
+     * old results if it exceeds the budget.
+     *
+     * @return A notice for the notebook, or null if there is nothing to report
+     */
+    public String enforceMemoryBudget() {
+        if (memoryBudget == null || resultHistory == null) {
+            return null;
+        }
+        try {
+            memoryReport = memoryBudget.enforce(evaluator.getScriptBinding(), resultHistory);
+            return memoryReport.toNotice();
+        } catch (Exception e) {
+            log.warn("Unable to estimate the memory used by kernel '{}'", kernelId, e);
+            return null;
+        }
+    }
+
+    /**
+     * Add the memory in use after the cell to an execute_reply.
+     */
+    public void addMemoryReport(Message executeReply) {
+        MemoryBudget.Report report = memoryReport;
+        if (report == null) {
+            return;
+        }
+        if (executeReply.getMetadata() == null) {
+            executeReply.setMetadata(new LinkedHashMap<>());
+        }
+        executeReply.getMetadata().put("micronaut_memory", report.toMetadata());
+    }
+
+    /**
+     * @return Where {@code %%profile} keeps its Flight Recorder recordings, in the kernel's temp folder
+     */
+    public Path getProfileDirectory() {
+        return evaluator.getTempFolder().resolve("profiles");
+    }
+
+    /**
+     * Called when a cell starts. Waits for a hibernation in progress.
+     */
+    public synchronized void markBusy() {
+        busy = true;
+        lastActivityMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * Called when a cell has finished.
+     */
+    public void markIdle() {
+        busy = false;
+        lastActivityMillis = System.currentTimeMillis();
+    }
+
+    public boolean isBusy() {
+        return busy;
+    }
+
+    /**
+     * @return When the last cell started or finished
+     */
+    public long getLastActivityMillis() {
+        return lastActivityMillis;
+    }
+
+    public boolean isHibernated() {
+        return hibernated;
+    }
+
+    /**
+     * @param request The execute_request of the cell being run, warnings are shown in its output
+     */
+    public void setLastExecuteRequest(Message request) {
+        this.lastExecuteRequest = request;
+    }
+
+    /**
+     * Show a warning in the output of the last cell that ran.
+     */
+    public void warn(String text) {
+        Message parent = lastExecuteRequest;
+        if (parent == null) {
+            log.warn("Kernel '{}': {}", kernelId, text);
+            return;
+        }
+        new IOPubPublisher(this, parent).stream("stderr", text.endsWith("\n") ? text : text + "\n");
+    }
+
+    /**
+     * Free the memory of an idle kernel: its variables are saved to its
+     * hibernation snapshot, apart from the user's checkpoint, and the
+     * evaluator is rebuilt empty. The sockets stay bound, and the variables
+     * are restored when the next cell runs.
+     * <p>
+     * The variables are written to the file while they are serialized, as
+     * the heap is short. A kernel with variables that can't be saved is left
+     * as it is, rather than losing them.
+     *
+     * @return false if the kernel is busy, or some of its variables can't be saved
+     */
+    public synchronized boolean hibernate() {
+        if (busy || hibernated || hibernation == null) {
+            return false;
+        }
+        BindingCheckpoint.Report report;
+        try {
+            report = hibernation.saveStreaming(evaluator.getScriptBinding().getVariables());
+        } catch (Exception e) {
+            log.warn("Unable to save kernel '{}' for hibernation", kernelId, e);
+            discardHibernation();
+            return false;
+        }
+        if (!report.getSkipped().isEmpty()) {
+            log.warn("Not hibernating kernel '{}', these variables can't be saved: {}", kernelId, report.getSkipped());
+            discardHibernation();
+            return false;
+        }
+        stopThreadsLeftRunning();
+        evaluator.restart();
+        if (resultHistory != null) {
+            resultHistory.clear();
+        }
+        memoryReport = null;
+        hibernated = true;
+        log.info("Kernel '{}' hibernated, {} variables saved", kernelId, report.getVariables().size());
+        warn("The server is low on memory, so this kernel was hibernated. Its variables will be restored when the next cell runs.");
+        return true;
+    }
+
+    /**
+     * Restore the variables of a hibernated kernel.
+     *
+     * @return A report of the restored variables, or null if the kernel was not hibernated
+     */
+    public synchronized String wakeUp() {
+        if (!hibernated) {
+            return null;
+        }
+        hibernated = false;
+        try {
+            BindingCheckpoint.Report report = hibernation.restore(evaluator.getScriptBinding(), evaluator.getGroovyClassLoader());
+            log.info("Kernel '{}' woke up from hibernation", kernelId);
+            return "Restored " + report.getVariables().size() + " variables after hibernation\n";
+        } catch (Exception e) {
+            log.warn("Unable to restore kernel '{}' after hibernation", kernelId, e);
+            return "Unable to restore variables after hibernation: " + e.getMessage() + "\n";
+        } finally {
+            discardHibernation();
+        }
+    }
+
+    private void discardHibernation() {
+        if (hibernation == null) {
+            return;
+        }
+        try {
+            hibernation.delete();
+        } catch (IOException e) {
+            log.warn("Unable to delete hibernation snapshot {}", hibernation.getFile(), e);
+        }
+    }
+
+    /**
+     * Save the checkpoint before the kernel restarts or shuts down, if configured to.
+     *
+     * @param event What is about to happen, for the log
+     */
+    private synchronized void saveShutdownCheckpoint(String event) {
+        if (checkpoint == null || !checkpointOnShutdown) {
+            return;
+        }
+        try {
+            if (hibernated) {
+                // the variables are in the hibernation snapshot, the binding is empty
+                hibernation.copyTo(checkpoint);
+            } else {
+                saveCheckpoint();
+            }
+        } catch (Exception e) {
+            log.warn("Unable to save checkpoint to {} before {}", checkpoint.getFile(), event, e);
+        }
+    }
+
+    /**
+     * @return true if a restart request rebuilds the evaluator in place instead of shutting the kernel down
+     */
+    public boolean isRestartInPlace() {
+        return restartInPlace;
+    }
+
+    public void setRestartInPlace(boolean restartInPlace) {
+        this.restartInPlace = restartInPlace;
+    }
+
+    /**
+     * The connection info clients use to reach this kernel, in connection file
+     * form. Ports bound to a free port (configured as 0) are reported as bound,
+     * so this is final once the kernel is ready.
+     */
+    public Map<String, Object> getConnectionInfo() {
+        Config config = kernelSocketsFactory.getConfigurationFile().getConfig();
+        Map<String, Object> info = new LinkedHashMap<>();
+        info.put("transport", config.getTransport());
+        info.put("ip", config.getHost());
+        info.put("shell_port", config.getShell());
+        info.put("iopub_port", config.getIopub());
+        info.put("stdin_port", config.getStdin());
+        info.put("control_port", config.getControl());
+        info.put("hb_port", config.getHeartbeat());
+        for (KernelSockets it : kernelSocketsFactory.getInstances()) {
+            if (it instanceof CloseableKernelSocketsZMQ) {
+                info.putAll(((CloseableKernelSocketsZMQ) it).getBoundPorts());
+            }
+        }
+        info.put("key", config.getKey());
+        info.put("signature_scheme", "hmac-sha256");
+        return info;
+    }
+
+    /**
+     * @return true once a shutdown of this kernel's sockets has been requested
+     */
+    public boolean isShuttingDown() {
+        for (KernelSockets it : kernelSocketsFactory.getInstances()) {
+            if (it instanceof CloseableKernelSocketsZMQ && ((CloseableKernelSocketsZMQ) it).isShutdown()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Restart this kernel in place. The sockets and session stay bound, while
+     * running cells are cancelled and the evaluator's classloader and binding
+     * are rebuilt.
+     */
+    public synchronized void restart() {
+        long start = System.nanoTime();
+        log.info("Restarting kernel '{}' in place", kernelId);
+        saveShutdownCheckpoint("restart");
+
+        // threads started by the previous cells no longer write to the notebook
+        outputOpen.set(false);
+        outputOpen = new AtomicBoolean(true);
+        if (parallelism != null) {
+            parallelism.cancelAll();
+        }
+
+        if (resultHistory != null) {
+            resultHistory.clear();
+        }
+        memoryReport = null;
+        if (hibernated) {
+            hibernated = false;
+            discardHibernation();
+        }
+        stopThreadsLeftRunning();
+        evaluator.restart();
+
+        if (checkpoint != null && restoreCheckpointOnStart && checkpoint.exists()) {
+            try {
+                log.info("Restored kernel state: {}", restoreCheckpoint());
+            } catch (Exception e) {
+                log.warn("Unable to restore checkpoint {}", checkpoint.getFile(), e);
+            }
+        }
+        log.info("Kernel '{}' restarted in {} ms", kernelId, (System.nanoTime() - start) / 1000000);
+        CompletableFuture<Void> previous = restarted;
+        restarted = new CompletableFuture<>();
+        previous.complete(null);
     }
 
     /**
@@ -131,6 +880,38 @@ public class Micronaut extends Groovy {
         evaluator.setKernel(this);
         evaluator.init();
 
+        // spill output over the limits to the kernel's temp folder
+        if (outputLimiter != null) {
+            outputLimiter.setSpillDirectory(evaluator.getTempFolder());
+        }
+
+        if (resolutionCache != null) {
+            installResolutionCache();
+        }
+
+        registerMagicCommandType(new MagicCommandType(
+                ProfileMagicCommand.PROFILE, ProfileMagicCommand.USAGE, new ProfileMagicCommand(this)
+        ));
+
+        if (cellCache != null) {
+            registerMagicCommandType(new MagicCommandType(
+                    CacheMagicCommand.CACHE, CacheMagicCommand.USAGE, new CacheMagicCommand(this)
+            ));
+        }
+
+        if (checkpoint != null) {
+            registerMagicCommandType(new MagicCommandType(
+                    CheckpointMagicCommand.CHECKPOINT, CheckpointMagicCommand.USAGE, new CheckpointMagicCommand(this)
+            ));
+            if (restoreCheckpointOnStart && checkpoint.exists()) {
+                try {
+                    log.info("Restored kernel state: {}", restoreCheckpoint());
+                } catch (Exception e) {
+                    log.warn("Unable to restore checkpoint {}", checkpoint.getFile(), e);
+                }
+            }
+        }
+
         Kernel.showNullExecutionResult = false;
 
         // Register signal handlers
@@ -139,6 +920,27 @@ public class Micronaut extends Groovy {
         log.info("Micronaut kernel initialized successfully");
     }
 
+    /**
+     * Replace BeakerX's {@code %classpath add mvn} magic with one using the
+     * resolution cache, at the same position so that it is matched first.
+     */
+    private void installResolutionCache() {
+        List<MagicCommandType> types = getMagicCommandTypes();
+        for (int i = 0; i < types.size(); i++) {
+            MagicCommandType type = types.get(i);
+            if (CachingAddMvnMagicCommand.ADD_MVN.equals(type.getCommand())) {
+                try {
+                    types.set(i, new MagicCommandType(type.getCommand(), type.getParameters(),
+                            new CachingAddMvnMagicCommand(evaluator, resolutionCache, type.getMagicCommandFunctionality())));
+                } catch (UnsupportedOperationException e) {
+                    log.warn("Unable to install the resolution cache, magic commands can't be replaced");
+                }
+                return;
+            }
+        }
+        log.warn("No {} magic command found, the resolution cache is not used", CachingAddMvnMagicCommand.ADD_MVN);
+    }
+
     /**
      * Register signal handlers to detect and log signals
      */
@@ -186,6 +988,10 @@ public class Micronaut extends Groovy {
      */
     public void kill() {
         log.info("Killing kernel now!");
+        saveShutdownCheckpoint("shutdown");
+        if (hibernated) {
+            discardHibernation();
+        }
         // close sockets factory instances
         for (KernelSockets it : kernelSocketsFactory.getInstances()) {
             try {
@@ -197,13 +1003,19 @@ public class Micronaut extends Groovy {
             }
         }
 
-        // Clean up stream handler
-        try {
-            if (streamHandler != null) {
-                streamHandler.restore();
+        // Stop routing output from threads this kernel's cells started
+        outputOpen.set(false);
+        if (parallelism != null) {
+            parallelism.shutdown();
+        }
+        if (outputLimiter != null) {
+            outputLimiter.close();
+        }
+        synchronized (this) {
+            if (checkpointExecutor != null) {
+                // a checkpoint being written is finished first, saves are serialized
+                checkpointExecutor.shutdown();
             }
-        } catch (Exception e) {
-            log.error("Error restoring streams during kernel shutdown", e);
         }
     }
 
@@ -230,6 +1042,14 @@ public class Micronaut extends Groovy {
             log.warn("No args provided to kernel");
         }
 
+        return createKernel(new KernelConfigurationFile(args));
+    }
+
+    /**
+     * Create a kernel connecting through the given configuration, e.g. an
+     * {@link InlineConfigurationFile} passed in memory.
+     */
+    public static Micronaut createKernel(final ConfigurationFile configurationFile) {
         // create kernel close handler
         CloseKernelAction closeKernelAction = new CloseKernelAction() {
             @Override
@@ -256,7 +1076,6 @@ public class Micronaut extends Groovy {
          */
 
         String id = uuid();
-        KernelConfigurationFile configurationFile = new KernelConfigurationFile(args);
         TrackableKernelSocketsFactory kernelSocketsFactory = new TrackableKernelSocketsFactory(
                 configurationFile
         );
@@ -30,13 +30,19 @@ import com.twosigma.beakerx.jvm.threads.BxInputStream;
 import com.twosigma.beakerx.jvm.threads.InputRequestMessageFactoryImpl;
 import groovy.lang.GroovyClassLoader;
 import groovy.lang.Script;
+import io.micronaut.core.propagation.PropagatedContext;
 import org.codehaus.groovy.runtime.StackTraceUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.PrintWriter;
+import java.io.Serializable;
 import java.io.StringWriter;
 import java.lang.reflect.InvocationTargetException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
 
 import static com.twosigma.beakerx.evaluator.BaseEvaluator.INTERUPTED_MSG;
@@ -65,6 +71,9 @@ public class MicronautCodeRunner implements Callable<TryResult> {
         Thread.UncaughtExceptionHandler originalHandler = Thread.currentThread().getUncaughtExceptionHandler();
         TryResult either;
         String scriptName = SCRIPT_NAME;
+        PropagatedContext.Scope contextScope = null;
+        ThreadLeakTracker.Snapshot threads = null;
+        OutputLimiter.Cell outputBudget = null;
         
         // Set up uncaught exception handler for this execution (unless disabled via env var)
         String disableHandler = System.getProperty("DISABLE_GLOBAL_EXCEPTION_HANDLER");
@@ -82,12 +91,32 @@ public class MicronautCodeRunner implements Callable<TryResult> {
 
             // Check if kernel and streamHandler are available
             if (evaluator.getKernel() != null && evaluator.getKernel().getStreamHandler() != null) {
-                // Set output handlers for this call
-                evaluator.getKernel().getStreamHandler().setOutputHandlers(
+                Micronaut kernel = evaluator.getKernel();
+                // Set output handlers for this call, and propagate them to
+                // any thread that works on behalf of this cell
+                CellContext cellContext = kernel.getStreamHandler().setOutputHandlers(
+                        kernel.getKernelId(),
+                        kernel.getOutputOpen(),
                         theOutput.getStdOutputHandler(),
                         theOutput.getStdErrorHandler(),
                         stdInHandler
                 );
+                contextScope = cellContext.propagate();
+                kernel.setCellThreadGroup(Thread.currentThread().getThreadGroup());
+                cellContext.setPublisher(new IOPubPublisher(kernel, theOutput.getJupyterMessage()));
+                cellContext.setRecording(kernel.getCacheRecording());
+                kernel.setLastExecuteRequest(theOutput.getJupyterMessage());
+                String wakeUpReport = kernel.wakeUp();
+                if (wakeUpReport != null && theOutput.getStdErrorHandler() != null) {
+                    theOutput.getStdErrorHandler().write(wakeUpReport);
+                }
+                if (kernel.getOutputLimiter() != null) {
+                    outputBudget = kernel.getOutputLimiter().startCell();
+                    cellContext.setOutputLimiter(kernel.getOutputLimiter(), outputBudget);
+                }
+                if (kernel.getThreadLeakTracker() != null) {
+                    threads = kernel.getThreadLeakTracker().begin();
+                }
 
                 logger.trace("stdInHandler={}", stdInHandler);
                 logger.trace("stdOutputHandler={}", theOutput.getStdOutputHandler());
@@ -114,14 +143,28 @@ public class MicronautCodeRunner implements Callable<TryResult> {
                     result = runScript((Script) instance);
                 }
             }
+            result = publishIfBinary(result);
+            result = publishIfBenchmark(result);
+            result = subscribeIfReactive(result);
+            if (!(result instanceof ReactiveCellResult) && evaluator.getKernel() != null) {
+                evaluator.getKernel().recordResult(result);
+            }
+            recordForCache(result, false);
             either = TryResult.createResult(result);
         } catch (Throwable e) {
+            recordForCache(null, true);
             either = handleError(scriptName, e);
         } finally {
+            reportLeakedThreads(threads);
+            reportDroppedOutput(outputBudget);
+            reportMemoryBudget();
             theOutput.clrOutputHandler();
 
             // Safe cleanup of output handlers
             try {
+                if (contextScope != null) {
+                    contextScope.close();
+                }
                 if (evaluator.getKernel() != null && evaluator.getKernel().getStreamHandler() != null) {
                     evaluator.getKernel().getStreamHandler().clearOutputHandlers();
                 }
@@ -136,6 +179,90 @@ public class MicronautCodeRunner implements Callable<TryResult> {
         return either;
     }
 
+    /**
+     * Tell the user which threads the cell left running, stopping them if the
+     * kernel is configured to.
+     */
+    private void reportLeakedThreads(ThreadLeakTracker.Snapshot threads) {
+        Micronaut kernel = evaluator.getKernel();
+        if (threads == null || kernel == null) {
+            return;
+        }
+        List<Thread> leaked = kernel.getThreadLeakTracker().end(threads, theOutput.getExecutionCount());
+        if (leaked.isEmpty()) {
+            return;
+        }
+        String report;
+        if (kernel.isStopLeakedThreads()) {
+            List<Thread> survivors = kernel.getThreadLeakTracker().stop(leaked, kernel.getLeakedThreadGraceMs());
+            report = "Stopped " + (leaked.size() - survivors.size()) + " threads this cell left running: " + ThreadLeakTracker.names(leaked)
+                    + (survivors.isEmpty() ? "" : " (" + ThreadLeakTracker.names(survivors) + " still running)") + "\n";
+        } else {
+            report = leaked.size() + " threads this cell started are still running: " + ThreadLeakTracker.names(leaked)
+                    + ". Those running the cell's code are stopped when the kernel restarts.\n";
+        }
+        if (theOutput.getStdErrorHandler() != null) {
+            try {
+                theOutput.getStdErrorHandler().write(report);
+            } catch (Exception e) {
+                logger.warn("Unable to report leaked threads", e);
+            }
+        }
+    }
+
+    /**
+     * Tell the user how much of the cell's output was not displayed.
+     */
+    private void reportDroppedOutput(OutputLimiter.Cell outputBudget) {
+        Micronaut kernel = evaluator.getKernel();
+        if (outputBudget == null || kernel == null || kernel.getOutputLimiter() == null) {
+            return;
+        }
+        String report = kernel.getOutputLimiter().finishCell(outputBudget);
+        if (report != null && theOutput.getStdErrorHandler() != null) {
+            try {
+                theOutput.getStdErrorHandler().write(report);
+            } catch (Exception e) {
+                logger.warn("Unable to report dropped output", e);
+            }
+        }
+    }
+
+    /**
+     * Enforce the kernel's memory budget, and tell the user which results were
+     * evicted or that the variables exceed it.
+     */
+    private void reportMemoryBudget() {
+        Micronaut kernel = evaluator.getKernel();
+        if (kernel == null) {
+            return;
+        }
+        String notice = kernel.enforceMemoryBudget();
+        if (notice != null && theOutput.getStdErrorHandler() != null) {
+            try {
+                theOutput.getStdErrorHandler().write(notice);
+            } catch (Exception e) {
+                logger.warn("Unable to report memory budget", e);
+            }
+        }
+    }
+
+    /**
+     * Hand the result to the {@code %%cache} cell being run, if any. Failed
+     * cells and reactive results, which arrive after the cell, aren't cached.
+     */
+    private void recordForCache(Object result, boolean failed) {
+        CellCache.Recording recording = evaluator.getKernel() != null ? evaluator.getKernel().getCacheRecording() : null;
+        if (recording == null) {
+            return;
+        }
+        if (failed || result instanceof ReactiveCellResult) {
+            recording.fail();
+        } else {
+            recording.setResult(result);
+        }
+    }
+
     private TryResult handleError(String scriptName, Throwable e) {
         TryResult either;
         if (e instanceof InvocationTargetException) {
@@ -162,6 +289,49 @@ public class MicronautCodeRunner implements Callable<TryResult> {
         return script.run();
     }
 
+    /**
+     * Subscribe to reactive results instead of returning them as-is. The
+     * returned {@link ReactiveCellResult} is awaited by the evaluator, outside
+     * of the cell executor.
+     */
+    private Object subscribeIfReactive(Object result) {
+        Micronaut kernel = evaluator.getKernel();
+        if (kernel == null || !kernel.isSubscribeReactiveResults() || !ReactiveCellResult.isReactive(result)) {
+            return result;
+        }
+        logger.debug("Subscribing to reactive cell result of type {}", result.getClass().getName());
+        return ReactiveCellResult.subscribe(result, new IOPubPublisher(kernel, theOutput.getJupyterMessage()));
+    }
+
+    /**
+     * Publish a {@link BinaryData} result as binary buffers rather than
+     * returning it to be rendered as text.
+     */
+    private Object publishIfBinary(Object result) {
+        Micronaut kernel = evaluator.getKernel();
+        if (!(result instanceof BinaryData) || kernel == null) {
+            return result;
+        }
+        ((BinaryData) result).publish(new IOPubPublisher(kernel, theOutput.getJupyterMessage()));
+        return null;
+    }
+
+    /**
+     * Display a {@link Microbenchmark.Result} returned from a cell as a table.
+     */
+    private Object publishIfBenchmark(Object result) {
+        Micronaut kernel = evaluator.getKernel();
+        if (!(result instanceof Microbenchmark.Result) || kernel == null) {
+            return result;
+        }
+        Microbenchmark.Result benchmark = (Microbenchmark.Result) result;
+        Map<String, Serializable> data = new LinkedHashMap<>();
+        data.put("text/html", benchmark.toHtml());
+        data.put("text/plain", benchmark.toString());
+        new IOPubPublisher(kernel, theOutput.getJupyterMessage()).displayData(data, new LinkedHashMap<>(), Collections.emptyList());
+        return null;
+    }
+
     private boolean canBeInstantiated(Class<?> parsedClass) {
         return !parsedClass.isEnum();
     }
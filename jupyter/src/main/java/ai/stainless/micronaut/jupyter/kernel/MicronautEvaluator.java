@@ -1,6 +1,10 @@
 package ai.stainless.micronaut.jupyter.kernel;
 
 import ai.stainless.micronaut.jupyter.DefaultPackageCompilerConfiguration;
+import ai.stainless.micronaut.jupyter.ScriptInjectionASTTransformation;
+import ai.stainless.micronaut.jupyter.event.CellFinishedEvent;
+import ai.stainless.micronaut.jupyter.event.KernelBusyEvent;
+import ai.stainless.micronaut.jupyter.event.KernelIdleEvent;
 import com.twosigma.beakerx.BeakerXClient;
 import com.twosigma.beakerx.TryResult;
 import com.twosigma.beakerx.autocomplete.AutocompleteResult;
@@ -22,11 +26,25 @@ import com.twosigma.beakerx.kernel.*;
 import com.twosigma.beakerx.mimetype.MIMEContainer;
 import groovy.lang.Binding;
 import groovy.lang.GroovyClassLoader;
+import groovy.lang.Script;
 import org.codehaus.groovy.control.CompilerConfiguration;
+import org.codehaus.groovy.control.customizers.ASTTransformationCustomizer;
 import org.codehaus.groovy.control.customizers.ImportCustomizer;
 
 import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 import static com.twosigma.beakerx.groovy.evaluator.EnvVariablesFilter.envVariablesFilter;
@@ -35,10 +53,23 @@ import static com.twosigma.beakerx.groovy.evaluator.GroovyClassLoaderFactory.new
 
 public class MicronautEvaluator extends GroovyEvaluator {
 
+    private static final int MAX_SHARED_SCANNERS = 8;
+    private static final Map<String, GroovyClasspathScanner> sharedScanners = new LinkedHashMap<String, GroovyClasspathScanner>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, GroovyClasspathScanner> eldest) {
+            return size() > MAX_SHARED_SCANNERS;
+        }
+    };
+
     private GroovyClassLoader groovyClassLoader;
     private Binding scriptBinding = null;
     private ImportCustomizer icz;
     private BeakerXUrlClassLoader beakerxUrlClassLoader;
+    private SharedLayerClassLoader sharedLayerClassLoader;
+    private SharedJarLayers.Layer sharedLayer;
+    private final Set<String> sharedJars = ConcurrentHashMap.newKeySet();
+    private volatile List<Path> capturedJars;
+    private volatile List<Path> resolvedJars;
 
     private GroovyAutocomplete gac;
 
@@ -46,6 +77,8 @@ public class MicronautEvaluator extends GroovyEvaluator {
 
     private Micronaut kernel;
 
+    private volatile ReactiveCellResult pendingReactiveResult;
+
     public MicronautEvaluator(String id,
                               String sId,
                               EvaluatorParameters evaluatorParameters,
@@ -83,7 +116,7 @@ public class MicronautEvaluator extends GroovyEvaluator {
                 classpathScanner,
                 inspect);
         
-        gac = createGroovyAutocomplete(new GroovyClasspathScanner(), groovyClassLoader, imports, autocompletePatterns, scriptBinding);
+        gac = createGroovyAutocomplete(sharedClasspathScanner(createClasspath(classPath)), groovyClassLoader, imports, autocompletePatterns, scriptBinding);
         outDir = envVariablesFilter(outDir, System.getenv());
     }
 
@@ -100,13 +133,17 @@ public class MicronautEvaluator extends GroovyEvaluator {
         //init class loader
         reloadClassloader();
         gac = createGroovyAutocomplete(
-                new GroovyClasspathScanner(),
+                sharedClasspathScanner(createClasspath(classPath)),
                 groovyClassLoader,
                 imports,
                 autocompletePatterns,
                 scriptBinding
         );
         outDir = envVariablesFilter(outDir, System.getenv());
+        if (kernel.isVirtualThreads() && VirtualThreads.isSupported()) {
+            executorService.shutdown();
+            executorService = newWorkerExecutor();
+        }
         // we are loaded
         loaded = true;
     }
@@ -114,21 +151,105 @@ public class MicronautEvaluator extends GroovyEvaluator {
     @Override
     public TryResult evaluate(EvaluationObject seo, String code, ExecutionOptions executionOptions) {
         logger.debug("evaluate " + code);
-        TryResult result = evaluate(seo, new MicronautWorkerThread(this, new JobDescriptor(code, seo, executionOptions)));
-        logger.debug("evaluate got: " + result);
-        logger.debug("isResult? " + result.isResult());
-        logger.debug("isError? " + result.isError());
-        if (result.isError()) {
-            TryResult.CellError cellError = (TryResult.CellError) result;
-            logger.error(cellError.error());
-        } else if (result.result() instanceof MIMEContainer) {
-            MIMEContainer mimeResult = (MIMEContainer) result.result();
-            logger.debug("result= " + result.result());
-            logger.debug("result data= " + mimeResult.getData());
+        long start = System.nanoTime();
+        if (kernel != null) {
+            kernel.markBusy();
+            kernel.publishEvent(new KernelBusyEvent(kernel, kernel.getKernelId()));
+        }
+        TryResult result = null;
+        try {
+            result = evaluate(seo, new MicronautWorkerThread(this, new JobDescriptor(code, seo, executionOptions)));
+            if (!result.isError() && result.result() instanceof ReactiveCellResult) {
+                result = awaitReactiveResult((ReactiveCellResult) result.result());
+            }
+            logger.debug("evaluate got: " + result);
+            logger.debug("isResult? " + result.isResult());
+            logger.debug("isError? " + result.isError());
+            if (result.isError()) {
+                TryResult.CellError cellError = (TryResult.CellError) result;
+                logger.error(cellError.error());
+            } else if (result.result() instanceof MIMEContainer) {
+                MIMEContainer mimeResult = (MIMEContainer) result.result();
+                logger.debug("result= " + result.result());
+                logger.debug("result data= " + mimeResult.getData());
+            }
+        } finally {
+            // published even if evaluating failed, so the kernel is never left reported busy
+            if (kernel != null) {
+                boolean failed = result == null || result.isError();
+                try {
+                    kernel.publishEvent(new CellFinishedEvent(kernel, kernel.getKernelId(), System.nanoTime() - start, failed));
+                    kernel.onCellFinished();
+                } finally {
+                    kernel.markIdle();
+                    kernel.publishEvent(new KernelIdleEvent(kernel, kernel.getKernelId()));
+                }
+            }
         }
         return result;
     }
 
+    /**
+     * Run a cell once the kernel's scheduler gives it a slot, if it has one.
+     * This runs on the cell's thread, so interrupting the cell also stops
+     * it waiting.
+     */
+    public TryResult runScheduled(Callable<TryResult> cell) throws Exception {
+        CellScheduler scheduler = kernel != null ? kernel.getScheduler() : null;
+        if (scheduler == null) {
+            return cell.call();
+        }
+        if (scheduler.isSaturated(kernel.getKernelId())) {
+            kernel.warn("Waiting for a free slot, notebooks are using all " + scheduler.getSlots() + " of them");
+        }
+        CellScheduler.Slot slot;
+        try {
+            slot = scheduler.acquire(kernel.getKernelId());
+        } catch (InterruptedException e) {
+            return TryResult.createError(INTERUPTED_MSG);
+        }
+        kernel.setCellSlot(slot);
+        try (slot) {
+            return cell.call();
+        } finally {
+            kernel.setCellSlot(null);
+        }
+    }
+
+    /**
+     * Wait for a reactive cell result to complete. This runs on the calling
+     * thread, so the cell executor stays free while items are streamed.
+     */
+    private TryResult awaitReactiveResult(ReactiveCellResult reactiveResult) {
+        pendingReactiveResult = reactiveResult;
+        try {
+            return reactiveResult.await(kernel != null ? kernel.getReactiveResultTimeoutMs() : 0);
+        } catch (InterruptedException e) {
+            reactiveResult.cancel();
+            Thread.currentThread().interrupt();
+            return TryResult.createError(INTERUPTED_MSG);
+        } finally {
+            pendingReactiveResult = null;
+        }
+    }
+
+    /**
+     * Interrupting a cell also cancels the subscription to its reactive
+     * result, which is awaited outside of the cell executor.
+     */
+    @Override
+    public void cancelExecution(GroupName groupName) {
+        super.cancelExecution(groupName);
+        cancelPendingReactiveResult();
+    }
+
+    private void cancelPendingReactiveResult() {
+        ReactiveCellResult reactiveResult = pendingReactiveResult;
+        if (reactiveResult != null) {
+            reactiveResult.cancel();
+        }
+    }
+
     @Override
     public AutocompleteResult autocomplete(String code, int caretPosition) {
         return gac.find(code, caretPosition);
@@ -136,24 +257,158 @@ public class MicronautEvaluator extends GroovyEvaluator {
 
     @Override
     protected void doResetEnvironment() {
+        cancelPendingReactiveResult();
         String cpp = createClasspath(classPath);
         reloadClassloader();
-        gac = createGroovyAutocomplete(new GroovyClasspathScanner(cpp), groovyClassLoader, imports, autocompletePatterns, scriptBinding);
+        gac = createGroovyAutocomplete(sharedClasspathScanner(cpp), groovyClassLoader, imports, autocompletePatterns, scriptBinding);
         executorService.shutdown();
-        executorService = Executors.newSingleThreadExecutor();
+        executorService = newWorkerExecutor();
+    }
+
+    /**
+     * The executor evaluate() hands each cell to. Its thread only waits for
+     * BeakerX's cell thread, which stays a platform thread in its own thread
+     * group, as interrupting and killing a cell rely on both. With virtual
+     * threads, that wait doesn't hold a platform thread. Cells still run one
+     * at a time, as evaluate() waits for each.
+     */
+    private ExecutorService newWorkerExecutor() {
+        return kernel != null && kernel.isVirtualThreads() && VirtualThreads.isSupported()
+                ? VirtualThreads.newThreadPerTaskExecutor(true, "Jupyter-Cell-Worker-" + kernel.getKernelId() + "-")
+                : Executors.newSingleThreadExecutor();
+    }
+
+    /**
+     * Cancel running cells and rebuild the classloader and binding, as a
+     * fresh evaluator would have them. Jars and imports added to the
+     * classpath are kept.
+     */
+    public void restart() {
+        killAllThreads();
+        doResetEnvironment();
     }
 
     @Override
     public void exit() {
+        cancelPendingReactiveResult();
         super.exit();
         killAllThreads();
         executorService.shutdown();
-        executorService = Executors.newSingleThreadExecutor();
+        executorService = newWorkerExecutor();
+        releaseSharedLayer();
+    }
+
+    @Override
+    public List<Path> addJarsToClasspath(List<PathToJar> paths) {
+        List<Path> resolved = resolvedJars;
+        if (resolved != null) {
+            // before the jars already on the classpath are left out
+            paths.forEach(path -> resolved.add(Paths.get(path.getPath())));
+        }
+        return super.addJarsToClasspath(paths);
     }
 
     @Override
     protected void addJarToClassLoader(PathToJar pathToJar) {
-        this.beakerxUrlClassLoader.addJar(pathToJar);
+        List<Path> captured = capturedJars;
+        if (captured != null) {
+            captured.add(Paths.get(pathToJar.getPath()));
+        } else if (!sharedJars.contains(normalize(pathToJar.getPath()))) {
+            this.beakerxUrlClassLoader.addJar(pathToJar);
+        }
+    }
+
+    /**
+     * Compile and run a script with a copy of the binding, so that the
+     * compiler and script runtime classes are loaded and the kernel's
+     * variables are left untouched.
+     *
+     * @return The script's result
+     */
+    public Object warmUp(String code) throws Exception {
+        Class<?> scriptClass = groovyClassLoader.parseClass(
+                new EnsureScriptPackage().ensurePackageMicronautJupyter(code), "warmup" + System.currentTimeMillis());
+        Script script = (Script) scriptClass.getDeclaredConstructor().newInstance();
+        script.setBinding(new Binding(new HashMap<>(scriptBinding.getVariables())));
+        return script.run();
+    }
+
+    /**
+     * Run an action adding jars to the classpath, such as the original
+     * {@code %classpath add mvn} magic, and load the jars it added in a
+     * shared class loader layer rather than the kernel's own class loader.
+     *
+     * @return The jars added, without those already on the classpath
+     */
+    public List<Path> captureJars(Runnable addJars) {
+        return captureJars(addJars, null);
+    }
+
+    /**
+     * @param resolved Collects every jar the action added to the classpath,
+     * including those already on it, or null
+     * @return The jars added, without those already on the classpath
+     * @see #captureJars(Runnable)
+     */
+    public List<Path> captureJars(Runnable addJars, List<Path> resolved) {
+        List<Path> captured = Collections.synchronizedList(new ArrayList<>());
+        capturedJars = captured;
+        resolvedJars = resolved;
+        try {
+            addJars.run();
+        } finally {
+            capturedJars = null;
+            resolvedJars = null;
+            loadJars(new ArrayList<>(captured));
+        }
+        return captured;
+    }
+
+    /**
+     * Add jars resolved earlier, by this kernel or another one, as if they
+     * were added by {@code %classpath add mvn}.
+     *
+     * @return The jars added, without those already on the classpath
+     */
+    public List<Path> addResolvedJars(List<Path> jars) {
+        List<PathToJar> paths = new ArrayList<>();
+        jars.forEach(jar -> paths.add(new PathToJar(jar.toString())));
+        return captureJars(() -> kernel.addJarsToClasspath(paths));
+    }
+
+    private synchronized void loadJars(List<Path> jars) {
+        if (jars.isEmpty()) {
+            return;
+        }
+        SharedJarLayers layers = kernel.getSharedJarLayers();
+        if (layers == null) {
+            jars.forEach(jar -> beakerxUrlClassLoader.addJar(new PathToJar(jar.toString())));
+            return;
+        }
+        SharedJarLayers.Layer previous = sharedLayer;
+        sharedLayer = layers.acquire(previous, jars);
+        jars.forEach(jar -> sharedJars.add(normalize(jar.toString())));
+        if (sharedLayerClassLoader != null) {
+            sharedLayerClassLoader.setLayer(sharedLayer);
+        }
+        if (previous != null) {
+            layers.release(previous);
+        }
+    }
+
+    private synchronized void releaseSharedLayer() {
+        if (sharedLayer != null && kernel.getSharedJarLayers() != null) {
+            kernel.getSharedJarLayers().release(sharedLayer);
+        }
+        sharedLayer = null;
+        sharedJars.clear();
+        if (sharedLayerClassLoader != null) {
+            sharedLayerClassLoader.setLayer(null);
+        }
+    }
+
+    private static String normalize(String jar) {
+        return Paths.get(jar).toAbsolutePath().normalize().toString();
     }
 
     @Override
@@ -166,6 +421,9 @@ public class MicronautEvaluator extends GroovyEvaluator {
         Binding newBinding = new Binding();
         //set variables on binding
         newBinding.setVariable("_boundApplicationContext", kernel.getApplicationContext());
+        newBinding.setVariable("_boundBeanCache", kernel.getBeanCache());
+        newBinding.setVariable("_results", kernel.getResultHistory());
+        newBinding.setVariable("_parallel", kernel.getParallelism());
         //return binding
         return newBinding;
     }
@@ -182,6 +440,17 @@ public class MicronautEvaluator extends GroovyEvaluator {
                 scriptBinding);
     }
 
+    /**
+     * Scanning the classpath for autocompletion reads every jar of the
+     * application, which took most of the time of creating and resetting a
+     * kernel. Kernels with the same classpath share one scan.
+     */
+    private static GroovyClasspathScanner sharedClasspathScanner(String classpath) {
+        synchronized (sharedScanners) {
+            return sharedScanners.computeIfAbsent(classpath, GroovyClasspathScanner::new);
+        }
+    }
+
     private static String createClasspath(Classpath classPath) {
         StringBuilder cppBuilder = new StringBuilder();
         for (String pt : classPath.getPathsAsStrings()) {
@@ -194,13 +463,37 @@ public class MicronautEvaluator extends GroovyEvaluator {
         return cpp;
     }
 
+    /**
+     * Build the kernel's class loaders. The BeakerX loader over the jars not
+     * in shared layers is the kernel's own and is rebuilt on every reset, so
+     * its classes are loaded again; only the shared layers and the
+     * application class loader outlive it.
+     */
     private void reloadClassloader() {
-        this.beakerxUrlClassLoader = newParentClassLoader(getClasspath());
+        this.beakerxUrlClassLoader = newParentClassLoader(privateClasspath());
         this.icz = new ImportCustomizer();
-        this.groovyClassLoader = newEvaluator(beakerxUrlClassLoader);
+        // jars in shared layers are found after the kernel's own ones
+        this.sharedLayerClassLoader = new SharedLayerClassLoader(beakerxUrlClassLoader, sharedLayer);
+        this.groovyClassLoader = newEvaluator(sharedLayerClassLoader);
         this.scriptBinding = createBinding();
     }
 
+    /**
+     * @return The classpath without the jars loaded by shared layers
+     */
+    private Classpath privateClasspath() {
+        if (sharedJars.isEmpty()) {
+            return getClasspath();
+        }
+        Classpath classpath = new Classpath();
+        for (String jar : getClasspath().getPathsAsStrings()) {
+            if (!sharedJars.contains(normalize(jar))) {
+                classpath.add(new PathToJar(jar));
+            }
+        }
+        return classpath;
+    }
+
     @Override
     public ClassLoader getClassLoader() {
         return groovyClassLoader;
@@ -246,6 +539,8 @@ public class MicronautEvaluator extends GroovyEvaluator {
 
         // set custom base class
         config.setScriptBaseClass("ai.stainless.micronaut.jupyter.kernel.MicronautJupyterScript");
+        // resolve @Inject script fields and declarations through the kernel's bean cache
+        config.addCompilationCustomizers(new ASTTransformationCustomizer(new ScriptInjectionASTTransformation()));
 
         return new GroovyClassLoader(parent, config);
     }
@@ -0,0 +1,334 @@
+package ai.stainless.micronaut.jupyter.kernel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Limits how much stdout/stderr a kernel sends to IOPub.
+ * <p>
+ * A kernel-wide token bucket caps the output rate, and each cell may send at
+ * most a fixed number of bytes. Once a cell goes over its volume, a notice is
+ * shown in the notebook and the rest of the cell's output is not sent. Output
+ * over the rate is dropped, with a notice, until the bucket refills, and then
+ * shown again. While limits are set, all output is also written to a rolling
+ * spill file in the kernel's temp folder, so the full stream of a truncated
+ * cell can be read there. When the cell finishes, the number of bytes that
+ * were not displayed is reported.
+ * <p>
+ * Output is buffered in memory for the spill file and written out in chunks,
+ * by one writer at a time and never while the limits are checked, so printing
+ * threads don't wait for the disk on every write.
+ * <p>
+ * Each cell has its own budget, see {@link #startCell()}. Threads a cell left
+ * running keep spending that cell's budget, never a later cell's.
+ */
+public class OutputLimiter {
+
+    private static final Logger logger = LoggerFactory.getLogger(OutputLimiter.class);
+
+    public static final String SPILL_FILE_NAME = "output-spill.log";
+
+    /** Buffered output written to the spill file at once */
+    private static final int SPILL_CHUNK_BYTES = 64 * 1024;
+
+    private final long bytesPerSecond;
+    private final long maxBytesPerCell;
+    private final long spillMaxBytes;
+    private final int spillMaxFiles;
+
+    private volatile Path spillDirectory;
+    /** Output not written to the spill file yet, guarded by itself */
+    private final ByteArrayOutputStream pendingSpill = new ByteArrayOutputStream();
+    /** Guards the spill file, taken by the thread writing out a chunk */
+    private final Object spillLock = new Object();
+    private OutputStream spillStream;
+    private long spillSize;
+
+    private double tokens;
+    private long lastRefillNanos = System.nanoTime();
+
+    private long totalBytes;
+    private long totalDroppedBytes;
+    private long truncatedCells;
+
+    /**
+     * @param bytesPerSecond The sustained output rate allowed for the kernel, 0 or less for no limit
+     * @param maxBytesPerCell The output allowed for a single cell, 0 or less for no limit
+     * @param spillMaxBytes The size at which the spill file is rolled over
+     * @param spillMaxFiles The number of rolled over spill files to keep
+     */
+    public OutputLimiter(long bytesPerSecond, long maxBytesPerCell, long spillMaxBytes, int spillMaxFiles) {
+        this.bytesPerSecond = bytesPerSecond;
+        this.maxBytesPerCell = maxBytesPerCell;
+        this.spillMaxBytes = spillMaxBytes;
+        this.spillMaxFiles = Math.max(spillMaxFiles, 1);
+        // allow one second worth of burst
+        this.tokens = bytesPerSecond;
+    }
+
+    /**
+     * @return true if any limit is configured
+     */
+    public boolean isEnabled() {
+        return bytesPerSecond > 0 || maxBytesPerCell > 0;
+    }
+
+    public void setSpillDirectory(Path spillDirectory) {
+        this.spillDirectory = spillDirectory;
+    }
+
+    /**
+     * @return The current spill file, or null if the kernel has no temp folder
+     */
+    public Path getSpillFile() {
+        Path spillDirectory = this.spillDirectory;
+        return spillDirectory != null ? spillDirectory.resolve(SPILL_FILE_NAME) : null;
+    }
+
+    /**
+     * Start the budget of a cell. Called when a cell starts, the budget is
+     * carried by the cell's {@link CellContext}.
+     */
+    public Cell startCell() {
+        return new Cell();
+    }
+
+    /**
+     * Filter a chunk of output.
+     *
+     * @param cell The budget of the cell that wrote the text
+     * @param text The text written by the cell
+     * @return The text to send to the notebook (possibly including a truncation notice), or null to send nothing
+     */
+    public String filter(Cell cell, String text) {
+        if (!isEnabled()) {
+            return text;
+        }
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        String filtered = admit(cell, bytes.length, text);
+        spill(bytes);
+        return filtered;
+    }
+
+    private synchronized String admit(Cell cell, int length, String text) {
+        if (cell.truncated) {
+            cell.droppedBytes += length;
+            totalDroppedBytes += length;
+            return null;
+        }
+        if (maxBytesPerCell > 0 && cell.bytes + length > maxBytesPerCell) {
+            // the cell's volume is spent, nothing more is shown
+            cell.truncated = true;
+            drop(cell, length);
+            logger.debug("Output limit exceeded after {} bytes, the rest is in {}", cell.bytes, describeSpillFile());
+            return "\n[Output limit exceeded, the full output of this cell is in " + describeSpillFile() + "]\n";
+        }
+        if (!withinRate(length)) {
+            // shown again once the rate recovers
+            drop(cell, length);
+            if (cell.throttled) {
+                return null;
+            }
+            cell.throttled = true;
+            return "\n[Output rate limit exceeded, output is dropped until it slows down, the full output is in "
+                    + describeSpillFile() + "]\n";
+        }
+        cell.throttled = false;
+        cell.bytes += length;
+        totalBytes += length;
+        if (bytesPerSecond > 0) {
+            tokens -= length;
+        }
+        return text;
+    }
+
+    private void drop(Cell cell, int length) {
+        if (cell.droppedBytes == 0) {
+            truncatedCells++;
+        }
+        cell.droppedBytes += length;
+        totalDroppedBytes += length;
+    }
+
+    /**
+     * Finish a cell.
+     *
+     * @return A report of the bytes that were not displayed, or null if nothing was dropped
+     */
+    public String finishCell(Cell cell) {
+        flushSpill();
+        synchronized (this) {
+            return report(cell);
+        }
+    }
+
+    private String report(Cell cell) {
+        if (cell.droppedBytes == 0) {
+            return null;
+        }
+        logger.debug("Cell output truncated, {} bytes dropped ({} total for this kernel)", cell.droppedBytes, totalDroppedBytes);
+        return "[" + cell.droppedBytes + " bytes of output were not displayed, see " + describeSpillFile() + "]\n";
+    }
+
+    /**
+     * @return The number of bytes dropped over the life of the kernel
+     */
+    public synchronized long getTotalDroppedBytes() {
+        return totalDroppedBytes;
+    }
+
+    /**
+     * @return The limits, the bytes displayed and dropped, and the truncated cells since the kernel started
+     */
+    public synchronized Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", isEnabled());
+        stats.put("bytesPerSecond", bytesPerSecond);
+        stats.put("maxBytesPerCell", maxBytesPerCell);
+        stats.put("displayedBytes", totalBytes);
+        stats.put("droppedBytes", totalDroppedBytes);
+        stats.put("truncatedCells", truncatedCells);
+        Path spillFile = getSpillFile();
+        stats.put("spillFile", spillFile != null ? spillFile.toString() : null);
+        return stats;
+    }
+
+    /**
+     * Close the spill file.
+     */
+    public void close() {
+        synchronized (spillLock) {
+            writePendingSpill();
+            if (spillStream != null) {
+                try {
+                    spillStream.close();
+                } catch (IOException e) {
+                    logger.debug("Error closing spill file", e);
+                }
+                spillStream = null;
+            }
+        }
+    }
+
+    private boolean withinRate(int length) {
+        if (bytesPerSecond > 0) {
+            long now = System.nanoTime();
+            tokens = Math.min(bytesPerSecond, tokens + (now - lastRefillNanos) * bytesPerSecond / 1e9);
+            lastRefillNanos = now;
+            return tokens >= length || (tokens == bytesPerSecond && length > bytesPerSecond);
+        }
+        return true;
+    }
+
+    private String describeSpillFile() {
+        Path file = getSpillFile();
+        return file != null ? file.toString() : "no file, the kernel has no temp folder";
+    }
+
+    private void spill(byte[] bytes) {
+        if (spillDirectory == null) {
+            return;
+        }
+        boolean full;
+        synchronized (pendingSpill) {
+            pendingSpill.write(bytes, 0, bytes.length);
+            full = pendingSpill.size() >= SPILL_CHUNK_BYTES;
+        }
+        if (full) {
+            synchronized (spillLock) {
+                writePendingSpill();
+            }
+        }
+    }
+
+    /**
+     * Write the buffered output to the spill file. Called holding the spill
+     * lock, so chunks are written in the order they were buffered.
+     */
+    private void writePendingSpill() {
+        byte[] chunk;
+        synchronized (pendingSpill) {
+            if (pendingSpill.size() == 0) {
+                return;
+            }
+            chunk = pendingSpill.toByteArray();
+            pendingSpill.reset();
+        }
+        try {
+            // rolled over at the size limit, as if written piece by piece
+            int offset = 0;
+            while (offset < chunk.length) {
+                if (spillStream == null || spillSize >= spillMaxBytes) {
+                    rollSpillFile();
+                }
+                int length = (int) Math.min(chunk.length - offset, Math.max(spillMaxBytes - spillSize, 1));
+                spillStream.write(chunk, offset, length);
+                spillSize += length;
+                offset += length;
+            }
+        } catch (IOException e) {
+            logger.warn("Unable to write to output spill file {}", getSpillFile(), e);
+        }
+    }
+
+    private void rollSpillFile() throws IOException {
+        Path file = getSpillFile();
+        if (spillStream != null) {
+            spillStream.close();
+            spillStream = null;
+            // shift output-spill.log -> output-spill.log.1 -> output-spill.log.2 ...
+            Files.deleteIfExists(spillDirectory.resolve(SPILL_FILE_NAME + "." + spillMaxFiles));
+            for (int i = spillMaxFiles - 1; i >= 1; i--) {
+                Path rolled = spillDirectory.resolve(SPILL_FILE_NAME + "." + i);
+                if (Files.exists(rolled)) {
+                    Files.move(rolled, spillDirectory.resolve(SPILL_FILE_NAME + "." + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            Files.move(file, spillDirectory.resolve(SPILL_FILE_NAME + ".1"), StandardCopyOption.REPLACE_EXISTING);
+        }
+        Files.createDirectories(spillDirectory);
+        spillSize = Files.exists(file) ? Files.size(file) : 0;
+        spillStream = new BufferedOutputStream(Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND));
+    }
+
+    private void flushSpill() {
+        synchronized (spillLock) {
+            writePendingSpill();
+            if (spillStream != null) {
+                try {
+                    spillStream.flush();
+                } catch (IOException e) {
+                    logger.debug("Error flushing spill file", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * The output budget of one cell.
+     */
+    public static class Cell {
+
+        private long bytes;
+        private long droppedBytes;
+        /** Over its volume, sticky */
+        private boolean truncated;
+        /** Over the rate, until output is shown again */
+        private boolean throttled;
+
+        Cell() {
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package ai.stainless.micronaut.jupyter.kernel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.Set;
+
+/**
+ * Directories holding serialized kernel state, such as checkpoints and cached
+ * cells, which is deserialized later and must not be writable by other users.
+ * <p>
+ * The directories are created readable and writable by their owner only, and
+ * an existing directory must belong to the user running the server; its
+ * permissions are narrowed if other users have access. On file systems
+ * without POSIX permissions the directories are created as they are.
+ */
+public final class PrivateDirectory {
+
+    private static final Logger logger = LoggerFactory.getLogger(PrivateDirectory.class);
+
+    private static final Set<PosixFilePermission> OWNER_ONLY = PosixFilePermissions.fromString("rwx------");
+
+    private PrivateDirectory() {
+    }
+
+    /**
+     * @param name The name of the directory, e.g. {@code checkpoints}
+     * @return The directory in the server user's own folder of {@code java.io.tmpdir}
+     */
+    public static Path defaultDirectory(String name) {
+        return base().resolve(name);
+    }
+
+    /**
+     * Create the directory if needed, and make sure that only its owner, the
+     * user running the server, has access to it. The server user's own folder
+     * of {@code java.io.tmpdir} is checked as well when it is the parent.
+     *
+     * @return The absolute directory
+     * @throws IOException If the directory belongs to another user
+     */
+    public static Path create(Path directory) throws IOException {
+        Path absolute = directory.toAbsolutePath();
+        if (!FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            return Files.createDirectories(absolute);
+        }
+        if (!Files.isDirectory(absolute)) {
+            // created owner-only, parents included
+            Files.createDirectories(absolute, PosixFilePermissions.asFileAttribute(OWNER_ONLY));
+        }
+        if (absolute.getParent() != null && absolute.getParent().equals(base())) {
+            secure(absolute.getParent());
+        }
+        secure(absolute);
+        return absolute;
+    }
+
+    private static void secure(Path directory) throws IOException {
+        UserPrincipal owner = Files.getOwner(directory);
+        String user = System.getProperty("user.name");
+        if (!owner.getName().equals(user)) {
+            throw new IOException(directory + " belongs to " + owner.getName() + " rather than " + user
+                    + ", refusing to keep kernel state in it");
+        }
+        Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(directory);
+        if (!OWNER_ONLY.containsAll(permissions)) {
+            logger.info("Restricting {} to its owner, it was {}", directory, PosixFilePermissions.toString(permissions));
+            Files.setPosixFilePermissions(directory, OWNER_ONLY);
+        }
+    }
+
+    private static Path base() {
+        return Paths.get(System.getProperty("java.io.tmpdir"), "micronaut-jupyter-" + System.getProperty("user.name")).toAbsolutePath();
+    }
+}
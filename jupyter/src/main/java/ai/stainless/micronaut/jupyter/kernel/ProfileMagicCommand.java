@@ -0,0 +1,122 @@
+package ai.stainless.micronaut.jupyter.kernel;
+
+import com.twosigma.beakerx.kernel.magic.command.MagicCommandExecutionParam;
+import com.twosigma.beakerx.kernel.magic.command.MagicCommandFunctionality;
+import com.twosigma.beakerx.kernel.magic.command.MagicCommandType;
+import com.twosigma.beakerx.kernel.magic.command.outcome.MagicCommandOutcomeItem;
+import com.twosigma.beakerx.kernel.magic.command.outcome.MagicCommandOutput;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Serializable;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The {@code %%profile} cell magic: runs the cell under a JDK Flight Recorder
+ * recording and displays a summary of what the cell's threads did. The
+ * recording, which covers the whole JVM, is kept in the kernel's temp folder.
+ * <p>
+ * {@code %%profile 20} lists 20 entries per table instead of 10. The cell is
+ * run by the {@code %%time} cell magic, so its timings are shown as well.
+ */
+public class ProfileMagicCommand implements MagicCommandFunctionality {
+
+    private static final Logger logger = LoggerFactory.getLogger(ProfileMagicCommand.class);
+
+    public static final String PROFILE = "%%profile";
+    public static final String USAGE = "[entries per table]";
+
+    private static final String TIME_CELL = "%%time";
+    private static final int DEFAULT_TOP = 10;
+    private static final Duration SAMPLING_PERIOD = Duration.ofMillis(10);
+
+    private final Micronaut kernel;
+    private int recordings;
+
+    public ProfileMagicCommand(Micronaut kernel) {
+        this.kernel = kernel;
+    }
+
+    @Override
+    public String getMagicCommandName() {
+        return PROFILE;
+    }
+
+    public boolean matchCommand(String command) {
+        String[] parts = command.trim().split("\\s+");
+        return parts.length > 0 && PROFILE.equals(parts[0]);
+    }
+
+    @Override
+    public MagicCommandOutcomeItem execute(MagicCommandExecutionParam param) {
+        String[] parts = param.getCommand().trim().split("\\s+");
+        int top = DEFAULT_TOP;
+        if (parts.length > 2) {
+            return error("Usage: " + PROFILE + " " + USAGE);
+        }
+        if (parts.length == 2) {
+            try {
+                top = Integer.parseInt(parts[1]);
+            } catch (NumberFormatException e) {
+                return error("Usage: " + PROFILE + " " + USAGE);
+            }
+        }
+        MagicCommandFunctionality timeCell = findTimeCellMagic();
+        if (timeCell == null) {
+            return error(PROFILE + " needs the " + TIME_CELL + " cell magic, which this kernel doesn't have");
+        }
+
+        CellProfile profile;
+        try {
+            // the cell thread is only known once the cell runs, so the filter looks it up afterwards
+            profile = new CellProfile(SAMPLING_PERIOD, top, thread ->
+                    CellProfile.threadsOf(kernel.getKernelId(), kernel.getCellThreadGroup()).test(thread));
+        } catch (Exception e) {
+            return error("Unable to start Flight Recorder: " + e.getMessage());
+        }
+        profile.start();
+        MagicCommandOutcomeItem outcome;
+        try {
+            outcome = timeCell.execute(param);
+        } finally {
+            report(profile, param);
+        }
+        return outcome;
+    }
+
+    private void report(CellProfile profile, MagicCommandExecutionParam param) {
+        IOPubPublisher publisher = new IOPubPublisher(kernel, param.getCode().getMessage());
+        try {
+            Path file = profile.stop(kernel.getProfileDirectory(), "cell-" + param.getExecutionCount() + "-" + nextRecording());
+            logger.debug("Kernel '{}' cell profile written to {}", kernel.getKernelId(), file);
+            Map<String, Serializable> data = new LinkedHashMap<>();
+            data.put("text/html", profile.toHtml());
+            data.put("text/plain", profile.toString());
+            publisher.displayData(data, new LinkedHashMap<>(), Collections.emptyList());
+        } catch (Exception e) {
+            logger.warn("Unable to summarize the profile of kernel '{}'", kernel.getKernelId(), e);
+            publisher.stream("stderr", "Unable to summarize the profile: " + e.getMessage() + "\n");
+        }
+    }
+
+    private synchronized int nextRecording() {
+        return ++recordings;
+    }
+
+    private MagicCommandFunctionality findTimeCellMagic() {
+        for (MagicCommandType type : kernel.getMagicCommandTypes()) {
+            if (TIME_CELL.equals(type.getCommand())) {
+                return type.getMagicCommandFunctionality();
+            }
+        }
+        return null;
+    }
+
+    private static MagicCommandOutcomeItem error(String text) {
+        return new MagicCommandOutput(MagicCommandOutcomeItem.Status.ERROR, text);
+    }
+}
@@ -0,0 +1,249 @@
+package ai.stainless.micronaut.jupyter.kernel;
+
+import com.twosigma.beakerx.TryResult;
+import io.reactivex.BackpressureStrategy;
+import io.reactivex.Completable;
+import io.reactivex.CompletableSource;
+import io.reactivex.Maybe;
+import io.reactivex.MaybeSource;
+import io.reactivex.Observable;
+import io.reactivex.ObservableSource;
+import io.reactivex.Single;
+import io.reactivex.SingleSource;
+import org.codehaus.groovy.runtime.StackTraceUtils;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.twosigma.beakerx.groovy.evaluator.GroovyStackTracePrettyPrinter.printStacktrace;
+
+/**
+ * The pending result of a cell whose value was a reactive type (a
+ * {@link Publisher}, an RxJava source or a {@link CompletionStage}).
+ * <p>
+ * Instead of stringifying the value, the cell runner subscribes to it and
+ * returns immediately, freeing the cell executor. Each emitted item is
+ * published to IOPub as display_data as soon as it arrives, one item is
+ * requested at a time so slow notebooks apply backpressure to the source,
+ * and the cell completes when the source completes.
+ */
+public class ReactiveCellResult {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReactiveCellResult.class);
+
+    private final IOPubPublisher publisher;
+    private final CompletableFuture<TryResult> completion = new CompletableFuture<>();
+    private final AtomicReference<Runnable> canceller = new AtomicReference<>();
+    private final AtomicLong emitted = new AtomicLong();
+
+    private ReactiveCellResult(IOPubPublisher publisher) {
+        this.publisher = publisher;
+    }
+
+    /**
+     * @return true if the given cell value is a reactive type that can be subscribed to
+     */
+    public static boolean isReactive(Object value) {
+        return value instanceof Publisher ||
+                value instanceof CompletionStage ||
+                value instanceof SingleSource ||
+                value instanceof MaybeSource ||
+                value instanceof CompletableSource ||
+                value instanceof ObservableSource;
+    }
+
+    /**
+     * Subscribe to the given reactive value, publishing every item it emits.
+     *
+     * @param value A value for which {@link #isReactive(Object)} is true
+     * @param publisher The IOPub publisher for the cell that produced the value
+     * @return The pending result, completed when the source completes
+     */
+    public static ReactiveCellResult subscribe(Object value, IOPubPublisher publisher) {
+        ReactiveCellResult result = new ReactiveCellResult(publisher);
+        if (value instanceof CompletionStage) {
+            result.subscribeStage((CompletionStage<?>) value);
+        } else {
+            toPublisher(value).subscribe(result.new ItemSubscriber());
+        }
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Publisher<Object> toPublisher(Object value) {
+        if (value instanceof Publisher) {
+            return (Publisher<Object>) value;
+        }
+        if (value instanceof SingleSource) {
+            return Single.wrap((SingleSource<Object>) value).toFlowable();
+        }
+        if (value instanceof MaybeSource) {
+            return Maybe.wrap((MaybeSource<Object>) value).toFlowable();
+        }
+        if (value instanceof CompletableSource) {
+            return Completable.wrap((CompletableSource) value).toFlowable();
+        }
+        if (value instanceof ObservableSource) {
+            // observables have no backpressure, so buffer what the notebook can't keep up with
+            return Observable.wrap((ObservableSource<Object>) value).toFlowable(BackpressureStrategy.BUFFER);
+        }
+        throw new IllegalArgumentException("Not a reactive type: " + value.getClass().getName());
+    }
+
+    private void subscribeStage(CompletionStage<?> stage) {
+        // toCompletableFuture() is optional, so a cancelled stage is only ignored, and cancelled if it's a future
+        AtomicBoolean cancelled = new AtomicBoolean();
+        canceller.set(() -> {
+            cancelled.set(true);
+            if (stage instanceof Future) {
+                ((Future<?>) stage).cancel(true);
+            }
+        });
+        stage.whenComplete((item, error) -> {
+            if (cancelled.get()) {
+                return;
+            }
+            if (error != null) {
+                fail(error);
+            } else {
+                if (item != null) {
+                    emit(item);
+                }
+                complete();
+            }
+        });
+    }
+
+    /**
+     * Block until the source completes.
+     *
+     * @return The final result of the cell
+     * @throws InterruptedException if the waiting thread is interrupted, the
+     * subscription is left running and should be cancelled by the caller
+     */
+    public TryResult await() throws InterruptedException {
+        try {
+            return completion.get();
+        } catch (ExecutionException e) {
+            return TryResult.createError(String.valueOf(e.getCause()));
+        }
+    }
+
+    /**
+     * Block until the source completes, cancelling the subscription if it
+     * doesn't complete in time.
+     *
+     * @param timeoutMillis How long to wait, or 0 to wait for as long as it takes
+     * @return The final result of the cell
+     * @throws InterruptedException if the waiting thread is interrupted, the
+     * subscription is left running and should be cancelled by the caller
+     */
+    public TryResult await(long timeoutMillis) throws InterruptedException {
+        if (timeoutMillis <= 0) {
+            return await();
+        }
+        try {
+            return completion.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            return TryResult.createError(String.valueOf(e.getCause()));
+        } catch (TimeoutException e) {
+            long items = emitted.get();
+            cancel();
+            return TryResult.createError("Reactive result did not complete within " + timeoutMillis + "ms, cancelled after " + items + " items");
+        }
+    }
+
+    /**
+     * Cancel the subscription. The cell completes with an error.
+     */
+    public void cancel() {
+        Runnable cancel = canceller.getAndSet(null);
+        if (cancel != null) {
+            logger.debug("Cancelling reactive cell result after {} items", emitted.get());
+            cancel.run();
+        }
+        completion.complete(TryResult.createError("Reactive result cancelled after " + emitted.get() + " items"));
+    }
+
+    public boolean isDone() {
+        return completion.isDone();
+    }
+
+    /**
+     * @return The number of items published so far
+     */
+    public long getEmittedCount() {
+        return emitted.get();
+    }
+
+    private void emit(Object item) {
+        if (completion.isDone()) {
+            return;
+        }
+        emitted.incrementAndGet();
+        try {
+            publisher.display(item);
+        } catch (Exception e) {
+            logger.warn("Unable to publish reactive item to notebook", e);
+        }
+    }
+
+    private void complete() {
+        logger.debug("Reactive cell result completed after {} items", emitted.get());
+        canceller.set(null);
+        completion.complete(TryResult.createResult(null));
+    }
+
+    private void fail(Throwable error) {
+        canceller.set(null);
+        StringWriter sw = new StringWriter();
+        StackTraceUtils.sanitize(error).printStackTrace(new PrintWriter(sw));
+        completion.complete(TryResult.createError(printStacktrace(MicronautCodeRunner.SCRIPT_NAME, sw.toString())));
+    }
+
+    private class ItemSubscriber implements Subscriber<Object> {
+
+        private volatile Subscription subscription;
+
+        @Override
+        public void onSubscribe(Subscription s) {
+            subscription = s;
+            canceller.set(s::cancel);
+            s.request(1);
+        }
+
+        @Override
+        public void onNext(Object item) {
+            emit(item);
+            // only ask for the next item once this one has been handed to IOPub
+            Subscription s = subscription;
+            if (s != null && !completion.isDone()) {
+                s.request(1);
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            fail(t);
+        }
+
+        @Override
+        public void onComplete() {
+            complete();
+        }
+    }
+}
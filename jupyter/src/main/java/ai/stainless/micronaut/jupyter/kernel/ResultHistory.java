@@ -0,0 +1,132 @@
+package ai.stainless.micronaut.jupyter.kernel;
+
+import java.lang.ref.SoftReference;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * The most recent cell results of a kernel, numbered in the order the cells
+ * finished.
+ * <p>
+ * At most a fixed number of results is kept. {@link MemoryBudget} can also
+ * evict a result, which then only stays reachable through a soft reference
+ * until the garbage collector needs the memory.
+ */
+public class ResultHistory {
+
+    private final int maxResults;
+    private final Deque<Entry> entries = new ArrayDeque<>();
+    private int count;
+
+    /**
+     * @param maxResults The number of results kept
+     */
+    public ResultHistory(int maxResults) {
+        this.maxResults = maxResults;
+    }
+
+    /**
+     * Add the result of a cell, dropping the oldest one if the history is full.
+     *
+     * @return The number of the result
+     */
+    public synchronized int add(Object result) {
+        count++;
+        if (maxResults <= 0) {
+            return count;
+        }
+        entries.addLast(new Entry(count, result));
+        while (entries.size() > maxResults) {
+            entries.removeFirst();
+        }
+        return count;
+    }
+
+    /**
+     * @return The result with the given number
+     * @throws NoSuchElementException if the result is no longer available
+     */
+    public synchronized Object get(int number) {
+        for (Entry entry : entries) {
+            if (entry.number == number) {
+                if (!entry.isAvailable()) {
+                    throw new NoSuchElementException("Result " + number + " was evicted to stay within the kernel memory budget");
+                }
+                return entry.getValue();
+            }
+        }
+        throw new NoSuchElementException("Result " + number + " is not in the history of the last " + maxResults + " results");
+    }
+
+    /**
+     * @return The most recent result, or null if there is none
+     */
+    public synchronized Object getLast() {
+        Entry last = entries.peekLast();
+        return last != null ? last.getValue() : null;
+    }
+
+    /**
+     * @return The entries, oldest first
+     */
+    public synchronized List<Entry> entries() {
+        return new ArrayList<>(entries);
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public int getMaxResults() {
+        return maxResults;
+    }
+
+    /**
+     * A result of the history.
+     */
+    public static class Entry {
+
+        private final int number;
+        private volatile Object value;
+        private final SoftReference<Object> softValue;
+
+        Entry(int number, Object value) {
+            this.number = number;
+            this.value = value;
+            this.softValue = new SoftReference<>(value);
+        }
+
+        public int getNumber() {
+            return number;
+        }
+
+        public Object getValue() {
+            Object strong = value;
+            return strong != null ? strong : softValue.get();
+        }
+
+        /**
+         * @return true while the result is strongly held
+         */
+        public boolean isHeld() {
+            return value != null;
+        }
+
+        /**
+         * @return false once the result was evicted and collected
+         */
+        public boolean isAvailable() {
+            return value != null || softValue.get() != null;
+        }
+
+        /**
+         * Only keep the result through a soft reference.
+         */
+        void evict() {
+            value = null;
+        }
+    }
+}
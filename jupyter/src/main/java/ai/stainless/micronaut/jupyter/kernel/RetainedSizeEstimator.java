@@ -0,0 +1,250 @@
+package ai.stainless.micronaut.jupyter.kernel;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Estimates the heap retained by an object graph by walking it, without an
+ * instrumentation agent.
+ * <p>
+ * Sizes follow a 64-bit JVM with compressed references: a 12 byte header,
+ * 4 byte references and 8 byte alignment. JDK classes that can't be
+ * reflected into are walked through their collection and map views, or
+ * counted shallowly. The walk stops after a number of objects, or at a
+ * deadline, in which case the estimate is a lower bound. Framework objects (Micronaut, Netty,
+ * Groovy, classes and class loaders) are not counted.
+ */
+public class RetainedSizeEstimator {
+
+    private static final int HEADER = 12;
+    private static final int ARRAY_HEADER = 16;
+    private static final int REFERENCE = 4;
+
+    private static final String[] SHARED_PACKAGES = {
+            "io.micronaut.", "io.netty.", "com.twosigma.", "groovy.lang.", "org.codehaus.groovy."
+    };
+
+    /** Kept with each class rather than in a map, so the classes of a discarded kernel can be unloaded */
+    private static final ClassValue<ClassLayout> LAYOUTS = new ClassValue<ClassLayout>() {
+        @Override
+        protected ClassLayout computeValue(Class<?> type) {
+            return new ClassLayout(type);
+        }
+    };
+
+    /** How many objects are walked between checks of the deadline */
+    private static final int DEADLINE_CHECK_INTERVAL = 1024;
+
+    private final int maxObjects;
+
+    /**
+     * @param maxObjects The largest number of objects walked per estimate
+     */
+    public RetainedSizeEstimator(int maxObjects) {
+        this.maxObjects = maxObjects;
+    }
+
+    /**
+     * @return A set to pass to {@link #estimate(Object, Set)}, comparing objects by identity
+     */
+    public static Set<Object> newSeenSet() {
+        return Collections.newSetFromMap(new IdentityHashMap<>());
+    }
+
+    /**
+     * Estimate the size of the graph reachable from a root. Objects already in
+     * {@code seen} are not counted again, so an object shared by several
+     * roots only counts towards the first one.
+     *
+     * @param seen Objects already counted, shared between calls to count shared objects once
+     */
+    public Estimate estimate(Object root, Set<Object> seen) {
+        return estimate(root, seen, maxObjects, 0);
+    }
+
+    /**
+     * Estimate the size of the graph reachable from a root, walking at most
+     * {@code limit} objects and stopping at the deadline.
+     *
+     * @param seen Objects already counted, shared between calls to count shared objects once
+     * @param limit The largest number of objects to walk, capped at the estimator's own limit
+     * @param deadlineNanos The {@link System#nanoTime()} at which to stop walking, or 0 for none
+     */
+    public Estimate estimate(Object root, Set<Object> seen, long limit, long deadlineNanos) {
+        long maxWalked = Math.min(limit, maxObjects);
+        Estimate estimate = new Estimate();
+        if (root == null) {
+            return estimate;
+        }
+        Deque<Object> pending = new ArrayDeque<>();
+        pending.push(root);
+        while (!pending.isEmpty()) {
+            Object object = pending.pop();
+            if (!seen.add(object)) {
+                continue;
+            }
+            if (++estimate.objects > maxWalked || (deadlineNanos != 0
+                    && estimate.objects % DEADLINE_CHECK_INTERVAL == 0 && System.nanoTime() - deadlineNanos > 0)) {
+                estimate.truncated = true;
+                break;
+            }
+            Class<?> type = object.getClass();
+            if (type.isArray()) {
+                int length = Array.getLength(object);
+                Class<?> component = type.getComponentType();
+                estimate.bytes += align(ARRAY_HEADER + (long) length * (component.isPrimitive() ? primitiveSize(component) : REFERENCE));
+                if (!component.isPrimitive()) {
+                    for (int i = 0; i < length; i++) {
+                        push(pending, Array.get(object, i));
+                    }
+                }
+                continue;
+            }
+            ClassLayout layout = LAYOUTS.get(type);
+            estimate.bytes += layout.shallowSize;
+            if (layout.accessible) {
+                for (Field field : layout.referenceFields) {
+                    try {
+                        push(pending, field.get(object));
+                    } catch (IllegalAccessException e) {
+                        // counted shallowly
+                    }
+                }
+            } else if (object instanceof String) {
+                estimate.bytes += align(ARRAY_HEADER + ((String) object).length());
+            } else if (object instanceof Map) {
+                // approximate the entries of an inaccessible map implementation
+                for (Map.Entry<?, ?> entry : snapshot(((Map<?, ?>) object).entrySet())) {
+                    estimate.bytes += align(HEADER + 4 * REFERENCE);
+                    push(pending, entry.getKey());
+                    push(pending, entry.getValue());
+                }
+            } else if (object instanceof Collection) {
+                for (Object element : snapshot((Collection<?>) object)) {
+                    estimate.bytes += REFERENCE;
+                    push(pending, element);
+                }
+            }
+        }
+        return estimate;
+    }
+
+    private static void push(Deque<Object> pending, Object value) {
+        if (value != null && !isShared(value)) {
+            pending.push(value);
+        }
+    }
+
+    /**
+     * Infrastructure shared by the whole application, such as the
+     * application context a bean refers to, is not part of a variable's size.
+     */
+    private static boolean isShared(Object value) {
+        if (value instanceof Class || value instanceof ClassLoader || value instanceof Thread) {
+            return true;
+        }
+        String name = value.getClass().getName();
+        for (String prefix : SHARED_PACKAGES) {
+            if (name.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static <T> List<T> snapshot(Collection<T> collection) {
+        try {
+            return new ArrayList<>(collection);
+        } catch (RuntimeException e) {
+            // concurrently modified, or a lazy view that fails to iterate
+            return Collections.emptyList();
+        }
+    }
+
+    private static long align(long size) {
+        return (size + 7) & ~7L;
+    }
+
+    private static int primitiveSize(Class<?> type) {
+        if (type == long.class || type == double.class) {
+            return 8;
+        }
+        if (type == int.class || type == float.class) {
+            return 4;
+        }
+        if (type == short.class || type == char.class) {
+            return 2;
+        }
+        return 1;
+    }
+
+    /**
+     * The estimated size of an object graph.
+     */
+    public static class Estimate {
+
+        private long bytes;
+        private long objects;
+        private boolean truncated;
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getObjects() {
+            return objects;
+        }
+
+        /**
+         * @return true if the walk stopped early, and the size is a lower bound
+         */
+        public boolean isTruncated() {
+            return truncated;
+        }
+    }
+
+    private static class ClassLayout {
+
+        private final long shallowSize;
+        private final List<Field> referenceFields = new ArrayList<>();
+        private final boolean accessible;
+
+        ClassLayout(Class<?> type) {
+            long size = HEADER;
+            boolean accessible = true;
+            for (Class<?> current = type; current != null; current = current.getSuperclass()) {
+                for (Field field : current.getDeclaredFields()) {
+                    if (Modifier.isStatic(field.getModifiers())) {
+                        continue;
+                    }
+                    Class<?> fieldType = field.getType();
+                    size += fieldType.isPrimitive() ? primitiveSize(fieldType) : REFERENCE;
+                    if (!fieldType.isPrimitive()) {
+                        try {
+                            field.setAccessible(true);
+                            referenceFields.add(field);
+                        } catch (RuntimeException e) {
+                            // a JDK class the module system doesn't open
+                            accessible = false;
+                        }
+                    }
+                }
+            }
+            this.shallowSize = align(size);
+            this.accessible = accessible;
+            if (!accessible) {
+                referenceFields.clear();
+            }
+        }
+    }
+}
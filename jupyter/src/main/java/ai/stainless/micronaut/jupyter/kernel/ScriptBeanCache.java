@@ -0,0 +1,72 @@
+package ai.stainless.micronaut.jupyter.kernel;
+
+import io.micronaut.context.ApplicationContext;
+import io.micronaut.inject.BeanDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The beans a kernel's scripts have looked up with {@code service} or
+ * {@code @Inject}, by type, so loops don't pay for bean resolution on every
+ * iteration.
+ * <p>
+ * Only singleton beans are cached; other scopes are resolved on every call,
+ * as {@link ApplicationContext#getBean(Class)} would. The cache is cleared
+ * on a {@link io.micronaut.runtime.context.scope.refresh.RefreshEvent}.
+ */
+public class ScriptBeanCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(ScriptBeanCache.class);
+
+    private final ApplicationContext applicationContext;
+    private final Map<Class<?>, Object> beans = new ConcurrentHashMap<>();
+
+    public ScriptBeanCache(ApplicationContext applicationContext) {
+        this.applicationContext = applicationContext;
+    }
+
+    /**
+     * @return The bean of the given type, resolved once if it is a singleton
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T get(Class<T> beanType) {
+        Object bean = beans.get(beanType);
+        if (bean != null) {
+            return (T) bean;
+        }
+        T resolved = applicationContext.getBean(beanType);
+        if (isSingleton(beanType)) {
+            Object raced = beans.putIfAbsent(beanType, resolved);
+            return raced != null ? (T) raced : resolved;
+        }
+        return resolved;
+    }
+
+    /**
+     * Forget the cached beans, so they are resolved again on next use.
+     */
+    public void invalidate() {
+        if (!beans.isEmpty()) {
+            logger.debug("Invalidating {} cached script beans", beans.size());
+            beans.clear();
+        }
+    }
+
+    public int size() {
+        return beans.size();
+    }
+
+    private boolean isSingleton(Class<?> beanType) {
+        try {
+            Optional<? extends BeanDefinition<?>> definition = applicationContext.findBeanDefinition(beanType);
+            return definition.isPresent() && definition.get().isSingleton();
+        } catch (RuntimeException e) {
+            // e.g. several candidates, which getBean resolved through a primary bean
+            return false;
+        }
+    }
+}
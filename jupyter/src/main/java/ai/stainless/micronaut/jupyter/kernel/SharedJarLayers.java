@@ -0,0 +1,138 @@
+package ai.stainless.micronaut.jupyter.kernel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Class loaders for Maven jars, shared by the kernels that added the same
+ * artifacts, so that common dependencies are loaded once per server rather
+ * than once per kernel.
+ * <p>
+ * Each {@code %classpath add mvn} adds a layer on top of the kernel's
+ * previous layer, holding the jars that were not on the classpath yet. A
+ * layer's parent is the layer below it, so its classes can link against jars
+ * added by earlier commands. Kernels that added the same jars in the same
+ * order share the whole chain. Layers are reference counted, and closed when
+ * no kernel or layer above uses them anymore.
+ * <p>
+ * Static state of shared libraries is shared between those kernels too.
+ */
+public class SharedJarLayers {
+
+    private static final Logger logger = LoggerFactory.getLogger(SharedJarLayers.class);
+
+    private final ClassLoader root;
+    private final Map<String, Layer> layers = new HashMap<>();
+
+    /**
+     * @param root The parent of the bottom layers, which sees the application's classes
+     */
+    public SharedJarLayers(ClassLoader root) {
+        this.root = root;
+    }
+
+    /**
+     * Get the layer with the given jars on top of a parent layer, creating it
+     * if no kernel uses it yet. The caller holds a reference to it.
+     *
+     * @param parent The kernel's current layer, or null
+     */
+    public synchronized Layer acquire(Layer parent, List<Path> jars) {
+        List<String> sorted = new ArrayList<>();
+        jars.forEach(jar -> sorted.add(jar.toAbsolutePath().normalize().toString()));
+        Collections.sort(sorted);
+        String key = (parent != null ? parent.key + "|" : "") + String.join(",", sorted);
+
+        Layer layer = layers.get(key);
+        if (layer == null) {
+            URL[] urls = new URL[jars.size()];
+            for (int i = 0; i < urls.length; i++) {
+                try {
+                    urls[i] = jars.get(i).toUri().toURL();
+                } catch (MalformedURLException e) {
+                    throw new IllegalArgumentException("Invalid jar " + jars.get(i), e);
+                }
+            }
+            layer = new Layer(key, parent, jars, new URLClassLoader("jupyter-shared-layer", urls, parent != null ? parent.loader : root));
+            if (parent != null) {
+                parent.references++;
+            }
+            layers.put(key, layer);
+            logger.debug("Created shared class loader layer of {} jars, {} layers in use", jars.size(), layers.size());
+        }
+        layer.references++;
+        return layer;
+    }
+
+    /**
+     * Release a reference to a layer, closing it and releasing its parent if
+     * it is no longer used.
+     */
+    public synchronized void release(Layer layer) {
+        while (layer != null && --layer.references == 0) {
+            layers.remove(layer.key);
+            try {
+                layer.loader.close();
+            } catch (IOException e) {
+                logger.debug("Unable to close shared class loader layer", e);
+            }
+            layer = layer.parent;
+        }
+    }
+
+    /**
+     * @return The number of layers in use
+     */
+    public synchronized int size() {
+        return layers.size();
+    }
+
+    /**
+     * Jars loaded by one class loader, shared between kernels.
+     */
+    public static class Layer {
+
+        private final String key;
+        private final Layer parent;
+        private final List<Path> jars;
+        private final URLClassLoader loader;
+        private int references;
+
+        Layer(String key, Layer parent, List<Path> jars, URLClassLoader loader) {
+            this.key = key;
+            this.parent = parent;
+            this.jars = Collections.unmodifiableList(new ArrayList<>(jars));
+            this.loader = loader;
+        }
+
+        public ClassLoader getClassLoader() {
+            return loader;
+        }
+
+        URLClassLoader getJarClassLoader() {
+            return loader;
+        }
+
+        /**
+         * @return The jars of this layer, without those of the layers below
+         */
+        public List<Path> getJars() {
+            return jars;
+        }
+
+        public Layer getParent() {
+            return parent;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package ai.stainless.micronaut.jupyter.kernel;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+
+/**
+ * Sits between a kernel's script class loader and its jar class loader, and
+ * finds the classes its parent doesn't have in the kernel's current
+ * {@link SharedJarLayers.Layer}. The layer changes as jars are added.
+ */
+public class SharedLayerClassLoader extends ClassLoader {
+
+    private volatile SharedJarLayers.Layer layer;
+
+    public SharedLayerClassLoader(ClassLoader parent, SharedJarLayers.Layer layer) {
+        super(parent);
+        this.layer = layer;
+    }
+
+    public void setLayer(SharedJarLayers.Layer layer) {
+        this.layer = layer;
+    }
+
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+        SharedJarLayers.Layer current = layer;
+        if (current == null) {
+            throw new ClassNotFoundException(name);
+        }
+        return current.getClassLoader().loadClass(name);
+    }
+
+    /**
+     * Resources are only looked up in the layers' own jars, as the parent
+     * already returned those of the application.
+     */
+    @Override
+    protected URL findResource(String name) {
+        for (SharedJarLayers.Layer current = layer; current != null; current = current.getParent()) {
+            URL resource = current.getJarClassLoader().findResource(name);
+            if (resource != null) {
+                return resource;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    protected Enumeration<URL> findResources(String name) throws IOException {
+        List<URL> resources = new ArrayList<>();
+        for (SharedJarLayers.Layer current = layer; current != null; current = current.getParent()) {
+            resources.addAll(Collections.list(current.getJarClassLoader().findResources(name)));
+        }
+        return Collections.enumeration(resources);
+    }
+}
@@ -0,0 +1,352 @@
+package ai.stainless.micronaut.jupyter.kernel;
+
+import groovy.lang.GroovyClassLoader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+/**
+ * Finds the threads a kernel's cells started and left running, such as
+ * timers, schedulers and HTTP client pools.
+ * <p>
+ * Cells run on a thread of the evaluator's thread group, and threads they
+ * start, directly or through thread factories, join that group. The threads
+ * of the group are listed before and after each cell; those that appeared
+ * during the cell and are still alive once it completes were left behind by
+ * it. Cells of a kernel run one at a time, so threads started in the
+ * background by an earlier cell are never attributed to a later one.
+ * <p>
+ * Threads are held weakly and forgotten once they end. Threads of shared
+ * pools that happen to be created during a cell, such as the common
+ * fork-join pool, the kernel's own pools and the application's executors,
+ * are ignored.
+ * <p>
+ * A library called by a cell may also start threads of its own, which must
+ * not be stopped under it. A thread is only attributed to the cell when its
+ * class, or code on its stack such as the closure it runs, was compiled by
+ * the kernel's script class loader. Other threads are reported, and are
+ * only stopped when {@link #setStopUnattributed(boolean)} is set.
+ */
+public class ThreadLeakTracker {
+
+    private static final Logger logger = LoggerFactory.getLogger(ThreadLeakTracker.class);
+
+    private static final String KERNEL_THREAD_PREFIX = "Jupyter-";
+
+    private final String kernelId;
+    private final Pattern ignored;
+    /** Threads left running, with the execution count of the cell that started them */
+    private final Map<Thread, Integer> leaked = new WeakHashMap<>();
+    /** The leaked threads seen running code of the cell */
+    private final Set<Thread> attributed = Collections.newSetFromMap(new WeakHashMap<>());
+    private volatile Supplier<ClassLoader> scriptClassLoader = () -> null;
+    private volatile boolean stopUnattributed;
+    private long leakedTotal;
+    private long stoppedTotal;
+
+    /**
+     * @param kernelId The ID of the kernel, used for logging
+     * @param ignored Names of threads that belong to shared pools and are never reported, or null
+     */
+    public ThreadLeakTracker(String kernelId, Pattern ignored) {
+        this.kernelId = kernelId;
+        this.ignored = ignored;
+    }
+
+    /**
+     * @param scriptClassLoader The kernel's current script class loader, whose
+     * classes are the cells' own; it changes when the kernel is reset
+     */
+    public void setScriptClassLoader(Supplier<ClassLoader> scriptClassLoader) {
+        this.scriptClassLoader = scriptClassLoader;
+    }
+
+    /**
+     * @param stopUnattributed true to also stop threads started during a cell
+     * that run no code of it, such as the threads of libraries it called
+     */
+    public void setStopUnattributed(boolean stopUnattributed) {
+        this.stopUnattributed = stopUnattributed;
+    }
+
+    /**
+     * List the threads alive when a cell starts. Called on the cell thread.
+     */
+    public Snapshot begin() {
+        ThreadGroup group = Thread.currentThread().getThreadGroup();
+        Set<Thread> before = Collections.newSetFromMap(new WeakHashMap<>());
+        before.addAll(threadsOf(group));
+        return new Snapshot(group, before);
+    }
+
+    /**
+     * Find the threads started during a cell that are still alive once it
+     * completes. Called on the cell thread.
+     *
+     * @param snapshot Taken when the cell started
+     * @param executionCount The number of the cell
+     * @return The threads the cell left running
+     */
+    public List<Thread> end(Snapshot snapshot, int executionCount) {
+        if (snapshot.group == null) {
+            return Collections.emptyList();
+        }
+        List<Thread> started = new ArrayList<>();
+        Thread current = Thread.currentThread();
+        for (Thread thread : threadsOf(snapshot.group)) {
+            if (thread != current && thread.isAlive() && !snapshot.before.contains(thread) && !isIgnored(thread)) {
+                started.add(thread);
+            }
+        }
+        if (!started.isEmpty()) {
+            // seen now, while the threads are likely still running the cell's code
+            attributedOf(started);
+            synchronized (this) {
+                for (Thread thread : started) {
+                    leaked.put(thread, executionCount);
+                }
+                leakedTotal += started.size();
+            }
+            logger.debug("Cell {} of kernel '{}' left {} threads running: {}", executionCount, kernelId, started.size(), names(started));
+        }
+        return started;
+    }
+
+    /**
+     * @return The threads cells left running that are still alive
+     */
+    public synchronized List<Thread> alive() {
+        List<Thread> alive = new ArrayList<>();
+        for (Thread thread : leaked.keySet()) {
+            if (thread.isAlive()) {
+                alive.add(thread);
+            }
+        }
+        return alive;
+    }
+
+    /**
+     * Stop every thread cells left running.
+     *
+     * @see #stop(List, long)
+     */
+    public List<Thread> stopAll(long graceMillis) {
+        return stop(alive(), graceMillis);
+    }
+
+    /**
+     * Interrupt the threads attributed to cells and wait for them to end.
+     * Threads that ignore the interrupt, as pool workers and timers do, are
+     * then stopped forcibly, as BeakerX stops cell threads. Threads not
+     * attributed to a cell are left running, unless
+     * {@link #setStopUnattributed(boolean)} is set.
+     *
+     * @param graceMillis How long to wait for the threads to end after interrupting them
+     * @return The threads still alive afterwards, including those left running
+     */
+    @SuppressWarnings({"deprecation", "removal"})
+    public List<Thread> stop(List<Thread> candidates, long graceMillis) {
+        if (candidates.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Thread> threads = stopUnattributed ? candidates : attributedOf(candidates);
+        List<Thread> skipped = new ArrayList<>(candidates);
+        skipped.removeAll(threads);
+        if (!skipped.isEmpty()) {
+            logger.info("Leaving {} threads of kernel '{}' running, they run no code of its cells: {}",
+                    skipped.size(), kernelId, names(skipped));
+        }
+        threads.forEach(Thread::interrupt);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(graceMillis);
+        for (Thread thread : threads) {
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0) {
+                break;
+            }
+            try {
+                thread.join(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        for (Thread thread : threads) {
+            if (thread.isAlive()) {
+                try {
+                    thread.stop();
+                } catch (UnsupportedOperationException e) {
+                    logger.debug("Unable to stop thread '{}' of kernel '{}'", thread.getName(), kernelId);
+                }
+            }
+        }
+        List<Thread> survivors = new ArrayList<>();
+        for (Thread thread : threads) {
+            try {
+                thread.join(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (thread.isAlive()) {
+                survivors.add(thread);
+            }
+        }
+        List<Thread> stubborn = new ArrayList<>(survivors);
+        for (Thread thread : skipped) {
+            if (thread.isAlive()) {
+                survivors.add(thread);
+            }
+        }
+        int stopped = threads.size() - stubborn.size();
+        synchronized (this) {
+            stoppedTotal += stopped;
+        }
+        logger.info("Stopped {} threads left running by kernel '{}'{}", stopped, kernelId,
+                stubborn.isEmpty() ? "" : ", " + stubborn.size() + " would not stop: " + names(stubborn));
+        return survivors;
+    }
+
+    /**
+     * @return The threads left running by cells and still alive, and the totals since the kernel started
+     */
+    public synchronized Map<String, Object> stats() {
+        List<Map<String, Object>> threads = new ArrayList<>();
+        for (Map.Entry<Thread, Integer> entry : leaked.entrySet()) {
+            Thread thread = entry.getKey();
+            if (thread.isAlive()) {
+                Map<String, Object> info = new LinkedHashMap<>();
+                info.put("name", thread.getName());
+                info.put("cell", entry.getValue());
+                info.put("attributed", attributed.contains(thread));
+                info.put("state", thread.getState().name());
+                info.put("daemon", thread.isDaemon());
+                threads.add(info);
+            }
+        }
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("alive", threads.size());
+        stats.put("leakedTotal", leakedTotal);
+        stats.put("stoppedTotal", stoppedTotal);
+        stats.put("threads", threads);
+        return stats;
+    }
+
+    /**
+     * @return The threads whose class, or code on whose stack, comes from the
+     * script class loader, including those seen doing so earlier
+     */
+    private List<Thread> attributedOf(List<Thread> threads) {
+        ClassLoader loader = scriptClassLoader.get();
+        Set<String> scriptClasses = new HashSet<>();
+        if (loader instanceof GroovyClassLoader) {
+            for (Class<?> type : ((GroovyClassLoader) loader).getLoadedClasses()) {
+                scriptClasses.add(type.getName());
+            }
+        }
+        List<Thread> own = new ArrayList<>();
+        for (Thread thread : threads) {
+            boolean known;
+            synchronized (this) {
+                known = attributed.contains(thread);
+            }
+            if (known || definedBy(thread.getClass(), loader) || runsAny(thread, scriptClasses)) {
+                own.add(thread);
+            }
+        }
+        if (!own.isEmpty()) {
+            synchronized (this) {
+                attributed.addAll(own);
+            }
+        }
+        return own;
+    }
+
+    private static boolean runsAny(Thread thread, Set<String> classNames) {
+        if (classNames.isEmpty()) {
+            return false;
+        }
+        for (StackTraceElement frame : thread.getStackTrace()) {
+            if (classNames.contains(frame.getClassName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the class was loaded by the loader or one of its children, as cell classes are
+     */
+    private static boolean definedBy(Class<?> type, ClassLoader loader) {
+        if (loader == null) {
+            return false;
+        }
+        for (ClassLoader parent = type.getClassLoader(); parent != null; parent = parent.getParent()) {
+            if (parent == loader) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isIgnored(Thread thread) {
+        if (thread instanceof ForkJoinWorkerThread && ((ForkJoinWorkerThread) thread).getPool() == ForkJoinPool.commonPool()) {
+            return true;
+        }
+        // the pools of the kernel itself, see KernelParallelism
+        if (thread.getName().startsWith(KERNEL_THREAD_PREFIX)) {
+            return true;
+        }
+        return ignored != null && ignored.matcher(thread.getName()).matches();
+    }
+
+    private static List<Thread> threadsOf(ThreadGroup group) {
+        if (group == null) {
+            return Collections.emptyList();
+        }
+        // enumerate only fills the array, so retry with a larger one until it fits
+        Thread[] threads = new Thread[group.activeCount() + 8];
+        int count;
+        while ((count = group.enumerate(threads, true)) == threads.length) {
+            threads = new Thread[threads.length * 2];
+        }
+        return Arrays.asList(threads).subList(0, count);
+    }
+
+    /**
+     * @return The names of the threads, for reports
+     */
+    public static String names(List<Thread> threads) {
+        List<String> names = new ArrayList<>();
+        for (Thread thread : threads) {
+            names.add(thread.getName());
+        }
+        return String.join(", ", names);
+    }
+
+    /**
+     * The threads of the cell thread's group when a cell started.
+     */
+    public static class Snapshot {
+
+        private final ThreadGroup group;
+        private final Set<Thread> before;
+
+        Snapshot(ThreadGroup group, Set<Thread> before) {
+            this.group = group;
+            this.before = before;
+        }
+    }
+}
@@ -48,6 +48,10 @@ public class TrackableKernelSocketsFactory implements KernelSocketsFactory {
         return sockets;
     }
 
+    public ConfigurationFile getConfigurationFile() {
+        return configurationFile;
+    }
+
     public ArrayList<KernelSockets> getInstances() {
         return instances;
     }
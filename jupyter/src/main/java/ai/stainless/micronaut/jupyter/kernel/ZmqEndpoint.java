@@ -0,0 +1,47 @@
+package ai.stainless.micronaut.jupyter.kernel;
+
+/**
+ * Builds socket endpoints the way Jupyter does for the transport of a
+ * connection file, {@code tcp://<ip>:<port>}.
+ * <p>
+ * Jupyter's other transport, {@code ipc}, binds Unix domain sockets. The
+ * bundled JeroMQ has no Unix domain socket transport and binds {@code ipc}
+ * endpoints over TCP loopback instead, where Jupyter can't connect to them,
+ * so connections using it are rejected when a kernel is started.
+ */
+public final class ZmqEndpoint {
+
+    public static final String TCP = "tcp";
+    public static final String IPC = "ipc";
+
+    private ZmqEndpoint() {
+    }
+
+    public static boolean isIpc(String transport) {
+        return IPC.equalsIgnoreCase(transport);
+    }
+
+    /**
+     * Check that sockets can be bound for the transport of a connection.
+     *
+     * @param transport The transport of the connection, tcp if null
+     * @throws IllegalArgumentException If the transport is not supported
+     */
+    public static void checkTransport(String transport) {
+        if (transport == null || TCP.equalsIgnoreCase(transport)) {
+            return;
+        }
+        if (isIpc(transport)) {
+            throw new IllegalArgumentException("The ipc transport is not supported: the bundled JeroMQ has no "
+                    + "Unix domain socket transport, start the kernel with the tcp transport instead");
+        }
+        throw new IllegalArgumentException("Unsupported transport '" + transport + "', only tcp is supported");
+    }
+
+    /**
+     * @return The endpoint to bind for the given transport, host and port
+     */
+    public static String address(String transport, String host, int port) {
+        return transport + "://" + host + ":" + port;
+    }
+}
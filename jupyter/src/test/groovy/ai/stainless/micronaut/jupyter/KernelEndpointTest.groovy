@@ -1,6 +1,7 @@
 
 package ai.stainless.micronaut.jupyter
 
+import com.twosigma.beakerx.kernel.Kernel
 import io.micronaut.context.ApplicationContext
 import io.micronaut.core.type.Argument
 import io.micronaut.http.HttpRequest
@@ -9,11 +10,17 @@ import io.micronaut.http.HttpStatus
 import io.micronaut.runtime.server.EmbeddedServer
 import io.micronaut.context.env.Environment
 import io.micronaut.rxjava2.http.client.RxHttpClient
+import io.micronaut.security.authentication.Authentication
+import io.micronaut.http.client.exceptions.HttpClientResponseException
 import spock.lang.Specification
 import spock.lang.AutoCleanup
 
+import java.util.concurrent.CompletableFuture
+
 class KernelEndpointTest extends Specification {
 
+    Authentication user = Authentication.build("user")
+
     @AutoCleanup
     ApplicationContext applicationContext
 
@@ -45,4 +52,188 @@ class KernelEndpointTest extends Specification {
         KernelEndpoint endpoint = applicationContext.getBean(KernelEndpoint)
         endpoint != null
     }
+
+    def "await reports kernels unknown to every instance as terminated"() {
+        given:
+        RxHttpClient client = RxHttpClient.create(embeddedServer.URL)
+
+        when:
+        client.toBlocking().exchange(HttpRequest.GET("/jupyterkernel/no-such-kernel/await?timeoutSeconds=1"), Map)
+
+        then:
+        def e = thrown(io.micronaut.http.client.exceptions.HttpClientResponseException)
+        e.status == HttpStatus.NOT_FOUND
+        e.response.getBody(Map).get().state == "terminated"
+
+        cleanup:
+        client.close()
+    }
+
+    def "start rejects requests naming more than one connection"() {
+        given:
+        RxHttpClient client = RxHttpClient.create(embeddedServer.URL)
+
+        when:
+        client.toBlocking().exchange(HttpRequest.POST("/jupyterkernel/start", [
+                file         : "/tmp/kernel-test.json",
+                allocatePorts: true
+        ]), Map)
+
+        then:
+        def e = thrown(io.micronaut.http.client.exceptions.HttpClientResponseException)
+        e.status == HttpStatus.BAD_REQUEST
+
+        cleanup:
+        client.close()
+    }
+
+    def "remote starts are disabled by default"() {
+        given:
+        RxHttpClient client = RxHttpClient.create(embeddedServer.URL)
+
+        when:
+        client.toBlocking().exchange(HttpRequest.POST("/jupyterkernel/start", body), Map)
+
+        then:
+        def e = thrown(HttpClientResponseException)
+        e.status == HttpStatus.FORBIDDEN
+        e.response.getBody(Map).get().message.contains("jupyter.kernel.remoteStart.enabled")
+
+        cleanup:
+        client.close()
+
+        where:
+        body << [
+                [allocatePorts: true, key: "secret"],
+                [connection: [ip: "0.0.0.0", key: "secret", shell_port: 5001]]
+        ]
+    }
+
+    def "remote starts need an authenticated request"() {
+        given:
+        KernelManager kernelManager = Mock()
+        KernelEndpoint endpoint = new KernelEndpoint(kernelManager: kernelManager, remoteStartEnabled: true)
+
+        when:
+        HttpResponse<Map> response = endpoint.start(new KernelEndpoint.StartRequest(allocatePorts: true, key: "secret"), null, null, null)
+
+        then:
+        0 * kernelManager.startNewKernelOnAllocatedPorts(_, _)
+        response.status == HttpStatus.UNAUTHORIZED
+    }
+
+    def "start rejects allocated ports without a key"() {
+        given:
+        KernelManager kernelManager = Mock()
+        KernelEndpoint endpoint = new KernelEndpoint(kernelManager: kernelManager, remoteStartEnabled: true)
+
+        when:
+        HttpResponse<Map> response = endpoint.start(new KernelEndpoint.StartRequest(allocatePorts: true), null, null, user)
+
+        then:
+        0 * kernelManager.startNewKernelOnAllocatedPorts(_, _)
+        response.status == HttpStatus.BAD_REQUEST
+        response.body().message.contains("key")
+    }
+
+    def "start rejects addresses other than loopback or the advertised one"() {
+        given:
+        KernelManager kernelManager = Mock()
+        KernelEndpoint endpoint = new KernelEndpoint(kernelManager: kernelManager, remoteStartEnabled: true)
+
+        when:
+        HttpResponse<Map> response = endpoint.start(new KernelEndpoint.StartRequest(allocatePorts: true, key: "secret", ip: "0.0.0.0"), null, null, user)
+
+        then:
+        1 * kernelManager.startNewKernelOnAllocatedPorts("0.0.0.0", "secret") >> {
+            throw new IllegalArgumentException("Kernels can only be bound to loopback or to 127.0.0.1")
+        }
+        response.status == HttpStatus.BAD_REQUEST
+    }
+
+    def "changing a kernel needs an authenticated request"() {
+        given:
+        RxHttpClient client = RxHttpClient.create(embeddedServer.URL)
+
+        when:
+        client.toBlocking().exchange(HttpRequest.POST(path, [priority: "batch"]), Map)
+
+        then:
+        def e = thrown(HttpClientResponseException)
+        e.status == HttpStatus.UNAUTHORIZED
+
+        cleanup:
+        client.close()
+
+        where:
+        path << ["/jupyterkernel/kernel-1/priority", "/jupyterkernel/kernel-1/threads/stop"]
+    }
+
+    def "allocated start returns the bound ports but not the key"() {
+        given:
+        KernelManager kernelManager = Mock()
+        KernelEndpoint endpoint = new KernelEndpoint(kernelManager: kernelManager, remoteStartEnabled: true)
+
+        when:
+        HttpResponse<Map> response = endpoint.start(new KernelEndpoint.StartRequest(allocatePorts: true, key: "secret"), null, null, user)
+
+        then:
+        1 * kernelManager.startNewKernelOnAllocatedPorts(null, "secret") >> "kernel-1"
+        1 * kernelManager.getReadiness("kernel-1") >> CompletableFuture.completedFuture(null)
+        1 * kernelManager.getConnectionInfo("kernel-1") >> [
+                transport: "tcp", ip: "10.0.0.5", shell_port: 50001, key: "secret"
+        ]
+        response.status == HttpStatus.OK
+        response.body().ready == true
+        response.body().connection == [transport: "tcp", ip: "10.0.0.5", shell_port: 50001]
+    }
+
+    def "inline start waits for the kernel when asked to"() {
+        given:
+        KernelManager kernelManager = Mock()
+        KernelEndpoint endpoint = new KernelEndpoint(kernelManager: kernelManager, remoteStartEnabled: true)
+        Map connection = [transport: "tcp", ip: "127.0.0.1", shell_port: 0, key: "secret"]
+
+        when:
+        HttpResponse<Map> response = endpoint.start(new KernelEndpoint.StartRequest(connection: connection, wait: true), null, null, user)
+
+        then:
+        1 * kernelManager.startNewKernel(connection) >> "kernel-1"
+        1 * kernelManager.getReadiness("kernel-1") >> CompletableFuture.completedFuture(null)
+        1 * kernelManager.getConnectionInfo("kernel-1") >> connection + [shell_port: 50001]
+        response.status == HttpStatus.OK
+        response.body().kernelId == "kernel-1"
+        response.body().connection.shell_port == 50001
+        !response.body().connection.containsKey("key")
+    }
+
+    def "inline start without waiting returns at once"() {
+        given:
+        KernelManager kernelManager = Mock()
+        KernelEndpoint endpoint = new KernelEndpoint(kernelManager: kernelManager, remoteStartEnabled: true)
+
+        when:
+        HttpResponse<Map> response = endpoint.start(new KernelEndpoint.StartRequest(connection: [ip: "127.0.0.1"]), null, null, user)
+
+        then:
+        1 * kernelManager.startNewKernel(_ as Map) >> "kernel-1"
+        0 * kernelManager.getReadiness(_)
+        response.status == HttpStatus.OK
+        response.body().kernelId == "kernel-1"
+    }
+
+    def "priority conflicts while the scheduler is disabled"() {
+        given:
+        KernelManager kernelManager = Mock()
+        KernelEndpoint endpoint = new KernelEndpoint(kernelManager: kernelManager)
+
+        when:
+        HttpResponse<Map> response = endpoint.priority("kernel-1", [priority: "batch"])
+
+        then:
+        1 * kernelManager.getKernelById("kernel-1") >> Mock(Kernel)
+        1 * kernelManager.setKernelPriority("kernel-1", "batch") >> false
+        response.status == HttpStatus.CONFLICT
+        response.body().enabled == false
+    }
 }
@@ -3,6 +3,7 @@ package ai.stainless.micronaut.jupyter
 
 import ai.stainless.micronaut.jupyter.kernel.UnexpectedExitException
 import ai.stainless.micronaut.jupyter.kernel.KernelExitException
+import com.twosigma.beakerx.kernel.Kernel
 import groovy.json.JsonSlurper
 import io.micronaut.context.ApplicationContext
 import io.micronaut.context.env.Environment
@@ -106,4 +107,60 @@ class KernelManagerTest extends Specification {
         then:
         kernelManager.kernelClass == Interrupts
     }
+
+    def "kills kernels that have no termination future"() {
+        given:
+        Kernel untracked = Mock(Kernel)
+        kernelManager.@kernelInstances.add(untracked)
+
+        when:
+        kernelManager.killAllKernels()
+
+        then:
+        1 * untracked.kill()
+    }
+
+    def "allocated kernels bind the advertised address unless given one"() {
+        when:
+        kernelManager.advertisedAddress = "10.0.0.5"
+
+        then:
+        kernelManager.allocatedConnectionInfo(null, "secret").ip == "10.0.0.5"
+        kernelManager.allocatedConnectionInfo("127.0.0.1", "secret").ip == "127.0.0.1"
+        kernelManager.allocatedConnectionInfo(null, "secret").key == "secret"
+        kernelManager.allocatedConnectionInfo(null, "secret").shell_port == 0
+    }
+
+    def "kernels are only bound to loopback or the advertised address"() {
+        given:
+        kernelManager.advertisedAddress = "10.0.0.5"
+
+        when:
+        kernelManager.allocatedConnectionInfo(ip, "secret")
+
+        then:
+        IllegalArgumentException e = thrown()
+        e.message.contains(ip)
+
+        where:
+        ip << ["0.0.0.0", "192.168.1.2"]
+    }
+
+    def "allocated kernels need a key"() {
+        when:
+        kernelManager.allocatedConnectionInfo(null, " ")
+
+        then:
+        thrown(IllegalArgumentException)
+    }
+
+    def "rejects connections using the ipc transport"() {
+        when:
+        kernelManager.startNewKernel([transport: "ipc", ip: "/tmp/kernel-ipc", key: "secret", shell_port: 1,
+                                      iopub_port: 2, stdin_port: 3, control_port: 4, hb_port: 5] as Map<String, Object>)
+
+        then:
+        IllegalArgumentException e = thrown()
+        e.message.contains("ipc")
+    }
 }
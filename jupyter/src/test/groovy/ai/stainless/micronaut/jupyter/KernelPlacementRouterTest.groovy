@@ -0,0 +1,207 @@
+package ai.stainless.micronaut.jupyter
+
+import io.micronaut.context.ApplicationContext
+import io.micronaut.context.env.Environment
+import io.micronaut.http.HttpRequest
+import io.micronaut.http.HttpStatus
+import io.micronaut.http.MutableHttpRequest
+import io.micronaut.http.client.exceptions.HttpClientResponseException
+import io.micronaut.rxjava2.http.client.RxHttpClient
+import io.micronaut.runtime.server.EmbeddedServer
+import spock.lang.AutoCleanup
+import spock.lang.Specification
+
+import java.nio.file.Files
+import java.nio.file.Path
+
+class KernelPlacementRouterTest extends Specification {
+
+    @AutoCleanup
+    EmbeddedServer peer = ApplicationContext.run(EmbeddedServer, [
+            'micronaut.server.port'  : -1,
+            'jupyter.kernel.install' : false,
+            'jupyter.routing.enabled': true,
+            'jupyter.routing.token'  : 'routing-secret'
+    ] as Map, Environment.TEST)
+
+    @AutoCleanup
+    EmbeddedServer server
+
+    def setup() {
+        server = ApplicationContext.run(EmbeddedServer, [
+                'micronaut.server.port'            : -1,
+                'jupyter.kernel.install'           : false,
+                'jupyter.routing.enabled'          : true,
+                'jupyter.routing.refresh-interval' : '1h',
+                'jupyter.routing.token'            : 'routing-secret',
+                'jupyter.routing.peers'            : [peer.URL.toString()]
+        ] as Map, Environment.TEST)
+    }
+
+    def "router is disabled by default"() {
+        given:
+        ApplicationContext context = ApplicationContext.run([
+                'jupyter.kernel.install': false
+        ] as Map, Environment.TEST)
+
+        expect:
+        !context.containsBean(KernelPlacementRouter)
+
+        cleanup:
+        context.close()
+    }
+
+    def "publishes its load"() {
+        given:
+        RxHttpClient client = RxHttpClient.create(peer.URL)
+
+        when:
+        Map load = client.toBlocking().retrieve(HttpRequest.GET("/jupyterkernel/load")
+                .header(KernelPlacementRouter.TOKEN_HEADER, "routing-secret"), Map)
+
+        then:
+        load.instanceId == peer.applicationContext.getBean(KernelPlacementRouter).instanceId
+        load.activeKernels == 0
+        load.kernelIds == []
+        load.score != null
+
+        cleanup:
+        client.close()
+    }
+
+    def "only publishes its load to peers presenting the token"() {
+        given:
+        RxHttpClient client = RxHttpClient.create(peer.URL)
+        MutableHttpRequest<?> request = HttpRequest.GET("/jupyterkernel/load")
+        if (presented != null) {
+            request.header(KernelPlacementRouter.TOKEN_HEADER, presented)
+        }
+
+        when:
+        client.toBlocking().retrieve(request, Map)
+
+        then:
+        def e = thrown(HttpClientResponseException)
+        e.status == HttpStatus.UNAUTHORIZED
+
+        cleanup:
+        client.close()
+
+        where:
+        presented << [null, "wrong-secret"]
+    }
+
+    def "only counts forwarded starts that started a kernel"() {
+        given:
+        KernelPlacementRouter router = server.applicationContext.getBean(KernelPlacementRouter)
+        router.refreshPeerLoads()
+
+        when: "the peer refuses the start"
+        def response = router.forwardStart(peer.URL.toString(), [allocatePorts: true, key: "secret"], null)
+
+        then:
+        response.status == HttpStatus.FORBIDDEN
+        router.peerLoads.values().first().activeKernels == 0
+        router.@forwardedKernels.isEmpty()
+    }
+
+    def "forgets forwarded kernels the peer no longer runs"() {
+        given:
+        KernelPlacementRouter router = server.applicationContext.getBean(KernelPlacementRouter)
+        router.@forwardedKernels.put("gone", peer.URL.toString())
+        router.@forwardedKernels.put("elsewhere", "http://localhost:1")
+
+        when:
+        router.refreshPeerLoads()
+
+        then:
+        router.peerOf("gone") == null
+        router.peerOf("elsewhere") == "http://localhost:1"
+    }
+
+    def "polls the load of its peers"() {
+        given:
+        KernelPlacementRouter router = server.applicationContext.getBean(KernelPlacementRouter)
+
+        when:
+        router.refreshPeerLoads()
+
+        then:
+        router.peerLoads.keySet() == [peer.URL.toString()] as Set
+        router.peerLoads.values().first().activeKernels == 0
+    }
+
+    def "only forwards starts to peers sharing the host, with the connection inline"() {
+        given:
+        KernelPlacementRouter router = server.applicationContext.getBean(KernelPlacementRouter)
+        Path file = Files.createTempFile("kernel", ".json")
+        file.text = '{"ip": "127.0.0.1", "key": "secret", "shell_port": 5001}'
+        def request = new KernelEndpoint.StartRequest(file: file.toString(), wait: true)
+
+        expect:
+        router.forwardableStart(request) == null
+
+        when:
+        router.sharedHost = true
+        Map body = router.forwardableStart(request)
+
+        then:
+        !body.containsKey("file")
+        body.connection == [ip: "127.0.0.1", key: "secret", shell_port: 5001]
+        body.wait
+
+        cleanup:
+        Files.deleteIfExists(file)
+    }
+
+    def "forwards allocated starts to any peer unless they name an address"() {
+        given:
+        KernelPlacementRouter router = server.applicationContext.getBean(KernelPlacementRouter)
+
+        expect:
+        router.forwardableStart(new KernelEndpoint.StartRequest(allocatePorts: true, key: "secret")).key == "secret"
+        router.forwardableStart(new KernelEndpoint.StartRequest(allocatePorts: true, key: "secret", ip: "10.0.0.5")) == null
+    }
+
+    def "relays the await of a forwarded kernel to the peer running it"() {
+        given:
+        KernelPlacementRouter router = server.applicationContext.getBean(KernelPlacementRouter)
+        router.@forwardedKernels.put("on-peer", peer.URL.toString())
+        router.@forwardedKernels.put("on-unreachable-peer", "http://localhost:1")
+        RxHttpClient client = RxHttpClient.create(server.URL)
+
+        when: "the peer is unreachable"
+        client.toBlocking().exchange(HttpRequest.GET("/jupyterkernel/on-unreachable-peer/await?timeoutSeconds=1"), Map)
+
+        then: "the kernel isn't reported as terminated"
+        def unreachable = thrown(HttpClientResponseException)
+        unreachable.status == HttpStatus.SERVICE_UNAVAILABLE
+        unreachable.response.getBody(Map).get().state == "unknown"
+        router.peerOf("on-unreachable-peer") != null
+
+        when: "the peer answers"
+        client.toBlocking().exchange(HttpRequest.GET("/jupyterkernel/on-peer/await?timeoutSeconds=1"), Map)
+
+        then: "its answer is relayed, here that it doesn't know the kernel"
+        def terminated = thrown(HttpClientResponseException)
+        terminated.status == HttpStatus.NOT_FOUND
+        terminated.response.getBody(Map).get().state == "terminated"
+        router.peerOf("on-peer") == null
+
+        cleanup:
+        client.close()
+    }
+
+    def "ignores itself in the peer list"() {
+        given:
+        KernelPlacementRouter router = peer.applicationContext.getBean(KernelPlacementRouter)
+        router.staticPeers = [peer.URL.toString()]
+
+        when:
+        router.refreshPeerLoads()
+
+        then:
+        router.peerLoads.isEmpty()
+        router.choosePeer() == null
+    }
+}
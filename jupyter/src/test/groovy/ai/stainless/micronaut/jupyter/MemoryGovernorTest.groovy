@@ -0,0 +1,117 @@
+package ai.stainless.micronaut.jupyter
+
+import ai.stainless.micronaut.jupyter.kernel.Micronaut
+import jakarta.inject.Provider
+import spock.lang.Specification
+
+class MemoryGovernorTest extends Specification {
+
+    def "classifies heap and GC pressure"() {
+        given:
+        MemoryGovernor governor = new MemoryGovernor()
+
+        expect:
+        governor.pressureFor(heap, gc) == pressure
+
+        where:
+        heap | gc   || pressure
+        0.5  | 0.0  || MemoryGovernor.Pressure.NORMAL
+        0.86 | 0.0  || MemoryGovernor.Pressure.HIGH
+        0.5  | 0.3  || MemoryGovernor.Pressure.HIGH
+        0.95 | 0.0  || MemoryGovernor.Pressure.CRITICAL
+    }
+
+    def "samples the old generation when asked to admit a kernel"() {
+        given:
+        MemoryGovernor governor = new MemoryGovernor(policy: "none", evictionThreshold: 2.0)
+
+        when:
+        governor.admissionThreshold = 1.5
+
+        then:
+        governor.admitting
+
+        when:
+        governor.admissionThreshold = 0.0
+
+        then:
+        !governor.admitting
+        governor.pressureDescription.startsWith("old generation")
+    }
+
+    def "counts only old collections, and forgets them after the window"() {
+        given:
+        MemoryGovernor governor = new MemoryGovernor(policy: "none", admissionThreshold: 1.5, evictionThreshold: 2.0, gcWindowMs: 200)
+        governor.install()
+
+        when:
+        governor.onCollection(100, false)
+
+        then:
+        governor.admitting
+
+        when:
+        governor.onCollection(100, true)
+
+        then:
+        !governor.admitting
+
+        when:
+        Thread.sleep(300)
+
+        then:
+        governor.admitting
+
+        cleanup:
+        governor.uninstall()
+    }
+
+    def "picks the least recently used kernel that has been idle long enough"() {
+        expect:
+        MemoryGovernor.leastRecentlyUsed([a: 1000L, b: 500L, c: 9000L], 10000, 2000) == "b"
+        MemoryGovernor.leastRecentlyUsed([a: 9500L], 10000, 2000) == null
+        MemoryGovernor.leastRecentlyUsed([:], 10000, 2000) == null
+    }
+
+    def "hibernates the next idle kernel rather than one that would lose variables"() {
+        given:
+        Micronaut unsaveable = Mock() {
+            getLastActivityMillis() >> 1000L
+        }
+        Micronaut saveable = Mock() {
+            getLastActivityMillis() >> 2000L
+        }
+        KernelManager manager = Mock() {
+            getRunningKernels() >> [a: unsaveable, b: saveable]
+        }
+        MemoryGovernor governor = new MemoryGovernor(kernelManager: { manager } as Provider<KernelManager>)
+
+        when:
+        String evicted = governor.evictOne()
+
+        then:
+        1 * unsaveable.hibernate() >> false
+        1 * saveable.hibernate() >> true
+        0 * manager.killKernel(_)
+        evicted == "b"
+    }
+
+    def "evicts nothing when no idle kernel can be hibernated"() {
+        given:
+        Micronaut unsaveable = Mock() {
+            getLastActivityMillis() >> 1000L
+            hibernate() >> false
+        }
+        KernelManager manager = Mock() {
+            getRunningKernels() >> [a: unsaveable]
+        }
+        MemoryGovernor governor = new MemoryGovernor(kernelManager: { manager } as Provider<KernelManager>)
+
+        when:
+        String evicted = governor.evictOne()
+
+        then:
+        0 * manager.killKernel(_)
+        evicted == null
+    }
+}
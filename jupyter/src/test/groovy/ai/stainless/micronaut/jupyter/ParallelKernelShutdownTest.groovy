@@ -0,0 +1,88 @@
+package ai.stainless.micronaut.jupyter
+
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.TimeUnit
+
+class ParallelKernelShutdownTest extends Specification {
+
+    static final long KILL_MS = 100
+    static final long TERMINATE_MS = 200
+
+    ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(4)
+
+    def cleanup() {
+        scheduler.shutdownNow()
+    }
+
+    /**
+     * Fake kernels whose kill takes a while, and which terminate some time
+     * after being killed.
+     */
+    private Map<String, CompletableFuture<?>> terminations(int count) {
+        (1..count).collectEntries { ["kernel-$it".toString(), new CompletableFuture<Void>()] }
+    }
+
+    private Map<String, Runnable> kills(Map<String, CompletableFuture<?>> terminations) {
+        terminations.collectEntries { String kernelId, CompletableFuture<?> termination ->
+            [kernelId, {
+                Thread.sleep(KILL_MS)
+                scheduler.schedule({ termination.complete(null) }, TERMINATE_MS, TimeUnit.MILLISECONDS)
+            } as Runnable]
+        }
+    }
+
+    @Unroll
+    def "shutdown time stays flat with #count kernels"() {
+        given:
+        def terminations = terminations(count)
+        def kills = kills(terminations)
+
+        when:
+        long start = System.currentTimeMillis()
+        def pending = ParallelKernelShutdown.killAndAwait(kills, terminations, start + 10000)
+        long elapsed = System.currentTimeMillis() - start
+
+        then:
+        pending.isEmpty()
+        terminations.values().every { it.isDone() }
+        // killed one after the other, 50 kernels would take over 5 seconds
+        elapsed < 2 * (KILL_MS + TERMINATE_MS) + 500
+
+        where:
+        count << [1, 10, 50]
+    }
+
+    def "reports the kernels that did not terminate before the deadline"() {
+        given:
+        def terminations = terminations(3)
+        def kills = kills(terminations)
+        def stuck = new CompletableFuture<Void>()
+        terminations["stuck"] = stuck
+        kills["stuck"] = {} as Runnable
+
+        when:
+        long start = System.currentTimeMillis()
+        def pending = ParallelKernelShutdown.killAndAwait(kills, terminations, start + 1000)
+        long elapsed = System.currentTimeMillis() - start
+
+        then:
+        pending == ["stuck"] as Set
+        elapsed < 2000
+    }
+
+    def "a failing kill does not hold up the others"() {
+        given:
+        def terminations = terminations(2)
+        def kills = kills(terminations)
+        kills["kernel-1"] = { throw new IllegalStateException("kill failed") } as Runnable
+        terminations["kernel-1"].complete(null)
+
+        expect:
+        ParallelKernelShutdown.killAndAwait(kills, terminations, System.currentTimeMillis() + 5000).isEmpty()
+    }
+}
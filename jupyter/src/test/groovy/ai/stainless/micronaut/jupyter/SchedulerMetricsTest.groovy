@@ -0,0 +1,27 @@
+package ai.stainless.micronaut.jupyter
+
+import ai.stainless.micronaut.jupyter.kernel.CellScheduler
+import io.micrometer.core.instrument.Timer
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import spock.lang.Specification
+
+class SchedulerMetricsTest extends Specification {
+
+    def "publishes queue wait by priority class"() {
+        given:
+        CellScheduler scheduler = new CellScheduler(1, 1, 30000, CellScheduler.Priority.INTERACTIVE)
+        scheduler.setPriority("b", CellScheduler.Priority.BATCH)
+        SimpleMeterRegistry registry = new SimpleMeterRegistry()
+        SchedulerMetrics.bind(scheduler, registry)
+
+        when:
+        scheduler.acquire("a").close()
+        scheduler.acquire("a").close()
+        scheduler.acquire("b").close()
+
+        then:
+        Timer interactive = registry.get(SchedulerMetrics.QUEUE_WAIT).tag("priority", "interactive").timer()
+        interactive.count() == 2
+        registry.get(SchedulerMetrics.QUEUE_WAIT).tag("priority", "batch").timer().count() == 1
+    }
+}
@@ -0,0 +1,82 @@
+package ai.stainless.micronaut.jupyter
+
+import ai.stainless.micronaut.jupyter.kernel.MicronautJupyterScript
+import ai.stainless.micronaut.jupyter.kernel.ScriptBeanCache
+import io.micronaut.context.ApplicationContext
+import org.codehaus.groovy.control.CompilerConfiguration
+import org.codehaus.groovy.control.MultipleCompilationErrorsException
+import org.codehaus.groovy.control.customizers.ASTTransformationCustomizer
+import spock.lang.AutoCleanup
+import spock.lang.Specification
+
+class ScriptInjectionASTTransformationTest extends Specification {
+
+    static class Greeter {
+        String greet(String name) {
+            "Hello, $name"
+        }
+    }
+
+    @AutoCleanup
+    ApplicationContext applicationContext = ApplicationContext.run()
+
+    ScriptBeanCache beanCache
+
+    def setup() {
+        applicationContext.registerSingleton(new Greeter())
+        beanCache = new ScriptBeanCache(applicationContext)
+    }
+
+    private Object run(String script) {
+        CompilerConfiguration config = new CompilerConfiguration()
+        config.setScriptBaseClass(MicronautJupyterScript.name)
+        config.addCompilationCustomizers(new ASTTransformationCustomizer(new ScriptInjectionASTTransformation()))
+        Binding binding = new Binding([
+                _boundApplicationContext: applicationContext,
+                _boundBeanCache         : beanCache
+        ])
+        return new GroovyShell(getClass().classLoader, binding, config).evaluate(script)
+    }
+
+    def "injects local declarations"() {
+        expect:
+        run("""
+            @Inject ai.stainless.micronaut.jupyter.ScriptInjectionASTTransformationTest.Greeter greeter
+            greeter.greet('notebook')
+        """) == "Hello, notebook"
+    }
+
+    def "injects script fields once the binding is set"() {
+        expect:
+        run("""
+            @groovy.transform.Field @Inject ai.stainless.micronaut.jupyter.ScriptInjectionASTTransformationTest.Greeter greeter
+            def greetAll() { ['a', 'b'].collect { greeter.greet(it) } }
+            greetAll()
+        """) == ["Hello, a", "Hello, b"]
+    }
+
+    def "resolves singletons once per kernel until invalidated"() {
+        when:
+        def first = run("service(ai.stainless.micronaut.jupyter.ScriptInjectionASTTransformationTest.Greeter)")
+        def second = run("service(ai.stainless.micronaut.jupyter.ScriptInjectionASTTransformationTest.Greeter)")
+
+        then:
+        first.is(second)
+        beanCache.size() == 1
+
+        when:
+        beanCache.invalidate()
+
+        then:
+        beanCache.size() == 0
+    }
+
+    def "rejects untyped injections"() {
+        when:
+        run("@Inject def greeter")
+
+        then:
+        def e = thrown(MultipleCompilationErrorsException)
+        e.message.contains("needs a type")
+    }
+}
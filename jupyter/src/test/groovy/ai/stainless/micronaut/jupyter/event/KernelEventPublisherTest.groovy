@@ -0,0 +1,62 @@
+package ai.stainless.micronaut.jupyter.event
+
+import io.micronaut.context.event.ApplicationEventPublisher
+import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
+
+import java.util.concurrent.CopyOnWriteArrayList
+
+class KernelEventPublisherTest extends Specification {
+
+    PollingConditions conditions = new PollingConditions(timeout: 5)
+
+    def "publishes events in order without blocking the caller"() {
+        given:
+        List<KernelEvent> received = new CopyOnWriteArrayList<>()
+        def slowListener = { KernelEvent event ->
+            Thread.sleep(100)
+            received.add(event)
+        } as ApplicationEventPublisher<KernelEvent>
+        def publisher = new KernelEventPublisher(slowListener)
+
+        when:
+        long start = System.nanoTime()
+        publisher.publish(new KernelBusyEvent(this, "kernel-1"))
+        publisher.publish(new CellFinishedEvent(this, "kernel-1", 1000, false))
+        publisher.publish(new KernelIdleEvent(this, "kernel-1"))
+        long publishMillis = (System.nanoTime() - start) / 1000000
+
+        then:
+        publishMillis < 100
+        conditions.eventually {
+            assert received*.class == [KernelBusyEvent, CellFinishedEvent, KernelIdleEvent]
+        }
+
+        cleanup:
+        publisher.close()
+    }
+
+    def "a failing listener does not stop later events"() {
+        given:
+        List<KernelEvent> received = new CopyOnWriteArrayList<>()
+        def listener = { KernelEvent event ->
+            if (event instanceof KernelStartingEvent) {
+                throw new IllegalStateException("listener failed")
+            }
+            received.add(event)
+        } as ApplicationEventPublisher<KernelEvent>
+        def publisher = new KernelEventPublisher(listener)
+
+        when:
+        publisher.publish(new KernelStartingEvent(this, "kernel-1", "/tmp/kernel-1.json"))
+        publisher.publish(new KernelStartedEvent(this, "kernel-1", 10))
+
+        then:
+        conditions.eventually {
+            assert received*.class == [KernelStartedEvent]
+        }
+
+        cleanup:
+        publisher.close()
+    }
+}
@@ -0,0 +1,53 @@
+package ai.stainless.micronaut.jupyter.kernel
+
+import spock.lang.Specification
+
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+class BinaryDataTest extends Specification {
+
+    def "writes primitive arrays as little endian buffers"() {
+        given:
+        double[] values = [1.5d, -2d, 3.25d]
+
+        when:
+        BinaryData data = BinaryData.of(values)
+        ByteBuffer buffer = ByteBuffer.wrap(data.buffers[0]).order(ByteOrder.LITTLE_ENDIAN)
+
+        then:
+        data.buffers.size() == 1
+        data.byteCount == 24
+        (0..2).collect { buffer.getDouble(it * 8) } == [1.5d, -2d, 3.25d]
+        data.descriptor.columns == [[name: "value", dtype: "float64", length: 3, buffer: 0]]
+    }
+
+    def "describes each column of a table"() {
+        when:
+        BinaryData data = BinaryData.table([
+                id   : [1, 2] as int[],
+                score: [0.5f, 0.25f] as float[],
+                ok   : [true, false] as boolean[]
+        ])
+
+        then:
+        data.descriptor.rows == 2
+        data.descriptor.columns*.dtype == ["int32", "float32", "bool"]
+        data.descriptor.columns*.buffer == [0, 1, 2]
+        data.buffers*.length == [8, 8, 2]
+    }
+
+    def "rejects columns of different lengths and non-primitive values"() {
+        when:
+        BinaryData.table([a: [1, 2] as int[], b: [1] as int[]])
+
+        then:
+        thrown(IllegalArgumentException)
+
+        when:
+        BinaryData.of([1, 2, 3])
+
+        then:
+        thrown(IllegalArgumentException)
+    }
+}
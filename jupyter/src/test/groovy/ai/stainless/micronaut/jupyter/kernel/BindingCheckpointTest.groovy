@@ -0,0 +1,197 @@
+package ai.stainless.micronaut.jupyter.kernel
+
+import spock.lang.Specification
+
+import java.nio.file.FileSystems
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.attribute.PosixFilePermissions
+
+class BindingCheckpointTest extends Specification {
+
+    Path directory = Files.createTempDirectory("binding-checkpoint-test")
+
+    def cleanup() {
+        directory.toFile().deleteDir()
+    }
+
+    def "restores serializable variables into a fresh binding"() {
+        given:
+        def checkpoint = new BindingCheckpoint(directory.resolve("kernel.checkpoint"), 1024 * 1024, 1024 * 1024)
+        def binding = new Binding([
+                numbers: [1, 2, 3],
+                name   : "results",
+                nothing: null
+        ])
+
+        when:
+        def saved = checkpoint.save(binding)
+        def restoredBinding = new Binding()
+        def restored = checkpoint.restore(restoredBinding, getClass().classLoader)
+
+        then:
+        saved.variables.keySet() == ["numbers", "name", "nothing"] as Set
+        saved.skipped.isEmpty()
+        restored.variables.keySet() == saved.variables.keySet()
+        restoredBinding.getVariable("numbers") == [1, 2, 3]
+        restoredBinding.getVariable("name") == "results"
+        restoredBinding.hasVariable("nothing")
+    }
+
+    def "writes variables as they were when captured"() {
+        given:
+        def checkpoint = new BindingCheckpoint(directory.resolve("kernel.checkpoint"), 1024 * 1024, 1024 * 1024)
+        def numbers = [1, 2, 3]
+        def variables = [numbers: numbers]
+
+        when:
+        def snapshot = checkpoint.capture(variables)
+        numbers << 4
+        variables.name = "added later"
+
+        then:
+        !checkpoint.exists()
+
+        when:
+        checkpoint.write(snapshot)
+        def restoredBinding = new Binding()
+        checkpoint.restore(restoredBinding, getClass().classLoader)
+
+        then:
+        restoredBinding.getVariable("numbers") == [1, 2, 3]
+        !restoredBinding.hasVariable("name")
+    }
+
+    def "reports variables it can not capture"() {
+        given:
+        def checkpoint = new BindingCheckpoint(directory.resolve("kernel.checkpoint"), 100, 1024 * 1024)
+        def binding = new Binding([
+                thread : new Thread(),
+                closure: { it },
+                large  : "x" * 1000,
+                small  : 42,
+                _bound : "internal"
+        ])
+
+        when:
+        def report = checkpoint.save(binding)
+
+        then:
+        report.variables.keySet() == ["small"] as Set
+        report.skipped.keySet() == ["thread", "closure", "large"] as Set
+        report.skipped.large.contains("larger than 100 bytes")
+        report.toString().contains("Not captured")
+    }
+
+    def "streams variables to the file, leaving out those it can not capture"() {
+        given:
+        def checkpoint = new BindingCheckpoint(directory.resolve("kernel.snapshot"), 200 * 1024, 1024 * 1024)
+        def variables = [
+                numbers: (1..10000).toList(),
+                thread : new Thread(),
+                large  : "x" * (300 * 1024),
+                holder : [new Object()],
+                name   : "results"
+        ]
+
+        when:
+        def saved = checkpoint.saveStreaming(variables)
+        def restoredBinding = new Binding()
+        def restored = checkpoint.restore(restoredBinding, getClass().classLoader)
+
+        then:
+        saved.variables.keySet() == ["numbers", "name"] as Set
+        saved.skipped.keySet() == ["thread", "large", "holder"] as Set
+        restored.variables.keySet() == ["numbers", "name"] as Set
+        restored.skipped.isEmpty()
+        restoredBinding.getVariable("numbers") == (1..10000).toList()
+        restoredBinding.getVariable("name") == "results"
+    }
+
+    def "copies a snapshot over another checkpoint"() {
+        given:
+        def hibernation = new BindingCheckpoint(directory.resolve("kernel.snapshot"), 1024, 1024)
+        def checkpoint = new BindingCheckpoint(directory.resolve("checkpoints/kernel.checkpoint"), 1024, 1024)
+        hibernation.saveStreaming([answer: 42])
+
+        when:
+        hibernation.copyTo(checkpoint)
+        def restoredBinding = new Binding()
+        checkpoint.restore(restoredBinding, getClass().classLoader)
+
+        then:
+        restoredBinding.getVariable("answer") == 42
+    }
+
+    def "stops capturing at the total size limit"() {
+        given:
+        def checkpoint = new BindingCheckpoint(directory.resolve("kernel.checkpoint"), 1024, 1500)
+        def binding = new Binding([
+                first : "a" * 1000,
+                second: "b" * 1000
+        ])
+
+        when:
+        def report = checkpoint.save(binding)
+
+        then:
+        report.variables.keySet() == ["first"] as Set
+        report.skipped.second.contains("size limit")
+    }
+
+    def "restores only allowed classes"() {
+        given:
+        def binding = new Binding([file: new File("data.csv"), name: "results"])
+        new BindingCheckpoint(directory.resolve("kernel.checkpoint"), 1024 * 1024, 1024 * 1024).save(binding)
+
+        when:
+        def restoredBinding = new Binding()
+        def restored = new BindingCheckpoint(directory.resolve("kernel.checkpoint"), 1024 * 1024, 1024 * 1024)
+                .restore(restoredBinding, getClass().classLoader)
+
+        then:
+        restored.variables.keySet() == ["name"] as Set
+        restored.skipped.file.contains("not allowed")
+        !restoredBinding.hasVariable("file")
+
+        when:
+        restored = new BindingCheckpoint(directory.resolve("kernel.checkpoint"), 1024 * 1024, 1024 * 1024, "java.io.File")
+                .restore(restoredBinding, getClass().classLoader)
+
+        then:
+        restored.variables.keySet() == ["file", "name"] as Set
+        restoredBinding.getVariable("file") == new File("data.csv")
+    }
+
+    def "keeps snapshots in a folder only its owner can access"() {
+        given:
+        boolean posix = FileSystems.default.supportedFileAttributeViews().contains("posix")
+        Path shared = directory.resolve("shared")
+        Files.createDirectories(shared)
+        if (posix) {
+            Files.setPosixFilePermissions(shared, PosixFilePermissions.fromString("rwxrwxrwx"))
+        }
+
+        when:
+        new BindingCheckpoint(shared.resolve("kernel.checkpoint"), 1024, 1024).save(new Binding([a: 1]))
+        new BindingCheckpoint(directory.resolve("new/kernel.checkpoint"), 1024, 1024).save(new Binding([a: 1]))
+
+        then:
+        !posix || PosixFilePermissions.toString(Files.getPosixFilePermissions(shared)) == "rwx------"
+        !posix || PosixFilePermissions.toString(Files.getPosixFilePermissions(directory.resolve("new"))) == "rwx------"
+    }
+
+    def "restoring without a checkpoint does nothing"() {
+        given:
+        def checkpoint = new BindingCheckpoint(directory.resolve("missing.checkpoint"), 1024, 1024)
+        def binding = new Binding()
+
+        when:
+        def report = checkpoint.restore(binding, getClass().classLoader)
+
+        then:
+        !checkpoint.exists()
+        report.variables.isEmpty()
+        binding.variables.isEmpty()
+    }
+}
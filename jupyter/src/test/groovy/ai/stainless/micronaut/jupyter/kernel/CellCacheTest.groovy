@@ -0,0 +1,173 @@
+package ai.stainless.micronaut.jupyter.kernel
+
+import spock.lang.Requires
+import spock.lang.Specification
+
+import java.nio.file.FileSystems
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.attribute.PosixFilePermissions
+
+class CellCacheTest extends Specification {
+
+    Path directory = Files.createTempDirectory("cell-cache")
+
+    def cleanup() {
+        directory.toFile().deleteDir()
+    }
+
+    private static CellCache.Entry entry(String stdout, Object result, long ttlMillis = 0) {
+        return new CellCache.Entry(ttlMillis, stdout, "", ["text/plain": String.valueOf(result)],
+                BindingCheckpoint.serialize(result, Long.MAX_VALUE))
+    }
+
+    def "returns the stored output and result, counting hits and misses"() {
+        given:
+        CellCache cache = new CellCache(directory, 1 << 20, 1 << 20)
+        String key = CellCache.key("1 + 1", [:])
+
+        expect:
+        cache.get(key) == null
+
+        when:
+        cache.put(key, entry("computing\n", [a: 1, b: 2]))
+        CellCache.Entry stored = cache.get(key)
+
+        then:
+        stored.stdout == "computing\n"
+        stored.display == ["text/plain": "[a:1, b:2]"]
+        stored.getResult(getClass().classLoader) == [a: 1, b: 2]
+        cache.stats().hits == 1
+        cache.stats().misses == 1
+        cache.stats().entries == 1
+    }
+
+    def "keys on the source and the input values"() {
+        given:
+        CellCache cache = new CellCache(directory, 1 << 20, 1 << 20)
+
+        expect:
+        CellCache.key("query(region)", [region: cache.serializeInput("EU")]) ==
+                CellCache.key("  query(region)\n", [region: cache.serializeInput("EU")])
+        CellCache.key("query(region)", [region: cache.serializeInput("EU")]) !=
+                CellCache.key("query(region)", [region: cache.serializeInput("US")])
+        CellCache.key("query(region)", [:]) != CellCache.key("query(other)", [:])
+    }
+
+    def "keeps entries across instances"() {
+        given:
+        String key = CellCache.key("expensive()", [:])
+        new CellCache(directory, 1 << 20, 1 << 20).put(key, entry("", 42))
+
+        when:
+        CellCache reopened = new CellCache(directory, 1 << 20, 1 << 20)
+
+        then:
+        reopened.stats().entries == 1
+        reopened.get(key).getResult(getClass().classLoader) == 42
+    }
+
+    def "evicts the least recently used entries over the size limit"() {
+        given:
+        String payload = "x" * 4000
+        long entryBytes = new CellCache(Files.createTempDirectory(directory, "probe"), 1 << 20, 1 << 20).with {
+            put("probe", entry(payload, 0))
+            stats().bytes as long
+        }
+        CellCache cache = new CellCache(directory, (entryBytes * 5).intdiv(2), 1 << 20)
+        cache.put("first", entry(payload, 1))
+        cache.put("second", entry(payload, 2))
+
+        when: "first is used, then a third entry is stored"
+        cache.get("first")
+        cache.put("third", entry(payload, 3))
+
+        then:
+        cache.get("second") == null
+        cache.get("first") != null
+        cache.get("third") != null
+        cache.stats().evictions == 1
+        !Files.exists(directory.resolve("second.cell"))
+    }
+
+    def "drops files that hold anything but an entry"() {
+        given:
+        String key = CellCache.key("planted()", [:])
+        directory.resolve(key + ".cell").withObjectOutputStream { it.writeObject(new ArrayList<>([new URI("http://example.com")])) }
+        CellCache cache = new CellCache(directory, 1 << 20, 1 << 20)
+
+        expect:
+        cache.stats().entries == 1
+        cache.get(key) == null
+        cache.stats().entries == 0
+        !Files.exists(directory.resolve(key + ".cell"))
+    }
+
+    @Requires({ FileSystems.default.supportedFileAttributeViews().contains("posix") })
+    def "keeps entries in a folder only its owner can access"() {
+        given:
+        Path folder = directory.resolve("cells")
+        CellCache cache = new CellCache(folder, 1 << 20, 1 << 20)
+
+        when:
+        cache.put("private", entry("", 1))
+
+        then:
+        PosixFilePermissions.toString(Files.getPosixFilePermissions(folder)) == "rwx------"
+    }
+
+    def "drops expired entries"() {
+        given:
+        CellCache cache = new CellCache(directory, 1 << 20, 1 << 20)
+        cache.put("short", entry("", 1, 1))
+        Thread.sleep(20)
+
+        expect:
+        cache.get("short") == null
+        cache.stats().entries == 0
+    }
+
+    def "doesn't store entries larger than the entry limit"() {
+        given:
+        CellCache cache = new CellCache(directory, 1 << 20, 1024)
+
+        expect:
+        !cache.put("large", entry("x" * 4096, 1))
+        cache.stats().entries == 0
+    }
+
+    def "records output up to the entry limit"() {
+        given:
+        CellCache.Recording recording = new CellCache.Recording(10)
+
+        when:
+        recording.write("12345", true)
+        recording.write("67", false)
+
+        then:
+        recording.stdout == "12345"
+        recording.stderr == "67"
+        !recording.overflowed
+
+        when:
+        recording.write("too much", true)
+
+        then:
+        recording.overflowed
+    }
+
+    def "parses cache durations"() {
+        expect:
+        CacheMagicCommand.parseDuration(text) == millis
+
+        where:
+        text    | millis
+        "500ms" | 500
+        "30"    | 30000
+        "10m"   | 600000
+        "2h"    | 7200000
+        "1d"    | 86400000
+        "1w"    | -1
+        "soon"  | -1
+    }
+}
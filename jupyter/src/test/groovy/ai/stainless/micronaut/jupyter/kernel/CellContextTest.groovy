@@ -0,0 +1,89 @@
+package ai.stainless.micronaut.jupyter.kernel
+
+import spock.lang.Specification
+
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.atomic.AtomicBoolean
+
+class CellContextTest extends Specification {
+
+    AtomicBoolean kernelOpen = new AtomicBoolean(true)
+    CellContext context = new CellContext("kernel-1", new StandardStreamHandler.BeakerOutputHandlers(), kernelOpen)
+
+    def cleanup() {
+        CellContext.restore(null)
+    }
+
+    def "threads started by the cell inherit its context"() {
+        given:
+        CellContext.bind(context)
+        CellContext seen = null
+
+        when:
+        Thread.start { seen = CellContext.current() }.join(5000)
+
+        then:
+        seen == context
+    }
+
+    def "pool threads do not inherit the context"() {
+        given:
+        def pool = Executors.newSingleThreadExecutor()
+        CellContext.bind(context)
+
+        when:
+        def seen = pool.submit({ CellContext.current() } as Callable).get()
+
+        then:
+        seen == null
+
+        when:
+        seen = pool.submit(CellContext.wrap({ CellContext.current() } as Callable)).get()
+
+        then:
+        seen == context
+
+        cleanup:
+        pool.shutdownNow()
+    }
+
+    def "common pool workers never pick up a running cell"() {
+        given:
+        def scope = context.propagate()
+
+        when:
+        def onWorker = ForkJoinPool.commonPool().submit({ CellContext.current() } as Callable).get()
+        def wrapped = ForkJoinPool.commonPool().submit(CellContext.wrap({ CellContext.current() } as Callable)).get()
+
+        then:
+        onWorker == null
+        wrapped == context
+
+        cleanup:
+        scope.close()
+    }
+
+    def "closed kernels stop routing output"() {
+        given:
+        CellContext.bind(context)
+
+        when:
+        kernelOpen.set(false)
+
+        then:
+        CellContext.current() == null
+    }
+
+    def "restore unbinds the context"() {
+        given:
+        def previous = CellContext.bind(context)
+
+        when:
+        CellContext.restore(previous)
+
+        then:
+        CellContext.current() == null
+    }
+}
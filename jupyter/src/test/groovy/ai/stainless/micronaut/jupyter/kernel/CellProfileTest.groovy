@@ -0,0 +1,73 @@
+package ai.stainless.micronaut.jupyter.kernel
+
+import spock.lang.Specification
+
+import java.nio.file.Files
+import java.nio.file.Path
+import java.time.Duration
+
+class CellProfileTest extends Specification {
+
+    Path directory = Files.createTempDirectory("cell-profile-test")
+
+    def cleanup() {
+        directory.toFile().deleteDir()
+    }
+
+    def "records the code run while profiling and summarizes it"() {
+        given:
+        CellProfile profile = new CellProfile(Duration.ofMillis(10), 5)
+
+        when:
+        profile.start()
+        long deadline = System.currentTimeMillis() + 500
+        List<double[]> garbage = []
+        while (System.currentTimeMillis() < deadline) {
+            garbage << new double[1000]
+            if (garbage.size() > 100) {
+                garbage.clear()
+            }
+        }
+        Path file = profile.stop(directory, "cell-1")
+
+        then:
+        Files.size(file) > 0
+        file.fileName.toString() == "cell-1.jfr"
+        profile.samples > 0
+        profile.toHtml().contains("<b>Hot methods</b>")
+        profile.toHtml().contains("<table>")
+        profile.toString().contains("Recording: ${file}")
+    }
+
+    def "leaves out the threads of other cells"() {
+        given:
+        ThreadGroup cellGroup = new ThreadGroup("cell-profile-test")
+        CellProfile profile = new CellProfile(Duration.ofMillis(10), 5, CellProfile.threadsOf("kernel-1", cellGroup))
+        Closure busy = {
+            long deadline = System.currentTimeMillis() + 500
+            long sum = 0
+            while (System.currentTimeMillis() < deadline) {
+                sum += Math.sqrt(deadline - System.currentTimeMillis()) as long
+            }
+        }
+
+        when:
+        profile.start()
+        Thread cell = new Thread(cellGroup, busy as Runnable, "cell")
+        Thread other = new Thread(busy as Runnable, "other-kernel")
+        [cell, other]*.start()
+        [cell, other]*.join()
+        profile.stop(directory, "cell-2")
+
+        then:
+        profile.samples > 0
+        profile.otherSamples > 0
+        profile.toString().contains("of other threads left out")
+        !profile.toHtml().contains("other-kernel")
+    }
+
+    def "escapes method names in the HTML summary"() {
+        expect:
+        CellProfile.escape("java.util.ArrayList.<init>") == "java.util.ArrayList.&lt;init&gt;"
+    }
+}
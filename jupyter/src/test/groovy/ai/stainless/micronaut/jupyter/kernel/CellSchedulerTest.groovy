@@ -0,0 +1,325 @@
+package ai.stainless.micronaut.jupyter.kernel
+
+import spock.lang.IgnoreIf
+import spock.lang.Specification
+
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.TimeUnit
+
+import static ai.stainless.micronaut.jupyter.kernel.CellScheduler.Priority.BATCH
+import static ai.stainless.micronaut.jupyter.kernel.CellScheduler.Priority.INTERACTIVE
+
+class CellSchedulerTest extends Specification {
+
+    List<Thread> threads = []
+
+    def cleanup() {
+        threads*.interrupt()
+        threads*.join(1000)
+    }
+
+    /**
+     * Start a cell of the kernel that waits for a slot, records that it got
+     * one and then holds it until released.
+     */
+    private Map cell(CellScheduler scheduler, String kernelId, ConcurrentLinkedQueue<String> order) {
+        Map cell = [release: new Object(), released: false]
+        Thread thread = Thread.start {
+            CellScheduler.Slot slot = scheduler.acquire(kernelId)
+            order << kernelId
+            synchronized (cell.release) {
+                while (!cell.released) {
+                    cell.release.wait()
+                }
+            }
+            slot.close()
+        }
+        threads << thread
+        cell.thread = thread
+        return cell
+    }
+
+    private static void release(Map cell) {
+        synchronized (cell.release) {
+            cell.released = true
+            cell.release.notifyAll()
+        }
+        cell.thread.join(5000)
+    }
+
+    private static boolean waitFor(Closure<Boolean> condition) {
+        long deadline = System.currentTimeMillis() + 5000
+        while (!condition.call() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10)
+        }
+        return condition.call()
+    }
+
+    def "runs as many cells at once as there are slots"() {
+        given:
+        CellScheduler scheduler = new CellScheduler(2, 2, 30000, INTERACTIVE)
+        def order = new ConcurrentLinkedQueue<String>()
+
+        when:
+        Map<String, Map> cells = ["a", "b", "c"].collectEntries { [it, cell(scheduler, it, order)] }
+
+        then:
+        waitFor { order.size() == 2 && scheduler.stats().waiting == 1 }
+        scheduler.isSaturated("d")
+
+        when:
+        release(cells[order.peek()])
+
+        then:
+        waitFor { order.size() == 3 }
+
+        cleanup:
+        cells.values().each { release(it) }
+    }
+
+    def "gives free slots to interactive cells before batch cells"() {
+        given:
+        CellScheduler scheduler = new CellScheduler(1, 1, 30000, INTERACTIVE)
+        scheduler.setPriority("batch", BATCH)
+        def order = new ConcurrentLinkedQueue<String>()
+        def first = cell(scheduler, "first", order)
+        waitFor { order.size() == 1 }
+
+        when:
+        def batch = cell(scheduler, "batch", order)
+        waitFor { scheduler.stats().waiting == 1 }
+        def interactive = cell(scheduler, "interactive", order)
+        waitFor { scheduler.stats().waiting == 2 }
+        release(first)
+
+        then:
+        waitFor { order.size() == 2 }
+        order.toList() == ["first", "interactive"]
+
+        cleanup:
+        [interactive, batch].each { release(it) }
+    }
+
+    def "keeps batch cells to their share of the slots"() {
+        given:
+        CellScheduler scheduler = new CellScheduler(2, 1, 30000, BATCH)
+        scheduler.setPriority("ui", INTERACTIVE)
+        def order = new ConcurrentLinkedQueue<String>()
+
+        when:
+        def cells = ["a", "b"].collect { cell(scheduler, it, order) }
+
+        then:
+        waitFor { order.size() == 1 && scheduler.stats().waiting == 1 }
+
+        when: "an interactive cell takes the slot batch cells can't use"
+        cells << cell(scheduler, "ui", order)
+
+        then:
+        waitFor { order.size() == 2 }
+        order.toList()[1] == "ui"
+
+        cleanup:
+        cells.each { release(it) }
+    }
+
+    def "orders kernels that used less slot time first"() {
+        given:
+        CellScheduler scheduler = new CellScheduler(1, 1, 30000, INTERACTIVE)
+        def order = new ConcurrentLinkedQueue<String>()
+        // the heavy kernel used its slot for a while
+        CellScheduler.Slot heavy = scheduler.acquire("heavy")
+        Thread.sleep(50)
+        heavy.close()
+        def blocker = cell(scheduler, "blocker", order)
+        waitFor { order.size() == 1 }
+
+        when:
+        def heavyCell = cell(scheduler, "heavy", order)
+        waitFor { scheduler.stats().waiting == 1 }
+        def light = cell(scheduler, "light", order)
+        waitFor { scheduler.stats().waiting == 2 }
+        release(blocker)
+
+        then:
+        waitFor { order.size() == 2 }
+        order.toList()[1] == "light"
+
+        cleanup:
+        [light, heavyCell].each { release(it) }
+    }
+
+    def "counts time charged outside of slots towards the kernel's usage"() {
+        given:
+        CellScheduler scheduler = new CellScheduler(1, 1, 30000, INTERACTIVE)
+        def order = new ConcurrentLinkedQueue<String>()
+        // as if the kernel ran tasks on its parallel pool
+        scheduler.charge("parallel", TimeUnit.SECONDS.toNanos(10))
+        def blocker = cell(scheduler, "blocker", order)
+        waitFor { order.size() == 1 }
+
+        when:
+        def parallel = cell(scheduler, "parallel", order)
+        waitFor { scheduler.stats().waiting == 1 }
+        def light = cell(scheduler, "light", order)
+        waitFor { scheduler.stats().waiting == 2 }
+        release(blocker)
+
+        then:
+        waitFor { order.size() == 2 }
+        order.toList()[1] == "light"
+
+        cleanup:
+        [light, parallel].each { release(it) }
+    }
+
+    def "lets other cells have a suspended slot"() {
+        given:
+        CellScheduler scheduler = new CellScheduler(1, 1, 30000, INTERACTIVE)
+        def order = new ConcurrentLinkedQueue<String>()
+        CellScheduler.Slot waitingForInput = scheduler.acquire("input")
+
+        when: "the cell waits for the user's input"
+        waitingForInput.suspend()
+        def other = cell(scheduler, "other", order)
+
+        then:
+        waitFor { order.size() == 1 }
+
+        when: "the input arrives"
+        Thread resumed = Thread.start { waitingForInput.resume() }
+        threads << resumed
+
+        then:
+        waitFor { scheduler.stats().waiting == 1 }
+
+        when:
+        release(other)
+        resumed.join(5000)
+
+        then:
+        !resumed.alive
+        scheduler.stats().running == 1
+
+        when:
+        waitingForInput.close()
+
+        then:
+        scheduler.stats().running == 0
+    }
+
+    def "holds no slot when closed while suspended"() {
+        given:
+        CellScheduler scheduler = new CellScheduler(1, 1, 30000, INTERACTIVE)
+        CellScheduler.Slot slot = scheduler.acquire("a")
+
+        when:
+        slot.suspend()
+        slot.close()
+        slot.resume()
+
+        then:
+        scheduler.stats().running == 0
+        scheduler.acquire("b").waitMillis < TimeUnit.SECONDS.toMillis(1)
+    }
+
+    def "stops waiting when interrupted, without holding a slot"() {
+        given:
+        CellScheduler scheduler = new CellScheduler(1, 1, 30000, INTERACTIVE)
+        CellScheduler.Slot held = scheduler.acquire("a")
+        Throwable error = null
+        Thread waiter = Thread.start {
+            try {
+                scheduler.acquire("b")
+            } catch (Throwable t) {
+                error = t
+            }
+        }
+        waitFor { scheduler.stats().waiting == 1 }
+
+        when:
+        waiter.interrupt()
+        waiter.join(5000)
+        held.close()
+
+        then:
+        error instanceof InterruptedException
+        scheduler.stats().waiting == 0
+        scheduler.stats().running == 0
+        scheduler.acquire("c").waitMillis < TimeUnit.SECONDS.toMillis(1)
+    }
+
+    @IgnoreIf({ Runtime.version().feature() >= 20 })
+    @SuppressWarnings("deprecation")
+    def "gives back its place when stopped while waiting"() {
+        given:
+        CellScheduler scheduler = new CellScheduler(1, 1, 30000, INTERACTIVE)
+        CellScheduler.Slot held = scheduler.acquire("a")
+        Throwable error = null
+        Thread waiter = Thread.start {
+            try {
+                scheduler.acquire("b")
+            } catch (Throwable t) {
+                error = t
+            }
+        }
+        waitFor { scheduler.stats().waiting == 1 }
+
+        when:
+        // as BeakerX stops a cell thread that ignores interrupts
+        waiter.stop()
+        waiter.join(5000)
+        held.close()
+
+        then:
+        error instanceof ThreadDeath
+        scheduler.stats().waiting == 0
+        scheduler.stats().running == 0
+        scheduler.acquire("c").waitMillis < TimeUnit.SECONDS.toMillis(1)
+    }
+
+    def "reports queue wait by priority class"() {
+        given:
+        CellScheduler scheduler = new CellScheduler(1, 1, 30000, INTERACTIVE)
+
+        when:
+        scheduler.acquire("a").close()
+        scheduler.acquire("b").close()
+        Map stats = scheduler.stats()
+
+        then:
+        stats.slots == 1
+        stats.queueWaitMs.interactive.count == 2
+        stats.queueWaitMs.batch.count == 0
+        stats.queueWaitMs.interactive.p99 >= 0
+    }
+
+    def "tells the wait listener how long each cell waited"() {
+        given:
+        CellScheduler scheduler = new CellScheduler(1, 1, 30000, INTERACTIVE)
+        scheduler.setPriority("b", BATCH)
+        def waits = new ConcurrentLinkedQueue<CellScheduler.Priority>()
+        scheduler.waitListener = { CellScheduler.Priority priority, Long nanos ->
+            assert nanos >= 0
+            waits << priority
+        }
+
+        when:
+        scheduler.acquire("a").close()
+        scheduler.acquire("b").close()
+
+        then:
+        waits.toList() == [INTERACTIVE, BATCH]
+    }
+
+    def "rejects unknown priority classes"() {
+        expect:
+        CellScheduler.Priority.parse(" Batch ") == BATCH
+
+        when:
+        CellScheduler.Priority.parse("urgent")
+
+        then:
+        thrown(IllegalArgumentException)
+    }
+}
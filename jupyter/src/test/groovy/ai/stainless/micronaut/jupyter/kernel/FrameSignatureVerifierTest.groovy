@@ -0,0 +1,37 @@
+package ai.stainless.micronaut.jupyter.kernel
+
+import com.twosigma.beakerx.security.HashedMessageAuthenticationCode
+import spock.lang.Specification
+
+import java.nio.charset.StandardCharsets
+
+class FrameSignatureVerifierTest extends Specification {
+
+    String key = "a0436f6c-1916-498b-8eb9-e81ab9368e84"
+    List<byte[]> frames = ['{"msg_type":"execute_request"}', '{}', '{}', '{"code":"1 + 1"}']
+            .collect { it.getBytes(StandardCharsets.UTF_8) }
+
+    def "accepts signatures produced by BeakerX"() {
+        given:
+        byte[] signature = new HashedMessageAuthenticationCode(key).signBytes(new ArrayList<>(frames))
+                .getBytes(StandardCharsets.UTF_8)
+
+        expect:
+        new FrameSignatureVerifier(key).verify(signature, frames as byte[][])
+    }
+
+    def "rejects tampered frames"() {
+        given:
+        byte[] signature = new HashedMessageAuthenticationCode(key).signBytes(new ArrayList<>(frames))
+                .getBytes(StandardCharsets.UTF_8)
+        frames[3] = '{"code":"System.exit(0)"}'.getBytes(StandardCharsets.UTF_8)
+
+        expect:
+        !new FrameSignatureVerifier(key).verify(signature, frames as byte[][])
+    }
+
+    def "accepts anything when signing is disabled"() {
+        expect:
+        new FrameSignatureVerifier("").verify(new byte[0], frames as byte[][])
+    }
+}
@@ -0,0 +1,195 @@
+package ai.stainless.micronaut.jupyter.kernel
+
+import spock.lang.Specification
+
+import java.util.concurrent.Callable
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+
+class KernelParallelismTest extends Specification {
+
+    KernelParallelism parallelism = new KernelParallelism("kernel-1", 4)
+
+    def cleanup() {
+        CellContext.restore(null)
+        parallelism.shutdown()
+    }
+
+    def "returns results in order and runs tasks with the caller's cell context"() {
+        given:
+        CellContext context = new CellContext("kernel-1", new StandardStreamHandler.BeakerOutputHandlers(), new AtomicBoolean(true))
+        CellContext.bind(context)
+
+        when:
+        def results = parallelism.invokeAll((1..20).collect { int i -> { -> sleep(20 - i); [i, CellContext.current()] } as Callable })
+
+        then:
+        results*.get(0) == (1..20).toList()
+        results*.get(1).every { it.is(context) }
+    }
+
+    def "runs tasks with the kernel's script class loader as context class loader"() {
+        given:
+        ClassLoader scriptLoader = new GroovyClassLoader()
+        parallelism.scriptClassLoader = { scriptLoader }
+
+        when:
+        def loaders = parallelism.invokeAll((1..8).collect { { -> Thread.currentThread().contextClassLoader } as Callable })
+        def fannedOut = parallelism.fanOut([{ -> Thread.currentThread().contextClassLoader } as Callable])
+
+        then:
+        loaders.every { it.is(scriptLoader) }
+        fannedOut.every { it.is(scriptLoader) }
+    }
+
+    def "charges the scheduler with the time tasks ran on the pool only"() {
+        given:
+        CellScheduler scheduler = Mock()
+        parallelism.scheduler = scheduler
+
+        when:
+        parallelism.invokeAll((1..2).collect { { -> sleep(20) } as Callable })
+
+        then:
+        2 * scheduler.charge("kernel-1", { it >= TimeUnit.MILLISECONDS.toNanos(20) })
+
+        when:
+        parallelism.fanOut([{ -> sleep(20) } as Callable])
+
+        then:
+        0 * scheduler.charge(*_)
+    }
+
+    def "cancels the other tasks when one fails"() {
+        given:
+        CountDownLatch started = new CountDownLatch(1)
+        AtomicBoolean interrupted = new AtomicBoolean()
+        Callable slow = {
+            started.countDown()
+            try {
+                Thread.sleep(10000)
+            } catch (InterruptedException e) {
+                interrupted.set(true)
+            }
+        }
+        Callable failing = {
+            started.await()
+            throw new IllegalStateException("boom")
+        }
+
+        when:
+        parallelism.invokeAll([slow, failing])
+
+        then:
+        ExecutionException e = thrown()
+        e.cause instanceof IllegalStateException
+        waitFor { interrupted.get() }
+    }
+
+    def "cancels the tasks when the caller is interrupted"() {
+        given:
+        CountDownLatch started = new CountDownLatch(1)
+        AtomicBoolean interrupted = new AtomicBoolean()
+        Throwable callerError = null
+        Thread caller = Thread.start {
+            try {
+                parallelism.invokeAll([{
+                    started.countDown()
+                    try {
+                        Thread.sleep(10000)
+                    } catch (InterruptedException e) {
+                        interrupted.set(true)
+                    }
+                } as Callable])
+            } catch (Throwable t) {
+                callerError = t
+            }
+        }
+
+        when:
+        started.await(5, TimeUnit.SECONDS)
+        caller.interrupt()
+        caller.join(5000)
+
+        then:
+        callerError instanceof InterruptedException
+        waitFor { interrupted.get() }
+    }
+
+    def "runs nested calls sequentially on the worker"() {
+        when:
+        def results = parallelism.invokeAll([{
+            parallelism.invokeAll([{ Thread.currentThread() } as Callable, { Thread.currentThread() } as Callable])
+        } as Callable])
+
+        then:
+        results[0].toSet().size() == 1
+    }
+
+    def "fans blocking calls out on a thread each, beyond the parallelism"() {
+        given:
+        KernelParallelism virtual = new KernelParallelism("kernel-2", 1, true)
+        CountDownLatch allStarted = new CountDownLatch(8)
+
+        when:
+        def results = virtual.fanOut((1..8).collect { int i ->
+            { ->
+                allStarted.countDown()
+                // only returns if all calls wait at the same time
+                assert allStarted.await(5, TimeUnit.SECONDS)
+                i
+            } as Callable
+        })
+
+        then:
+        results == (1..8).toList()
+
+        cleanup:
+        virtual.shutdown()
+    }
+
+    def "cancels the other fanned-out calls when one fails"() {
+        given:
+        CountDownLatch started = new CountDownLatch(1)
+        AtomicBoolean interrupted = new AtomicBoolean()
+
+        when:
+        parallelism.fanOut([{
+            started.countDown()
+            try {
+                Thread.sleep(10000)
+            } catch (InterruptedException e) {
+                interrupted.set(true)
+            }
+        } as Callable, {
+            started.await()
+            throw new IllegalStateException("boom")
+        } as Callable])
+
+        then:
+        ExecutionException e = thrown()
+        e.cause instanceof IllegalStateException
+        waitFor { interrupted.get() }
+    }
+
+    def "refuses work once shut down"() {
+        given:
+        parallelism.shutdown()
+
+        when:
+        parallelism.invokeAll([{ 1 } as Callable])
+
+        then:
+        thrown(IllegalStateException)
+    }
+
+    private static boolean waitFor(Closure<Boolean> condition) {
+        long deadline = System.currentTimeMillis() + 5000
+        while (!condition.call() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10)
+        }
+        return condition.call()
+    }
+}
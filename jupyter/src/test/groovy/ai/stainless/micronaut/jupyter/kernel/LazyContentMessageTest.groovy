@@ -0,0 +1,50 @@
+package ai.stainless.micronaut.jupyter.kernel
+
+import com.twosigma.beakerx.kernel.msg.JupyterMessages
+import com.twosigma.beakerx.message.Header
+import com.twosigma.beakerx.message.MessageSerializer
+import spock.lang.Specification
+
+import java.nio.charset.StandardCharsets
+
+class LazyContentMessageTest extends Specification {
+
+    private static byte[] bytes(String json) {
+        return json.getBytes(StandardCharsets.UTF_8)
+    }
+
+    def "parses headers from their frames as BeakerX does"() {
+        given:
+        Header header = new Header(JupyterMessages.EXECUTE_REQUEST, "session-1")
+
+        when:
+        Header parsed = LazyContentMessage.parseHeader(bytes(MessageSerializer.toJson(header)))
+
+        then:
+        parsed.id == header.id
+        parsed.session == "session-1"
+        parsed.typeEnum == JupyterMessages.EXECUTE_REQUEST
+    }
+
+    def "ignores header fields BeakerX doesn't know"() {
+        when:
+        Header parsed = LazyContentMessage.parseHeader(bytes(
+                '{"msg_id":"1","session":"s","msg_type":"kernel_info_request","version":"5.4","subshell_id":null}'))
+
+        then:
+        parsed.id == "1"
+        parsed.typeEnum == JupyterMessages.KERNEL_INFO_REQUEST
+    }
+
+    def "parses content only when it is read"() {
+        given:
+        LazyContentMessage message = new LazyContentMessage(new Header(JupyterMessages.EXECUTE_REQUEST, "s"),
+                bytes('{}'), bytes('{"code":"1 + 1","silent":false}'))
+
+        expect:
+        !message.contentParsed
+        message.contentLength == 31
+        message.content == [code: "1 + 1", silent: false]
+        message.contentParsed
+    }
+}
@@ -0,0 +1,68 @@
+package ai.stainless.micronaut.jupyter.kernel
+
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import java.nio.file.Files
+import java.nio.file.Path
+
+class MavenResolutionCacheTest extends Specification {
+
+    Path directory = Files.createTempDirectory("resolution-cache-test")
+
+    def cleanup() {
+        directory.toFile().deleteDir()
+    }
+
+    @Unroll
+    def "normalizes the coordinates '#arguments'"() {
+        expect:
+        MavenResolutionCache.key(arguments) == key
+
+        where:
+        arguments                               | key
+        "com.google.guava guava 33.0.0-jre"     | "com.google.guava:guava:33.0.0-jre"
+        " com.google.guava:guava:33.0.0-jre "   | "com.google.guava:guava:33.0.0-jre"
+        "org.example lib 1.0 tests"             | "org.example:lib:1.0:tests"
+        "org.example:lib:1.0-SNAPSHOT"          | null
+        "org.example:lib:[1.0,2.0)"             | null
+        "org.example lib LATEST"                | null
+        "org.example:lib"                       | null
+        "a:b:1 c:d:2"                           | null
+    }
+
+    def "keeps resolutions on disk while their jars exist"() {
+        given:
+        Path file = directory.resolve("cache.properties")
+        Path first = Files.createFile(directory.resolve("first.jar"))
+        Path second = Files.createFile(directory.resolve("second.jar"))
+        new MavenResolutionCache(file, null, false).put("g:a:1", [first, second])
+
+        when:
+        MavenResolutionCache cache = new MavenResolutionCache(file, null, false)
+
+        then:
+        cache.get("g:a:1") == [first, second]
+
+        when:
+        Files.delete(second)
+
+        then:
+        cache.get("g:a:1") == null
+        new MavenResolutionCache(file, null, false).size() == 0
+    }
+
+    def "finds artifacts in the local repository"() {
+        given:
+        Path repository = directory.resolve("repository")
+        Path jar = repository.resolve("org/example/lib/1.0/lib-1.0-tests.jar")
+        Files.createDirectories(jar.parent)
+        Files.createFile(jar)
+        MavenResolutionCache cache = new MavenResolutionCache(null, repository, true)
+
+        expect:
+        cache.offline
+        cache.findInLocalRepository("org.example:lib:1.0:tests") == jar
+        cache.findInLocalRepository("org.example:lib:1.0") == null
+    }
+}
@@ -0,0 +1,99 @@
+package ai.stainless.micronaut.jupyter.kernel
+
+import spock.lang.Specification
+
+class MemoryBudgetTest extends Specification {
+
+    def "estimates primitive arrays and collections"() {
+        given:
+        RetainedSizeEstimator estimator = new RetainedSizeEstimator(100000)
+
+        expect:
+        estimator.estimate(new double[1000], RetainedSizeEstimator.newSeenSet()).bytes == 8016
+        estimator.estimate((1..1000).collect { new double[10] }, RetainedSizeEstimator.newSeenSet()).bytes > 1000 * 96
+        estimator.estimate((1..100).toList(), RetainedSizeEstimator.newSeenSet()).objects > 100
+    }
+
+    def "marks estimates of large graphs as lower bounds"() {
+        when:
+        def estimate = new RetainedSizeEstimator(10).estimate((1..100).collect { it.toString() }, RetainedSizeEstimator.newSeenSet())
+
+        then:
+        estimate.truncated
+    }
+
+    def "stops estimating at the total object limit and the deadline"() {
+        given:
+        RetainedSizeEstimator estimator = new RetainedSizeEstimator(100000)
+        List<String> strings = (1..5000).collect { it.toString() }
+
+        expect:
+        estimator.estimate(strings, RetainedSizeEstimator.newSeenSet(), 10, 0).truncated
+        estimator.estimate(strings, RetainedSizeEstimator.newSeenSet(), 100000, System.nanoTime() - 1).truncated
+        !estimator.estimate(strings, RetainedSizeEstimator.newSeenSet(), 100000, 0).truncated
+    }
+
+    def "caps the objects walked across every variable"() {
+        given:
+        MemoryBudget budget = new MemoryBudget(1_000_000_000, 100000, 50, 0)
+
+        when:
+        MemoryBudget.Report report = budget.enforce(new Binding([
+                first : (1..40).collect { it.toString() },
+                second: (1..40).collect { it.toString() }
+        ]), new ResultHistory(10))
+
+        then:
+        report.toMetadata().lower_bound == true
+        report.topVariables.second < report.topVariables.first
+    }
+
+    def "evicts the oldest results when over budget"() {
+        given:
+        ResultHistory history = new ResultHistory(10)
+        3.times { history.add(new double[100_000]) }
+        MemoryBudget budget = new MemoryBudget(2_000_000, 100000)
+
+        when:
+        MemoryBudget.Report report = budget.enforce(new Binding([small: "text"]), history)
+
+        then:
+        report.evicted == [1]
+        !report.overBudget
+        !history.entries()[0].held
+        history.entries()[1].held
+        report.toMetadata().results_held == 2
+        report.toNotice().contains("Evicted results [1]")
+    }
+
+    def "never evicts variables, but reports them"() {
+        given:
+        MemoryBudget budget = new MemoryBudget(1000, 100000)
+
+        when:
+        MemoryBudget.Report report = budget.enforce(new Binding([big: new long[1000], _internal: new long[1000]]), new ResultHistory(10))
+
+        then:
+        report.overBudget
+        report.topVariables.keySet() == ["big"] as Set
+        report.toNotice().contains("over the memory budget")
+    }
+
+    def "keeps a bounded number of results"() {
+        given:
+        ResultHistory history = new ResultHistory(2)
+
+        when:
+        (1..3).each { history.add("result $it".toString()) }
+
+        then:
+        history.get(3) == "result 3"
+        history.last == "result 3"
+
+        when:
+        history.get(1)
+
+        then:
+        thrown(NoSuchElementException)
+    }
+}
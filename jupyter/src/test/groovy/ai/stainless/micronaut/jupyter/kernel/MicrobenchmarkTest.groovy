@@ -0,0 +1,61 @@
+package ai.stainless.micronaut.jupyter.kernel
+
+import spock.lang.Specification
+
+class MicrobenchmarkTest extends Specification {
+
+    def "reports timing percentiles and throughput"() {
+        when:
+        Microbenchmark.Result result = new Microbenchmark([name: "sum", warmup: 1, iterations: 2, iterationMs: 20]).run {
+            (1..100).sum()
+        }
+
+        then:
+        result.name == "sum"
+        result.ops > 0
+        result.opsPerSecond > 0
+        result.min <= result.percentile(50)
+        result.percentile(50) <= result.percentile(99)
+        result.percentile(99) <= result.max
+        result.toString().contains("p99.9")
+        result.toHtml().startsWith("<table>")
+    }
+
+    def "measures allocation per operation"() {
+        when:
+        Microbenchmark.Result result = new Microbenchmark([warmup: 1, iterations: 2, iterationMs: 20]).run {
+            new long[1000]
+        }
+
+        then:
+        result.bytesPerOp == -1 || result.bytesPerOp >= 8000
+    }
+
+    def "passes the blackhole to closures that take a parameter"() {
+        given:
+        def seen = null
+
+        when:
+        new Microbenchmark([warmup: 0, iterations: 1, iterationMs: 1, batch: 2]).run { Microbenchmark.Blackhole bh ->
+            seen = bh
+            bh.consume(42L)
+        }
+
+        then:
+        seen instanceof Microbenchmark.Blackhole
+    }
+
+    def "rejects unknown and invalid options"() {
+        when:
+        new Microbenchmark([iteratons: 3])
+
+        then:
+        thrown(IllegalArgumentException)
+
+        when:
+        new Microbenchmark([iterations: 0])
+
+        then:
+        thrown(IllegalArgumentException)
+    }
+}
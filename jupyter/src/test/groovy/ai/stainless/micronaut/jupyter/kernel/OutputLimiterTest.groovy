@@ -0,0 +1,150 @@
+package ai.stainless.micronaut.jupyter.kernel
+
+import spock.lang.Specification
+
+import java.nio.file.Files
+import java.nio.file.Path
+
+class OutputLimiterTest extends Specification {
+
+    Path spillDirectory = Files.createTempDirectory("output-limiter-test")
+
+    def cleanup() {
+        spillDirectory.toFile().deleteDir()
+    }
+
+    def "passes output through when no limits are set"() {
+        given:
+        def limiter = new OutputLimiter(0, 0, 1024, 1)
+        limiter.spillDirectory = spillDirectory
+
+        expect:
+        !limiter.enabled
+        limiter.filter(limiter.startCell(), "x" * 100000) == "x" * 100000
+        !Files.exists(limiter.spillFile)
+    }
+
+    def "truncates a cell over its volume limit and spills the full stream"() {
+        given:
+        def limiter = new OutputLimiter(0, 10, 1024, 1)
+        limiter.spillDirectory = spillDirectory
+        def cell = limiter.startCell()
+
+        when:
+        def first = limiter.filter(cell, "12345")
+        def second = limiter.filter(cell, "6789012345")
+        def third = limiter.filter(cell, "more")
+        def report = limiter.finishCell(cell)
+
+        then:
+        first == "12345"
+        second.contains("Output limit exceeded")
+        third == null
+        report.contains("14 bytes")
+        limiter.totalDroppedBytes == 14
+        limiter.stats().displayedBytes == 5
+        limiter.stats().truncatedCells == 1
+        Files.readString(limiter.spillFile) == "123456789012345more"
+    }
+
+    def "each cell gets a fresh budget"() {
+        given:
+        def limiter = new OutputLimiter(0, 10, 1024, 1)
+        limiter.spillDirectory = spillDirectory
+
+        when:
+        def first = limiter.startCell()
+        limiter.filter(first, "x" * 20)
+        limiter.finishCell(first)
+        def second = limiter.startCell()
+
+        then:
+        limiter.filter(second, "hello") == "hello"
+        limiter.finishCell(second) == null
+    }
+
+    def "threads of an earlier cell don't spend the current cell's budget"() {
+        given:
+        def limiter = new OutputLimiter(0, 10, 1024, 1)
+        limiter.spillDirectory = spillDirectory
+        def earlier = limiter.startCell()
+        limiter.finishCell(earlier)
+        def current = limiter.startCell()
+
+        when: "a thread the earlier cell left running keeps printing"
+        limiter.filter(earlier, "x" * 20)
+
+        then:
+        limiter.filter(current, "0123456789") == "0123456789"
+        limiter.finishCell(current) == null
+    }
+
+    def "rolls the spill file over"() {
+        given:
+        def limiter = new OutputLimiter(0, 1, 10, 2)
+        limiter.spillDirectory = spillDirectory
+        def cell = limiter.startCell()
+
+        when:
+        5.times { limiter.filter(cell, "0123456789") }
+        limiter.close()
+
+        then:
+        Files.exists(spillDirectory.resolve(OutputLimiter.SPILL_FILE_NAME + ".1"))
+        Files.exists(spillDirectory.resolve(OutputLimiter.SPILL_FILE_NAME + ".2"))
+        !Files.exists(spillDirectory.resolve(OutputLimiter.SPILL_FILE_NAME + ".3"))
+    }
+
+    def "limits the output rate"() {
+        given:
+        def limiter = new OutputLimiter(100, 0, 1024, 1)
+        limiter.spillDirectory = spillDirectory
+        def cell = limiter.startCell()
+
+        expect:
+        limiter.filter(cell, "x" * 100) == "x" * 100
+        limiter.filter(cell, "x" * 100).contains("Output limit exceeded")
+    }
+
+    def "shows output again once the rate recovers"() {
+        given:
+        def limiter = new OutputLimiter(100, 0, 1024, 1)
+        limiter.spillDirectory = spillDirectory
+        def cell = limiter.startCell()
+
+        when:
+        def first = limiter.filter(cell, "x" * 100)
+        def notice = limiter.filter(cell, "x" * 100)
+        def dropped = limiter.filter(cell, "x" * 10)
+        Thread.sleep(1200)
+        def recovered = limiter.filter(cell, "y" * 10)
+
+        then:
+        first == "x" * 100
+        notice.contains("rate limit exceeded")
+        dropped == null
+        recovered == "y" * 10
+        limiter.finishCell(cell).contains("110 bytes")
+        limiter.stats().truncatedCells == 1
+    }
+
+    def "buffers the spill file until the cell finishes"() {
+        given:
+        def limiter = new OutputLimiter(0, 1000, 1024, 1)
+        limiter.spillDirectory = spillDirectory
+        def cell = limiter.startCell()
+
+        when:
+        limiter.filter(cell, "hello ")
+        limiter.filter(cell, "world")
+
+        then:
+        !Files.exists(limiter.spillFile)
+
+        when:
+        limiter.finishCell(cell)
+
+        then:
+        Files.readString(limiter.spillFile) == "hello world"
+    }
+}
@@ -0,0 +1,115 @@
+package ai.stainless.micronaut.jupyter.kernel
+
+import com.twosigma.beakerx.kernel.KernelFunctionality
+import com.twosigma.beakerx.kernel.msg.JupyterMessages
+import com.twosigma.beakerx.message.Header
+import com.twosigma.beakerx.message.Message
+import io.reactivex.Flowable
+import io.reactivex.Single
+import spock.lang.Specification
+
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionStage
+import java.util.function.BiConsumer
+
+class ReactiveCellResultTest extends Specification {
+
+    KernelFunctionality kernel = Mock(KernelFunctionality)
+    Message parent = new Message(new Header(JupyterMessages.EXECUTE_REQUEST, "test-session"))
+    IOPubPublisher publisher = new IOPubPublisher(kernel, parent)
+
+    def "recognizes reactive types"() {
+        expect:
+        ReactiveCellResult.isReactive(Flowable.just(1))
+        ReactiveCellResult.isReactive(Single.just(1))
+        ReactiveCellResult.isReactive(new CompletableFuture())
+        !ReactiveCellResult.isReactive("not reactive")
+        !ReactiveCellResult.isReactive(null)
+    }
+
+    def "publishes each item as display_data and completes with the source"() {
+        when:
+        def result = ReactiveCellResult.subscribe(Flowable.just(1, 2, 3), publisher)
+        def tryResult = result.await()
+
+        then:
+        3 * kernel.publish({ List<Message> messages ->
+            messages.size() == 1 &&
+                    messages[0].header.typeEnum == JupyterMessages.DISPLAY_DATA &&
+                    messages[0].parentHeader == parent.header
+        })
+        !tryResult.isError()
+        result.emittedCount == 3
+    }
+
+    def "completes with an error when the source fails"() {
+        when:
+        def tryResult = ReactiveCellResult.subscribe(Flowable.error(new IllegalStateException("boom")), publisher).await()
+
+        then:
+        0 * kernel.publish(_)
+        tryResult.isError()
+        tryResult.error().contains("boom")
+    }
+
+    def "publishes the value of a completion stage"() {
+        given:
+        def future = new CompletableFuture()
+
+        when:
+        def result = ReactiveCellResult.subscribe(future, publisher)
+
+        then:
+        !result.isDone()
+
+        when:
+        future.complete("done")
+
+        then:
+        !result.await().isError()
+        result.emittedCount == 1
+    }
+
+    def "cancels completion stages that can't be converted to futures"() {
+        given:
+        BiConsumer callback = null
+        CompletionStage stage = [
+                whenComplete       : { BiConsumer action -> callback = action; null },
+                toCompletableFuture: { throw new UnsupportedOperationException() }
+        ] as CompletionStage
+
+        when:
+        def result = ReactiveCellResult.subscribe(stage, publisher)
+        def tryResult = result.await(50)
+        callback.accept("late", null)
+
+        then:
+        tryResult.isError()
+        tryResult.error().contains("did not complete within 50ms")
+        result.emittedCount == 0
+    }
+
+    def "cancels the subscription when the source doesn't complete in time"() {
+        given:
+        boolean cancelled = false
+        def source = Flowable.never().doOnCancel { cancelled = true }
+
+        when:
+        def tryResult = ReactiveCellResult.subscribe(source, publisher).await(50)
+
+        then:
+        tryResult.isError()
+        tryResult.error().contains("did not complete within 50ms")
+        cancelled
+    }
+
+    def "cancel stops the subscription"() {
+        when:
+        def result = ReactiveCellResult.subscribe(Flowable.never(), publisher)
+        result.cancel()
+
+        then:
+        result.isDone()
+        result.await().isError()
+    }
+}
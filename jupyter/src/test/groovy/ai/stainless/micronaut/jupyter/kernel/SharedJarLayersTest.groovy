@@ -0,0 +1,83 @@
+package ai.stainless.micronaut.jupyter.kernel
+
+import spock.lang.Specification
+
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.jar.JarEntry
+import java.util.jar.JarOutputStream
+
+class SharedJarLayersTest extends Specification {
+
+    Path directory = Files.createTempDirectory("shared-layers-test")
+    SharedJarLayers layers = new SharedJarLayers(getClass().classLoader)
+
+    def cleanup() {
+        directory.toFile().deleteDir()
+    }
+
+    private Path jar(String name, String resource) {
+        Path jar = directory.resolve(name)
+        new JarOutputStream(Files.newOutputStream(jar)).withCloseable { out ->
+            out.putNextEntry(new JarEntry(resource))
+            out.write(name.bytes)
+            out.closeEntry()
+        }
+        return jar
+    }
+
+    def "shares layers with the same jars on the same parent"() {
+        given:
+        Path a = jar("a.jar", "a.txt")
+        Path b = jar("b.jar", "b.txt")
+
+        when:
+        SharedJarLayers.Layer first = layers.acquire(null, [a, b])
+        SharedJarLayers.Layer second = layers.acquire(null, [b, a])
+        SharedJarLayers.Layer top = layers.acquire(first, [jar("c.jar", "c.txt")])
+
+        then:
+        first.is(second)
+        top.parent.is(first)
+        layers.size() == 3
+    }
+
+    def "closes layers once no kernel or layer uses them"() {
+        given:
+        SharedJarLayers.Layer bottom = layers.acquire(null, [jar("a.jar", "a.txt")])
+        SharedJarLayers.Layer top = layers.acquire(bottom, [jar("b.jar", "b.txt")])
+
+        when: "the kernel moves to the top layer"
+        layers.release(bottom)
+
+        then:
+        layers.size() == 2
+
+        when:
+        layers.release(top)
+
+        then:
+        layers.size() == 0
+    }
+
+    def "finds classes and resources of the kernel's layers"() {
+        given:
+        SharedJarLayers.Layer bottom = layers.acquire(null, [jar("a.jar", "a.txt")])
+        SharedJarLayers.Layer top = layers.acquire(bottom, [jar("b.jar", "b.txt")])
+        SharedLayerClassLoader loader = new SharedLayerClassLoader(getClass().classLoader, top)
+
+        expect:
+        loader.getResource("a.txt").text == "a.jar"
+        loader.getResource("b.txt").text == "b.jar"
+        loader.loadClass(SharedJarLayers.name).is(SharedJarLayers)
+
+        when:
+        loader.layer = null
+
+        then:
+        loader.getResource("a.txt") == null
+
+        cleanup:
+        layers.release(top)
+    }
+}
@@ -0,0 +1,166 @@
+package ai.stainless.micronaut.jupyter.kernel
+
+import org.codehaus.groovy.runtime.InvokerHelper
+import spock.lang.Specification
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.function.Supplier
+import java.util.regex.Pattern
+
+class ThreadLeakTrackerTest extends Specification {
+
+    ThreadLeakTracker tracker = new ThreadLeakTracker("kernel-1", Pattern.compile("shared-.*"))
+    ThreadGroup group = new ThreadGroup("cells")
+    List<Thread> started = []
+    List<ExecutorService> executors = []
+
+    def cleanup() {
+        executors*.shutdownNow()
+        started*.interrupt()
+        started*.join(1000)
+    }
+
+    /**
+     * Run a cell on a thread of the cell thread group, as BeakerX does.
+     */
+    private <T> T runCell(int executionCount, Closure cell, Closure<T> afterCell = { List<Thread> leaked -> leaked }) {
+        T result = null
+        Throwable error = null
+        Thread thread = new Thread(group, {
+            try {
+                ThreadLeakTracker.Snapshot snapshot = tracker.begin()
+                cell.call()
+                result = afterCell.call(tracker.end(snapshot, executionCount))
+            } catch (Throwable t) {
+                error = t
+            }
+        }, "cell-" + executionCount)
+        thread.start()
+        thread.join(5000)
+        if (error != null) {
+            throw error
+        }
+        return result
+    }
+
+    private Thread sleeper(String name) {
+        Thread thread = new Thread({
+            try {
+                Thread.sleep(60000)
+            } catch (InterruptedException ignored) {
+            }
+        }, name)
+        started << thread
+        thread.start()
+        return thread
+    }
+
+    def "reports the threads a cell left running"() {
+        when:
+        List<Thread> leaked = runCell(1) {
+            sleeper("poller")
+            ExecutorService pool = Executors.newFixedThreadPool(1)
+            executors << pool
+            pool.submit({ 1 } as java.util.concurrent.Callable).get()
+            new Thread({}, "finished").with { start(); join() }
+        }
+
+        then:
+        leaked*.name.toSet().size() == 2
+        leaked*.name.contains("poller")
+        tracker.stats().alive == 2
+        tracker.stats().threads*.cell == [1, 1]
+    }
+
+    def "doesn't attribute threads of earlier cells to later ones"() {
+        given:
+        runCell(1) { sleeper("first") }
+
+        when:
+        List<Thread> leaked = runCell(2) { }
+
+        then:
+        leaked.isEmpty()
+        tracker.stats().leakedTotal == 1
+    }
+
+    def "ignores threads of shared pools"() {
+        when:
+        List<Thread> leaked = runCell(1) {
+            sleeper("shared-worker")
+            sleeper("Jupyter-Parallel-kernel-1-1")
+        }
+
+        then:
+        leaked.isEmpty()
+    }
+
+    def "stops threads that honor interrupts and those that don't"() {
+        given:
+        // started by this spec's closures rather than by compiled cells
+        tracker.stopUnattributed = true
+        CountDownLatch running = new CountDownLatch(1)
+        runCell(1) {
+            sleeper("polite")
+            Thread stubborn = new Thread({
+                running.countDown()
+                while (true) {
+                    try {
+                        Thread.sleep(60000)
+                    } catch (InterruptedException ignored) {
+                        // keeps going, like a pool worker
+                    }
+                }
+            }, "stubborn")
+            stubborn.daemon = true
+            started << stubborn
+            stubborn.start()
+        }
+        running.await(5, TimeUnit.SECONDS)
+
+        when:
+        List<Thread> survivors = tracker.stopAll(200)
+
+        then:
+        // Thread.stop is unsupported from Java 20, so a stubborn thread may survive there
+        survivors*.name.every { it == "stubborn" }
+        tracker.alive()*.name == survivors*.name
+        tracker.stats().stoppedTotal == 2 - survivors.size()
+    }
+
+    def "only stops threads running code of the kernel's cells"() {
+        given:
+        GroovyClassLoader scripts = new GroovyClassLoader(getClass().classLoader)
+        tracker.scriptClassLoader = { scripts } as Supplier<ClassLoader>
+        Class<?> cell = scripts.parseClass('''
+            Thread thread = new Thread({
+                running.countDown()
+                try {
+                    Thread.sleep(60000)
+                } catch (InterruptedException ignored) {
+                }
+            }, "cell-worker")
+            thread.start()
+            running.await()
+            thread
+        ''')
+        CountDownLatch running = new CountDownLatch(1)
+        runCell(1) {
+            started << (InvokerHelper.createScript(cell, new Binding([running: running])).run() as Thread)
+            sleeper("library-worker")
+        }
+
+        expect:
+        tracker.stats().threads.collectEntries { [it.name, it.attributed] } == ["cell-worker": true, "library-worker": false]
+
+        when:
+        List<Thread> survivors = tracker.stopAll(1000)
+
+        then:
+        survivors*.name == ["library-worker"]
+        tracker.stats().stoppedTotal == 1
+    }
+}
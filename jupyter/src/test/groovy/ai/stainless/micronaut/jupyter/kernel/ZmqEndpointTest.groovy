@@ -0,0 +1,32 @@
+package ai.stainless.micronaut.jupyter.kernel
+
+import spock.lang.Specification
+
+class ZmqEndpointTest extends Specification {
+
+    def "builds endpoints the way Jupyter does"() {
+        expect:
+        ZmqEndpoint.address("tcp", "127.0.0.1", 5555) == "tcp://127.0.0.1:5555"
+    }
+
+    def "accepts the tcp transport"() {
+        when:
+        ZmqEndpoint.checkTransport(null)
+        ZmqEndpoint.checkTransport("tcp")
+
+        then:
+        noExceptionThrown()
+    }
+
+    def "rejects transports that can't be bound"() {
+        when:
+        ZmqEndpoint.checkTransport(transport)
+
+        then:
+        IllegalArgumentException e = thrown()
+        e.message.contains(transport)
+
+        where:
+        transport << ["ipc", "udp"]
+    }
+}